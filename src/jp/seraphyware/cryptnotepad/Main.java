@@ -4,12 +4,13 @@ import java.awt.Font;
 import java.awt.Frame;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeSet;
@@ -21,20 +22,29 @@ import javax.swing.SwingUtilities;
 import javax.swing.UIDefaults;
 import javax.swing.UIManager;
 
+import jp.seraphyware.cryptnotepad.cli.BatchMain;
 import jp.seraphyware.cryptnotepad.crypt.CipherCancelException;
+import jp.seraphyware.cryptnotepad.crypt.CryptUtils;
 import jp.seraphyware.cryptnotepad.model.ApplicationSettings;
+import jp.seraphyware.cryptnotepad.model.ApplicationSettingsPersister;
 import jp.seraphyware.cryptnotepad.model.DocumentController;
 import jp.seraphyware.cryptnotepad.model.SettingsModel;
 import jp.seraphyware.cryptnotepad.ui.MainFrame;
 import jp.seraphyware.cryptnotepad.util.AWTExceptionLoggingHandler;
 import jp.seraphyware.cryptnotepad.util.ApplicationLoggerConfigurator;
 import jp.seraphyware.cryptnotepad.util.ConfigurationDirUtilities;
+import jp.seraphyware.cryptnotepad.util.EDTWatchdog;
 import jp.seraphyware.cryptnotepad.util.ErrorMessageHelper;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+import jp.seraphyware.cryptnotepad.util.SingleInstance;
+import jp.seraphyware.cryptnotepad.util.StartupTimeline;
 
 /**
  * メインエントリ.<br>
  * <br>
  * appbase.dirシステムプロパティでディレクトリを指定可能.<br>
+ * すでに起動しているインスタンスがあれば、引数のファイルをそれに渡して終了する.<br>
+ * (singleinstanceシステムプロパティをfalseにすると常に新たに起動する.)<br>
  * 
  * @author seraphy
  */
@@ -61,9 +71,9 @@ public class Main implements Runnable {
     private File appConfigFile;
 
     /**
-     * アプリケーション設定ファイルの変更フラグ
+     * アプリケーション設定の変更をファイルに保存するもの、未設定であればnull
      */
-    private boolean appConfigModified;
+    private ApplicationSettingsPersister appConfigPersister;
 
     /**
      * ドキュメントコントローラ
@@ -80,6 +90,21 @@ public class Main implements Runnable {
      */
     private static MainFrame mainFrame;
 
+    /**
+     * EDTの停止の監視、監視しない場合はnull
+     */
+    private static EDTWatchdog edtWatchdog;
+
+    /**
+     * 単一インスタンスの管理、他のインスタンスと独立して起動した場合はnull
+     */
+    private static SingleInstance singleInstance;
+
+    /**
+     * 起動時の引数で指定されたファイル
+     */
+    private static List<File> startupFiles = Collections.emptyList();
+
     /**
      * クラスイニシャライザ.<br>
      * 実行環境に関する定数を取得・設定する.<br>
@@ -245,6 +270,14 @@ public class Main implements Runnable {
 
             // アプリケーション設定のロード
             initAppConfig();
+            StartupTimeline.mark("appConfig");
+
+            // EDTの停止の監視を開始する.
+            int watchdogThreshold = appConfig.getEdtWatchdogThreshold();
+            if (watchdogThreshold > 0) {
+                edtWatchdog = new EDTWatchdog(watchdogThreshold);
+                edtWatchdog.start();
+            }
 
             // UIManagerのセットアップ.
             try {
@@ -255,6 +288,7 @@ public class Main implements Runnable {
                 ex.printStackTrace();
                 logger.log(Level.WARNING, "UIManager setup failed.", ex);
             }
+            StartupTimeline.mark("uiManager");
 
             // LANG, LC_CTYPEが設定されていない場合はエラーを表示する
             // OSXのJava7(Oracle)を実行する場合、環境変数LANGまたはLC_CTYPEに正しくファイル名の文字コードが設定されていないと
@@ -275,7 +309,10 @@ public class Main implements Runnable {
             mainFrame.setSize(appConfig.getMainFrameWidth(),
                     appConfig.getMainFrameHeight());
             mainFrame.setLocationByPlatform(true);
+            StartupTimeline.mark("mainFrame");
             mainFrame.setVisible(true);
+            StartupTimeline.mark("visible");
+            StartupTimeline.logSummary("main window shown");
 
             // ウィンドウ破棄イベントのハンドリング
             mainFrame.addWindowListener(new WindowAdapter() {
@@ -285,6 +322,24 @@ public class Main implements Runnable {
                 }
             });
 
+            // 他のプロセスからのファイルを開く要求を受け付ける.
+            startSingleInstanceServer();
+
+            // 引数で指定されたファイルを開く.
+            // (パスフレーズの入力などがあるため、メインフレームの表示後に行う.)
+            if (!startupFiles.isEmpty()) {
+                final List<File> files = startupFiles;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        mainFrame.openFiles(files);
+                    }
+                });
+            }
+
+            // 画面表示に必須ではない初期化をバックグラウンドで行う.
+            startBackgroundTasks();
+
         } catch (Throwable ex) {
             // なんらかの致命的な初期化エラーがあった場合、ログとコンソールに表示
             // ダイアログが表示されるかどうかは状況次第.
@@ -294,6 +349,63 @@ public class Main implements Runnable {
         }
     }
 
+    /**
+     * 主インスタンスであれば、他のプロセスからのファイルを開く要求の待ち受けを開始する.<br>
+     * 待ち受けに失敗しても、ログに記録して継続する.<br>
+     */
+    private static void startSingleInstanceServer() {
+        if (singleInstance == null) {
+            return;
+        }
+        try {
+            singleInstance.startServer();
+
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "single instance server failed.", ex);
+            return;
+        }
+        singleInstance.setRequestHandler(new SingleInstance.RequestHandler() {
+            @Override
+            public void onOpenRequest(List<File> files) {
+                if (mainFrame != null && mainFrame.isDisplayable()) {
+                    mainFrame.openFiles(files);
+                }
+            }
+        });
+    }
+
+    /**
+     * 画面表示に必須ではない初期化をバックグラウンドのスレッドで順に行う.<br>
+     * 診断情報のロギング、暗号化プロバイダの初期化、性能計測値のMBeanの登録を行う.<br>
+     * (ファイル一覧の探索はメインフレームがバックグラウンドで行っている.)<br>
+     */
+    private static void startBackgroundTasks() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long st = System.nanoTime();
+                dumpDiagnostics();
+                StartupTimeline.record("diagnostics", st);
+
+                st = System.nanoTime();
+                try {
+                    CryptUtils.warmUp();
+
+                } catch (Exception ex) {
+                    logger.log(Level.WARNING, "crypto warm-up failed.", ex);
+                }
+                StartupTimeline.record("cryptoWarmUp", st);
+
+                st = System.nanoTime();
+                Metrics.registerMBeans();
+                StartupTimeline.record("registerMBeans", st);
+            }
+        }, "StartupTasks");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
     /**
      * アプリケーション終了のハンドリング.
      * 
@@ -322,6 +434,18 @@ public class Main implements Runnable {
         // (パスフレーズなどをメモリから除去する.)
         documentController.dispose();
 
+        // EDTの停止の監視を終了し、集計を記録する.
+        if (edtWatchdog != null) {
+            edtWatchdog.stop();
+            edtWatchdog = null;
+        }
+
+        // 待ち受けを終了し、次に起動するプロセスが主インスタンスになれるようにする.
+        if (singleInstance != null) {
+            singleInstance.close();
+            singleInstance = null;
+        }
+
         logger.log(Level.INFO, "normal shutdown.");
     }
 
@@ -331,8 +455,7 @@ public class Main implements Runnable {
     public void initAppConfig() {
         try {
             // アプリケーション設定ファイルの位置を求める
-            File userDir = ConfigurationDirUtilities.getUserDataDir();
-            appConfigFile = new File(userDir, "appconfig.xml");
+            appConfigFile = getAppConfigFile();
 
             // 環境による初期値を設定する.
             appConfig.setWorkingDir(new File(System
@@ -343,19 +466,29 @@ public class Main implements Runnable {
             // 設定ファイルをロードする.
             appConfig.load(appConfigFile);
 
-            // プロパティ変更イベントを受け取れるようにリスナーを設定する.
-            appConfig.addPropertyChangeListener(new PropertyChangeListener() {
+            // 設定が変更されたら、まとめてバックグラウンドで保存する.
+            appConfigPersister = new ApplicationSettingsPersister(appConfig,
+                    appConfigFile, ApplicationSettingsPersister.DEFAULT_DELAY) {
                 @Override
-                public void propertyChange(PropertyChangeEvent evt) {
-                    // 終了時に設定ファイルを保存するようにフラグを立てておく.
-                    appConfigModified = true;
+                protected Properties createSnapshot() {
+                    Properties props = super.createSnapshot();
+                    // 作業フォルダはデフォルトと変更なければ空にして保存する.
+                    File workingDir = appConfig.getWorkingDir();
+                    if (workingDir == null
+                            || workingDir.equals(new File(System
+                                    .getProperty("java.io.tmpdir")))) {
+                        props.setProperty("workingDir", "");
+                    }
+                    return props;
                 }
-            });
+            };
+            appConfigPersister.start();
 
             // 設定に反映する.
             SettingsModel settingModel = documentController.getSettingsModel();
             settingModel.setEncoding(appConfig.getEncoding());
             settingModel.setKeyFile(appConfig.getKeyFile());
+            documentController.applyAppConfig();
 
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -364,45 +497,76 @@ public class Main implements Runnable {
     }
 
     /**
-     * アプリケーション設定ファイルを保存する.
+     * アプリケーション設定ファイルの位置を取得する.
+     * 
+     * @return アプリケーション設定ファイル
      */
-    public void saveAppConfig() {
-        try {
-            // アプリケーション設定が変更されている場合、
-            if (appConfigModified) {
-                // 作業フォルダはデフォルトと変更なければ空にして保存する.
-                File workingDir = appConfig.getWorkingDir();
-                if (workingDir.equals(new File(System
-                        .getProperty("java.io.tmpdir")))) {
-                    appConfig.setWorkingDir(null);
-                }
-
-                // 設定ファイルを保存する.
-                if (appConfig.save(appConfigFile)) {
-                    logger.log(Level.INFO, "config file was saved.");
-                }
-            }
+    public static File getAppConfigFile() {
+        File userDir = ConfigurationDirUtilities.getUserDataDir();
+        return new File(userDir, "appconfig.xml");
+    }
 
-        } catch (Exception ex) {
+    /**
+     * アプリケーション設定ファイルを保存する.<br>
+     * 未保存の変更があれば書き込み、書き込みの完了を待つ.<br>
+     */
+    public void saveAppConfig() {
+        if (appConfigPersister != null) {
             // 書き込みに失敗してもログに記録するだけ.
-            ex.printStackTrace();
-            logger.log(Level.WARNING, "config file save failed.", ex);
+            appConfigPersister.close();
+            appConfigPersister = null;
         }
     }
 
     /**
      * エントリポイント.<br>
      * 最初のメインフレームを開いたときにMac OS Xであればスクリーンメニューの登録も行う.<br>
+     * 引数がバッチモードのコマンドであれば、UIを作成せずにバッチ処理を行い終了する.<br>
+     * そうでなければ引数は開くファイルとし、すでに起動しているインスタンスがあれば、
+     * そちらでファイルを開いて、ただちに終了する.<br>
      * 
      * @param args
-     *            引数(未使用)
+     *            開くファイル、もしくはバッチモードのコマンドと引数
      */
     public static void main(String[] args) {
+        if (BatchMain.isBatchCommand(args)) {
+            // バッチモードの場合はUIを使用しない.
+            System.setProperty("java.awt.headless", "true");
+            System.setProperty("java.net.useSystemProxies", "true");
+            initLogger();
+            System.exit(BatchMain.run(args));
+            return;
+        }
+
+        // 起動処理の計測を開始する.
+        StartupTimeline.start();
+
+        // 引数は開くファイルとする.
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            files.add(new File(arg).getAbsoluteFile());
+        }
+        startupFiles = files;
+
+        // すでに起動しているインスタンスがあれば、そちらでファイルを開く.
+        // (UIやロガーの初期化よりも前に行い、2番目のプロセスはすぐに終了させる.)
+        if (!"false".equalsIgnoreCase(System.getProperty("singleinstance"))) {
+            singleInstance = new SingleInstance(
+                    ConfigurationDirUtilities.getUserDataDir());
+            if (!singleInstance.tryAcquire()) {
+                if (singleInstance.forward(files)) {
+                    System.exit(0);
+                    return;
+                }
+                // 主インスタンスが応答しなければ、独立して起動する.
+                singleInstance = null;
+            }
+        }
+        StartupTimeline.mark("singleInstance");
+
         // ロガー等の初期化
         initLogger();
-
-        // 診断情報のプリント
-        dumpDiagnostics();
+        StartupTimeline.mark("logger");
 
         // キャンセル例外クラスは警告扱いとする.
         ErrorMessageHelper.addHandler(CipherCancelException.class,
@@ -0,0 +1,386 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jp.seraphyware.cryptnotepad.crypt.PackedArchive;
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.ApplicationSettings;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+import jp.seraphyware.cryptnotepad.model.DocumentController.PassphraseUIProvider;
+import jp.seraphyware.cryptnotepad.model.SettingsModel;
+
+/**
+ * 小さなドキュメントを多数扱う場合の性能を、個別のファイルとアーカイブで比較するベンチマーク.<br>
+ * 一時ディレクトリに指定した数の小さなテキストを個別のファイルとアーカイブの両方に暗号化し、
+ * 一覧の取得(ファイルツリーの探索に相当)、すべてのドキュメントの復号化、
+ * ランダムに選んだドキュメントを1つずつ開く時間を計測する.<br>
+ * アーカイブは開いたまま読み込む場合と、目次の読み込みを含めて毎回開きなおす場合を計測する.<br>
+ * パスフレーズは計測用の固定値を用い、最近復号化したドキュメントのキャッシュは無効にする.<br>
+ * (OSのファイルキャッシュは制御しないため、2回目以降はキャッシュされた状態の計測になる.)<br>
+ * 
+ * @author seraphy
+ */
+public final class ArchiveBenchmark {
+
+    /**
+     * ディスク使用量の見積もりに用いるブロックサイズ
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * 結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * 一時ディレクトリを作成するディレクトリ
+     */
+    private File dir = new File(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * ドキュメントの数
+     */
+    private int count = 10000;
+
+    /**
+     * ドキュメントのサイズ(バイト)
+     */
+    private int size = 256;
+
+    /**
+     * 計測回数
+     */
+    private int rounds = 3;
+
+    /**
+     * ランダムに開くドキュメントの数
+     */
+    private int samples = 1000;
+
+    private ArchiveBenchmark(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * 使い方を出力する.
+     * 
+     * @param out
+     *            出力先
+     */
+    static void printUsage(PrintStream out) {
+        out.println("usage: bench-archive [-dir <dir>] [-count <n>]"
+                + " [-size <bytes>] [-rounds <n>] [-samples <n>]");
+    }
+
+    /**
+     * ベンチマークを実行する.
+     * 
+     * @param args
+     *            引数(先頭はコマンド名)
+     * @return 終了コード
+     */
+    public static int run(String[] args) {
+        ArchiveBenchmark bench = new ArchiveBenchmark(System.out);
+        try {
+            bench.parseArguments(args);
+
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            printUsage(System.err);
+            return 2;
+        }
+
+        try {
+            bench.execute();
+            return 0;
+
+        } catch (IOException ex) {
+            System.err.println("ERROR: " + ex);
+            return 1;
+        }
+    }
+
+    /**
+     * 引数を解析する.
+     * 
+     * @param args
+     *            引数
+     */
+    private void parseArguments(String[] args) {
+        CommandOptions options = new CommandOptions(args);
+        while (options.hasNext()) {
+            String arg = options.next();
+            if (arg.equals("-dir")) {
+                dir = new File(options.value(arg));
+
+            } else if (arg.equals("-count")) {
+                count = options.positiveValue(arg);
+
+            } else if (arg.equals("-size")) {
+                size = options.positiveValue(arg);
+
+            } else if (arg.equals("-rounds")) {
+                rounds = options.positiveValue(arg);
+
+            } else if (arg.equals("-samples")) {
+                samples = options.positiveValue(arg);
+
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+    }
+
+    /**
+     * ベンチマークを実行する.
+     * 
+     * @throws IOException
+     *             失敗
+     */
+    private void execute() throws IOException {
+        ApplicationSettings appConfig = ApplicationSettings.getInstance();
+        appConfig.setDocumentCacheSize(0);
+        appConfig.setVersionHistory(false);
+
+        DocumentController documentController = new DocumentController();
+        documentController.setPassphraseUiProvider(new PassphraseUIProvider() {
+            @Override
+            public boolean requirePassphrase(SettingsModel settingsModel) {
+                return settingsModel.isValid();
+            }
+
+            @Override
+            public boolean verifyPassphrase(SettingsModel settingsModel) {
+                return true;
+            }
+
+            @Override
+            public boolean securityError(File file, Throwable cause) {
+                return false;
+            }
+
+            @Override
+            public void fileUpdated(File oldFile, File newFile) {
+                // do nothing.
+            }
+        });
+        documentController.getSettingsModel().setPassphrase(
+                "bench-archive".toCharArray());
+
+        File workDir = File.createTempFile("bench-archive", ".dir", dir);
+        if (!workDir.delete() || !workDir.mkdir()) {
+            throw new IOException("can't create the directory. " + workDir);
+        }
+        File looseDir = new File(workDir, "loose");
+        File archiveFile = new File(workDir, "notes" + PackedArchive.EXTENSION);
+        try {
+            out.println(String.format("bench-archive: count=%d, size=%dB,"
+                    + " rounds=%d, samples=%d, dir=%s", count, size, rounds,
+                    samples, workDir));
+            List<String> names = prepare(documentController, looseDir,
+                    archiveFile);
+
+            Random rnd = new Random();
+            for (int round = 1; round <= rounds; round++) {
+                // 一覧の取得
+                long st = System.nanoTime();
+                int listed = listLoose(looseDir);
+                printResult(round, "list loose", st, listed);
+
+                st = System.nanoTime();
+                PackedArchive archive = documentController.openArchive(
+                        archiveFile, false);
+                try {
+                    listed = archive.getEntries().size();
+
+                } finally {
+                    archive.close();
+                }
+                printResult(round, "list archive", st, listed);
+
+                // すべてのドキュメントの復号化
+                st = System.nanoTime();
+                for (String name : names) {
+                    decryptLoose(documentController, new File(looseDir, name));
+                }
+                printResult(round, "open all loose", st, names.size());
+
+                st = System.nanoTime();
+                archive = documentController.openArchive(archiveFile, false);
+                try {
+                    for (String name : names) {
+                        decryptEntry(documentController, archive, name);
+                    }
+
+                } finally {
+                    archive.close();
+                }
+                printResult(round, "open all archive", st, names.size());
+
+                // ランダムに選んだドキュメントを1つずつ開く.
+                List<String> picks = new ArrayList<String>();
+                for (int idx = 0; idx < samples; idx++) {
+                    picks.add(names.get(rnd.nextInt(names.size())));
+                }
+                st = System.nanoTime();
+                for (String name : picks) {
+                    decryptLoose(documentController, new File(looseDir, name));
+                }
+                printResult(round, "open one loose", st, picks.size());
+
+                archive = documentController.openArchive(archiveFile, false);
+                try {
+                    st = System.nanoTime();
+                    for (String name : picks) {
+                        decryptEntry(documentController, archive, name);
+                    }
+                    printResult(round, "open one archive", st, picks.size());
+
+                } finally {
+                    archive.close();
+                }
+
+                // 目次の読み込みを含めた場合
+                st = System.nanoTime();
+                for (String name : picks) {
+                    archive = documentController.openArchive(archiveFile,
+                            false);
+                    try {
+                        decryptEntry(documentController, archive, name);
+
+                    } finally {
+                        archive.close();
+                    }
+                }
+                printResult(round, "reopen one archive", st, picks.size());
+            }
+
+        } finally {
+            CommandOptions.deleteAll(workDir);
+            documentController.dispose();
+        }
+    }
+
+    /**
+     * 計測用のドキュメントを個別のファイルとアーカイブに暗号化する.
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param looseDir
+     *            個別のファイルのディレクトリ
+     * @param archiveFile
+     *            アーカイブのファイル
+     * @return ドキュメントの名前
+     * @throws IOException
+     *             失敗
+     */
+    private List<String> prepare(DocumentController documentController,
+            File looseDir, File archiveFile) throws IOException {
+        if (!looseDir.mkdirs()) {
+            throw new IOException("can't create the directory. " + looseDir);
+        }
+        Random rnd = new Random();
+        List<String> names = new ArrayList<String>();
+        long looseSize = 0;
+        long looseBlocks = 0;
+        PackedArchive archive = documentController.createArchive(archiveFile);
+        try {
+            StringBuilder buf = new StringBuilder();
+            for (int idx = 0; idx < count; idx++) {
+                buf.setLength(0);
+                while (buf.length() < size) {
+                    buf.append((char) ('a' + rnd.nextInt(26)));
+                    if (rnd.nextInt(8) == 0) {
+                        buf.append(rnd.nextInt(16) == 0 ? '\n' : ' ');
+                    }
+                }
+                buf.setLength(size);
+                ApplicationData data = new ApplicationData(
+                        "text/plain; charset=UTF-8", buf.toString(), "note"
+                                + idx + ".txt");
+
+                String name = String.format("note%06d.txt", idx);
+                File file = new File(looseDir, name);
+                documentController.encrypt(file, data);
+                looseSize += file.length();
+                looseBlocks += (file.length() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+                documentController.encrypt(archive, name, data);
+                names.add(name);
+            }
+            archive.commit();
+
+        } finally {
+            archive.close();
+        }
+        long archiveBlocks = (archiveFile.length() + BLOCK_SIZE - 1)
+                / BLOCK_SIZE;
+        out.println(String.format("  loose: %d files, %d bytes (%d bytes in"
+                + " %dB blocks); archive: 1 file, %d bytes (%d bytes)",
+                names.size(), looseSize, looseBlocks * BLOCK_SIZE, BLOCK_SIZE,
+                archiveFile.length(), archiveBlocks * BLOCK_SIZE));
+        return names;
+    }
+
+    /**
+     * ファイルツリーの探索と同様に、ディレクトリのファイルを列挙する.
+     * 
+     * @param looseDir
+     *            ディレクトリ
+     * @return ファイル数
+     */
+    private static int listLoose(File looseDir) {
+        File[] files = looseDir.listFiles();
+        int listed = 0;
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isDirectory()) {
+                    listed++;
+                }
+            }
+        }
+        return listed;
+    }
+
+    private static void decryptLoose(DocumentController documentController,
+            File file) throws IOException {
+        ApplicationData data = documentController.decrypt(file);
+        if (data == null) {
+            throw new IOException("can't decrypt. " + file);
+        }
+        data.dispose();
+    }
+
+    private static void decryptEntry(DocumentController documentController,
+            PackedArchive archive, String name) throws IOException {
+        ApplicationData data = documentController.decrypt(archive, name);
+        if (data == null) {
+            throw new IOException("no entry. " + name);
+        }
+        data.dispose();
+    }
+
+    /**
+     * 1回の計測結果を出力する.
+     * 
+     * @param round
+     *            回数
+     * @param name
+     *            方式
+     * @param startTime
+     *            開始時刻(nSec)
+     * @param items
+     *            処理したドキュメントの数
+     */
+    private void printResult(int round, String name, long startTime,
+            int items) {
+        double sec = Math.max(1, System.nanoTime() - startTime) / 1e9;
+        out.println(String.format("  #%d %-18s %8.3fs %8d items %10.1fus/item",
+                round, name, sec, items, sec * 1e6 / Math.max(1, items)));
+    }
+}
@@ -0,0 +1,202 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * 暗号化されたファイルを、そのまま出力先ディレクトリにバックアップするコマンド.<br>
+ * 出力先のマニフェストに記録されたサイズと更新日時が一致するファイルは複写しないため、
+ * 2回目以降は新規と変更されたファイルのみを複写する.<br>
+ * 更新日時のみが異なる場合はハッシュを比較し、内容が同じであれば複写しない.<br>
+ * 暗号文をそのまま複写するため、パスフレーズやキーファイルは必要としない.<br>
+ * <br>
+ * 処理対象から削除されたファイルは、既定ではバックアップに残す.<br>
+ * pruneが指定された場合は、すべてのファイルの処理に成功した後にバックアップからも削除する.<br>
+ * 
+ * @author seraphy
+ */
+public class BackupCommand extends BatchCommand {
+
+    /**
+     * 処理対象から削除されたファイルをバックアップからも削除するか?
+     */
+    private final boolean prune;
+
+    /**
+     * 結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * 出力先のマニフェスト、最初の処理時に読み込む.
+     */
+    private BackupManifest manifest;
+
+    /**
+     * 処理したファイルの相対パス('/'区切り)
+     */
+    private final Set<String> visited = new HashSet<String>();
+
+    /**
+     * 新規に複写したファイル数
+     */
+    private final AtomicInteger added = new AtomicInteger();
+
+    /**
+     * 変更されたため複写したファイル数
+     */
+    private final AtomicInteger changed = new AtomicInteger();
+
+    /**
+     * 変更がなかったファイル数
+     */
+    private final AtomicInteger unchanged = new AtomicInteger();
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param statistics
+     *            処理結果の集計
+     * @param prune
+     *            処理対象から削除されたファイルをバックアップからも削除する場合はtrue
+     * @param out
+     *            結果の出力先
+     */
+    public BackupCommand(DocumentController documentController,
+            BatchStatistics statistics, boolean prune, PrintStream out) {
+        super(documentController, statistics);
+        if (out == null) {
+            throw new IllegalArgumentException();
+        }
+        this.prune = prune;
+        this.out = out;
+    }
+
+    @Override
+    public boolean isOutputDirRequired() {
+        return true;
+    }
+
+    /**
+     * 版の履歴のストアも暗号化されているため、そのままバックアップする.<br>
+     */
+    @Override
+    public boolean isVersionStoreIncluded() {
+        return true;
+    }
+
+    /**
+     * 他のバックアップのマニフェストや複写中の一時ファイルは対象外とする.<br>
+     */
+    @Override
+    public File getTargetFile(File file) {
+        String name = file.getName();
+        if (name.equals(BackupManifest.FILE_NAME)
+                || name.equals(BackupManifest.FILE_NAME + ".tmp")
+                || name.endsWith(BackupManifest.TMP_SUFFIX)) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * 出力先のマニフェストを取得する.<br>
+     * 初回はマニフェストを読み込む.<br>
+     * 
+     * @return マニフェスト
+     * @throws IOException
+     *             マニフェストが読み込めない場合
+     */
+    private synchronized BackupManifest getManifest() throws IOException {
+        if (manifest == null) {
+            if (!outputDir.isDirectory() && !outputDir.mkdirs()
+                    && !outputDir.isDirectory()) {
+                throw new IOException("can't create the directory. "
+                        + outputDir);
+            }
+            manifest = new BackupManifest(outputDir);
+        }
+        return manifest;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        String path = BackupManifest.toManifestPath(relativePath);
+        synchronized (visited) {
+            visited.add(path);
+        }
+        BackupManifest manifest = getManifest();
+        File dest = getOutputFile(relativePath);
+
+        BackupManifest.Entry entry = manifest.get(path);
+        if (entry != null && dest.isFile()
+                && dest.length() == entry.getSize()) {
+            if (entry.matches(file)) {
+                unchanged.incrementAndGet();
+                statistics.success(0, 0);
+                return null;
+            }
+            if (file.length() == entry.getSize()) {
+                // 更新日時のみ異なる場合は、内容が同じであれば複写しない.
+                long lastModified = file.lastModified();
+                if (BackupManifest.hash(file).equals(entry.getHash())) {
+                    dest.setLastModified(lastModified);
+                    manifest.put(new BackupManifest.Entry(path, entry
+                            .getSize(), lastModified, entry.getHash()));
+                    unchanged.incrementAndGet();
+                    statistics.success(entry.getSize(), 0);
+                    return null;
+                }
+            }
+        }
+
+        BackupManifest.Entry copied = BackupManifest.copy(file, dest, path,
+                null);
+        manifest.put(copied);
+        statistics.success(copied.getSize(), copied.getSize());
+        if (entry == null) {
+            added.incrementAndGet();
+            return "NEW\t" + relativePath;
+        }
+        changed.incrementAndGet();
+        return "CHANGED\t" + relativePath;
+    }
+
+    /**
+     * マニフェストを保存し、結果を出力する.<br>
+     * 一部のファイルが失敗した場合でも、成功したファイルは次回の複写を省略できるように保存する.<br>
+     */
+    @Override
+    public void complete(boolean completed) throws IOException {
+        BackupManifest manifest = getManifest();
+        int removed = 0;
+        for (BackupManifest.Entry entry : manifest.getEntries()) {
+            if (visited.contains(entry.getPath())) {
+                continue;
+            }
+            removed++;
+            if (prune && completed) {
+                File dest = new File(outputDir, entry.getPath().replace('/',
+                        File.separatorChar));
+                if (dest.exists() && !dest.delete()) {
+                    throw new IOException("can't delete. " + dest);
+                }
+                manifest.remove(entry.getPath());
+                out.println("PRUNED\t" + entry.getPath());
+            }
+        }
+        manifest.store();
+
+        out.println("backup\t" + added + " new\t" + changed + " changed\t"
+                + unchanged + " unchanged\t" + removed
+                + (prune && completed ? " pruned" : " removed"));
+    }
+}
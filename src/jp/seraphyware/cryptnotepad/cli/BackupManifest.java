@@ -0,0 +1,427 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * バックアップ先のディレクトリに置くマニフェスト.<br>
+ * バックアップしたファイルごとに、相対パス、サイズ、更新日時、内容のハッシュ(SHA-256)を記録する.<br>
+ * 相対パスの区切り文字は環境によらず'/'とする.<br>
+ * <br>
+ * 暗号化されたファイルをそのまま複写するため、記録されるハッシュは暗号文のハッシュであり、
+ * バックアップとリストアにはキーを必要としない.<br>
+ * 
+ * @author seraphy
+ */
+public final class BackupManifest {
+
+    /**
+     * マニフェストのファイル名
+     */
+    public static final String FILE_NAME = "backup.manifest";
+
+    /**
+     * 複写中の一時ファイルの拡張子
+     */
+    public static final String TMP_SUFFIX = ".backup-tmp";
+
+    /**
+     * マニフェストの文字コード
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * マニフェストの先頭行
+     */
+    private static final String HEADER = "# cryptnotepad backup manifest 1";
+
+    /**
+     * 複写のバッファサイズ
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * マニフェストのエントリ
+     */
+    public static final class Entry {
+
+        private final String path;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final String hash;
+
+        /**
+         * コンストラクタ
+         * 
+         * @param path
+         *            相対パス('/'区切り)
+         * @param size
+         *            サイズ
+         * @param lastModified
+         *            更新日時
+         * @param hash
+         *            内容のハッシュ(16進数)
+         */
+        public Entry(String path, long size, long lastModified, String hash) {
+            if (path == null || hash == null) {
+                throw new IllegalArgumentException();
+            }
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * ファイルのサイズと更新日時がエントリと一致するか判定する.
+         * 
+         * @param file
+         *            ファイル
+         * @return 一致する場合はtrue
+         */
+        public boolean matches(File file) {
+            return file.isFile() && file.length() == size
+                    && file.lastModified() == lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry(" + path + ", size=" + size + ", lastModified="
+                    + lastModified + ", hash=" + hash + ")";
+        }
+    }
+
+    /**
+     * マニフェストのファイル
+     */
+    private final File file;
+
+    /**
+     * 相対パスをキーとするエントリ
+     */
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /**
+     * コンストラクタ.<br>
+     * ディレクトリにマニフェストがあれば読み込む.<br>
+     * 
+     * @param dir
+     *            バックアップ先のディレクトリ
+     * @throws IOException
+     *             マニフェストが読み込めない場合
+     */
+    public BackupManifest(File dir) throws IOException {
+        if (dir == null) {
+            throw new IllegalArgumentException();
+        }
+        this.file = new File(dir, FILE_NAME);
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * マニフェストを読み込む.
+     * 
+     * @throws IOException
+     *             失敗
+     */
+    private void load() throws IOException {
+        BufferedReader rd = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), ENCODING));
+        try {
+            String line = rd.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("not a backup manifest. " + file);
+            }
+            int lineNo = 1;
+            while ((line = rd.readLine()) != null) {
+                lineNo++;
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] cols = line.split("\t", 4);
+                if (cols.length != 4) {
+                    throw new IOException("invalid manifest line " + lineNo
+                            + ". " + file);
+                }
+                try {
+                    Entry entry = new Entry(cols[3], Long.parseLong(cols[1]),
+                            Long.parseLong(cols[2]), cols[0]);
+                    entries.put(entry.getPath(), entry);
+
+                } catch (NumberFormatException ex) {
+                    throw new IOException("invalid manifest line " + lineNo
+                            + ". " + file, ex);
+                }
+            }
+
+        } finally {
+            rd.close();
+        }
+    }
+
+    /**
+     * マニフェストを保存する.<br>
+     * 一時ファイルに書き込んでから置き換える.<br>
+     * 
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized void store() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            Writer wr = new BufferedWriter(new OutputStreamWriter(fos,
+                    ENCODING));
+            wr.write(HEADER);
+            wr.write('\n');
+            for (Entry entry : entries.values()) {
+                wr.write(entry.getHash() + "\t" + entry.getSize() + "\t"
+                        + entry.getLastModified() + "\t" + entry.getPath()
+                        + "\n");
+            }
+            wr.flush();
+            fos.getFD().sync();
+
+        } finally {
+            fos.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            // 置き換えできない環境(Windows)では、削除してから置き換える.
+            if (!file.delete() || !tmpFile.renameTo(file)) {
+                throw new IOException("can't rename. " + tmpFile);
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * エントリを取得する.
+     * 
+     * @param path
+     *            相対パス('/'区切り)
+     * @return エントリ、なければnull
+     */
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * エントリを追加または置き換える.
+     * 
+     * @param entry
+     *            エントリ
+     */
+    public synchronized void put(Entry entry) {
+        if (entry == null) {
+            throw new IllegalArgumentException();
+        }
+        entries.put(entry.getPath(), entry);
+    }
+
+    /**
+     * エントリを削除する.
+     * 
+     * @param path
+     *            相対パス('/'区切り)
+     */
+    public synchronized void remove(String path) {
+        entries.remove(path);
+    }
+
+    /**
+     * すべてのエントリを相対パス順に取得する.
+     * 
+     * @return エントリのリスト
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries
+                .values()));
+    }
+
+    /**
+     * 相対パスをマニフェストの区切り文字('/')に変換する.
+     * 
+     * @param relativePath
+     *            環境の区切り文字による相対パス
+     * @return マニフェストの相対パス
+     */
+    public static String toManifestPath(String relativePath) {
+        return relativePath.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * ファイルのハッシュを計算する.
+     * 
+     * @param file
+     *            ファイル
+     * @return ハッシュ(16進数)
+     * @throws IOException
+     *             失敗
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest md = createDigest();
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int rd;
+            while ((rd = is.read(buf)) >= 0) {
+                md.update(buf, 0, rd);
+            }
+
+        } finally {
+            is.close();
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * ファイルを複写する.<br>
+     * 複写元を読み込みながらハッシュを計算して一時ファイルに書き込み、
+     * 書き込んだ一時ファイルのハッシュが一致することを確認してから複写先に置き換える.<br>
+     * 期待するハッシュが指定された場合は、複写元のハッシュとも照合する.<br>
+     * 複写先の更新日時は複写元に合わせる.<br>
+     * 
+     * @param src
+     *            複写元
+     * @param dest
+     *            複写先
+     * @param path
+     *            エントリの相対パス('/'区切り)
+     * @param expectedHash
+     *            期待するハッシュ、照合しない場合はnull
+     * @return 複写したファイルのエントリ
+     * @throws IOException
+     *             失敗、もしくはハッシュが一致しない場合
+     */
+    public static Entry copy(File src, File dest, String path,
+            String expectedHash) throws IOException {
+        long lastModified = src.lastModified();
+        File tmpFile = new File(dest.getPath() + TMP_SUFFIX);
+        boolean success = false;
+        try {
+            MessageDigest md = createDigest();
+            long size = 0;
+            InputStream is = new FileInputStream(src);
+            try {
+                FileOutputStream fos = new FileOutputStream(tmpFile);
+                try {
+                    OutputStream os = new BufferedOutputStream(fos,
+                            BUFFER_SIZE);
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int rd;
+                    while ((rd = is.read(buf)) >= 0) {
+                        md.update(buf, 0, rd);
+                        os.write(buf, 0, rd);
+                        size += rd;
+                    }
+                    os.flush();
+                    fos.getFD().sync();
+
+                } finally {
+                    fos.close();
+                }
+
+            } finally {
+                is.close();
+            }
+            String hash = toHex(md.digest());
+
+            if (src.length() != size || src.lastModified() != lastModified) {
+                throw new IOException("file changed while copying. " + src);
+            }
+            if (expectedHash != null && !expectedHash.equals(hash)) {
+                throw new IOException("hash mismatch. " + src);
+            }
+            if (!hash.equals(hash(tmpFile))) {
+                throw new IOException("verify failed. " + tmpFile);
+            }
+
+            tmpFile.setLastModified(lastModified);
+            if (!tmpFile.renameTo(dest)) {
+                // 置き換えできない環境(Windows)では、削除してから置き換える.
+                if (!dest.delete() || !tmpFile.renameTo(dest)) {
+                    throw new IOException("can't rename. " + tmpFile);
+                }
+            }
+            success = true;
+            return new Entry(path, size, lastModified, hash);
+
+        } finally {
+            if (!success && tmpFile.exists() && !tmpFile.delete()) {
+                tmpFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * SHA-256のダイジェストを作成する.
+     * 
+     * @return ダイジェスト
+     */
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+
+        } catch (NoSuchAlgorithmException ex) {
+            // アルゴリズムがみつからない = 環境の問題
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * バイト列を16進数の文字列にする.
+     * 
+     * @param data
+     *            バイト列
+     * @return 16進数の文字列
+     */
+    private static String toHex(byte[] data) {
+        StringBuilder buf = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            buf.append(Character.forDigit((b >> 4) & 0x0f, 16));
+            buf.append(Character.forDigit(b & 0x0f, 16));
+        }
+        return buf.toString();
+    }
+}
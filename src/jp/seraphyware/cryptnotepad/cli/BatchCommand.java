@@ -0,0 +1,256 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * バッチモードのコマンドの抽象基底クラス.<br>
+ * 対象ファイルごとに{@link #process(File, String)}が呼び出される.<br>
+ * {@link #isConcurrent()}がtrueの場合は複数のワーカースレッドから同時に呼び出される.<br>
+ * 
+ * @author seraphy
+ */
+public abstract class BatchCommand {
+
+    /**
+     * ドキュメントコントローラ
+     */
+    protected final DocumentController documentController;
+
+    /**
+     * 処理結果の集計
+     */
+    protected final BatchStatistics statistics;
+
+    /**
+     * 出力先ディレクトリ(必要なコマンドのみ)
+     */
+    protected File outputDir;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param statistics
+     *            処理結果の集計
+     */
+    protected BatchCommand(DocumentController documentController,
+            BatchStatistics statistics) {
+        if (documentController == null || statistics == null) {
+            throw new IllegalArgumentException();
+        }
+        this.documentController = documentController;
+        this.statistics = statistics;
+    }
+
+    /**
+     * 複数スレッドで同時に処理してよいか?
+     * 
+     * @return 同時に処理してよい場合はtrue
+     */
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    /**
+     * 出力先ディレクトリの指定が必要か?
+     * 
+     * @return 必要であればtrue
+     */
+    public boolean isOutputDirRequired() {
+        return false;
+    }
+
+    /**
+     * 版の履歴のストアのマスターキーを処理対象に含めるか?<br>
+     * パスフレーズを変更するコマンドは、ストアのマスターキーもラップしなおす必要がある.<br>
+     * 
+     * @return 含める場合はtrue
+     */
+    public boolean isVersionStoreKeyIncluded() {
+        return false;
+    }
+
+    /**
+     * 版の履歴のストア全体を処理対象に含めるか?<br>
+     * 暗号文をそのまま扱うコマンドは、ストアのチャンクやマニフェストも対象とする.<br>
+     * 
+     * @return 含める場合はtrue
+     */
+    public boolean isVersionStoreIncluded() {
+        return false;
+    }
+
+    public File getOutputDir() {
+        return outputDir;
+    }
+
+    public void setOutputDir(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * 列挙されたファイルに対応する処理対象のファイルを返す.<br>
+     * 処理対象としない場合はnullを返す.<br>
+     * デフォルトでは列挙されたファイルをそのまま処理対象とする.<br>
+     * 
+     * @param file
+     *            列挙されたファイル
+     * @return 処理対象のファイル、もしくはnull
+     */
+    public File getTargetFile(File file) {
+        return file;
+    }
+
+    /**
+     * ファイルを1つ処理する.<br>
+     * 成功した場合は集計に処理サイズを記録すること.<br>
+     * 
+     * @param file
+     *            対象ファイル
+     * @param relativePath
+     *            処理対象として指定されたディレクトリからの相対パス
+     * @return 標準出力に出力する行、なければnull
+     * @throws IOException
+     *             失敗
+     */
+    public abstract String process(File file, String relativePath)
+            throws IOException;
+
+    /**
+     * すべてのファイルの処理後に呼び出される.<br>
+     * デフォルトでは何もしない.<br>
+     * 
+     * @param completed
+     *            すべてのファイルの処理に成功した場合はtrue
+     * @throws IOException
+     *             失敗
+     */
+    public void complete(boolean completed) throws IOException {
+        // do nothing.
+    }
+
+    /**
+     * 出力先ディレクトリ上の相対パスに対応するファイルを取得する.<br>
+     * 親ディレクトリがなければ作成する.<br>
+     * 
+     * @param relativePath
+     *            相対パス
+     * @return 出力先ファイル
+     * @throws IOException
+     *             ディレクトリが作成できない場合
+     */
+    protected File getOutputFile(String relativePath) throws IOException {
+        if (outputDir == null) {
+            throw new IllegalStateException("outputDir is not specified.");
+        }
+        File outFile = new File(outputDir, relativePath);
+        File parentDir = outFile.getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            // 複数スレッドから同時に作成される可能性があるため、
+            // 作成に失敗しても実在していれば良しとする.
+            if (!parentDir.mkdirs() && !parentDir.isDirectory()) {
+                throw new IOException("can't create the directory. "
+                        + parentDir);
+            }
+        }
+        return outFile;
+    }
+
+    /**
+     * 暗号化されたファイルを復号化する.<br>
+     * ファイルが存在しないか、復号化できなかった場合は例外とする.<br>
+     * 
+     * @param file
+     *            暗号化されたファイル
+     * @return 復号化されたデータ
+     * @throws IOException
+     *             失敗
+     */
+    protected ApplicationData decrypt(File file) throws IOException {
+        ApplicationData data = documentController.decrypt(file);
+        if (data == null) {
+            throw new IOException("can't decrypt. " + file);
+        }
+        return data;
+    }
+
+    /**
+     * 復号化されたデータのコンテンツをバイナリとして取得する.<br>
+     * テキストの場合はContent-Typeの文字コードでバイナリに変換する.<br>
+     * 
+     * @param data
+     *            復号化されたデータ
+     * @return コンテンツのバイナリ
+     * @throws IOException
+     *             文字コードが不正な場合
+     */
+    protected byte[] getContents(ApplicationData data) throws IOException {
+        String text = data.getText();
+        if (text != null) {
+            String encoding = documentController.getTextEncoding(data
+                    .getContentType());
+            return text.getBytes(encoding);
+        }
+        return data.getData();
+    }
+
+    /**
+     * 復号化されたデータのコンテンツのバイナリとしてのサイズを取得する.<br>
+     * バイナリの場合はコンテンツを読み込まずにサイズを返す.<br>
+     * 
+     * @param data
+     *            復号化されたデータ
+     * @return コンテンツのサイズ
+     * @throws IOException
+     *             文字コードが不正な場合
+     */
+    protected long getContentLength(ApplicationData data) throws IOException {
+        if (data.getText() != null) {
+            return getContents(data).length;
+        }
+        return data.getLength();
+    }
+
+    /**
+     * 復号化されたデータのコンテンツをバイナリとして出力する.<br>
+     * バイナリの場合はメモリ上に複製せずに、ストリームから出力する.<br>
+     * (暗号化ファイルから直接復号化するデータの場合は、ここで復号化される.)<br>
+     * 
+     * @param data
+     *            復号化されたデータ
+     * @param os
+     *            出力先
+     * @return 出力したサイズ
+     * @throws IOException
+     *             失敗
+     */
+    protected long writeContents(ApplicationData data, OutputStream os)
+            throws IOException {
+        if (data.getText() != null) {
+            byte[] contents = getContents(data);
+            os.write(contents);
+            return contents.length;
+        }
+        InputStream is = data.openStream();
+        try {
+            byte[] buf = new byte[64 * 1024];
+            long total = 0;
+            int rd;
+            while ((rd = is.read(buf)) >= 0) {
+                os.write(buf, 0, rd);
+                total += rd;
+            }
+            return total;
+
+        } finally {
+            is.close();
+        }
+    }
+}
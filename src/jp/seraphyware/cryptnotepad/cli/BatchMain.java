@@ -0,0 +1,899 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.seraphyware.cryptnotepad.Main;
+import jp.seraphyware.cryptnotepad.crypt.VersionStore;
+import jp.seraphyware.cryptnotepad.model.ApplicationSettings;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+import jp.seraphyware.cryptnotepad.model.DocumentController.PassphraseUIProvider;
+import jp.seraphyware.cryptnotepad.model.SettingsModel;
+import jp.seraphyware.cryptnotepad.service.VaultService;
+import jp.seraphyware.cryptnotepad.sync.BlockSignature;
+import jp.seraphyware.cryptnotepad.sync.DirectorySyncPeer;
+import jp.seraphyware.cryptnotepad.util.ConfigurationDirUtilities;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+
+/**
+ * コマンドラインからの一括処理(バッチモード)のエントリ.<br>
+ * メインフレームを作成せずに、DocumentControllerを用いて暗号化・復号化を行う.<br>
+ * ディレクトリが指定された場合は、その配下のすべてのファイルを対象とする.<br>
+ * <br>
+ * パスフレーズは-passphrase-envで指定された環境変数、もしくは標準入力から読み取る.<br>
+ * キーファイルと文字コードは省略時はアプリケーション設定ファイルの値を用いる.<br>
+ * 
+ * @author seraphy
+ */
+public final class BatchMain {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(BatchMain.class
+            .getName());
+
+    /**
+     * コマンド名の一覧
+     */
+    private static final List<String> COMMANDS = Arrays.asList("encrypt",
+            "decrypt", "cat", "list", "verify", "rekey", "history",
+            "history-diff", "history-restore", "history-gc", "pack",
+            "backup", "restore", "sync", "serve", "bench-erase",
+            "bench-digest", "bench-archive", "bench-storage", "bench-serve");
+
+    /**
+     * 処理結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * 進捗、エラー、集計の出力先
+     */
+    private final PrintStream err;
+
+    /**
+     * コマンド名
+     */
+    private String commandName;
+
+    /**
+     * 処理対象のファイルまたはディレクトリ
+     */
+    private List<File> sources = new ArrayList<File>();
+
+    /**
+     * 出力先ディレクトリ
+     */
+    private File outputDir;
+
+    /**
+     * ワーカースレッド数
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * キーファイル、nullの場合はアプリケーション設定に従う.
+     */
+    private String keyFile;
+
+    /**
+     * 文字コード、nullの場合はアプリケーション設定に従う.
+     */
+    private String encoding;
+
+    /**
+     * パスフレーズを格納している環境変数名、nullの場合は標準入力から読み取る.
+     */
+    private String passphraseEnv;
+
+    /**
+     * コンソールがあっても標準入力からパスフレーズを読み取るか?
+     */
+    private boolean passphraseStdin;
+
+    /**
+     * 再暗号化後のキーファイル、nullの場合は現在のキーファイルと同じ.
+     */
+    private String newKeyFile;
+
+    /**
+     * 再暗号化後のパスフレーズを格納している環境変数名、nullの場合は標準入力から読み取る.
+     */
+    private String newPassphraseEnv;
+
+    /**
+     * 再暗号化のジャーナルファイル、nullの場合はアプリケーションデータ下に作成する.
+     */
+    private File journalFile;
+
+    /**
+     * アーカイブのファイル
+     */
+    private File archiveFile;
+
+    /**
+     * 版の履歴の版番号、0の場合は指定なし
+     */
+    private int revision;
+
+    /**
+     * 版の履歴の差分の基準の版番号、0の場合は指定なし
+     */
+    private int baseRevision;
+
+    /**
+     * 版の履歴に保持する版の数、0の場合は指定なし
+     */
+    private int keepRevisions;
+
+    /**
+     * 処理対象から削除されたファイルをバックアップからも削除するか?
+     */
+    private boolean prune;
+
+    /**
+     * 同期先のディレクトリ
+     */
+    private File peerDir;
+
+    /**
+     * 同期のブロックサイズ、0の場合はファイルサイズから決める
+     */
+    private int blockSize;
+
+    /**
+     * サービスモードで待ち受けるポート番号、0の場合は空いているポート
+     */
+    private int port;
+
+    /**
+     * 終了時に性能計測値を出力するか?
+     */
+    private boolean printMetrics;
+
+    /**
+     * 標準入力のリーダー、パスフレーズを標準入力から読み取る場合に作成される.
+     */
+    private BufferedReader stdinReader;
+
+    private BatchMain(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * 引数がバッチモードのコマンドであるか判定する.<br>
+     * 最初の引数がコマンド名であればバッチモードとみなす.<br>
+     * 
+     * @param args
+     *            引数
+     * @return バッチモードであればtrue
+     */
+    public static boolean isBatchCommand(String[] args) {
+        return args != null && args.length > 0 && COMMANDS.contains(args[0]);
+    }
+
+    /**
+     * バッチモードで実行する.
+     * 
+     * @param args
+     *            引数
+     * @return 終了コード(0:成功, 1:一部失敗, 2:引数エラー)
+     */
+    public static int run(String[] args) {
+        if (args[0].equals("bench-erase")) {
+            return EraseBenchmark.run(args);
+        }
+        if (args[0].equals("bench-digest")) {
+            return DigestBenchmark.run(args);
+        }
+        if (args[0].equals("bench-archive")) {
+            return ArchiveBenchmark.run(args);
+        }
+        if (args[0].equals("bench-storage")) {
+            return StorageBenchmark.run(args);
+        }
+        if (args[0].equals("bench-serve")) {
+            return ServiceBenchmark.run(args);
+        }
+
+        BatchMain batchMain = new BatchMain(System.out, System.err);
+        try {
+            batchMain.parseArguments(args);
+
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            printUsage(System.err);
+            return 2;
+        }
+
+        try {
+            return batchMain.execute();
+
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            printUsage(System.err);
+            return 2;
+
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "batch failed.", ex);
+            System.err.println("ERROR: " + ex);
+            return 1;
+        }
+    }
+
+    /**
+     * 使い方を出力する.
+     * 
+     * @param out
+     *            出力先
+     */
+    private static void printUsage(PrintStream out) {
+        out.println("usage: <command> [options] <file or directory>...");
+        out.println("commands:");
+        out.println("  encrypt  encrypt plain files into the output directory.");
+        out.println("  decrypt  decrypt files into the output directory.");
+        out.println("  cat      decrypt files to the standard output.");
+        out.println("  list     print path, content-type, length and title (also entries of archives).");
+        out.println("  verify   check that files can be decrypted.");
+        out.println("  rekey    re-encrypt files with a new passphrase or key file.");
+        out.println("  history          print the revisions of files in the version history.");
+        out.println("  history-diff     print the size of the difference between two revisions.");
+        out.println("  history-restore  restore files to the revision specified by -rev.");
+        out.println("  history-gc       prune old revisions and delete unreferenced chunks.");
+        out.println("  pack     pack files into the archive specified by -archive.");
+        out.println("  backup   copy new and changed encrypted files to -out (no passphrase needed).");
+        out.println("  restore  copy files of a backup directory back to -out (no passphrase needed).");
+        out.println("  sync     send only changed blocks of encrypted files to -peer (no passphrase needed).");
+        out.println("  serve    serve documents of one directory to local clients over HTTP (127.0.0.1).");
+        out.println("  bench-erase  compare the secure erase with the legacy one.");
+        out.println("  bench-digest compare the digest-based equality with the legacy one.");
+        out.println("  bench-archive compare listing and opening entries of an archive with loose files.");
+        out.println("  bench-storage compare saving and opening documents on local, memory and object storages.");
+        out.println("  bench-serve  measure requests per second of the service mode under concurrent clients.");
+        out.println("options:");
+        out.println("  -out <dir>              output directory (encrypt, decrypt, backup, restore)");
+        out.println("  -archive <file>         archive file to create (pack)");
+        out.println("  -threads <n>            number of worker threads");
+        out.println("  -keyfile <file or url>  key file (default: appconfig)");
+        out.println("  -encoding <charset>     text encoding (default: appconfig)");
+        out.println("  -passphrase-env <name>  read the passphrase from the environment variable");
+        out.println("  -passphrase-stdin       read the passphrase from the standard input");
+        out.println("  -metrics                print performance metrics to the standard error");
+        out.println("rekey options:");
+        out.println("  -new-keyfile <file or url>  new key file (default: same as -keyfile)");
+        out.println("  -new-passphrase-env <name>  read the new passphrase from the environment variable");
+        out.println("  -journal <file>             journal file to resume an interrupted rekey");
+        out.println("history options:");
+        out.println("  -rev <n>   revision (history-diff: default latest, history-restore: required)");
+        out.println("  -base <n>  base revision of history-diff (default: previous)");
+        out.println("  -keep <n>  number of revisions kept per file by history-gc (default: all)");
+        out.println("backup options:");
+        out.println("  -prune     delete files removed from the source directory from the backup");
+        out.println("             (only with exactly one source directory)");
+        out.println("sync options:");
+        out.println("  -peer <dir>  directory of the replica to synchronize");
+        out.println("  -block <n>   block size of signatures (default: square root of the file size)");
+        out.println("  -prune       delete files removed from the source directory from the replica");
+        out.println("               (only with exactly one source directory)");
+        out.println("serve options:");
+        out.println("  -port <n>    port number on 127.0.0.1 (default: any free port)");
+        out.println("  -threads <n> number of threads handling requests");
+    }
+
+    /**
+     * 引数を解析する.
+     * 
+     * @param args
+     *            引数
+     * @throws IllegalArgumentException
+     *             引数が不正な場合
+     */
+    private void parseArguments(String[] args) {
+        commandName = args[0];
+        CommandOptions options = new CommandOptions(args);
+        while (options.hasNext()) {
+            String arg = options.next();
+            if (arg.equals("-out")) {
+                outputDir = new File(options.value(arg));
+
+            } else if (arg.equals("-archive")) {
+                archiveFile = new File(options.value(arg));
+
+            } else if (arg.equals("-threads")) {
+                String value = options.value(arg);
+                try {
+                    threads = Integer.parseInt(value);
+
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("invalid threads: "
+                            + value);
+                }
+                if (threads < 1) {
+                    throw new IllegalArgumentException("invalid threads: "
+                            + value);
+                }
+
+            } else if (arg.equals("-keyfile")) {
+                keyFile = options.value(arg);
+
+            } else if (arg.equals("-encoding")) {
+                encoding = options.value(arg);
+
+            } else if (arg.equals("-passphrase-env")) {
+                passphraseEnv = options.value(arg);
+
+            } else if (arg.equals("-passphrase-stdin")) {
+                passphraseStdin = true;
+
+            } else if (arg.equals("-metrics")) {
+                printMetrics = true;
+
+            } else if (arg.equals("-new-keyfile")) {
+                newKeyFile = options.value(arg);
+
+            } else if (arg.equals("-new-passphrase-env")) {
+                newPassphraseEnv = options.value(arg);
+
+            } else if (arg.equals("-journal")) {
+                journalFile = new File(options.value(arg));
+
+            } else if (arg.equals("-rev")) {
+                revision = options.positiveValue(arg);
+
+            } else if (arg.equals("-base")) {
+                baseRevision = options.positiveValue(arg);
+
+            } else if (arg.equals("-keep")) {
+                keepRevisions = options.positiveValue(arg);
+
+            } else if (arg.equals("-peer")) {
+                peerDir = new File(options.value(arg));
+
+            } else if (arg.equals("-block")) {
+                String value = options.value(arg);
+                try {
+                    blockSize = Integer.parseInt(value);
+
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("invalid block: "
+                            + value);
+                }
+                if (!BlockSignature.isValidBlockSize(blockSize)) {
+                    throw new IllegalArgumentException("invalid block: "
+                            + value);
+                }
+
+            } else if (arg.equals("-prune")) {
+                prune = true;
+
+            } else if (arg.equals("-port")) {
+                String value = options.value(arg);
+                try {
+                    port = Integer.parseInt(value);
+
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("invalid port: "
+                            + value);
+                }
+                if (port < 0 || port > 65535) {
+                    throw new IllegalArgumentException("invalid port: "
+                            + value);
+                }
+
+            } else if (arg.startsWith("-")) {
+                throw new IllegalArgumentException("unknown option: " + arg);
+
+            } else {
+                sources.add(new File(arg));
+            }
+        }
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("no files.");
+        }
+    }
+
+    /**
+     * コマンドを作成する.
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param statistics
+     *            集計
+     * @return コマンド
+     * @throws IOException
+     *             失敗
+     */
+    private BatchCommand createCommand(DocumentController documentController,
+            BatchStatistics statistics) throws IOException {
+        if (commandName.equals("encrypt")) {
+            return new EncryptCommand(documentController, statistics);
+        }
+        if (commandName.equals("decrypt")) {
+            return new DecryptCommand(documentController, statistics);
+        }
+        if (commandName.equals("cat")) {
+            return new CatCommand(documentController, statistics, out);
+        }
+        if (commandName.equals("list")) {
+            return new ListCommand(documentController, statistics);
+        }
+        if (commandName.equals("verify")) {
+            return new VerifyCommand(documentController, statistics);
+        }
+        if (commandName.equals("rekey")) {
+            return createRekeyCommand(documentController, statistics);
+        }
+        if (commandName.equals("pack")) {
+            if (archiveFile == null) {
+                throw new IllegalArgumentException("-archive is required: "
+                        + commandName);
+            }
+            return new PackCommand(documentController, statistics,
+                    archiveFile, out);
+        }
+        if (commandName.equals("backup")) {
+            checkPruneSource();
+            return new BackupCommand(documentController, statistics, prune,
+                    out);
+        }
+        if (commandName.equals("restore")) {
+            if (sources.size() != 1 || !sources.get(0).isDirectory()) {
+                throw new IllegalArgumentException(
+                        "specify one backup directory: " + commandName);
+            }
+            return new RestoreCommand(documentController, statistics,
+                    sources.get(0), out);
+        }
+        if (commandName.equals("sync")) {
+            if (peerDir == null) {
+                throw new IllegalArgumentException("-peer is required: "
+                        + commandName);
+            }
+            checkPruneSource();
+            return new SyncCommand(documentController, statistics,
+                    new DirectorySyncPeer(peerDir), blockSize, prune, out);
+        }
+        if (commandName.equals("history")) {
+            return new HistoryCommand(documentController, statistics);
+        }
+        if (commandName.equals("history-diff")) {
+            return new HistoryDiffCommand(documentController, statistics,
+                    revision, baseRevision);
+        }
+        if (commandName.equals("history-restore")) {
+            return new HistoryRestoreCommand(documentController, statistics,
+                    revision);
+        }
+        if (commandName.equals("history-gc")) {
+            return new HistoryGcCommand(documentController, statistics,
+                    keepRevisions, out);
+        }
+        throw new IllegalArgumentException("unknown command: " + commandName);
+    }
+
+    /**
+     * pruneが指定された場合に、処理対象が既存のディレクトリ1つであることを確認する.<br>
+     * 処理しなかったファイルはすべて削除の対象となるため、
+     * ファイルや複数の処理対象、存在しない処理対象ではpruneを受け付けない.<br>
+     * 
+     * @throws IllegalArgumentException
+     *             pruneできない処理対象の場合
+     */
+    private void checkPruneSource() {
+        if (prune && (sources.size() != 1 || !sources.get(0).isDirectory())) {
+            throw new IllegalArgumentException(
+                    "-prune requires exactly one existing source directory: "
+                            + commandName);
+        }
+    }
+
+    /**
+     * 再暗号化のコマンドを作成する.<br>
+     * 新しいパスフレーズを読み取り、新しいキーの設定を構築する.<br>
+     * 
+     * @param documentController
+     *            現在のキーが設定されたドキュメントコントローラ
+     * @param statistics
+     *            集計
+     * @return コマンド
+     * @throws IOException
+     *             失敗
+     */
+    private BatchCommand createRekeyCommand(
+            DocumentController documentController, BatchStatistics statistics)
+            throws IOException {
+        SettingsModel currentSettingsModel = documentController
+                .getSettingsModel();
+
+        SettingsModel newSettingsModel = new SettingsModel();
+        newSettingsModel.setEncoding(currentSettingsModel.getEncoding());
+        newSettingsModel.setKeyFile(newKeyFile != null ? newKeyFile
+                : currentSettingsModel.getKeyFile());
+        newSettingsModel.setPassphrase(readPassphrase(newPassphraseEnv,
+                "new passphrase: "));
+        if (!newSettingsModel.isValid()) {
+            throw new IllegalArgumentException("new passphrase required.");
+        }
+
+        File journal = journalFile;
+        if (journal == null) {
+            journal = new File(ConfigurationDirUtilities.getUserDataDir(),
+                    "rekey.journal");
+        }
+        return new RekeyCommand(documentController, statistics,
+                newSettingsModel, journal);
+    }
+
+    /**
+     * コマンドがパスフレーズを必要とするか?<br>
+     * 暗号文をそのまま複写するコマンドは、パスフレーズを必要としない.<br>
+     * 
+     * @return 必要とする場合はtrue
+     */
+    private boolean isPassphraseRequired() {
+        return !commandName.equals("backup") && !commandName.equals("restore")
+                && !commandName.equals("sync");
+    }
+
+    /**
+     * アプリケーション設定ファイルをロードする.<br>
+     * 読み込めなくても継続する.<br>
+     * 
+     * @param appConfig
+     *            アプリケーション設定
+     */
+    private void loadAppConfig(ApplicationSettings appConfig) {
+        appConfig.setWorkingDir(new File(System.getProperty("java.io.tmpdir")));
+        appConfig.setContentsDir(ConfigurationDirUtilities
+                .getApplicationBaseDir());
+        try {
+            appConfig.load(Main.getAppConfigFile());
+
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "config file load failed.", ex);
+        }
+    }
+
+    /**
+     * パスフレーズを取得する.<br>
+     * 標準入力から読み取る場合は、呼び出されるごとに次の1行をパスフレーズとする.<br>
+     * 
+     * @param envName
+     *            パスフレーズを格納している環境変数名、nullの場合は入力を求める
+     * @param prompt
+     *            コンソールから入力する場合のプロンプト
+     * @return パスフレーズ
+     * @throws IOException
+     *             読み込みに失敗した場合
+     */
+    private char[] readPassphrase(String envName, String prompt)
+            throws IOException {
+        if (envName != null) {
+            String value = System.getenv(envName);
+            if (value == null || value.length() == 0) {
+                throw new IOException("environment variable is not set: "
+                        + envName);
+            }
+            return value.toCharArray();
+        }
+
+        Console console = System.console();
+        if (console != null && !passphraseStdin) {
+            return console.readPassword(prompt);
+        }
+
+        // 標準入力の次の1行をパスフレーズとする.
+        if (stdinReader == null) {
+            stdinReader = new BufferedReader(new InputStreamReader(System.in));
+        }
+        String line = stdinReader.readLine();
+        if (line == null) {
+            return new char[0];
+        }
+        return line.toCharArray();
+    }
+
+    /**
+     * 処理対象のファイルを列挙する.<br>
+     * ディレクトリの場合は配下のファイルを再帰的に列挙する.<br>
+     * 版の履歴のストアは対象外とするが、コマンドが必要とする場合はストア全体、
+     * もしくはストアのマスターキーのみを対象とする.<br>
+     * 
+     * @param file
+     *            ファイルまたはディレクトリ
+     * @param relativePath
+     *            相対パス
+     * @param command
+     *            コマンド
+     * @param tasks
+     *            列挙したファイルの格納先
+     */
+    private void collectFiles(File file, String relativePath,
+            BatchCommand command, List<BatchTask> tasks) {
+        if (file.isDirectory() && VersionStore.isStoreDir(file)
+                && !command.isVersionStoreIncluded()) {
+            File keyFile = VersionStore.getKeyFile(file);
+            if (command.isVersionStoreKeyIncluded() && keyFile.exists()) {
+                collectFiles(keyFile, relativePath + File.separator
+                        + keyFile.getName(), command, tasks);
+            }
+
+        } else if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files == null) {
+                // 配下のファイルを処理できないため失敗とする.
+                // (pruneするコマンドが、列挙できなかったファイルを削除しないようにする.)
+                command.statistics.failure();
+                err.println("can't list the directory: " + file);
+                return;
+            }
+            Arrays.sort(files);
+            for (File child : files) {
+                String childPath = (relativePath.length() == 0) ? child
+                        .getName() : relativePath + File.separator
+                        + child.getName();
+                collectFiles(child, childPath, command, tasks);
+            }
+
+        } else if (file.exists()) {
+            File target = command.getTargetFile(file);
+            if (target != null) {
+                String targetPath = relativePath;
+                if (!target.equals(file)) {
+                    // 対象ファイルが置き換えられた場合は相対パスのファイル名も置き換える.
+                    targetPath = targetPath.substring(0, targetPath.length()
+                            - file.getName().length())
+                            + target.getName();
+                }
+                tasks.add(new BatchTask(command, target, targetPath));
+            }
+
+        } else {
+            command.statistics.failure();
+            err.println("file not found: " + file);
+        }
+    }
+
+    /**
+     * バッチ処理を実行する.
+     * 
+     * @return 終了コード
+     * @throws IOException
+     *             失敗
+     */
+    private int execute() throws IOException {
+        ApplicationSettings appConfig = ApplicationSettings.getInstance();
+        loadAppConfig(appConfig);
+
+        DocumentController documentController = new DocumentController();
+        documentController.setPassphraseUiProvider(new BatchPassphraseProvider());
+
+        SettingsModel settingsModel = documentController.getSettingsModel();
+        settingsModel.setEncoding(encoding != null ? encoding : appConfig
+                .getEncoding());
+        settingsModel.setKeyFile(keyFile != null ? keyFile : appConfig
+                .getKeyFile());
+        if (isPassphraseRequired()) {
+            settingsModel.setPassphrase(readPassphrase(passphraseEnv,
+                    "passphrase: "));
+            if (!settingsModel.isValid()) {
+                err.println("passphrase required.");
+                return 2;
+            }
+        }
+
+        if (commandName.equals("serve")) {
+            return serve(documentController);
+        }
+
+        BatchStatistics statistics = new BatchStatistics();
+        BatchCommand command = createCommand(documentController, statistics);
+        if (command.isOutputDirRequired()) {
+            if (outputDir == null) {
+                throw new IllegalArgumentException("-out is required: "
+                        + commandName);
+            }
+            command.setOutputDir(outputDir);
+        }
+
+        // 処理対象の列挙
+        List<BatchTask> tasks = new ArrayList<BatchTask>();
+        for (File source : sources) {
+            String relativePath = source.isDirectory() ? "" : source.getName();
+            collectFiles(source, relativePath, command, tasks);
+        }
+
+        int workers = command.isConcurrent() ? threads : 1;
+        logger.log(Level.INFO, "batch " + commandName + ": files="
+                + tasks.size() + ", threads=" + workers);
+
+        boolean completed = false;
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (BatchTask task : tasks) {
+                results.add(executor.submit(task));
+            }
+
+            // 処理順に結果を出力する.
+            for (Future<String> result : results) {
+                try {
+                    String line = result.get();
+                    if (line != null) {
+                        out.println(line);
+                    }
+
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted.", ex);
+
+                } catch (ExecutionException ex) {
+                    // タスク内で処理済み
+                    logger.log(Level.FINE, "task failed.", ex);
+                }
+            }
+            completed = statistics.getFailed() == 0;
+
+        } finally {
+            executor.shutdownNow();
+            try {
+                command.complete(completed);
+
+            } finally {
+                documentController.dispose();
+            }
+        }
+
+        out.flush();
+        statistics.printSummary(commandName, workers, err);
+        if (printMetrics) {
+            for (String line : Metrics.dump()) {
+                err.println(line);
+            }
+        }
+        return statistics.getFailed() == 0 ? 0 : 1;
+    }
+
+    /**
+     * ディレクトリの暗号化ファイルをループバックアドレスのHTTPで提供する.<br>
+     * 待ち受けのURLを出力し、終了(Ctrl-Cなど)されるまで要求を処理する.<br>
+     * ポート番号とトークンは、ユーザーデータディレクトリのトークンファイルに書き込む.<br>
+     * 
+     * @param documentController
+     *            パスフレーズを設定済みのドキュメントコントローラ
+     * @return 終了コード
+     * @throws IOException
+     *             待ち受けに失敗した場合
+     */
+    private int serve(DocumentController documentController)
+            throws IOException {
+        if (sources.size() != 1 || !sources.get(0).isDirectory()) {
+            throw new IllegalArgumentException("specify one directory: "
+                    + commandName);
+        }
+        VaultService service = new VaultService(documentController,
+                sources.get(0));
+        File tokenFile = new File(ConfigurationDirUtilities.getUserDataDir(),
+                VaultService.TOKEN_FILE);
+
+        // 終了時は、待ち受けを停止して後始末を終えるまで待つ.
+        final CountDownLatch shutdown = new CountDownLatch(1);
+        final Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                shutdown.countDown();
+                try {
+                    mainThread.join(5000);
+
+                } catch (InterruptedException ex) {
+                    logger.log(Level.FINE, "interrupted.", ex);
+                }
+            }
+        }, "VaultService-shutdown"));
+
+        try {
+            service.start(port, threads, tokenFile);
+            out.println("serving " + service.getRootDir()
+                    + " at http://127.0.0.1:" + service.getPort()
+                    + "/ (token: " + tokenFile + ")");
+            out.flush();
+            shutdown.await();
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+
+        } finally {
+            service.stop();
+            documentController.dispose();
+        }
+
+        err.println("serve: " + service.getRequestCount() + " requests, "
+                + service.getErrorCount() + " errors");
+        if (printMetrics) {
+            for (String line : Metrics.dump()) {
+                err.println(line);
+            }
+        }
+        err.flush();
+        return 0;
+    }
+
+    /**
+     * ファイル1つに対する処理単位.
+     */
+    private final class BatchTask implements Callable<String> {
+
+        private final BatchCommand command;
+
+        private final File file;
+
+        private final String relativePath;
+
+        BatchTask(BatchCommand command, File file, String relativePath) {
+            this.command = command;
+            this.file = file;
+            this.relativePath = relativePath;
+        }
+
+        @Override
+        public String call() throws Exception {
+            try {
+                return command.process(file, relativePath);
+
+            } catch (Exception ex) {
+                command.statistics.failure();
+                logger.log(Level.WARNING, "batch " + commandName
+                        + " failed. " + file, ex);
+                err.println("NG\t" + relativePath + "\t" + ex);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * バッチモード用のパスフレーズ・ハンドラ.<br>
+     * パスフレーズは事前に設定済みであるため、入力や照合は求めない.<br>
+     */
+    private static final class BatchPassphraseProvider implements
+            PassphraseUIProvider {
+
+        @Override
+        public boolean requirePassphrase(SettingsModel settingsModel) {
+            return settingsModel.isValid();
+        }
+
+        @Override
+        public boolean verifyPassphrase(SettingsModel settingsModel) {
+            return true;
+        }
+
+        @Override
+        public boolean securityError(File file, Throwable cause) {
+            // 呼び出し元に例外をスローさせる.
+            return false;
+        }
+
+        @Override
+        public void fileUpdated(File oldFile, File newFile) {
+            // do nothing.
+        }
+    }
+}
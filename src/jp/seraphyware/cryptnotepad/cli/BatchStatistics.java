@@ -0,0 +1,110 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * バッチ処理の処理件数とスループットを集計する.<br>
+ * 複数のワーカースレッドから同時に更新される.<br>
+ * 
+ * @author seraphy
+ */
+public class BatchStatistics {
+
+    /**
+     * 処理開始時刻(nSec)
+     */
+    private final long startTime = System.nanoTime();
+
+    /**
+     * 成功したファイル数
+     */
+    private final AtomicInteger succeeded = new AtomicInteger();
+
+    /**
+     * 失敗したファイル数
+     */
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * 読み込んだバイト数
+     */
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * 書き込んだバイト数
+     */
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * 1ファイルの処理成功を記録する.
+     * 
+     * @param readSize
+     *            読み込んだバイト数
+     * @param writeSize
+     *            書き込んだバイト数
+     */
+    public void success(long readSize, long writeSize) {
+        succeeded.incrementAndGet();
+        bytesRead.addAndGet(readSize);
+        bytesWritten.addAndGet(writeSize);
+    }
+
+    /**
+     * 1ファイルの処理失敗を記録する.
+     */
+    public void failure() {
+        failed.incrementAndGet();
+    }
+
+    public int getSucceeded() {
+        return succeeded.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * 処理開始からの経過時間(mSec)
+     * 
+     * @return 経過時間
+     */
+    public long getElapsed() {
+        return (System.nanoTime() - startTime) / 1000000L;
+    }
+
+    /**
+     * 集計結果を出力する.
+     * 
+     * @param command
+     *            コマンド名
+     * @param threads
+     *            ワーカースレッド数
+     * @param out
+     *            出力先
+     */
+    public void printSummary(String command, int threads, PrintStream out) {
+        long elapsed = Math.max(1, getElapsed());
+        double sec = elapsed / 1000d;
+        int files = getSucceeded() + getFailed();
+        double mbRead = getBytesRead() / (1024d * 1024d);
+        double mbWritten = getBytesWritten() / (1024d * 1024d);
+
+        out.println(String.format("%s: %d files (ok=%d, failed=%d),"
+                + " threads=%d, elapsed=%.3fs", command, files,
+                getSucceeded(), getFailed(), threads, sec));
+        out.println(String.format("  read=%.2fMB (%.2fMB/s), written=%.2fMB"
+                + " (%.2fMB/s), %.1f files/s", mbRead, mbRead / sec,
+                mbWritten, mbWritten / sec, files / sec));
+    }
+}
@@ -0,0 +1,51 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * 暗号化ファイルを復号化して標準出力に出力するコマンド.<br>
+ * 出力順序を保つため、常に1スレッドで処理する.<br>
+ * 
+ * @author seraphy
+ */
+public class CatCommand extends BatchCommand {
+
+    /**
+     * 出力先
+     */
+    private final OutputStream out;
+
+    public CatCommand(DocumentController documentController,
+            BatchStatistics statistics, OutputStream out) {
+        super(documentController, statistics);
+        if (out == null) {
+            throw new IllegalArgumentException();
+        }
+        this.out = out;
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return false;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        ApplicationData data = decrypt(file);
+        try {
+            long length = writeContents(data, out);
+            out.flush();
+
+            statistics.success(file.length(), length);
+
+        } finally {
+            data.dispose();
+        }
+        return null;
+    }
+}
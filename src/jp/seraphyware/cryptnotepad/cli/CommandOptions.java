@@ -0,0 +1,123 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+
+/**
+ * コマンドラインの引数を先頭から順に読み込むオプションの解析のヘルパ.<br>
+ * 引数の誤りはIllegalArgumentExceptionとし、呼び出し元で使い方を表示する.<br>
+ * ベンチマークの作業ディレクトリの後始末も行う.<br>
+ * 
+ * @author seraphy
+ */
+final class CommandOptions {
+
+    /**
+     * 引数
+     */
+    private final String[] args;
+
+    /**
+     * 次に読み込む引数の位置
+     */
+    private int idx;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param args
+     *            引数(先頭はコマンド名であり、読み飛ばす)
+     */
+    CommandOptions(String[] args) {
+        if (args == null) {
+            throw new IllegalArgumentException();
+        }
+        this.args = args;
+        this.idx = 1;
+    }
+
+    /**
+     * まだ読み込んでいない引数があるか判定する.
+     * 
+     * @return 残っていればtrue
+     */
+    boolean hasNext() {
+        return idx < args.length;
+    }
+
+    /**
+     * 次の引数を読み込む.
+     * 
+     * @return 引数
+     */
+    String next() {
+        if (!hasNext()) {
+            throw new IllegalStateException();
+        }
+        return args[idx++];
+    }
+
+    /**
+     * オプションの値として次の引数を読み込む.
+     * 
+     * @param option
+     *            オプション名
+     * @return 値
+     */
+    String value(String option) {
+        if (!hasNext()) {
+            throw new IllegalArgumentException("option requires a value: "
+                    + option);
+        }
+        return args[idx++];
+    }
+
+    /**
+     * 1以上の数値のオプションの値として次の引数を読み込む.
+     * 
+     * @param option
+     *            オプション名
+     * @return 1以上の値
+     */
+    int positiveValue(String option) {
+        return parsePositive(value(option), option);
+    }
+
+    /**
+     * 1以上の数値のオプションの値を解析する.
+     * 
+     * @param value
+     *            値
+     * @param option
+     *            オプション名
+     * @return 1以上の値
+     */
+    static int parsePositive(String value, String option) {
+        try {
+            int num = Integer.parseInt(value);
+            if (num > 0) {
+                return num;
+            }
+
+        } catch (NumberFormatException ex) {
+            // 下で例外とする.
+        }
+        throw new IllegalArgumentException("invalid " + option + ": " + value);
+    }
+
+    /**
+     * ベンチマークの作業ディレクトリなどを、その下のファイルを含めて削除する.<br>
+     * 削除できないファイルは残す.<br>
+     * 
+     * @param file
+     *            ファイルまたはディレクトリ
+     */
+    static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,55 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * 暗号化ファイルを復号化して出力先ディレクトリに平文で保存するコマンド.<br>
+ * 出力ファイル名は暗号化ファイルの相対パスと同じとする.<br>
+ * 
+ * @author seraphy
+ */
+public class DecryptCommand extends BatchCommand {
+
+    public DecryptCommand(DocumentController documentController,
+            BatchStatistics statistics) {
+        super(documentController, statistics);
+    }
+
+    @Override
+    public boolean isOutputDirRequired() {
+        return true;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        ApplicationData data = decrypt(file);
+        try {
+            File outFile = getOutputFile(relativePath);
+            if (data.getText() == null) {
+                // バイナリは複製せずに出力する.
+                InputStream is = data.openStream();
+                try {
+                    documentController.savePlainBinary(outFile, is);
+
+                } finally {
+                    is.close();
+                }
+                statistics.success(file.length(), data.getLength());
+
+            } else {
+                byte[] contents = getContents(data);
+                documentController.savePlainBinary(outFile, contents);
+                statistics.success(file.length(), contents.length);
+            }
+
+        } finally {
+            data.dispose();
+        }
+        return null;
+    }
+}
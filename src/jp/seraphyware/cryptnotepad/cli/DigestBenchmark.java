@@ -0,0 +1,235 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.OffHeapBuffer;
+
+/**
+ * ドキュメントの比較の性能を従来の方式と比較するベンチマーク.<br>
+ * 同じ内容をもつ2つのデータを作成し、配列全体を比較する従来の方式と、
+ * ダイジェストによる比較(初回と2回目以降)の時間を計測する.<br>
+ * ヒープ上の配列のほか、ヒープ外のバッファについても計測する.<br>
+ * (ヒープ上の配列は2つ分のメモリが必要になるため、-Xmxに注意すること.)<br>
+ * 
+ * @author seraphy
+ */
+public final class DigestBenchmark {
+
+    /**
+     * 結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * データサイズ(MB)
+     */
+    private int sizeMB = 256;
+
+    /**
+     * 計測回数
+     */
+    private int rounds = 3;
+
+    /**
+     * ヒープ上の配列を計測しない
+     */
+    private boolean skipHeap;
+
+    /**
+     * ヒープ外のバッファを計測しない
+     */
+    private boolean skipOffHeap;
+
+    private DigestBenchmark(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * 使い方を出力する.
+     * 
+     * @param out
+     *            出力先
+     */
+    static void printUsage(PrintStream out) {
+        out.println("usage: bench-digest [-size <MB>] [-rounds <n>]"
+                + " [-skip-heap] [-skip-offheap]");
+    }
+
+    /**
+     * ベンチマークを実行する.
+     * 
+     * @param args
+     *            引数(先頭はコマンド名)
+     * @return 終了コード
+     */
+    public static int run(String[] args) {
+        DigestBenchmark bench = new DigestBenchmark(System.out);
+        try {
+            bench.parseArguments(args);
+
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            printUsage(System.err);
+            return 2;
+        }
+
+        try {
+            bench.execute();
+            return 0;
+
+        } catch (OutOfMemoryError ex) {
+            System.err.println("ERROR: " + ex
+                    + " (use a smaller -size or a larger -Xmx)");
+            return 1;
+        }
+    }
+
+    /**
+     * 引数を解析する.
+     * 
+     * @param args
+     *            引数
+     */
+    private void parseArguments(String[] args) {
+        CommandOptions options = new CommandOptions(args);
+        while (options.hasNext()) {
+            String arg = options.next();
+            if (arg.equals("-size")) {
+                sizeMB = options.positiveValue(arg);
+
+            } else if (arg.equals("-rounds")) {
+                rounds = options.positiveValue(arg);
+
+            } else if (arg.equals("-skip-heap")) {
+                skipHeap = true;
+
+            } else if (arg.equals("-skip-offheap")) {
+                skipOffHeap = true;
+
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+        if (sizeMB > 2047) {
+            throw new IllegalArgumentException("invalid -size: " + sizeMB);
+        }
+    }
+
+    /**
+     * ベンチマークを実行する.
+     */
+    private void execute() {
+        out.println(String.format("bench-digest: size=%dMB, rounds=%d",
+                sizeMB, rounds));
+
+        byte[] block = new byte[1024 * 1024];
+        new Random().nextBytes(block);
+
+        if (!skipHeap) {
+            byte[] data1 = new byte[sizeMB * 1024 * 1024];
+            for (int idx = 0; idx < sizeMB; idx++) {
+                System.arraycopy(block, 0, data1, idx * block.length,
+                        block.length);
+            }
+            byte[] data2 = data1.clone();
+
+            for (int round = 1; round <= rounds; round++) {
+                long st = System.nanoTime();
+                boolean result = Arrays.equals(data1, data2)
+                        && Arrays.hashCode(data1) == Arrays.hashCode(data2);
+                printResult(round, "heap legacy(equals+hash)", st, result);
+            }
+            measure(new ApplicationData("application/octet-stream", data1,
+                    "bench"), new ApplicationData("application/octet-stream",
+                    data2, "bench"), "heap");
+        }
+
+        if (!skipOffHeap) {
+            OffHeapBuffer buf1 = new OffHeapBuffer();
+            OffHeapBuffer buf2 = new OffHeapBuffer();
+            for (int idx = 0; idx < sizeMB; idx++) {
+                buf1.write(block, 0, block.length);
+                buf2.write(block, 0, block.length);
+            }
+            ApplicationData data1 = new ApplicationData(
+                    "application/octet-stream", buf1, "bench");
+            ApplicationData data2 = new ApplicationData(
+                    "application/octet-stream", buf2, "bench");
+            try {
+                measure(data1, data2, "offheap");
+
+            } finally {
+                data1.dispose();
+                data2.dispose();
+            }
+        }
+    }
+
+    /**
+     * ダイジェストによる比較を計測する.<br>
+     * 毎回新しいオブジェクトを作成して初回の比較(ダイジェストの計算を含む)を計測し、
+     * 続けて同じオブジェクトで2回目の比較とハッシュ値を計測する.<br>
+     * 
+     * @param data1
+     *            データ1
+     * @param data2
+     *            データ2(データ1と同じ内容で、データを共有しないもの)
+     * @param name
+     *            方式
+     */
+    private void measure(ApplicationData data1, ApplicationData data2,
+            String name) {
+        for (int round = 1; round <= rounds; round++) {
+            // タイトルの変更ではダイジェストを引き継ぐため、
+            // ダイジェストを持たない新しいオブジェクトにする.
+            ApplicationData d1 = copy(data1);
+            ApplicationData d2 = copy(data2);
+
+            long st = System.nanoTime();
+            boolean result = d1.equals(d2);
+            printResult(round, name + " digest(first)", st, result);
+
+            st = System.nanoTime();
+            result = d1.equals(d2) && d1.hashCode() == d2.hashCode();
+            printResult(round, name + " digest(cached)", st, result);
+        }
+    }
+
+    /**
+     * データを共有し、ダイジェストを持たないオブジェクトを作成する.
+     * 
+     * @param data
+     *            データ
+     * @return 新しいオブジェクト
+     */
+    private static ApplicationData copy(ApplicationData data) {
+        if (data.getBuffer() != null) {
+            return new ApplicationData(data.getContentType(),
+                    data.getBuffer(), data.getDocumentTitle());
+        }
+        return new ApplicationData(data.getContentType(), data.getData(),
+                data.getDocumentTitle());
+    }
+
+    /**
+     * 1回の計測結果を出力する.
+     * 
+     * @param round
+     *            回数
+     * @param name
+     *            方式
+     * @param startTime
+     *            開始時刻(nSec)
+     * @param result
+     *            比較結果
+     */
+    private void printResult(int round, String name, long startTime,
+            boolean result) {
+        double sec = Math.max(1, System.nanoTime() - startTime) / 1e9;
+        out.println(String.format("  #%d %-26s %10.6fs %10.2fMB/s %s", round,
+                name, sec, sizeMB / sec, result ? "equal" : "NOT EQUAL"));
+    }
+}
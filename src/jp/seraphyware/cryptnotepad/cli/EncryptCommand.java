@@ -0,0 +1,55 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+
+import jp.seraphyware.cryptnotepad.crypt.EncryptResult;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+import jp.seraphyware.cryptnotepad.model.FileContentSource;
+
+/**
+ * 平文ファイルを暗号化して出力先ディレクトリに保存するコマンド.<br>
+ * Content-Typeは拡張子から判定し、判定できなければバイナリとして扱う.<br>
+ * テキストの場合はファイルの内容をそのまま設定の文字コードであるとみなす.<br>
+ * 
+ * @author seraphy
+ */
+public class EncryptCommand extends BatchCommand {
+
+    public EncryptCommand(DocumentController documentController,
+            BatchStatistics statistics) {
+        super(documentController, statistics);
+    }
+
+    @Override
+    public boolean isOutputDirRequired() {
+        return true;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        // 平文はメモリに読み込まずに、読み込みながら暗号化する.
+        // (ファイルが存在しない場合は例外となる.)
+        FileContentSource source = new FileContentSource(file);
+
+        String contentType = documentController.detectContentType(file);
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+
+        } else if (contentType.startsWith("text/")) {
+            // テキストの場合は現在の文字コードを明示する.
+            String encoding = documentController.getSettingsModel()
+                    .getEncoding();
+            contentType = contentType + "; charset=" + encoding;
+        }
+
+        File outFile = getOutputFile(relativePath);
+        EncryptResult result = documentController.encrypt(outFile, source,
+                contentType, file.getName());
+
+        // チャンク形式で既存のファイルを更新した場合は、書き込んだバイト数とする.
+        statistics.success(source.length(),
+                result != null ? result.getBytesWritten() : outFile.length());
+        return null;
+    }
+}
@@ -0,0 +1,195 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+
+import jp.seraphyware.cryptnotepad.crypt.CryptUtils;
+import jp.seraphyware.cryptnotepad.crypt.SecureEraser;
+
+/**
+ * ファイル消去の性能を従来の方式と比較するベンチマーク.<br>
+ * 指定したサイズの一時ファイルを作成し、それぞれの方式で消去する時間を計測する.<br>
+ * 
+ * @author seraphy
+ */
+public final class EraseBenchmark {
+
+    /**
+     * 結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * 一時ファイルを作成するディレクトリ
+     */
+    private File dir = new File(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * ファイルサイズ(MB)
+     */
+    private int sizeMB = 32;
+
+    /**
+     * 計測回数
+     */
+    private int rounds = 3;
+
+    /**
+     * 上書きの方式
+     */
+    private SecureEraser.ErasePolicy policy = SecureEraser.ErasePolicy.RANDOM;
+
+    /**
+     * 従来の方式を計測しない
+     */
+    private boolean skipLegacy;
+
+    private EraseBenchmark(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * 使い方を出力する.
+     * 
+     * @param out
+     *            出力先
+     */
+    static void printUsage(PrintStream out) {
+        out.println("usage: bench-erase [-dir <dir>] [-size <MB>] [-rounds <n>]"
+                + " [-policy <RANDOM|ZERO|DOD3|RANDOM3>] [-skip-legacy]");
+    }
+
+    /**
+     * ベンチマークを実行する.
+     * 
+     * @param args
+     *            引数(先頭はコマンド名)
+     * @return 終了コード
+     */
+    public static int run(String[] args) {
+        EraseBenchmark bench = new EraseBenchmark(System.out);
+        try {
+            bench.parseArguments(args);
+
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            printUsage(System.err);
+            return 2;
+        }
+
+        try {
+            bench.execute();
+            return 0;
+
+        } catch (IOException ex) {
+            System.err.println("ERROR: " + ex);
+            return 1;
+        }
+    }
+
+    /**
+     * 引数を解析する.
+     * 
+     * @param args
+     *            引数
+     */
+    private void parseArguments(String[] args) {
+        CommandOptions options = new CommandOptions(args);
+        while (options.hasNext()) {
+            String arg = options.next();
+            if (arg.equals("-dir")) {
+                dir = new File(options.value(arg));
+
+            } else if (arg.equals("-size")) {
+                sizeMB = options.positiveValue(arg);
+
+            } else if (arg.equals("-rounds")) {
+                rounds = options.positiveValue(arg);
+
+            } else if (arg.equals("-policy")) {
+                policy = SecureEraser.ErasePolicy.valueOf(options.value(arg));
+
+            } else if (arg.equals("-skip-legacy")) {
+                skipLegacy = true;
+
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+    }
+
+    /**
+     * ベンチマークを実行する.
+     * 
+     * @throws IOException
+     *             失敗
+     */
+    private void execute() throws IOException {
+        SecureEraser eraser = new SecureEraser();
+        eraser.setPolicy(policy);
+        int passes = policy.getPasses().length;
+
+        out.println(String.format("bench-erase: size=%dMB, rounds=%d,"
+                + " policy=%s, dir=%s", sizeMB, rounds, policy, dir));
+
+        for (int round = 1; round <= rounds; round++) {
+            if (!skipLegacy) {
+                File file = createFile();
+                long st = System.nanoTime();
+                CryptUtils.eraseLegacy(file);
+                printResult(round, "legacy(rws,1 pass)", st, 1);
+            }
+
+            File file = createFile();
+            long st = System.nanoTime();
+            eraser.erase(file);
+            printResult(round, "channel(" + policy + ")", st, passes);
+        }
+    }
+
+    /**
+     * 計測用のファイルを作成する.
+     * 
+     * @return ファイル
+     * @throws IOException
+     *             失敗
+     */
+    private File createFile() throws IOException {
+        File file = File.createTempFile("bench-erase", ".tmp", dir);
+        byte[] buf = new byte[1024 * 1024];
+        new Random().nextBytes(buf);
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            for (int idx = 0; idx < sizeMB; idx++) {
+                os.write(buf);
+            }
+            os.getFD().sync();
+
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    /**
+     * 1回の計測結果を出力する.
+     * 
+     * @param round
+     *            回数
+     * @param name
+     *            方式
+     * @param startTime
+     *            開始時刻(nSec)
+     * @param passes
+     *            上書き回数
+     */
+    private void printResult(int round, String name, long startTime,
+            int passes) {
+        double sec = Math.max(1, System.nanoTime() - startTime) / 1e9;
+        out.println(String.format("  #%d %-24s %8.3fs %10.2fMB/s", round,
+                name, sec, sizeMB * passes / sec));
+    }
+}
@@ -0,0 +1,56 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import jp.seraphyware.cryptnotepad.crypt.VersionStore;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * 暗号化ファイルの版の履歴の一覧を出力するコマンド.<br>
+ * 版ごとに、相対パス、版番号、保存日時、データ長、チャンク数、
+ * その版で新たに格納したバイト数をタブ区切りで出力する.<br>
+ * 
+ * @author seraphy
+ */
+public class HistoryCommand extends BatchCommand {
+
+    /**
+     * 版の履歴のストア
+     */
+    private final VersionStore versionStore;
+
+    public HistoryCommand(DocumentController documentController,
+            BatchStatistics statistics) {
+        super(documentController, statistics);
+        this.versionStore = documentController.openVersionStore();
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        List<VersionStore.Revision> revisions = versionStore.list(file);
+        statistics.success(0, 0);
+        if (revisions.isEmpty()) {
+            return null;
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat(
+                "yyyy-MM-dd HH:mm:ss");
+        StringBuilder buf = new StringBuilder();
+        for (VersionStore.Revision revision : revisions) {
+            if (buf.length() > 0) {
+                buf.append(System.getProperty("line.separator"));
+            }
+            buf.append(relativePath).append("\t#")
+                    .append(revision.getNumber()).append("\t")
+                    .append(dateFormat.format(new Date(revision.getTimestamp())))
+                    .append("\t").append(revision.getLength()).append("\t")
+                    .append(revision.getChunkCount()).append("\t")
+                    .append(revision.getStoredBytes());
+        }
+        return buf.toString();
+    }
+}
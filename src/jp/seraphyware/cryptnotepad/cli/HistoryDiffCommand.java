@@ -0,0 +1,101 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import jp.seraphyware.cryptnotepad.crypt.VersionStore;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * 暗号化ファイルの2つの版の差分のサイズを出力するコマンド.<br>
+ * 基準の版に含まれないチャンクのバイト数を、相対パス、基準の版番号、版番号、データ長とともに
+ * タブ区切りで出力する.<br>
+ * 
+ * @author seraphy
+ */
+public class HistoryDiffCommand extends BatchCommand {
+
+    /**
+     * 版の履歴のストア
+     */
+    private final VersionStore versionStore;
+
+    /**
+     * 版番号、0以下の場合は最新の版
+     */
+    private final int revision;
+
+    /**
+     * 基準の版番号、0以下の場合は直前の版
+     */
+    private final int base;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param statistics
+     *            処理結果の集計
+     * @param revision
+     *            版番号、0以下の場合は最新の版
+     * @param base
+     *            基準の版番号、0以下の場合は直前の版
+     */
+    public HistoryDiffCommand(DocumentController documentController,
+            BatchStatistics statistics, int revision, int base) {
+        super(documentController, statistics);
+        this.versionStore = documentController.openVersionStore();
+        this.revision = revision;
+        this.base = base;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        List<VersionStore.Revision> revisions = versionStore.list(file);
+        statistics.success(0, 0);
+        if (revisions.isEmpty()) {
+            return null;
+        }
+
+        int targetIdx = revisions.size() - 1;
+        if (revision > 0) {
+            targetIdx = indexOf(revisions, revision);
+        }
+        int baseIdx = targetIdx - 1;
+        if (base > 0) {
+            baseIdx = indexOf(revisions, base);
+        }
+
+        VersionStore.Revision target = revisions.get(targetIdx);
+        VersionStore.Revision baseRevision = (baseIdx >= 0) ? revisions
+                .get(baseIdx) : null;
+        return relativePath + "\t#"
+                + (baseRevision != null ? baseRevision.getNumber() : 0)
+                + "\t#" + target.getNumber() + "\t"
+                + target.getDiffSize(baseRevision) + "\t"
+                + target.getLength();
+    }
+
+    /**
+     * 版番号の位置を取得する.
+     * 
+     * @param revisions
+     *            版の一覧
+     * @param number
+     *            版番号
+     * @return 位置
+     * @throws IOException
+     *             版がない場合
+     */
+    private static int indexOf(List<VersionStore.Revision> revisions,
+            int number) throws IOException {
+        for (int idx = 0; idx < revisions.size(); idx++) {
+            if (revisions.get(idx).getNumber() == number) {
+                return idx;
+            }
+        }
+        throw new IOException("revision not found: #" + number);
+    }
+}
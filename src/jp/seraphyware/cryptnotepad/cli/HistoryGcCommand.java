@@ -0,0 +1,83 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import jp.seraphyware.cryptnotepad.crypt.VersionStore;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * 版の履歴から不要なデータを削除するコマンド.<br>
+ * 保持する版の数が指定されていれば、対象ファイルごとに古い版を削除する.<br>
+ * すべてのファイルの処理に成功した後、どの版からも参照されていないチャンクを削除し、
+ * その結果を出力する.<br>
+ * 
+ * @author seraphy
+ */
+public class HistoryGcCommand extends BatchCommand {
+
+    /**
+     * 版の履歴のストア
+     */
+    private final VersionStore versionStore;
+
+    /**
+     * 保持する版の数、0以下の場合は古い版を削除しない
+     */
+    private final int keep;
+
+    /**
+     * 結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param statistics
+     *            処理結果の集計
+     * @param keep
+     *            保持する版の数、0以下の場合は古い版を削除しない
+     * @param out
+     *            結果の出力先
+     */
+    public HistoryGcCommand(DocumentController documentController,
+            BatchStatistics statistics, int keep, PrintStream out) {
+        super(documentController, statistics);
+        if (out == null) {
+            throw new IllegalArgumentException();
+        }
+        this.versionStore = documentController.openVersionStore();
+        this.keep = keep;
+        this.out = out;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        if (keep <= 0) {
+            statistics.success(0, 0);
+            return null;
+        }
+        int pruned = versionStore.prune(file, keep);
+        statistics.success(0, 0);
+        if (pruned == 0) {
+            return null;
+        }
+        return "pruned " + pruned + "\t" + relativePath;
+    }
+
+    @Override
+    public void complete(boolean completed) throws IOException {
+        if (!completed) {
+            return;
+        }
+        VersionStore.GcResult result = versionStore
+                .gc(VersionStore.DEFAULT_GC_GRACE);
+        out.println("gc\t" + result.getLiveChunks() + " live\t"
+                + result.getDeletedChunks() + " deleted\t"
+                + result.getFreedBytes() + " bytes freed");
+    }
+}
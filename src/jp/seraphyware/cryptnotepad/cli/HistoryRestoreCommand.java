@@ -0,0 +1,63 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+
+import jp.seraphyware.cryptnotepad.crypt.EncryptResult;
+import jp.seraphyware.cryptnotepad.crypt.VersionStore;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * 暗号化ファイルを版の履歴の指定した版の内容に戻すコマンド.<br>
+ * 戻した内容は現在のパスフレーズで暗号化して保存し、新しい版として記録する.<br>
+ * 
+ * @author seraphy
+ */
+public class HistoryRestoreCommand extends BatchCommand {
+
+    /**
+     * 版の履歴のストア
+     */
+    private final VersionStore versionStore;
+
+    /**
+     * 戻す版番号
+     */
+    private final int revision;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param statistics
+     *            処理結果の集計
+     * @param revision
+     *            戻す版番号
+     */
+    public HistoryRestoreCommand(DocumentController documentController,
+            BatchStatistics statistics, int revision) {
+        super(documentController, statistics);
+        if (revision < 1) {
+            throw new IllegalArgumentException("-rev is required: "
+                    + "history-restore");
+        }
+        this.versionStore = documentController.openVersionStore();
+        this.revision = revision;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        VersionStore.Revision rev = versionStore.getRevision(file, revision);
+        if (rev == null) {
+            throw new IOException("revision not found: #" + revision);
+        }
+        EncryptResult result = documentController.restoreRevision(file, rev);
+        if (result == null) {
+            throw new IOException("cancelled. " + file);
+        }
+
+        statistics.success(rev.getLength(), result.getBytesWritten());
+        return "#" + rev.getNumber() + "\t" + relativePath;
+    }
+}
@@ -0,0 +1,85 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+
+import jp.seraphyware.cryptnotepad.crypt.PackedArchive;
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * 暗号化ファイルの一覧を出力するコマンド.<br>
+ * 相対パス、Content-Type、コンテンツ長、ドキュメントタイトルをタブ区切りで出力する.<br>
+ * アーカイブの場合は、エントリごとに「相対パス!エントリの名前」として出力する.<br>
+ * 
+ * @author seraphy
+ */
+public class ListCommand extends BatchCommand {
+
+    public ListCommand(DocumentController documentController,
+            BatchStatistics statistics) {
+        super(documentController, statistics);
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        if (PackedArchive.isArchive(file)) {
+            return processArchive(file, relativePath);
+        }
+        ApplicationData data = decrypt(file);
+        try {
+            long length = getContentLength(data);
+
+            statistics.success(file.length(), 0);
+            return relativePath + "\t" + data.getContentType() + "\t"
+                    + length + "\t" + data.getDocumentTitle();
+
+        } finally {
+            data.dispose();
+        }
+    }
+
+    /**
+     * アーカイブのエントリを一覧する.
+     * 
+     * @param file
+     *            アーカイブのファイル
+     * @param relativePath
+     *            相対パス
+     * @return 出力する行
+     * @throws IOException
+     *             失敗
+     */
+    private String processArchive(File file, String relativePath)
+            throws IOException {
+        PackedArchive archive = documentController.openArchive(file, false);
+        if (archive == null) {
+            throw new IOException("can't decrypt. " + file);
+        }
+        try {
+            StringBuilder buf = new StringBuilder();
+            for (PackedArchive.Entry entry : archive.getEntries()) {
+                ApplicationData data = documentController.decrypt(archive,
+                        entry.getName());
+                try {
+                    if (buf.length() > 0) {
+                        buf.append(System.getProperty("line.separator"));
+                    }
+                    buf.append(relativePath).append("!")
+                            .append(entry.getName()).append("\t")
+                            .append(data.getContentType()).append("\t")
+                            .append(getContentLength(data)).append("\t")
+                            .append(data.getDocumentTitle());
+
+                } finally {
+                    data.dispose();
+                }
+            }
+            statistics.success(file.length(), 0);
+            return buf.length() > 0 ? buf.toString() : null;
+
+        } finally {
+            archive.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import jp.seraphyware.cryptnotepad.crypt.PackedArchive;
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * 暗号化ファイルを1つのアーカイブにまとめるコマンド.<br>
+ * 指定されたディレクトリからの相対パス(区切りは/)をエントリの名前とする.<br>
+ * 一時ファイルに書き込み、すべてのファイルの処理に成功した場合に確定してアーカイブを置き換える.<br>
+ * 元の暗号化ファイルは削除しない.<br>
+ * 
+ * @author seraphy
+ */
+public class PackCommand extends BatchCommand {
+
+    /**
+     * アーカイブのファイル
+     */
+    private final File archiveFile;
+
+    /**
+     * 書き込み中の一時ファイル
+     */
+    private final File tmpFile;
+
+    /**
+     * 書き込み中のアーカイブ
+     */
+    private final PackedArchive archive;
+
+    /**
+     * 結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param statistics
+     *            処理結果の集計
+     * @param archiveFile
+     *            アーカイブのファイル
+     * @param out
+     *            結果の出力先
+     * @throws IOException
+     *             アーカイブを作成できない場合
+     */
+    public PackCommand(DocumentController documentController,
+            BatchStatistics statistics, File archiveFile, PrintStream out)
+            throws IOException {
+        super(documentController, statistics);
+        if (archiveFile == null || out == null) {
+            throw new IllegalArgumentException();
+        }
+        this.archiveFile = archiveFile.getAbsoluteFile();
+        this.tmpFile = new File(this.archiveFile.getParentFile(),
+                this.archiveFile.getName() + ".tmp");
+        this.out = out;
+        this.archive = documentController.createArchive(tmpFile);
+    }
+
+    /**
+     * アーカイブと書き込み中の一時ファイルは対象外とする.
+     */
+    @Override
+    public File getTargetFile(File file) {
+        File absFile = file.getAbsoluteFile();
+        if (absFile.equals(archiveFile) || absFile.equals(tmpFile)) {
+            return null;
+        }
+        try {
+            if (PackedArchive.isArchive(file)) {
+                return null;
+            }
+
+        } catch (IOException ex) {
+            // 処理の中でエラーとする.
+        }
+        return file;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        String name = relativePath.replace(File.separatorChar, '/');
+        ApplicationData data = decrypt(file);
+        try {
+            documentController.encrypt(archive, name, data);
+
+        } finally {
+            data.dispose();
+        }
+        statistics.success(file.length(), 0);
+        return "packed\t" + relativePath;
+    }
+
+    @Override
+    public void complete(boolean completed) throws IOException {
+        boolean success = false;
+        try {
+            int count;
+            try {
+                if (completed) {
+                    archive.commit();
+                }
+                count = archive.getEntries().size();
+
+            } finally {
+                archive.close();
+            }
+            if (!completed) {
+                return;
+            }
+
+            if (!tmpFile.renameTo(archiveFile)) {
+                if (archiveFile.exists() && !archiveFile.delete()) {
+                    throw new IOException("can't delete. " + archiveFile);
+                }
+                if (!tmpFile.renameTo(archiveFile)) {
+                    throw new IOException("can't rename. " + tmpFile);
+                }
+            }
+            success = true;
+            out.println("archive\t" + archiveFile + "\t" + count
+                    + " entries\t" + archiveFile.length() + " bytes");
+
+        } finally {
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+
+import jp.seraphyware.cryptnotepad.crypt.CryptUtils;
+import jp.seraphyware.cryptnotepad.crypt.SymCipher;
+import jp.seraphyware.cryptnotepad.crypt.SymCipherRekeyer;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+import jp.seraphyware.cryptnotepad.model.SettingsModel;
+
+/**
+ * 暗号化ファイルを現在のパスフレーズとキーファイルで復号化し、
+ * 新しいパスフレーズとキーファイルで暗号化しなおすコマンド.<br>
+ * 進捗はジャーナルに記録され、中断しても同じ引数で再実行すれば続きから処理する.<br>
+ * 
+ * @author seraphy
+ */
+public class RekeyCommand extends BatchCommand {
+
+    /**
+     * 新しいパスフレーズとキーファイルの設定
+     */
+    private final SettingsModel newSettingsModel;
+
+    /**
+     * 再暗号化の処理
+     */
+    private final SymCipherRekeyer rekeyer;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            現在のパスフレーズとキーファイルが設定されたドキュメントコントローラ
+     * @param statistics
+     *            処理結果の集計
+     * @param newSettingsModel
+     *            新しいパスフレーズとキーファイルの設定
+     * @param journalFile
+     *            ジャーナルファイル
+     * @throws IOException
+     *             ジャーナルが開けない場合
+     */
+    public RekeyCommand(final DocumentController documentController,
+            BatchStatistics statistics, SettingsModel newSettingsModel,
+            File journalFile) throws IOException {
+        super(documentController, statistics);
+        if (newSettingsModel == null || journalFile == null) {
+            throw new IllegalArgumentException();
+        }
+        this.newSettingsModel = newSettingsModel;
+        SymCipher newCipher = new SymCipher(newSettingsModel);
+        newCipher.setEnvelopeEncryption(documentController.getSymCipher()
+                .isEnvelopeEncryption());
+        this.rekeyer = new SymCipherRekeyer(
+                documentController.getSymCipher(), newCipher,
+                new SymCipherRekeyer.PlainDataVerifier() {
+                    @Override
+                    public boolean verify(byte[] data) {
+                        return documentController.isValidDocument(data);
+                    }
+                }, journalFile);
+    }
+
+    /**
+     * 版の履歴のストアのマスターキーもラップしなおす.<br>
+     */
+    @Override
+    public boolean isVersionStoreKeyIncluded() {
+        return true;
+    }
+
+    /**
+     * 一時ファイルとバックアップは元のファイルの処理で扱うため対象外とする.<br>
+     * ただし、元のファイルがなくバックアップだけが残っている場合は、
+     * 中断された処理を完了させるために元のファイルを処理対象とする.<br>
+     */
+    @Override
+    public File getTargetFile(File file) {
+        File orgFile = SymCipherRekeyer.getOriginalFile(file);
+        if (orgFile == null) {
+            return file;
+        }
+        if (file.getName().endsWith(SymCipherRekeyer.BAK_SUFFIX)
+                && !orgFile.exists()) {
+            return orgFile;
+        }
+        return null;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        SymCipherRekeyer.Result result = rekeyer.rekey(file);
+
+        long size = file.length();
+        switch (result) {
+        case SKIPPED:
+            statistics.success(size, 0);
+            break;
+        case REWRAPPED:
+            // ヘッダのラップされたデータキーのみ読み書きする.
+            statistics.success(CryptUtils.WRAPPED_DATA_KEY_SIZE,
+                    CryptUtils.WRAPPED_DATA_KEY_SIZE);
+            break;
+        default:
+            statistics.success(size, size);
+            break;
+        }
+        return result + "\t" + relativePath;
+    }
+
+    @Override
+    public void complete(boolean completed) throws IOException {
+        try {
+            rekeyer.close(completed);
+
+        } finally {
+            newSettingsModel.clear();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * バックアップしたファイルを出力先ディレクトリにリストアするコマンド.<br>
+ * 処理対象にはバックアップのディレクトリを1つだけ指定する.<br>
+ * 複写時にマニフェストのハッシュと照合し、一致しない場合は失敗とする.<br>
+ * 出力先に同じサイズと更新日時のファイルがあれば複写しない.<br>
+ * 暗号文をそのまま複写するため、パスフレーズやキーファイルは必要としない.<br>
+ * 
+ * @author seraphy
+ */
+public class RestoreCommand extends BatchCommand {
+
+    /**
+     * バックアップのマニフェスト
+     */
+    private final BackupManifest manifest;
+
+    /**
+     * 結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * 処理したファイルの相対パス('/'区切り)
+     */
+    private final Set<String> visited = new HashSet<String>();
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param statistics
+     *            処理結果の集計
+     * @param backupDir
+     *            バックアップのディレクトリ
+     * @param out
+     *            結果の出力先
+     * @throws IOException
+     *             マニフェストがないか、読み込めない場合
+     */
+    public RestoreCommand(DocumentController documentController,
+            BatchStatistics statistics, File backupDir, PrintStream out)
+            throws IOException {
+        super(documentController, statistics);
+        if (backupDir == null || out == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!new File(backupDir, BackupManifest.FILE_NAME).exists()) {
+            throw new IOException("backup manifest not found. " + backupDir);
+        }
+        this.manifest = new BackupManifest(backupDir);
+        this.out = out;
+    }
+
+    @Override
+    public boolean isOutputDirRequired() {
+        return true;
+    }
+
+    @Override
+    public boolean isVersionStoreIncluded() {
+        return true;
+    }
+
+    /**
+     * マニフェストと複写中の一時ファイルは対象外とする.<br>
+     */
+    @Override
+    public File getTargetFile(File file) {
+        String name = file.getName();
+        if (name.equals(BackupManifest.FILE_NAME)
+                || name.equals(BackupManifest.FILE_NAME + ".tmp")
+                || name.endsWith(BackupManifest.TMP_SUFFIX)) {
+            return null;
+        }
+        return file;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        String path = BackupManifest.toManifestPath(relativePath);
+        synchronized (visited) {
+            visited.add(path);
+        }
+        BackupManifest.Entry entry = manifest.get(path);
+        if (entry == null) {
+            // マニフェストに記録されていないファイルはリストアしない.
+            statistics.success(0, 0);
+            return "UNTRACKED\t" + relativePath;
+        }
+
+        File dest = getOutputFile(relativePath);
+        if (entry.matches(dest)) {
+            statistics.success(0, 0);
+            return null;
+        }
+        BackupManifest.copy(file, dest, path, entry.getHash());
+        statistics.success(entry.getSize(), entry.getSize());
+        return "RESTORED\t" + relativePath;
+    }
+
+    /**
+     * マニフェストに記録されているがバックアップに存在しないファイルを出力する.<br>
+     * そのようなファイルがあれば失敗とする.<br>
+     */
+    @Override
+    public void complete(boolean completed) throws IOException {
+        int missing = 0;
+        for (BackupManifest.Entry entry : manifest.getEntries()) {
+            if (!visited.contains(entry.getPath())) {
+                missing++;
+                out.println("MISSING\t" + entry.getPath());
+            }
+        }
+        if (missing > 0) {
+            throw new IOException(missing
+                    + " files are missing in the backup.");
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.ApplicationSettings;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+import jp.seraphyware.cryptnotepad.model.DocumentController.PassphraseUIProvider;
+import jp.seraphyware.cryptnotepad.model.SettingsModel;
+import jp.seraphyware.cryptnotepad.service.VaultService;
+import jp.seraphyware.cryptnotepad.util.CacheMetric;
+import jp.seraphyware.cryptnotepad.util.LatencyMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+
+/**
+ * サービスモードの並行処理の性能を計測するベンチマーク.<br>
+ * 一時ディレクトリに指定した数のテキストを作成して同じプロセス内でサービスを開始し、
+ * クライアントのスレッド数を1から倍にしながら、HTTPで指定した数の要求を送り、
+ * 1秒あたりの要求数と応答時間(50%, 99%)を出力する.<br>
+ * 要求は、ドキュメントの取得80%、保存15%、一覧4%、検索1%の割合とする.<br>
+ * 最後に、計測中の鍵導出の回数と、共有されている鍵とドキュメントのキャッシュのヒット数を出力する.<br>
+ * パスフレーズは計測用の固定値を用いる.<br>
+ * 
+ * @author seraphy
+ */
+public final class ServiceBenchmark {
+
+    /**
+     * 結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * 一時ディレクトリを作成するディレクトリ
+     */
+    private File dir = new File(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * ドキュメントの数
+     */
+    private int count = 100;
+
+    /**
+     * ドキュメントのサイズ(文字数)
+     */
+    private int size = 4 * 1024;
+
+    /**
+     * クライアントのスレッド数ごとの要求数
+     */
+    private int requests = 2000;
+
+    /**
+     * クライアントのスレッド数の最大
+     */
+    private int clients = 16;
+
+    /**
+     * サービスのワーカースレッド数、0の場合はクライアントのスレッド数の最大と同じ
+     */
+    private int threads;
+
+    /**
+     * 計測用のテキスト
+     */
+    private String[] texts;
+
+    /**
+     * サービスのURL(末尾は'/')
+     */
+    private String baseUrl;
+
+    /**
+     * 認証用のトークン
+     */
+    private String token;
+
+    private ServiceBenchmark(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * 使い方を出力する.
+     * 
+     * @param out
+     *            出力先
+     */
+    static void printUsage(PrintStream out) {
+        out.println("usage: bench-serve [-dir <dir>] [-count <n>]"
+                + " [-size <chars>] [-requests <n>] [-clients <n>]"
+                + " [-threads <n>]");
+    }
+
+    /**
+     * ベンチマークを実行する.
+     * 
+     * @param args
+     *            引数(先頭はコマンド名)
+     * @return 終了コード
+     */
+    public static int run(String[] args) {
+        ServiceBenchmark bench = new ServiceBenchmark(System.out);
+        try {
+            bench.parseArguments(args);
+
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            printUsage(System.err);
+            return 2;
+        }
+
+        try {
+            bench.execute();
+            return 0;
+
+        } catch (IOException ex) {
+            System.err.println("ERROR: " + ex);
+            return 1;
+        }
+    }
+
+    /**
+     * 引数を解析する.
+     * 
+     * @param args
+     *            引数
+     */
+    private void parseArguments(String[] args) {
+        CommandOptions options = new CommandOptions(args);
+        while (options.hasNext()) {
+            String arg = options.next();
+            if (arg.equals("-dir")) {
+                dir = new File(options.value(arg));
+
+            } else if (arg.equals("-count")) {
+                count = options.positiveValue(arg);
+
+            } else if (arg.equals("-size")) {
+                size = options.positiveValue(arg);
+
+            } else if (arg.equals("-requests")) {
+                requests = options.positiveValue(arg);
+
+            } else if (arg.equals("-clients")) {
+                clients = options.positiveValue(arg);
+
+            } else if (arg.equals("-threads")) {
+                threads = options.positiveValue(arg);
+
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+    }
+
+    /**
+     * ベンチマークを実行する.
+     * 
+     * @throws IOException
+     *             失敗
+     */
+    private void execute() throws IOException {
+        ApplicationSettings appConfig = ApplicationSettings.getInstance();
+        appConfig.setVersionHistory(false);
+
+        // クライアントのスレッドごとの接続を再利用できるようにする.
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    Integer.toString(Math.max(5, clients)));
+        }
+
+        DocumentController documentController = new DocumentController();
+        documentController.setPassphraseUiProvider(new PassphraseUIProvider() {
+            @Override
+            public boolean requirePassphrase(SettingsModel settingsModel) {
+                return settingsModel.isValid();
+            }
+
+            @Override
+            public boolean verifyPassphrase(SettingsModel settingsModel) {
+                return true;
+            }
+
+            @Override
+            public boolean securityError(File file, Throwable cause) {
+                return false;
+            }
+
+            @Override
+            public void fileUpdated(File oldFile, File newFile) {
+                // do nothing.
+            }
+        });
+        documentController.getSettingsModel().setPassphrase(
+                "bench-serve".toCharArray());
+
+        File workDir = File.createTempFile("bench-serve", ".dir", dir);
+        if (!workDir.delete() || !workDir.mkdir()) {
+            throw new IOException("can't create the directory. " + workDir);
+        }
+        int serverThreads = (threads > 0) ? threads : clients;
+        VaultService service = new VaultService(documentController, workDir);
+        try {
+            out.println(String.format("bench-serve: count=%d, size=%d,"
+                    + " requests=%d, clients=1..%d, threads=%d, dir=%s",
+                    count, size, requests, clients, serverThreads, workDir));
+            prepare(documentController, workDir);
+
+            service.start(0, serverThreads, null);
+            baseUrl = "http://127.0.0.1:" + service.getPort() + "/";
+            token = service.getToken();
+
+            String text = new String(get("doc/" + toName(0)), "UTF-8");
+            if (!text.equals(texts[0])) {
+                throw new IOException("content mismatch. " + toName(0));
+            }
+
+            LatencyMetric createKey = Metrics.latency(Metrics.CREATE_KEY);
+            CacheMetric secretKeyCache = Metrics
+                    .cache(Metrics.SECRET_KEY_CACHE);
+            CacheMetric documentCache = Metrics.cache(Metrics.DOCUMENT_CACHE);
+            long derivations = createKey.getCount();
+            long keyHits = secretKeyCache.getHits();
+            long docHits = documentCache.getHits();
+            long docMisses = documentCache.getMisses();
+
+            for (int num = 1;; num = Math.min(num * 2, clients)) {
+                measure(num);
+                if (num == clients) {
+                    break;
+                }
+            }
+
+            out.println(String.format("  key derivations: %d,"
+                    + " secret key cache hits: %d,"
+                    + " document cache %d hits / %d misses",
+                    createKey.getCount() - derivations,
+                    secretKeyCache.getHits() - keyHits,
+                    documentCache.getHits() - docHits,
+                    documentCache.getMisses() - docMisses));
+            out.println(String.format("  service: %d requests, %d errors",
+                    service.getRequestCount(), service.getErrorCount()));
+
+        } finally {
+            service.stop();
+            CommandOptions.deleteAll(workDir);
+            documentController.dispose();
+        }
+    }
+
+    /**
+     * 計測用のテキストを作成して暗号化する.<br>
+     * それぞれのテキストには、検索用に「doc-番号」の行を含める.<br>
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param workDir
+     *            格納先
+     * @throws IOException
+     *             失敗
+     */
+    private void prepare(DocumentController documentController, File workDir)
+            throws IOException {
+        texts = new String[count];
+        for (int idx = 0; idx < count; idx++) {
+            texts[idx] = createText(new Random(idx), idx);
+            ApplicationData data = new ApplicationData(
+                    "text/plain; charset=UTF-8", texts[idx], toName(idx));
+            documentController.encrypt(new File(workDir, toName(idx)), data);
+        }
+    }
+
+    /**
+     * 計測用のテキストを作成する.
+     * 
+     * @param rnd
+     *            乱数
+     * @param idx
+     *            ドキュメントの番号
+     * @return テキスト
+     */
+    private String createText(Random rnd, int idx) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("doc-").append(idx).append('\n');
+        while (buf.length() < size) {
+            buf.append((char) ('a' + rnd.nextInt(26)));
+            if (rnd.nextInt(8) == 0) {
+                buf.append(rnd.nextInt(16) == 0 ? '\n' : ' ');
+            }
+        }
+        return buf.toString();
+    }
+
+    private static String toName(int idx) {
+        return String.format("note%06d.txt", idx);
+    }
+
+    /**
+     * 指定したクライアントのスレッド数で要求を送り、結果を出力する.
+     * 
+     * @param numOfClients
+     *            クライアントのスレッド数
+     * @throws IOException
+     *             失敗
+     */
+    private void measure(int numOfClients) throws IOException {
+        final LatencyMetric metric = new LatencyMetric("bench-serve");
+        final AtomicInteger issued = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+
+        Thread[] workers = new Thread[numOfClients];
+        for (int idx = 0; idx < workers.length; idx++) {
+            final Random rnd = new Random(numOfClients * 1000 + idx);
+            workers[idx] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (issued.getAndIncrement() < requests) {
+                        long st = metric.start();
+                        try {
+                            metric.stop(st, request(rnd));
+
+                        } catch (IOException ex) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }, "bench-serve-" + idx);
+        }
+
+        long st = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted.", ex);
+        }
+        double sec = Math.max(1, System.nanoTime() - st) / 1e9;
+
+        out.println(String.format("  clients=%-3d %8.3fs %8d requests"
+                + " %10.1f req/s  p50 %8.3fms  p99 %8.3fms  %d errors",
+                numOfClients, sec, metric.getCount(), metric.getCount() / sec,
+                metric.getP50Millis(), metric.getP99Millis(), errors.get()));
+    }
+
+    /**
+     * 割合に従って選んだ要求を1つ送る.
+     * 
+     * @param rnd
+     *            乱数
+     * @return 送受信した本文のバイト数
+     * @throws IOException
+     *             失敗
+     */
+    private long request(Random rnd) throws IOException {
+        int op = rnd.nextInt(100);
+        int idx = rnd.nextInt(count);
+        if (op < 80) {
+            return get("doc/" + toName(idx)).length;
+        }
+        if (op < 95) {
+            byte[] body = createText(rnd, idx).getBytes("UTF-8");
+            call("PUT", "doc/" + toName(idx), body);
+            return body.length;
+        }
+        if (op < 99) {
+            return get("list").length;
+        }
+        return get("search?q=doc-" + idx).length;
+    }
+
+    private byte[] get(String path) throws IOException {
+        return call("GET", path, null);
+    }
+
+    /**
+     * サービスに要求を送り、応答の本文を受け取る.<br>
+     * 接続を再利用できるように、エラーの場合も本文を読み切る.<br>
+     * 
+     * @param method
+     *            メソッド
+     * @param path
+     *            パス(先頭の'/'を除く)
+     * @param body
+     *            要求の本文(テキスト)、なければnull
+     * @return 応答の本文
+     * @throws IOException
+     *             失敗、もしくはエラーの応答の場合
+     */
+    private byte[] call(String method, String path, byte[] body)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path)
+                .openConnection();
+        conn.setRequestMethod(method);
+        conn.setRequestProperty(VaultService.TOKEN_HEADER, token);
+        if (body != null) {
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(body.length);
+            conn.setRequestProperty("Content-Type",
+                    "text/plain; charset=UTF-8");
+            OutputStream os = conn.getOutputStream();
+            try {
+                os.write(body);
+
+            } finally {
+                os.close();
+            }
+        }
+
+        int status = conn.getResponseCode();
+        InputStream is = (status >= 400) ? conn.getErrorStream() : conn
+                .getInputStream();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (is != null) {
+            try {
+                byte[] buf = new byte[8192];
+                int rd;
+                while ((rd = is.read(buf)) >= 0) {
+                    bos.write(buf, 0, rd);
+                }
+
+            } finally {
+                is.close();
+            }
+        }
+        if (status >= 300) {
+            throw new IOException("HTTP " + status + ": " + method + " "
+                    + path);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,347 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
+
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.ApplicationSettings;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+import jp.seraphyware.cryptnotepad.model.DocumentController.PassphraseUIProvider;
+import jp.seraphyware.cryptnotepad.model.SettingsModel;
+import jp.seraphyware.cryptnotepad.storage.LocalStorage;
+import jp.seraphyware.cryptnotepad.storage.MemoryObjectStore;
+import jp.seraphyware.cryptnotepad.storage.MemoryStorage;
+import jp.seraphyware.cryptnotepad.storage.ObjectStoreStorage;
+import jp.seraphyware.cryptnotepad.storage.Storage;
+
+/**
+ * 暗号化されたファイルの格納先による性能の違いを比較するベンチマーク.<br>
+ * ローカルのファイルシステム、メモリ、遅延を入れたメモリ上のオブジェクトストア(読み込みキャッシュあり)の
+ * それぞれを格納先として、指定した数のテキストの保存、一覧の取得、すべてのドキュメントの復号化の時間を計測する.<br>
+ * オブジェクトストアについては、要求数と取得したバイト数、キャッシュのヒット数も出力する.<br>
+ * パスフレーズは計測用の固定値を用い、最近復号化したドキュメントのキャッシュは無効にする.<br>
+ * 
+ * @author seraphy
+ */
+public final class StorageBenchmark {
+
+    /**
+     * 結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * 一時ディレクトリを作成するディレクトリ
+     */
+    private File dir = new File(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * ドキュメントの数
+     */
+    private int count = 200;
+
+    /**
+     * ドキュメントのサイズ(文字数)
+     */
+    private int size = 16 * 1024;
+
+    /**
+     * 計測回数
+     */
+    private int rounds = 3;
+
+    /**
+     * オブジェクトストアの要求ごとの遅延(mSec)
+     */
+    private int latency = 5;
+
+    private StorageBenchmark(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * 使い方を出力する.
+     * 
+     * @param out
+     *            出力先
+     */
+    static void printUsage(PrintStream out) {
+        out.println("usage: bench-storage [-dir <dir>] [-count <n>]"
+                + " [-size <chars>] [-rounds <n>] [-latency <msec>]");
+    }
+
+    /**
+     * ベンチマークを実行する.
+     * 
+     * @param args
+     *            引数(先頭はコマンド名)
+     * @return 終了コード
+     */
+    public static int run(String[] args) {
+        StorageBenchmark bench = new StorageBenchmark(System.out);
+        try {
+            bench.parseArguments(args);
+
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            printUsage(System.err);
+            return 2;
+        }
+
+        try {
+            bench.execute();
+            return 0;
+
+        } catch (IOException ex) {
+            System.err.println("ERROR: " + ex);
+            return 1;
+        }
+    }
+
+    /**
+     * 引数を解析する.
+     * 
+     * @param args
+     *            引数
+     */
+    private void parseArguments(String[] args) {
+        CommandOptions options = new CommandOptions(args);
+        while (options.hasNext()) {
+            String arg = options.next();
+            if (arg.equals("-dir")) {
+                dir = new File(options.value(arg));
+
+            } else if (arg.equals("-count")) {
+                count = options.positiveValue(arg);
+
+            } else if (arg.equals("-size")) {
+                size = options.positiveValue(arg);
+
+            } else if (arg.equals("-rounds")) {
+                rounds = options.positiveValue(arg);
+
+            } else if (arg.equals("-latency")) {
+                String value = options.value(arg);
+                latency = value.equals("0") ? 0 : CommandOptions
+                        .parsePositive(value, arg);
+
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+    }
+
+    /**
+     * ベンチマークを実行する.
+     * 
+     * @throws IOException
+     *             失敗
+     */
+    private void execute() throws IOException {
+        ApplicationSettings appConfig = ApplicationSettings.getInstance();
+        appConfig.setDocumentCacheSize(0);
+        appConfig.setVersionHistory(false);
+
+        DocumentController documentController = new DocumentController();
+        documentController.setPassphraseUiProvider(new PassphraseUIProvider() {
+            @Override
+            public boolean requirePassphrase(SettingsModel settingsModel) {
+                return settingsModel.isValid();
+            }
+
+            @Override
+            public boolean verifyPassphrase(SettingsModel settingsModel) {
+                return true;
+            }
+
+            @Override
+            public boolean securityError(File file, Throwable cause) {
+                return false;
+            }
+
+            @Override
+            public void fileUpdated(File oldFile, File newFile) {
+                // do nothing.
+            }
+        });
+        documentController.getSettingsModel().setPassphrase(
+                "bench-storage".toCharArray());
+
+        File workDir = File.createTempFile("bench-storage", ".dir", dir);
+        if (!workDir.delete() || !workDir.mkdir()) {
+            throw new IOException("can't create the directory. " + workDir);
+        }
+        try {
+            out.println(String.format("bench-storage: count=%d, size=%d,"
+                    + " rounds=%d, latency=%dms, dir=%s", count, size, rounds,
+                    latency, workDir));
+            String[] texts = prepare();
+
+            File localDir = new File(workDir, "local");
+            if (!localDir.mkdir()) {
+                throw new IOException("can't create the directory. "
+                        + localDir);
+            }
+            measure(documentController, "local", LocalStorage.getInstance(),
+                    localDir, texts, true);
+
+            MemoryStorage memoryStorage = new MemoryStorage();
+            File memoryDir = new File(workDir, "memory");
+            memoryStorage.mkdirs(memoryDir);
+            measure(documentController, "memory", memoryStorage, memoryDir,
+                    texts, true);
+
+            MemoryObjectStore store = new MemoryObjectStore(latency);
+            File objectDir = new File(workDir, "object");
+            ObjectStoreStorage objectStorage = new ObjectStoreStorage(store,
+                    objectDir, new File(workDir, "cache"));
+            try {
+                measure(documentController, "object", objectStorage,
+                        objectDir, texts, true);
+                printStoreStats(store, objectStorage);
+
+            } finally {
+                objectStorage.close();
+            }
+
+            // キャッシュが空の状態から読み込む場合
+            ObjectStoreStorage coldStorage = new ObjectStoreStorage(store,
+                    objectDir, new File(workDir, "cache-cold"));
+            try {
+                measure(documentController, "object cold", coldStorage,
+                        objectDir, texts, false);
+                printStoreStats(store, coldStorage);
+
+            } finally {
+                coldStorage.close();
+            }
+
+        } finally {
+            documentController.setStorage(LocalStorage.getInstance());
+            CommandOptions.deleteAll(workDir);
+            documentController.dispose();
+        }
+    }
+
+    /**
+     * 計測用のテキストを作成する.
+     * 
+     * @return テキスト
+     */
+    private String[] prepare() {
+        Random rnd = new Random();
+        String[] texts = new String[count];
+        StringBuilder buf = new StringBuilder();
+        for (int idx = 0; idx < count; idx++) {
+            buf.setLength(0);
+            while (buf.length() < size) {
+                buf.append((char) ('a' + rnd.nextInt(26)));
+                if (rnd.nextInt(8) == 0) {
+                    buf.append(rnd.nextInt(16) == 0 ? '\n' : ' ');
+                }
+            }
+            buf.setLength(size);
+            texts[idx] = buf.toString();
+        }
+        return texts;
+    }
+
+    /**
+     * 格納先を切り替えて、保存、一覧の取得、復号化の時間を計測する.<br>
+     * 保存は最初に1回のみ行う.<br>
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param name
+     *            格納先の名前
+     * @param storage
+     *            格納先
+     * @param contentsDir
+     *            格納先のディレクトリ
+     * @param texts
+     *            テキスト
+     * @param save
+     *            保存を行う場合はtrue、保存済みの場合はfalse
+     * @throws IOException
+     *             失敗
+     */
+    private void measure(DocumentController documentController, String name,
+            Storage storage, File contentsDir, String[] texts, boolean save)
+            throws IOException {
+        documentController.setStorage(storage);
+
+        long st;
+        if (save) {
+            st = System.nanoTime();
+            for (int idx = 0; idx < texts.length; idx++) {
+                ApplicationData data = new ApplicationData(
+                        "text/plain; charset=UTF-8", texts[idx], "note" + idx
+                                + ".txt");
+                documentController.encrypt(toFile(contentsDir, idx), data);
+            }
+            printResult(1, name + " save", st, texts.length);
+        }
+
+        for (int round = 1; round <= rounds; round++) {
+            st = System.nanoTime();
+            File[] files = storage.list(contentsDir);
+            printResult(round, name + " list", st, files != null ? files.length
+                    : 0);
+
+            st = System.nanoTime();
+            for (int idx = 0; idx < texts.length; idx++) {
+                File file = toFile(contentsDir, idx);
+                ApplicationData data = documentController.decrypt(file);
+                if (data == null) {
+                    throw new IOException("can't decrypt. " + file);
+                }
+                if (!texts[idx].equals(data.getText())) {
+                    throw new IOException("content mismatch. " + file);
+                }
+                data.dispose();
+            }
+            printResult(round, name + " open", st, texts.length);
+        }
+    }
+
+    /**
+     * オブジェクトストアの要求数と取得したバイト数、キャッシュのヒット数を出力する.
+     * 
+     * @param store
+     *            オブジェクトストア
+     * @param storage
+     *            格納先
+     */
+    private void printStoreStats(MemoryObjectStore store,
+            ObjectStoreStorage storage) {
+        out.println(String.format("  object store: %d requests,"
+                + " %d bytes downloaded, cache %d hits / %d misses",
+                store.getRequestCount(), store.getBytesDownloaded(),
+                storage.getCacheHits(), storage.getCacheMisses()));
+    }
+
+    private static File toFile(File contentsDir, int idx) {
+        return new File(contentsDir, String.format("note%06d.txt", idx));
+    }
+
+    /**
+     * 1回の計測結果を出力する.
+     * 
+     * @param round
+     *            回数
+     * @param name
+     *            方式
+     * @param startTime
+     *            開始時刻(nSec)
+     * @param items
+     *            処理したドキュメントの数
+     */
+    private void printResult(int round, String name, long startTime,
+            int items) {
+        double sec = Math.max(1, System.nanoTime() - startTime) / 1e9;
+        out.println(String.format("  #%d %-18s %8.3fs %8d items %10.1fus/item",
+                round, name, sec, items, sec * 1e6 / Math.max(1, items)));
+    }
+}
@@ -0,0 +1,162 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+import jp.seraphyware.cryptnotepad.sync.DirectorySyncPeer;
+import jp.seraphyware.cryptnotepad.sync.SyncTransport;
+import jp.seraphyware.cryptnotepad.sync.VaultSynchronizer;
+
+/**
+ * 暗号化されたファイルを同期先に差分転送するコマンド.<br>
+ * 同期先からファイルごとのブロックのシグネチャを受け取り、一致しないブロックのみを送る.<br>
+ * ファイルごとに、ファイルサイズと実際に送受信したバイト数を出力する.<br>
+ * 暗号文をそのまま送るため、パスフレーズやキーファイルは必要としない.<br>
+ * 
+ * @author seraphy
+ */
+public class SyncCommand extends BatchCommand {
+
+    /**
+     * 同期処理
+     */
+    private final VaultSynchronizer synchronizer;
+
+    /**
+     * ブロックサイズ、0の場合はファイルサイズから決める
+     */
+    private final int blockSize;
+
+    /**
+     * 処理対象から削除されたファイルを同期先からも削除するか?
+     */
+    private final boolean prune;
+
+    /**
+     * 結果の出力先
+     */
+    private final PrintStream out;
+
+    /**
+     * 処理したファイルの相対パス('/'区切り)
+     */
+    private final Set<String> visited = new HashSet<String>();
+
+    /**
+     * 送ったファイル数
+     */
+    private final AtomicInteger sent = new AtomicInteger();
+
+    /**
+     * 同期先と一致していたファイル数
+     */
+    private final AtomicInteger unchanged = new AtomicInteger();
+
+    /**
+     * 送ったファイルのサイズの合計
+     */
+    private final AtomicLong fileBytes = new AtomicLong();
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     * @param statistics
+     *            処理結果の集計
+     * @param transport
+     *            同期先との通信路
+     * @param blockSize
+     *            ブロックサイズ、0の場合はファイルサイズから決める
+     * @param prune
+     *            処理対象から削除されたファイルを同期先からも削除する場合はtrue
+     * @param out
+     *            結果の出力先
+     */
+    public SyncCommand(DocumentController documentController,
+            BatchStatistics statistics, SyncTransport transport,
+            int blockSize, boolean prune, PrintStream out) {
+        super(documentController, statistics);
+        if (transport == null || out == null) {
+            throw new IllegalArgumentException();
+        }
+        this.synchronizer = new VaultSynchronizer(transport);
+        this.blockSize = blockSize;
+        this.prune = prune;
+        this.out = out;
+    }
+
+    /**
+     * 版の履歴のストアも暗号化されているため、そのまま同期する.<br>
+     */
+    @Override
+    public boolean isVersionStoreIncluded() {
+        return true;
+    }
+
+    /**
+     * 差分を適用中の一時ファイルは対象外とする.<br>
+     */
+    @Override
+    public File getTargetFile(File file) {
+        if (file.getName().endsWith(DirectorySyncPeer.TMP_SUFFIX)) {
+            return null;
+        }
+        return file;
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        String path = BackupManifest.toManifestPath(relativePath);
+        synchronized (visited) {
+            visited.add(path);
+        }
+        VaultSynchronizer.Result result = synchronizer.push(file, path,
+                blockSize);
+        if (!result.isSent()) {
+            unchanged.incrementAndGet();
+            statistics.success(0, 0);
+            return null;
+        }
+        sent.incrementAndGet();
+        fileBytes.addAndGet(result.getFileSize());
+        statistics.success(result.getFileSize(), result.getWireBytes());
+        return (result.isCreated() ? "NEW" : "DELTA") + "\t" + relativePath
+                + "\t" + result.getFileSize() + " bytes\t"
+                + result.getWireBytes() + " bytes on wire";
+    }
+
+    /**
+     * 同期先にのみあるファイルを数え、pruneが指定されていれば削除し、
+     * 通信路上の転送量の合計を出力する.<br>
+     */
+    @Override
+    public void complete(boolean completed) throws IOException {
+        int removed = 0;
+        for (String path : synchronizer.getPeerFiles().keySet()) {
+            if (visited.contains(path)) {
+                continue;
+            }
+            removed++;
+            if (prune && completed) {
+                synchronizer.delete(path);
+                out.println("PRUNED\t" + path);
+            }
+        }
+
+        long wire = synchronizer.getBytesSent()
+                + synchronizer.getBytesReceived();
+        long total = fileBytes.get();
+        out.println("sync\t" + sent + " sent\t" + unchanged + " unchanged\t"
+                + removed + (prune && completed ? " pruned" : " peer only")
+                + "\t" + total + " bytes\t" + wire + " bytes on wire"
+                + (total > 0 ? String.format(" (%.1f%%)", wire * 100.0 / total)
+                        : ""));
+    }
+}
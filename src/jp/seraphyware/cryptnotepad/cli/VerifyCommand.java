@@ -0,0 +1,49 @@
+package jp.seraphyware.cryptnotepad.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * 暗号化ファイルが現在のパスフレーズとキーファイルで復号化できるか検証するコマンド.<br>
+ * 
+ * @author seraphy
+ */
+public class VerifyCommand extends BatchCommand {
+
+    public VerifyCommand(DocumentController documentController,
+            BatchStatistics statistics) {
+        super(documentController, statistics);
+    }
+
+    @Override
+    public String process(File file, String relativePath) throws IOException {
+        ApplicationData data = decrypt(file);
+        try {
+            if (data.getSource() != null) {
+                // 暗号化ファイルから直接復号化するデータはヘッダしか読み込んでいないため、
+                // 最後まで復号化して検証する.
+                writeContents(data, new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        // 破棄する.
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        // 破棄する.
+                    }
+                });
+            }
+
+        } finally {
+            data.dispose();
+        }
+
+        statistics.success(file.length(), 0);
+        return "OK\t" + relativePath;
+    }
+}
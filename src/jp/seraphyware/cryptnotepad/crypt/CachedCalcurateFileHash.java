@@ -11,6 +11,11 @@ import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import jp.seraphyware.cryptnotepad.util.CacheMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+import jp.seraphyware.cryptnotepad.util.TraceEvent;
+import jp.seraphyware.cryptnotepad.util.TraceEventType;
+
 /**
  * ファイルのハッシュ値計算をキャッシュする拡張.
  * 
@@ -24,6 +29,12 @@ public class CachedCalcurateFileHash extends CalcurateFileHash {
     private static final Logger logger = Logger
             .getLogger(CachedCalcurateFileHash.class.getName());
 
+    /**
+     * キャッシュのヒット率の計測値
+     */
+    private static final CacheMetric cacheMetric = Metrics
+            .cache(Metrics.FILE_HASH_CACHE);
+
     /**
      * ファイルに対するハッシュ計算結果を保持するクラス.
      */
@@ -100,9 +111,10 @@ public class CachedCalcurateFileHash extends CalcurateFileHash {
 
     /*
      * キャッシュするよう拡張している.
+     * (バッチモードでは複数スレッドから呼び出されるため同期化している.)
      */
     @Override
-    public byte[] getFileHash(URL url) throws IOException {
+    public synchronized byte[] getFileHash(URL url) throws IOException {
         if (url == null) {
             return null;
         }
@@ -119,63 +131,78 @@ public class CachedCalcurateFileHash extends CalcurateFileHash {
             throw new IOException("uri-error: " + ex, ex);
         }
 
-        // キャッシュを検索する.
-        boolean modified = false;
-        Result result = cache.get(uri);
-        if (result == null) {
-            // 該当なければキャッシュを作成する.
-            result = new Result();
-            cache.put(uri, result);
-        }
-
-        if (result.getHash() == null) {
-            // まだハッシュが格納されていなければ変更あり
-            // (新規の場合など)
-            modified = true;
-        }
+        TraceEvent trace = TraceEventType.KEY_FILE_HASH.begin();
+        trace.setPath(uri.toString());
+        try {
+            // キャッシュを検索する.
+            boolean modified = false;
+            Result result = cache.get(uri);
+            if (result == null) {
+                // 該当なければキャッシュを作成する.
+                result = new Result();
+                cache.put(uri, result);
+            }
 
-        long span = System.currentTimeMillis() - result.getLastCheck();
-        if (!modified && (span < getUnsensitiveSpan())) {
-            // 新規ではなく、且つ、前回チェックから不感応時間を経過していなければ
-            // ロード試行せず、前回のままの結果をもちいる.
-            return result.getHash();
-        }
+            if (result.getHash() == null) {
+                // まだハッシュが格納されていなければ変更あり
+                // (新規の場合など)
+                modified = true;
+            }
 
-        // コンテンツの更新を確認する.
-        URLConnection conn = openConnection(url);
+            long span = System.currentTimeMillis() - result.getLastCheck();
+            if (!modified && (span < getUnsensitiveSpan())) {
+                // 新規ではなく、且つ、前回チェックから不感応時間を経過していなければ
+                // ロード試行せず、前回のままの結果をもちいる.
+                cacheMetric.hit();
+                trace.setDetail("hit");
+                return result.getHash();
+            }
 
-        long lastModified = conn.getLastModified();
-        if (!modified) {
-            // 最終更新日を比較して変更の有無を見る.
-            modified = (lastModified != result.getLastModified());
-        }
+            // コンテンツの更新を確認する.
+            URLConnection conn = openConnection(url);
 
-        result.setLastModified(lastModified);
+            long lastModified = conn.getLastModified();
+            if (!modified) {
+                // 最終更新日を比較して変更の有無を見る.
+                modified = (lastModified != result.getLastModified());
+            }
 
-        if (modified) {
-            // 新規もしくは変更がある場合は、ロードを試行する.
-            byte[] hash;
-            InputStream is = conn.getInputStream();
-            try {
-                hash = getFileHash(is);
-            } finally {
-                is.close();
+            result.setLastModified(lastModified);
+
+            if (modified) {
+                // 新規もしくは変更がある場合は、ロードを試行する.
+                byte[] hash;
+                InputStream is = conn.getInputStream();
+                try {
+                    hash = getFileHash(is);
+                } finally {
+                    is.close();
+                }
+
+                // ハッシュ値を設定する.
+                result.setHash(hash);
+                cacheMetric.miss();
+                trace.setDetail("miss");
+
+            } else {
+                cacheMetric.revalidate();
+                trace.setDetail("revalidate");
             }
 
-            // ハッシュ値を設定する.
-            result.setHash(hash);
-        }
+            // 確認日時を設定する.
+            result.setLastCheck(System.currentTimeMillis());
 
-        // 確認日時を設定する.
-        result.setLastCheck(System.currentTimeMillis());
+            return result.getHash();
 
-        return result.getHash();
+        } finally {
+            trace.commit();
+        }
     }
 
     /**
      * キャッシュをクリアする.
      */
-    public void clear() {
+    public synchronized void clear() {
         cache.clear();
     }
 }
\ No newline at end of file
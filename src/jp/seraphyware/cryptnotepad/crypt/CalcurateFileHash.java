@@ -16,6 +16,9 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import jp.seraphyware.cryptnotepad.util.LatencyMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+
 /**
  * ファイルのハッシュ値(SHA512)を計算する.
  * 
@@ -29,6 +32,12 @@ public class CalcurateFileHash {
     private static final Logger logger = Logger
             .getLogger(CalcurateFileHash.class.getName());
 
+    /**
+     * ハッシュ計算の処理時間の計測値
+     */
+    private static final LatencyMetric fileHashMetric = Metrics
+            .latency(Metrics.FILE_HASH);
+
     /**
      * バッファサイズ
      */
@@ -184,6 +193,8 @@ public class CalcurateFileHash {
         }
 
         // ストリームを読み取りハッシュを計算する.
+        long st = fileHashMetric.start();
+        long total = 0;
         BufferedInputStream bis = new BufferedInputStream(is, getBufferSize());
         try {
             byte[] buf = new byte[getBufferSize()];
@@ -193,10 +204,12 @@ public class CalcurateFileHash {
                     break;
                 }
                 digest.update(buf, 0, rd);
+                total += rd;
             }
 
         } finally {
             bis.close();
+            fileHashMetric.stop(st, total);
         }
         return digest.digest();
     }
@@ -0,0 +1,1227 @@
+package jp.seraphyware.cryptnotepad.crypt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import jp.seraphyware.cryptnotepad.util.LatencyMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+
+/**
+ * チャンク形式の暗号化ファイル.<br>
+ * エンベロープ形式のバージョン2として、データを固定サイズのチャンクに分割し、
+ * チャンクごとにランダムなIVでデータキーにより暗号化する.<br>
+ * チャンクはファイル上の決まった位置(スロット)に置かれるため、既存のファイルに保存する場合は、
+ * 前回保存した内容とチャンク単位に比較して、変更されたチャンクとインデックスのみを書き換える.<br>
+ * 前回の内容はインデックスに保持しているチャンクごとの平文のダイジェスト(SHA-256)で比較するため、
+ * 既存のチャンクを読み込む必要はない. (インデックスもデータキーで暗号化する.)<br>
+ * <br>
+ * 形式は、マジックナンバー(8) + バージョン(1) + ラップされたキー長(2) + ラップされたキー +
+ * チャンクサイズ(4) + データ長(8) + インデックス長(4) + スロット... + インデックス、となる.<br>
+ * スロットはIV(16) + AES/CBC/PKCS5Paddingで暗号化したチャンクであり、最後のスロット以外は同じ長さである.<br>
+ * インデックスはIV(16) + 暗号化した(チャンク数(4) + ダイジェスト(32) * チャンク数)である.<br>
+ * データ長とインデックス長は保存の最後に書き込むため、それまではヘッダは前回の保存内容を指している.<br>
+ * <br>
+ * 新しいファイルや全体を書き直す場合は、一時ファイル(*.chunk-tmp)に書き込んで同期してから置き換える.<br>
+ * 変更されたチャンクのみを書き込む場合は、書き込む内容を先にジャーナル(*.chunk-journal)に記録して同期し、
+ * その後でファイルに反映してからジャーナルを削除する.<br>
+ * 保存が中断された場合、完結したジャーナルは次の読み込みまたは保存の前に反映しなおし、
+ * 完結していないジャーナルは破棄する(ファイルは前回の保存内容のまま).<br>
+ * 復号化するときは、チャンクごとに平文のダイジェストを計算し、インデックスのダイジェストと照合する.<br>
+ * ラップされたキーの位置はバージョン1と同じであるため、
+ * {@link CryptUtils#rewrapKey(File, SecretKey, SecretKey)}でラップしなおすことができる.<br>
+ * 
+ * @author seraphy
+ */
+public final class ChunkedCipherFile {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger
+            .getLogger(ChunkedCipherFile.class.getName());
+
+    /**
+     * 暗号化・復号化の転送の処理時間の計測値
+     */
+    private static final LatencyMetric transferMetric = Metrics
+            .latency(Metrics.TRANSFER);
+
+    /**
+     * エンベロープ形式のバージョン
+     */
+    static final int VERSION = 2;
+
+    /**
+     * 全体を書き直す場合の一時ファイルの拡張子
+     */
+    public static final String TMP_SUFFIX = ".chunk-tmp";
+
+    /**
+     * 変更されたチャンクを書き込む場合のジャーナルの拡張子
+     */
+    public static final String JOURNAL_SUFFIX = ".chunk-journal";
+
+    /**
+     * ジャーナルのマジックナンバー
+     */
+    private static final byte[] JOURNAL_MAGIC = { 'C', 'N', 'C', 'H', 'K',
+            'J', 'N', 'L' };
+
+    /**
+     * チャンクサイズの最小値
+     */
+    public static final int MIN_CHUNK_SIZE = 4 * 1024;
+
+    /**
+     * チャンクサイズの最大値
+     */
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * 暗号化方式
+     */
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    /**
+     * IVのサイズ(AESのブロックサイズ)
+     */
+    private static final int IV_SIZE = 16;
+
+    /**
+     * チャンクのダイジェストのサイズ(SHA-256)
+     */
+    private static final int DIGEST_SIZE = 32;
+
+    /**
+     * チャンク数の上限.<br>
+     * インデックスが配列に収まる数とする.<br>
+     */
+    private static final int MAX_CHUNK_COUNT = (Integer.MAX_VALUE - 64)
+            / DIGEST_SIZE;
+
+    /**
+     * ヘッダ
+     */
+    private static final class Header {
+
+        /**
+         * ラップされたデータキー
+         */
+        final byte[] wrappedKey;
+
+        /**
+         * チャンクサイズ
+         */
+        final int chunkSize;
+
+        /**
+         * データ長
+         */
+        final long dataLength;
+
+        /**
+         * インデックス長
+         */
+        final int indexLength;
+
+        Header(byte[] wrappedKey, int chunkSize, long dataLength,
+                int indexLength) {
+            this.wrappedKey = wrappedKey;
+            this.chunkSize = chunkSize;
+            this.dataLength = dataLength;
+            this.indexLength = indexLength;
+        }
+
+        /**
+         * データ長とインデックス長の位置
+         * 
+         * @return 位置
+         */
+        long getCommitOffset() {
+            return CryptUtils.WRAPPED_KEY_OFFSET + wrappedKey.length + 4;
+        }
+
+        /**
+         * 最初のスロットの位置
+         * 
+         * @return 位置
+         */
+        long getSlotsOffset() {
+            return getCommitOffset() + 8 + 4;
+        }
+
+        /**
+         * 指定したデータ長の場合のインデックスの位置
+         * 
+         * @param length
+         *            データ長
+         * @return 位置
+         */
+        long getIndexOffset(long length) {
+            int count = getChunkCount(length, chunkSize);
+            if (count == 0) {
+                return getSlotsOffset();
+            }
+            long lastLength = length - (long) (count - 1) * chunkSize;
+            return getSlotOffset(count - 1) + getSlotSize((int) lastLength);
+        }
+
+        /**
+         * スロットの位置
+         * 
+         * @param idx
+         *            チャンクの番号
+         * @return 位置
+         */
+        long getSlotOffset(int idx) {
+            return getSlotsOffset() + (long) idx * getSlotSize(chunkSize);
+        }
+
+        /**
+         * データ長とインデックス長を除いたヘッダの先頭部分を作成する.<br>
+         * 差分の書き込みでは変更されない部分である.<br>
+         * 
+         * @return ヘッダの先頭部分
+         */
+        byte[] getPrefix() {
+            return Arrays.copyOf(toBytes(), (int) getCommitOffset());
+        }
+
+        /**
+         * データ長とインデックス長が0のヘッダを作成する.
+         * 
+         * @return ヘッダ
+         */
+        byte[] toBytes() {
+            byte[] head = new byte[(int) getSlotsOffset()];
+            int pos = 0;
+            System.arraycopy(CryptUtils.ENVELOPE_MAGIC, 0, head, pos,
+                    CryptUtils.ENVELOPE_MAGIC.length);
+            pos += CryptUtils.ENVELOPE_MAGIC.length;
+            head[pos++] = (byte) VERSION;
+            head[pos++] = (byte) ((wrappedKey.length >> 8) & 0xff);
+            head[pos++] = (byte) (wrappedKey.length & 0xff);
+            System.arraycopy(wrappedKey, 0, head, pos, wrappedKey.length);
+            pos += wrappedKey.length;
+            head[pos++] = (byte) ((chunkSize >> 24) & 0xff);
+            head[pos++] = (byte) ((chunkSize >> 16) & 0xff);
+            head[pos++] = (byte) ((chunkSize >> 8) & 0xff);
+            head[pos] = (byte) (chunkSize & 0xff);
+            return head;
+        }
+    }
+
+    /**
+     * プライベートコンストラクタ
+     */
+    private ChunkedCipherFile() {
+        super();
+    }
+
+    /**
+     * チャンクサイズとして有効であるか判定する.<br>
+     * {@link #MIN_CHUNK_SIZE}から{@link #MAX_CHUNK_SIZE}の範囲で、
+     * AESのブロックサイズの倍数である必要がある.<br>
+     * 
+     * @param chunkSize
+     *            チャンクサイズ
+     * @return 有効であればtrue
+     */
+    public static boolean isValidChunkSize(int chunkSize) {
+        return chunkSize >= MIN_CHUNK_SIZE && chunkSize <= MAX_CHUNK_SIZE
+                && chunkSize % IV_SIZE == 0;
+    }
+
+    /**
+     * データの先頭がチャンク形式のヘッダであるか判定する.
+     * 
+     * @param head
+     *            データの先頭(マジックナンバーとバージョン以上の長さ)
+     * @return チャンク形式であればtrue
+     */
+    static boolean isChunkedHeader(byte[] head) {
+        int versionPos = CryptUtils.ENVELOPE_MAGIC.length;
+        return head.length > versionPos && CryptUtils.isEnvelopeHeader(head)
+                && (head[versionPos] & 0xff) == VERSION;
+    }
+
+    /**
+     * チャンクを暗号化したスロットのサイズ
+     * 
+     * @param length
+     *            チャンクのデータ長
+     * @return スロットのサイズ(IVを含む)
+     */
+    private static int getSlotSize(int length) {
+        // PKCS5Paddingでは常に1～16バイトのパディングが付与される.
+        return IV_SIZE + (length / IV_SIZE + 1) * IV_SIZE;
+    }
+
+    /**
+     * データ長に対するチャンクの数
+     * 
+     * @param length
+     *            データ長
+     * @param chunkSize
+     *            チャンクサイズ
+     * @return チャンクの数
+     */
+    private static int getChunkCount(long length, int chunkSize) {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * チャンク形式で暗号化してファイルに書き込む.<br>
+     * ファイルが同じチャンクサイズのチャンク形式であり、キー暗号化キーでデータキーを復元できる場合は、
+     * 前回保存した内容とチャンクごとに比較して、変更されたチャンクとインデックスのみを
+     * ジャーナルを経由して書き込む.<br>
+     * それ以外の場合は新しいデータキーを生成して、ファイル全体を一時ファイルに書き込んでから置き換える.<br>
+     * 前回中断された保存のジャーナルがあれば、先に反映するか破棄する.<br>
+     * 
+     * @param kek
+     *            データキーをラップする対称暗号化キー
+     * @param is
+     *            暗号化するデータの入力元(閉じない)
+     * @param file
+     *            書き込み先ファイル
+     * @param chunkSize
+     *            チャンクサイズ
+     * @return 結果
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     * @throws GeneralSecurityException
+     *             暗号化に問題が生じた場合
+     */
+    public static EncryptResult write(SecretKey kek, InputStream is,
+            File file, int chunkSize) throws IOException,
+            GeneralSecurityException {
+        if (kek == null || is == null || file == null
+                || !isValidChunkSize(chunkSize)) {
+            throw new IllegalArgumentException();
+        }
+
+        recover(file, true);
+
+        // 前回保存した内容のインデックスを読み込む.
+        Header header = null;
+        SecretKey dataKey = null;
+        byte[][] oldDigests = null;
+        if (file.exists()) {
+            RandomAccessFile fh = new RandomAccessFile(file, "r");
+            try {
+                Header prevHeader = readHeader(fh);
+                if (prevHeader != null && prevHeader.chunkSize == chunkSize) {
+                    dataKey = CryptUtils.unwrapKey(kek, prevHeader.wrappedKey);
+                    oldDigests = readIndex(fh, prevHeader, dataKey);
+                    header = prevHeader;
+                }
+
+            } catch (GeneralSecurityException ex) {
+                // キーが一致しないか、インデックスが壊れている場合は全体を書き直す.
+                logger.log(Level.FINE, "can't reuse the chunked file. " + file,
+                        ex);
+
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "can't reuse the chunked file. " + file,
+                        ex);
+
+            } finally {
+                fh.close();
+            }
+        }
+
+        boolean incremental = (header != null);
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        File journalFile = new File(file.getPath() + JOURNAL_SUFFIX);
+        RandomAccessFile out = null;
+        Journal journal = null;
+        boolean success = false;
+        byte[] buf = new byte[chunkSize];
+        try {
+            long written = 0;
+            if (incremental) {
+                // 変更されたチャンクはジャーナルに記録し、ファイルには後でまとめて反映する.
+                journal = new Journal(journalFile, header.getPrefix());
+
+            } else {
+                dataKey = CryptUtils.generateDataKey();
+                header = new Header(CryptUtils.wrapKey(kek, dataKey),
+                        chunkSize, 0, 0);
+                oldDigests = new byte[0][];
+
+                byte[] head = header.toBytes();
+                out = new RandomAccessFile(tmpFile, "rw");
+                out.setLength(0);
+                out.write(head);
+                written += head.length;
+            }
+
+            // チャンクごとに前回のダイジェストと比較し、変更されたチャンクのみ書き込む.
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            List<byte[]> digests = new ArrayList<byte[]>();
+            long dataLength = 0;
+            int chunksWritten = 0;
+            long st = transferMetric.start();
+            try {
+                for (;;) {
+                    int rd = CryptUtils.readFully(is, buf, 0, chunkSize);
+                    if (rd == 0) {
+                        break;
+                    }
+                    int idx = digests.size();
+                    if (idx >= MAX_CHUNK_COUNT) {
+                        throw new IOException("too large. " + file);
+                    }
+                    md.update(buf, 0, rd);
+                    byte[] digest = md.digest();
+                    digests.add(digest);
+                    dataLength += rd;
+
+                    if (idx >= oldDigests.length
+                            || !MessageDigest.isEqual(digest, oldDigests[idx])) {
+                        cipher.init(Cipher.ENCRYPT_MODE, dataKey);
+                        byte[] iv = cipher.getIV();
+                        byte[] encbuf = cipher.doFinal(buf, 0, rd);
+                        long slotOffset = header.getSlotOffset(idx);
+                        if (journal != null) {
+                            journal.write(slotOffset, iv, encbuf);
+                        } else {
+                            out.seek(slotOffset);
+                            out.write(iv);
+                            out.write(encbuf);
+                        }
+                        written += iv.length + encbuf.length;
+                        chunksWritten++;
+                    }
+                    if (rd < chunkSize) {
+                        break;
+                    }
+                }
+
+            } finally {
+                transferMetric.stop(st, dataLength);
+            }
+
+            // インデックスを作成する.
+            byte[] index = new byte[4 + digests.size() * DIGEST_SIZE];
+            int count = digests.size();
+            index[0] = (byte) ((count >> 24) & 0xff);
+            index[1] = (byte) ((count >> 16) & 0xff);
+            index[2] = (byte) ((count >> 8) & 0xff);
+            index[3] = (byte) (count & 0xff);
+            for (int idx = 0; idx < count; idx++) {
+                System.arraycopy(digests.get(idx), 0, index, 4 + idx
+                        * DIGEST_SIZE, DIGEST_SIZE);
+            }
+            cipher.init(Cipher.ENCRYPT_MODE, dataKey);
+            byte[] indexIv = cipher.getIV();
+            byte[] encIndex = cipher.doFinal(index);
+            int indexLength = indexIv.length + encIndex.length;
+            long indexOffset = header.getIndexOffset(dataLength);
+            long length = indexOffset + indexLength;
+
+            // データ長とインデックス長
+            byte[] commit = new byte[8 + 4];
+            for (int idx = 0; idx < 8; idx++) {
+                commit[idx] = (byte) ((dataLength >> (56 - idx * 8)) & 0xff);
+            }
+            for (int idx = 0; idx < 4; idx++) {
+                commit[8 + idx] = (byte) ((indexLength >> (24 - idx * 8)) & 0xff);
+            }
+            written += indexLength + commit.length;
+
+            if (journal != null) {
+                // ジャーナルを完結させて同期してから、ファイルに反映する.
+                // (反映の途中で中断しても、次の読み込みか保存の前に反映しなおされる.)
+                journal.write(indexOffset, indexIv, encIndex);
+                journal.write(header.getCommitOffset(), commit);
+                journal.commit(length);
+                journal = null;
+                replay(file, journalFile);
+
+            } else {
+                out.seek(indexOffset);
+                out.write(indexIv);
+                out.write(encIndex);
+                out.setLength(length);
+                out.seek(header.getCommitOffset());
+                out.write(commit);
+                out.getFD().sync();
+                out.close();
+                out = null;
+
+                if (!tmpFile.renameTo(file)) {
+                    // 置き換えできない環境(Windows)では、削除してから置き換える.
+                    if (!file.delete() || !tmpFile.renameTo(file)) {
+                        throw new IOException("can't rename. " + tmpFile);
+                    }
+                }
+            }
+
+            success = true;
+            return new EncryptResult(length, written, count, chunksWritten,
+                    incremental);
+
+        } finally {
+            Arrays.fill(buf, (byte) 0);
+            if (journal != null) {
+                // 完結していないジャーナルは破棄する. (ファイルは変更されていない.)
+                journal.discard();
+            }
+            if (out != null) {
+                out.close();
+            }
+            if (!success && tmpFile.exists() && !tmpFile.delete()) {
+                logger.log(Level.WARNING, "can't delete. " + tmpFile);
+            }
+        }
+    }
+
+    /**
+     * 前回中断されたチャンク形式の保存があれば、ファイルを復旧する.<br>
+     * 完結したジャーナルが残っていれば、ファイルに反映してから削除する.<br>
+     * 完結していないジャーナルは、保存中である可能性があるため、ここでは削除しない.
+     * (ファイルは前回の保存内容のままであり、次の保存のときに破棄される.)<br>
+     * ローカルのファイルシステム上のファイルを読み込む前に呼び出す.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @return ジャーナルを反映した場合はtrue
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     */
+    public static boolean recover(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        return recover(file, false);
+    }
+
+    /**
+     * 前回中断されたチャンク形式の保存があれば、ファイルを復旧する.
+     * 
+     * @param file
+     *            ファイル
+     * @param discard
+     *            完結していないジャーナルを削除する場合はtrue
+     * @return ジャーナルを反映した場合はtrue
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     */
+    private static boolean recover(File file, boolean discard)
+            throws IOException {
+        File journalFile = new File(file.getPath() + JOURNAL_SUFFIX);
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        long length = -1;
+        if (file.exists()) {
+            RandomAccessFile fh = new RandomAccessFile(file, "r");
+            try {
+                length = readJournal(journalFile, fh, false);
+
+            } finally {
+                fh.close();
+            }
+        }
+        if (length < 0) {
+            if (discard) {
+                logger.log(Level.INFO, "discard the incomplete journal. "
+                        + journalFile);
+                deleteJournal(journalFile);
+            }
+            return false;
+        }
+
+        replay(file, journalFile);
+        logger.log(Level.INFO, "recovered from the journal. " + file);
+        return true;
+    }
+
+    /**
+     * 完結したジャーナルをファイルに反映して同期し、ジャーナルを削除する.<br>
+     * 同じジャーナルを何度反映しても結果は変わらない.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @param journalFile
+     *            ジャーナル
+     * @throws IOException
+     *             反映できなかった場合
+     */
+    private static void replay(File file, File journalFile) throws IOException {
+        RandomAccessFile fh = new RandomAccessFile(file, "rw");
+        try {
+            long length = readJournal(journalFile, fh, true);
+            if (length < 0) {
+                throw new IOException("invalid journal. " + journalFile);
+            }
+            fh.setLength(length);
+            fh.getFD().sync();
+
+        } finally {
+            fh.close();
+        }
+        deleteJournal(journalFile);
+    }
+
+    /**
+     * ジャーナルを削除する.<br>
+     * 他のスレッドがすでに削除している場合は何もしない.<br>
+     * 
+     * @param journalFile
+     *            ジャーナル
+     * @throws IOException
+     *             削除できなかった場合
+     */
+    private static void deleteJournal(File journalFile) throws IOException {
+        if (!journalFile.delete() && journalFile.exists()) {
+            throw new IOException("can't delete. " + journalFile);
+        }
+    }
+
+    /**
+     * ジャーナルを読み込む.<br>
+     * ジャーナルに記録したヘッダの先頭部分がファイルと一致し、ダイジェストが正しい場合のみ完結しているとみなす.<br>
+     * 反映する場合は、記録された書き込みを順にファイルに書き込む.<br>
+     * 
+     * @param journalFile
+     *            ジャーナル
+     * @param fh
+     *            ファイル
+     * @param apply
+     *            ファイルに反映する場合はtrue
+     * @return 保存後のファイル長、ジャーナルが完結していないか、ファイルと一致しない場合は-1
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     */
+    private static long readJournal(File journalFile, RandomAccessFile fh,
+            boolean apply) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+        InputStream is = new BufferedInputStream(new FileInputStream(
+                journalFile));
+        try {
+            DigestInputStream dgs = new DigestInputStream(is, md);
+            DataInputStream dis = new DataInputStream(dgs);
+
+            byte[] magic = new byte[JOURNAL_MAGIC.length];
+            dis.readFully(magic);
+            if (!Arrays.equals(magic, JOURNAL_MAGIC)) {
+                return -1;
+            }
+            int prefixLength = dis.readInt();
+            if (prefixLength < 0 || prefixLength > fh.length()) {
+                return -1;
+            }
+            byte[] prefix = new byte[prefixLength];
+            dis.readFully(prefix);
+            byte[] head = new byte[prefixLength];
+            fh.seek(0);
+            fh.readFully(head);
+            if (!Arrays.equals(prefix, head)) {
+                return -1;
+            }
+
+            byte[] buf = new byte[64 * 1024];
+            long length;
+            for (;;) {
+                long offset = dis.readLong();
+                if (offset < 0) {
+                    length = dis.readLong();
+                    break;
+                }
+                int remaining = dis.readInt();
+                if (offset < prefixLength || remaining < 0) {
+                    return -1;
+                }
+                if (apply) {
+                    fh.seek(offset);
+                }
+                while (remaining > 0) {
+                    int rd = Math.min(remaining, buf.length);
+                    dis.readFully(buf, 0, rd);
+                    if (apply) {
+                        fh.write(buf, 0, rd);
+                    }
+                    remaining -= rd;
+                }
+            }
+
+            dgs.on(false);
+            byte[] digest = new byte[DIGEST_SIZE];
+            dis.readFully(digest);
+            if (length < prefixLength
+                    || !MessageDigest.isEqual(digest, md.digest())) {
+                return -1;
+            }
+            return length;
+
+        } catch (EOFException ex) {
+            // 記録の途中で中断されている.
+            return -1;
+
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * 変更されたチャンクの書き込みを記録するジャーナル.<br>
+     * 形式は、マジックナンバー(8) + ヘッダの先頭部分の長さ(4) + ヘッダの先頭部分 +
+     * (位置(8) + 長さ(4) + データ)... + 終端(-1)(8) + 保存後のファイル長(8) + ここまでのダイジェスト(32)、となる.<br>
+     * データはファイルに書き込む暗号化済みのスロットとインデックスである.<br>
+     */
+    private static final class Journal {
+
+        /**
+         * ジャーナル
+         */
+        private final File journalFile;
+
+        /**
+         * 出力先
+         */
+        private final FileOutputStream fos;
+
+        /**
+         * ダイジェスト
+         */
+        private final MessageDigest md;
+
+        /**
+         * ダイジェストを計算しながら書き込むストリーム
+         */
+        private final DataOutputStream dos;
+
+        /**
+         * コンストラクタ
+         * 
+         * @param journalFile
+         *            ジャーナル
+         * @param prefix
+         *            ヘッダの先頭部分
+         * @throws IOException
+         *             ファイルの入出力に問題が生じた場合
+         */
+        Journal(File journalFile, byte[] prefix) throws IOException {
+            try {
+                this.md = MessageDigest.getInstance("SHA-256");
+
+            } catch (GeneralSecurityException ex) {
+                throw new RuntimeException(ex);
+            }
+            this.journalFile = journalFile;
+            this.fos = new FileOutputStream(journalFile);
+            this.dos = new DataOutputStream(new DigestOutputStream(
+                    new BufferedOutputStream(fos), md));
+            boolean success = false;
+            try {
+                dos.write(JOURNAL_MAGIC);
+                dos.writeInt(prefix.length);
+                dos.write(prefix);
+                success = true;
+
+            } finally {
+                if (!success) {
+                    discard();
+                }
+            }
+        }
+
+        /**
+         * 書き込みを記録する.
+         * 
+         * @param offset
+         *            ファイル上の位置
+         * @param data
+         *            連続して書き込むデータ
+         * @throws IOException
+         *             ファイルの入出力に問題が生じた場合
+         */
+        void write(long offset, byte[]... data) throws IOException {
+            int length = 0;
+            for (byte[] part : data) {
+                length += part.length;
+            }
+            dos.writeLong(offset);
+            dos.writeInt(length);
+            for (byte[] part : data) {
+                dos.write(part);
+            }
+        }
+
+        /**
+         * 終端とダイジェストを書き込み、同期して閉じる.
+         * 
+         * @param length
+         *            保存後のファイル長
+         * @throws IOException
+         *             ファイルの入出力に問題が生じた場合
+         */
+        void commit(long length) throws IOException {
+            dos.writeLong(-1);
+            dos.writeLong(length);
+            dos.flush();
+            fos.write(md.digest());
+            fos.getFD().sync();
+            fos.close();
+        }
+
+        /**
+         * 閉じて削除する.
+         */
+        void discard() {
+            try {
+                fos.close();
+
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "can't close. " + journalFile, ex);
+            }
+            if (journalFile.exists() && !journalFile.delete()) {
+                logger.log(Level.WARNING, "can't delete. " + journalFile);
+            }
+        }
+    }
+
+    /**
+     * ファイルのヘッダを読み込む.
+     * 
+     * @param fh
+     *            ファイル
+     * @return ヘッダ、チャンク形式でない場合はnull
+     * @throws IOException
+     *             ヘッダが壊れている場合
+     */
+    private static Header readHeader(RandomAccessFile fh) throws IOException {
+        byte[] head = new byte[CryptUtils.WRAPPED_KEY_OFFSET];
+        if (fh.length() < head.length) {
+            return null;
+        }
+        fh.seek(0);
+        fh.readFully(head);
+        if (!isChunkedHeader(head)) {
+            return null;
+        }
+        int wrappedKeyLength = ((head[CryptUtils.ENVELOPE_MAGIC.length + 1] & 0xff) << 8)
+                | (head[CryptUtils.ENVELOPE_MAGIC.length + 2] & 0xff);
+        byte[] wrappedKey = new byte[wrappedKeyLength];
+        fh.readFully(wrappedKey);
+        int chunkSize = fh.readInt();
+        long dataLength = fh.readLong();
+        int indexLength = fh.readInt();
+        if (!isValidChunkSize(chunkSize) || dataLength < 0
+                || indexLength < 0) {
+            throw new IOException("invalid data.");
+        }
+        return new Header(wrappedKey, chunkSize, dataLength, indexLength);
+    }
+
+    /**
+     * インデックスを読み込み、チャンクごとのダイジェストを取得する.
+     * 
+     * @param fh
+     *            ファイル
+     * @param header
+     *            ヘッダ
+     * @param dataKey
+     *            データキー
+     * @return チャンクごとのダイジェスト
+     * @throws IOException
+     *             インデックスが壊れている場合
+     * @throws GeneralSecurityException
+     *             インデックスを復号化できない場合
+     */
+    private static byte[][] readIndex(RandomAccessFile fh, Header header,
+            SecretKey dataKey) throws IOException, GeneralSecurityException {
+        long count = (header.dataLength + header.chunkSize - 1)
+                / header.chunkSize;
+        if (count > MAX_CHUNK_COUNT || header.indexLength < IV_SIZE) {
+            throw new IOException("invalid index.");
+        }
+        long indexOffset = header.getIndexOffset(header.dataLength);
+        if (indexOffset + header.indexLength != fh.length()) {
+            throw new IOException("invalid index.");
+        }
+
+        byte[] buf = new byte[header.indexLength];
+        fh.seek(indexOffset);
+        fh.readFully(buf);
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, dataKey, new IvParameterSpec(buf, 0,
+                IV_SIZE));
+        byte[] index = cipher.doFinal(buf, IV_SIZE, buf.length - IV_SIZE);
+        if (index.length != 4 + count * DIGEST_SIZE) {
+            throw new IOException("invalid index.");
+        }
+        int indexCount = ((index[0] & 0xff) << 24) | ((index[1] & 0xff) << 16)
+                | ((index[2] & 0xff) << 8) | (index[3] & 0xff);
+        if (indexCount != count) {
+            throw new IOException("invalid index.");
+        }
+
+        byte[][] digests = new byte[indexCount][];
+        for (int idx = 0; idx < indexCount; idx++) {
+            int pos = 4 + idx * DIGEST_SIZE;
+            digests[idx] = Arrays.copyOfRange(index, pos, pos + DIGEST_SIZE);
+        }
+        return digests;
+    }
+
+    /**
+     * ラップされたキーの直後から、チャンクを順に復号化するストリームを開く.<br>
+     * 
+     * @param dataKey
+     *            データキー
+     * @param is
+     *            ラップされたキーの直後まで読み込んだ入力元(返されたストリームを閉じると閉じられる)
+     * @return 復号化されたデータの入力ストリーム
+     * @throws IOException
+     *             ヘッダが壊れている場合
+     */
+    static InputStream openDecryptStream(SecretKey dataKey, InputStream is)
+            throws IOException {
+        return open(dataKey, is);
+    }
+
+    /**
+     * ラップされたキーの直後から、チャンクを順に復号化して出力する.
+     * 
+     * @param dataKey
+     *            データキー
+     * @param is
+     *            ラップされたキーの直後まで読み込んだ入力元(閉じない)
+     * @param os
+     *            復号化されたデータの出力先
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     * @throws GeneralSecurityException
+     *             復号化に問題が生じた場合
+     */
+    static void decrypt(SecretKey dataKey, InputStream is, OutputStream os)
+            throws IOException, GeneralSecurityException {
+        DecryptInputStream dis = open(dataKey, is);
+        long st = transferMetric.start();
+        long total = 0;
+        try {
+            while (dis.fill()) {
+                os.write(dis.chunk, 0, dis.limit);
+                total += dis.limit;
+            }
+
+        } finally {
+            dis.wipe();
+            transferMetric.stop(st, total);
+        }
+    }
+
+    /**
+     * ヘッダの残りを読み込み、復号化するストリームを作成する.<br>
+     * インデックスはスロットの後ろにあるため、チャンクごとに計算したダイジェストは、
+     * 最後のチャンクを返す前にインデックスを読み込んで照合する.<br>
+     * 
+     * @param dataKey
+     *            データキー
+     * @param is
+     *            ラップされたキーの直後まで読み込んだ入力元
+     * @return ストリーム
+     * @throws IOException
+     *             ヘッダが壊れている場合
+     */
+    private static DecryptInputStream open(SecretKey dataKey, InputStream is)
+            throws IOException {
+        if (dataKey == null || is == null) {
+            throw new IllegalArgumentException();
+        }
+        DataInputStream dis = new DataInputStream(is);
+        int chunkSize = dis.readInt();
+        long dataLength = dis.readLong();
+        int indexLength = dis.readInt();
+        if (!isValidChunkSize(chunkSize) || dataLength < 0) {
+            throw new IOException("invalid data.");
+        }
+        long count = (dataLength + chunkSize - 1) / chunkSize;
+        if (count > MAX_CHUNK_COUNT
+                || indexLength != getSlotSize(4 + (int) count * DIGEST_SIZE)) {
+            throw new IOException("invalid index.");
+        }
+        try {
+            return new DecryptInputStream(dataKey, is, chunkSize, dataLength,
+                    (int) count, indexLength);
+
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * スロットを順に読み込んで復号化する入力ストリーム.<br>
+     * チャンクごとの平文のダイジェストをインデックスと照合し、一致しなければIOExceptionとする.<br>
+     * 復号化したチャンクは閉じるときにゼロで消去する.<br>
+     */
+    private static final class DecryptInputStream extends InputStream {
+
+        /**
+         * 入力元
+         */
+        private final InputStream is;
+
+        /**
+         * データキー
+         */
+        private final SecretKey dataKey;
+
+        /**
+         * 暗号
+         */
+        private final Cipher cipher;
+
+        /**
+         * チャンクサイズ
+         */
+        private final int chunkSize;
+
+        /**
+         * まだ復号化していないデータ長
+         */
+        private long remaining;
+
+        /**
+         * インデックス長
+         */
+        private final int indexLength;
+
+        /**
+         * ダイジェスト
+         */
+        private final MessageDigest md;
+
+        /**
+         * 復号化したチャンクのダイジェスト(インデックスの平文と同じ形式)
+         */
+        private final byte[] digests;
+
+        /**
+         * 復号化したチャンクの数
+         */
+        private int chunkCount;
+
+        /**
+         * インデックスを照合したか?
+         */
+        private boolean verified;
+
+        /**
+         * IV
+         */
+        private final byte[] iv = new byte[IV_SIZE];
+
+        /**
+         * 暗号化されたチャンク
+         */
+        private final byte[] encbuf;
+
+        /**
+         * 復号化されたチャンク
+         */
+        final byte[] chunk;
+
+        /**
+         * 復号化されたチャンクの読み込み位置
+         */
+        private int pos;
+
+        /**
+         * 復号化されたチャンクのデータ長
+         */
+        int limit;
+
+        DecryptInputStream(SecretKey dataKey, InputStream is, int chunkSize,
+                long dataLength, int count, int indexLength)
+                throws GeneralSecurityException {
+            this.is = is;
+            this.dataKey = dataKey;
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+            this.chunkSize = chunkSize;
+            this.remaining = dataLength;
+            this.indexLength = indexLength;
+            this.md = MessageDigest.getInstance("SHA-256");
+            this.digests = new byte[4 + count * DIGEST_SIZE];
+            this.digests[0] = (byte) ((count >> 24) & 0xff);
+            this.digests[1] = (byte) ((count >> 16) & 0xff);
+            this.digests[2] = (byte) ((count >> 8) & 0xff);
+            this.digests[3] = (byte) (count & 0xff);
+            this.encbuf = new byte[getSlotSize(chunkSize) - IV_SIZE];
+            this.chunk = new byte[encbuf.length];
+        }
+
+        /**
+         * 次のチャンクを復号化する.
+         * 
+         * @return チャンクがなければfalse
+         * @throws IOException
+         *             ファイルの入出力に問題が生じた場合
+         * @throws GeneralSecurityException
+         *             復号化に問題が生じた場合
+         */
+        boolean fill() throws IOException, GeneralSecurityException {
+            pos = 0;
+            limit = 0;
+            if (remaining == 0) {
+                verifyIndex();
+                return false;
+            }
+            int len = (int) Math.min(chunkSize, remaining);
+            int encLen = getSlotSize(len) - IV_SIZE;
+            if (CryptUtils.readFully(is, iv, 0, IV_SIZE) != IV_SIZE
+                    || CryptUtils.readFully(is, encbuf, 0, encLen) != encLen) {
+                throw new IOException("invalid data.");
+            }
+            cipher.init(Cipher.DECRYPT_MODE, dataKey, new IvParameterSpec(iv));
+            int decLen = cipher.doFinal(encbuf, 0, encLen, chunk, 0);
+            if (decLen != len) {
+                throw new IOException("invalid data.");
+            }
+            md.update(chunk, 0, len);
+            md.digest(digests, 4 + chunkCount * DIGEST_SIZE, DIGEST_SIZE);
+            chunkCount++;
+            remaining -= len;
+            if (remaining == 0) {
+                // 最後のチャンクを返す前にインデックスと照合する.
+                verifyIndex();
+            }
+            limit = len;
+            return true;
+        }
+
+        /**
+         * スロットに続くインデックスを読み込み、復号化したチャンクのダイジェストと照合する.
+         * 
+         * @throws IOException
+         *             インデックスが壊れているか、ダイジェストが一致しない場合
+         * @throws GeneralSecurityException
+         *             インデックスを復号化できない場合
+         */
+        private void verifyIndex() throws IOException,
+                GeneralSecurityException {
+            if (verified) {
+                return;
+            }
+            byte[] buf = new byte[indexLength];
+            if (CryptUtils.readFully(is, buf, 0, indexLength) != indexLength) {
+                throw new IOException("invalid index.");
+            }
+            cipher.init(Cipher.DECRYPT_MODE, dataKey, new IvParameterSpec(buf,
+                    0, IV_SIZE));
+            byte[] index = cipher.doFinal(buf, IV_SIZE, buf.length - IV_SIZE);
+            if (index.length != digests.length) {
+                throw new IOException("invalid index.");
+            }
+            for (int idx = 0; idx < chunkCount; idx++) {
+                int off = 4 + idx * DIGEST_SIZE;
+                if (!MessageDigest.isEqual(
+                        Arrays.copyOfRange(index, off, off + DIGEST_SIZE),
+                        Arrays.copyOfRange(digests, off, off + DIGEST_SIZE))) {
+                    throw new IOException("chunk digest mismatch. chunk=" + idx);
+                }
+            }
+            if (!MessageDigest.isEqual(Arrays.copyOf(index, 4),
+                    Arrays.copyOf(digests, 4))) {
+                throw new IOException("invalid index.");
+            }
+            verified = true;
+        }
+
+        /**
+         * チャンクを読み終えていれば次のチャンクを復号化する.
+         * 
+         * @return 終端であればfalse
+         * @throws IOException
+         *             失敗
+         */
+        private boolean ensure() throws IOException {
+            if (pos < limit) {
+                return true;
+            }
+            try {
+                return fill();
+
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensure()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensure()) {
+                return -1;
+            }
+            int rd = Math.min(len, limit - pos);
+            System.arraycopy(chunk, pos, b, off, rd);
+            pos += rd;
+            return rd;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        /**
+         * 復号化されたチャンクを消去する.
+         */
+        void wipe() {
+            Arrays.fill(chunk, (byte) 0);
+            pos = 0;
+            limit = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            wipe();
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package jp.seraphyware.cryptnotepad.crypt;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 内容によってチャンクの境界を決める分割器.<br>
+ * 直近のバイト列のGearハッシュが条件を満たす位置を境界とするため、
+ * データの途中に挿入や削除があっても、その前後以外のチャンクは変化しない.<br>
+ * チャンクは最小サイズ以上、最大サイズ以下とし、平均サイズはハッシュのマスクのビット数で決まる.<br>
+ * Gearハッシュのテーブルは呼び出し元で与えるため、キーから導出したテーブルを用いれば、
+ * チャンクの境界(サイズ)から内容を推測されにくくなる.<br>
+ * 
+ * @author seraphy
+ */
+public final class ContentDefinedChunker {
+
+    /**
+     * 分割したチャンクを受け取るハンドラ
+     */
+    public interface ChunkHandler {
+
+        /**
+         * チャンクを受け取る.<br>
+         * バッファは呼び出し後に再利用されるため、保持する場合は複製すること.<br>
+         * 
+         * @param buf
+         *            バッファ
+         * @param off
+         *            チャンクの位置
+         * @param len
+         *            チャンクの長さ
+         * @throws IOException
+         *             失敗
+         */
+        void chunk(byte[] buf, int off, int len) throws IOException;
+    }
+
+    /**
+     * 最小のチャンクサイズの既定値
+     */
+    public static final int DEFAULT_MIN_SIZE = 2 * 1024;
+
+    /**
+     * 平均のチャンクサイズのビット数の既定値(8KiB)
+     */
+    public static final int DEFAULT_AVG_BITS = 13;
+
+    /**
+     * 最大のチャンクサイズの既定値
+     */
+    public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+    /**
+     * Gearハッシュのテーブル(256要素)
+     */
+    private final long[] gear;
+
+    /**
+     * 最小のチャンクサイズ
+     */
+    private final int minSize;
+
+    /**
+     * 最大のチャンクサイズ
+     */
+    private final int maxSize;
+
+    /**
+     * 境界と判定するハッシュのマスク(上位ビット)
+     */
+    private final long mask;
+
+    /**
+     * ハンドラ
+     */
+    private final ChunkHandler handler;
+
+    /**
+     * 現在のチャンクのバッファ
+     */
+    private final byte[] buf;
+
+    /**
+     * 現在のチャンクの長さ
+     */
+    private int len;
+
+    /**
+     * 現在のハッシュ
+     */
+    private long hash;
+
+    /**
+     * 既定のサイズで分割するコンストラクタ
+     * 
+     * @param gear
+     *            Gearハッシュのテーブル(256要素)
+     * @param handler
+     *            ハンドラ
+     */
+    public ContentDefinedChunker(long[] gear, ChunkHandler handler) {
+        this(gear, DEFAULT_MIN_SIZE, DEFAULT_AVG_BITS, DEFAULT_MAX_SIZE,
+                handler);
+    }
+
+    /**
+     * コンストラクタ
+     * 
+     * @param gear
+     *            Gearハッシュのテーブル(256要素)
+     * @param minSize
+     *            最小のチャンクサイズ
+     * @param avgBits
+     *            平均のチャンクサイズのビット数
+     * @param maxSize
+     *            最大のチャンクサイズ
+     * @param handler
+     *            ハンドラ
+     */
+    public ContentDefinedChunker(long[] gear, int minSize, int avgBits,
+            int maxSize, ChunkHandler handler) {
+        if (gear == null || gear.length != 256 || handler == null
+                || minSize < 1 || maxSize < minSize || avgBits < 1
+                || avgBits > 30) {
+            throw new IllegalArgumentException();
+        }
+        this.gear = gear.clone();
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.mask = ((1L << avgBits) - 1) << (64 - avgBits);
+        this.handler = handler;
+        this.buf = new byte[maxSize];
+    }
+
+    /**
+     * データを追加する.<br>
+     * 境界に達するごとにハンドラにチャンクを渡す.<br>
+     * 
+     * @param b
+     *            データ
+     * @param off
+     *            位置
+     * @param length
+     *            長さ
+     * @throws IOException
+     *             ハンドラが失敗した場合
+     */
+    public void update(byte[] b, int off, int length) throws IOException {
+        int end = off + length;
+        for (int idx = off; idx < end; idx++) {
+            int v = b[idx] & 0xff;
+            buf[len++] = (byte) v;
+            hash = (hash << 1) + gear[v];
+            if (len >= maxSize || (len >= minSize && (hash & mask) == 0)) {
+                emit();
+            }
+        }
+    }
+
+    /**
+     * 残りのデータを最後のチャンクとしてハンドラに渡す.
+     * 
+     * @throws IOException
+     *             ハンドラが失敗した場合
+     */
+    public void finish() throws IOException {
+        if (len > 0) {
+            emit();
+        }
+    }
+
+    /**
+     * 現在のチャンクをハンドラに渡し、次のチャンクを開始する.
+     * 
+     * @throws IOException
+     *             ハンドラが失敗した場合
+     */
+    private void emit() throws IOException {
+        int chunkLen = len;
+        len = 0;
+        hash = 0;
+        handler.chunk(buf, 0, chunkLen);
+    }
+
+    /**
+     * 現在のチャンクのバッファを消去する.
+     */
+    public void wipe() {
+        Arrays.fill(buf, (byte) 0);
+        len = 0;
+        hash = 0;
+    }
+}
@@ -6,12 +6,21 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
 
+import jp.seraphyware.cryptnotepad.storage.Storage;
+import jp.seraphyware.cryptnotepad.util.LatencyMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+
 /**
  * 暗号化・複合化用のユーテリティ.<br>
  * 
@@ -24,6 +33,47 @@ public final class CryptUtils {
      */
     private static int bufferSize = 16 * 1024;
 
+    /**
+     * ファイルの消去
+     */
+    private static final SecureEraser secureEraser = new SecureEraser();
+
+    /**
+     * 暗号化・復号化の転送の処理時間の計測値
+     */
+    private static final LatencyMetric transferMetric = Metrics
+            .latency(Metrics.TRANSFER);
+
+    /**
+     * エンベロープ形式であることを示すファイル先頭のマジックナンバー.<br>
+     * 従来形式のファイルは先頭がランダムなIVであるため、これと区別できる.<br>
+     */
+    static final byte[] ENVELOPE_MAGIC = { 'C', 'N', 'P', 'E', 'N',
+            'V', 'L', 'P' };
+
+    /**
+     * エンベロープ形式のバージョン
+     */
+    private static final int ENVELOPE_VERSION = 1;
+
+    /**
+     * エンベロープ形式のデータキーのビット長.<br>
+     * ポリシーファイルの書き換えが不要な128ビットとする.<br>
+     */
+    private static final int DATA_KEY_SIZE = 128;
+
+    /**
+     * ラップされたデータキーのバイト数.<br>
+     * AESWrapでは、ラップ対象のキー長に64ビットのチェック値が加わる.<br>
+     */
+    public static final int WRAPPED_DATA_KEY_SIZE = DATA_KEY_SIZE / 8 + 8;
+
+    /**
+     * エンベロープ形式のヘッダのうち、ラップされたデータキーの位置.<br>
+     * (マジックナンバー8バイト、バージョン1バイト、キー長2バイトの後)<br>
+     */
+    static final int WRAPPED_KEY_OFFSET = ENVELOPE_MAGIC.length + 3;
+
     /**
      * プライベートコンストラクタ
      */
@@ -39,6 +89,36 @@ public final class CryptUtils {
         CryptUtils.bufferSize = bufferSize;
     }
 
+    /**
+     * ファイルの消去に用いる設定を取得する.<br>
+     * 上書きの方式などを変更できる.<br>
+     * 
+     * @return ファイルの消去
+     */
+    public static SecureEraser getSecureEraser() {
+        return secureEraser;
+    }
+
+    /**
+     * 暗号化プロバイダの初期化を済ませておく.<br>
+     * プロバイダの読み込みやSecureRandomの初期化は最初の呼び出しに時間がかかるため、
+     * 起動時にバックグラウンドで呼び出しておくことで、最初の暗号化・復号化を待たせないようにする.<br>
+     * 
+     * @throws GeneralSecurityException
+     *             アルゴリズムが利用できない場合
+     */
+    public static void warmUp() throws GeneralSecurityException {
+        Cipher.getInstance("AES/CBC/PKCS5Padding");
+        Cipher.getInstance("AESWrap");
+        SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        MessageDigest.getInstance("SHA-512");
+
+        // データキーの生成でSecureRandomの初期化も行われる.
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(DATA_KEY_SIZE);
+        keyGen.generateKey();
+    }
+
     /**
      * 暗号化する.
      * 
@@ -78,7 +158,138 @@ public final class CryptUtils {
     }
 
     /**
-     * 復号化する.
+     * エンベロープ形式で暗号化する.<br>
+     * ドキュメントごとにランダムなデータキーを生成してデータを暗号化し、
+     * データキーは対称暗号化キー(キー暗号化キー)でラップしてヘッダに格納する.<br>
+     * パスフレーズやキーファイルを変更する場合は、ヘッダのデータキーだけを
+     * {@link #rewrapKey(File, SecretKey, SecretKey)}でラップしなおせばよい.<br>
+     * <br>
+     * 形式は、マジックナンバー(8) + バージョン(1) + ラップされたキー長(2) + ラップされたキー + IV(16) +
+     * AES/CBC/PKCS5Paddingで暗号化したデータ、となる.<br>
+     * 
+     * @param kek
+     *            データキーをラップする対称暗号化キー
+     * @param is
+     *            暗号化するデータの入力元
+     * @param os
+     *            暗号化したデータの出力先
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     * @throws GeneralSecurityException
+     *             暗号化に問題が生じた場合
+     */
+    public static void encryptEnvelope(SecretKey kek, InputStream is,
+            OutputStream os) throws IOException, GeneralSecurityException {
+        if (is == null || os == null || kek == null) {
+            throw new IllegalArgumentException();
+        }
+
+        // ドキュメント固有のデータキーを生成し、ラップする.
+        SecretKey dataKey = generateDataKey();
+        byte[] wrappedKey;
+        try {
+            wrappedKey = wrapKey(kek, dataKey);
+
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        // ヘッダを出力する.
+        os.write(ENVELOPE_MAGIC);
+        os.write(ENVELOPE_VERSION);
+        os.write((wrappedKey.length >> 8) & 0xff);
+        os.write(wrappedKey.length & 0xff);
+        os.write(wrappedKey);
+
+        // データキーで暗号化する.
+        encrypt(dataKey, is, os);
+    }
+
+    /**
+     * ドキュメント固有のデータキーを生成する.
+     * 
+     * @return データキー
+     */
+    static SecretKey generateDataKey() {
+        try {
+            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+            keyGen.init(DATA_KEY_SIZE);
+            return keyGen.generateKey();
+
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * データキーをラップする.
+     * 
+     * @param kek
+     *            キー暗号化キー
+     * @param dataKey
+     *            データキー
+     * @return ラップされたデータキー
+     * @throws GeneralSecurityException
+     *             失敗
+     */
+    static byte[] wrapKey(SecretKey kek, Key dataKey)
+            throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AESWrap");
+        cipher.init(Cipher.WRAP_MODE, kek);
+        return cipher.wrap(dataKey);
+    }
+
+    /**
+     * ラップされたデータキーを復元する.<br>
+     * キー暗号化キーが一致しない場合は例外となる.<br>
+     * 
+     * @param kek
+     *            キー暗号化キー
+     * @param wrappedKey
+     *            ラップされたデータキー
+     * @return データキー
+     * @throws GeneralSecurityException
+     *             キーが一致しないか、復元できない場合
+     */
+    static SecretKey unwrapKey(SecretKey kek, byte[] wrappedKey)
+            throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AESWrap");
+        cipher.init(Cipher.UNWRAP_MODE, kek);
+        return (SecretKey) cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+    }
+
+    /**
+     * 指定したサイズを読み込む.<br>
+     * 終端に達した場合は読み込めたサイズを返す.<br>
+     * 
+     * @param is
+     *            入力ストリーム
+     * @param buf
+     *            バッファ
+     * @param off
+     *            バッファの位置
+     * @param len
+     *            読み込むサイズ
+     * @return 読み込んだサイズ
+     * @throws IOException
+     *             失敗
+     */
+    static int readFully(InputStream is, byte[] buf, int off, int len)
+            throws IOException {
+        int total = 0;
+        while (total < len) {
+            int rd = is.read(buf, off + total, len - total);
+            if (rd < 0) {
+                break;
+            }
+            total += rd;
+        }
+        return total;
+    }
+
+    /**
+     * 復号化する.<br>
+     * エンベロープ形式(チャンク形式を含む)と従来形式(IV + 暗号化データ)のいずれも復号化できる.<br>
      * 
      * @param skey
      *            対称暗号化キー
@@ -97,12 +308,132 @@ public final class CryptUtils {
             throw new IllegalArgumentException();
         }
 
-        // IVを読み込む (AESのブロックサイズと等しく、128Bit)
-        byte[] iv = new byte[16]; // 128bit
-        int ivSize = is.read(iv);
-        if (iv.length != ivSize) {
+        byte[] head = readHead(is);
+        if (ChunkedCipherFile.isChunkedHeader(head)) {
+            // チャンク形式の場合はチャンクごとに復号化する.
+            SecretKey dataKey = readDataKey(skey, head, is);
+            ChunkedCipherFile.decrypt(dataKey, is, os);
+            return;
+        }
+
+        // 入力ストリームから読み込んで復号化し出力ストリームに転送する.
+        Cipher cipher = initDecryptCipher(skey, head, is);
+        transfer(cipher, is, os);
+    }
+
+    /**
+     * 読み込むと復号化されたデータが得られるストリームを開く.<br>
+     * エンベロープ形式(チャンク形式を含む)と従来形式(IV + 暗号化データ)のいずれも復号化できる.<br>
+     * ヘッダはこの時点で読み込むため、エンベロープ形式でキーが一致しない場合はここで例外となる.<br>
+     * 従来形式でキーが一致しない場合やデータの破損は、読み込みの途中か終端でIOExceptionとなる.<br>
+     * 
+     * @param skey
+     *            対称暗号化キー
+     * @param is
+     *            暗号化されたデータの入力元(返されたストリームを閉じると閉じられる)
+     * @return 復号化されたデータの入力ストリーム
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     * @throws GeneralSecurityException
+     *             復号化に問題が生じた場合
+     */
+    public static InputStream openDecryptStream(SecretKey skey, InputStream is)
+            throws IOException, GeneralSecurityException {
+        if (is == null || skey == null) {
+            throw new IllegalArgumentException();
+        }
+        byte[] head = readHead(is);
+        if (ChunkedCipherFile.isChunkedHeader(head)) {
+            SecretKey dataKey = readDataKey(skey, head, is);
+            return ChunkedCipherFile.openDecryptStream(dataKey, is);
+        }
+        Cipher cipher = initDecryptCipher(skey, head, is);
+        return new CipherInputStream(is, cipher);
+    }
+
+    /**
+     * 暗号化されたデータの先頭を読み込む.<br>
+     * AESのブロックサイズと等しい128Bitを読み込む. 従来形式であればIVそのものである.<br>
+     * 
+     * @param is
+     *            暗号化されたデータの入力元
+     * @return 先頭の16バイト
+     * @throws IOException
+     *             データが短い場合
+     */
+    private static byte[] readHead(InputStream is) throws IOException {
+        byte[] head = new byte[16]; // 128bit
+        if (readFully(is, head, 0, head.length) != head.length) {
             throw new IOException("invalid data.");
         }
+        return head;
+    }
+
+    /**
+     * エンベロープ形式のヘッダのラップされたデータキーを読み込んで復元する.
+     * 
+     * @param kek
+     *            キー暗号化キー
+     * @param head
+     *            データの先頭の16バイト
+     * @param is
+     *            先頭の16バイトまで読み込んだ入力元、ラップされたキーの直後まで読み込まれる
+     * @return データキー
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     * @throws GeneralSecurityException
+     *             データキーを復元できない場合
+     */
+    private static SecretKey readDataKey(SecretKey kek, byte[] head,
+            InputStream is) throws IOException, GeneralSecurityException {
+        int wrappedKeyLength = ((head[ENVELOPE_MAGIC.length + 1] & 0xff) << 8)
+                | (head[ENVELOPE_MAGIC.length + 2] & 0xff);
+        byte[] wrappedKey = new byte[wrappedKeyLength];
+        int headLen = head.length - WRAPPED_KEY_OFFSET;
+        if (wrappedKeyLength < headLen) {
+            throw new IOException("invalid data.");
+        }
+        System.arraycopy(head, WRAPPED_KEY_OFFSET, wrappedKey, 0, headLen);
+        int remain = wrappedKeyLength - headLen;
+        if (readFully(is, wrappedKey, headLen, remain) != remain) {
+            throw new IOException("invalid data.");
+        }
+        return unwrapKey(kek, wrappedKey);
+    }
+
+    /**
+     * 暗号化されたデータのヘッダを読み込み、復号化の準備をする.
+     * 
+     * @param skey
+     *            対称暗号化キー
+     * @param head
+     *            データの先頭の16バイト
+     * @param is
+     *            先頭の16バイトまで読み込んだ入力元、ヘッダの直後まで読み込まれる
+     * @return 復号化用に初期化された暗号
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     * @throws GeneralSecurityException
+     *             データキーを復元できない場合
+     */
+    private static Cipher initDecryptCipher(SecretKey skey, byte[] head,
+            InputStream is) throws IOException, GeneralSecurityException {
+        // 従来形式であれば先頭がIVそのものである.
+        byte[] iv = head;
+        if (isEnvelopeHeader(head)) {
+            // エンベロープ形式の場合はデータキーを復元し、
+            // データキーで復号化する.
+            int version = head[ENVELOPE_MAGIC.length] & 0xff;
+            if (version != ENVELOPE_VERSION) {
+                throw new IOException("unsupported version: " + version);
+            }
+            skey = readDataKey(skey, head, is);
+
+            iv = new byte[16];
+            if (readFully(is, iv, 0, iv.length) != iv.length) {
+                throw new IOException("invalid data.");
+            }
+        }
 
         // 復号化準備
         Cipher cipher;
@@ -113,9 +444,118 @@ public final class CryptUtils {
         } catch (GeneralSecurityException ex) {
             throw new RuntimeException(ex);
         }
+        return cipher;
+    }
 
-        // 入力ストリームから読み込んで復号化し出力ストリームに転送する.
-        transfer(cipher, is, os);
+    /**
+     * データの先頭がエンベロープ形式のヘッダであるか判定する.
+     * 
+     * @param head
+     *            データの先頭(マジックナンバー以上の長さ)
+     * @return エンベロープ形式であればtrue
+     */
+    static boolean isEnvelopeHeader(byte[] head) {
+        if (head.length < ENVELOPE_MAGIC.length) {
+            return false;
+        }
+        for (int idx = 0; idx < ENVELOPE_MAGIC.length; idx++) {
+            if (head[idx] != ENVELOPE_MAGIC[idx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ファイルがエンベロープ形式であるか判定する.
+     * 
+     * @param file
+     *            ファイル
+     * @return エンベロープ形式であればtrue
+     * @throws IOException
+     *             失敗
+     */
+    public static boolean isEnvelope(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        byte[] head = new byte[ENVELOPE_MAGIC.length];
+        RandomAccessFile fh = new RandomAccessFile(file, "r");
+        try {
+            if (fh.length() < head.length) {
+                return false;
+            }
+            fh.readFully(head);
+
+        } finally {
+            fh.close();
+        }
+        return isEnvelopeHeader(head);
+    }
+
+    /**
+     * エンベロープ形式のファイルのデータキーを、新しいキー暗号化キーでラップしなおす.<br>
+     * 暗号化されたデータ本体は変更せず、ヘッダのラップされたキーのみを上書きする.<br>
+     * (チャンク形式のファイルとアーカイブも、ラップされたキーの位置は同じである.)<br>
+     * (上書きするのはファイル先頭の数十バイトであり、1セクタ内で完結する.)<br>
+     * 
+     * @param file
+     *            エンベロープ形式のファイル
+     * @param oldKek
+     *            現在のキー暗号化キー
+     * @param newKek
+     *            新しいキー暗号化キー
+     * @return 上書きしたバイト数、エンベロープ形式でない場合は0
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     * @throws GeneralSecurityException
+     *             現在のキー暗号化キーでデータキーを復元できない場合
+     */
+    public static int rewrapKey(File file, SecretKey oldKek, SecretKey newKek)
+            throws IOException, GeneralSecurityException {
+        if (file == null || oldKek == null || newKek == null) {
+            throw new IllegalArgumentException();
+        }
+
+        // 中断されたチャンク形式の保存があれば、ラップしなおす前に反映する.
+        ChunkedCipherFile.recover(file);
+
+        RandomAccessFile fh = new RandomAccessFile(file, "rw");
+        try {
+            byte[] head = new byte[WRAPPED_KEY_OFFSET];
+            if (fh.length() < head.length) {
+                return 0;
+            }
+            fh.readFully(head);
+            if (!isEnvelopeHeader(head)) {
+                return 0;
+            }
+            int version = head[ENVELOPE_MAGIC.length] & 0xff;
+            if (version != ENVELOPE_VERSION
+                    && version != ChunkedCipherFile.VERSION
+                    && version != PackedArchive.VERSION) {
+                throw new IOException("unsupported version: " + version);
+            }
+            int wrappedKeyLength = ((head[ENVELOPE_MAGIC.length + 1] & 0xff) << 8)
+                    | (head[ENVELOPE_MAGIC.length + 2] & 0xff);
+            byte[] wrappedKey = new byte[wrappedKeyLength];
+            fh.readFully(wrappedKey);
+
+            SecretKey dataKey = unwrapKey(oldKek, wrappedKey);
+            byte[] newWrappedKey = wrapKey(newKek, dataKey);
+            if (newWrappedKey.length != wrappedKeyLength) {
+                // キー長が変わることはないが、念のため.
+                throw new IOException("wrapped key length mismatch.");
+            }
+
+            fh.seek(WRAPPED_KEY_OFFSET);
+            fh.write(newWrappedKey);
+            fh.getFD().sync();
+            return newWrappedKey.length;
+
+        } finally {
+            fh.close();
+        }
     }
 
     /**
@@ -138,24 +578,33 @@ public final class CryptUtils {
             throw new IllegalArgumentException();
         }
         // 入力ストリームから読み込んで暗号/復号化し出力ストリームに転送する.
-        byte[] buf = new byte[getBufferSize()];
-        for (;;) {
-            int rd = is.read(buf);
-            if (rd < 0) {
-                // 終端処理
-                byte[] encbuf = cipher.doFinal();
+        long st = transferMetric.start();
+        long total = 0;
+        try {
+            byte[] buf = new byte[getBufferSize()];
+            for (;;) {
+                int rd = is.read(buf);
+                if (rd < 0) {
+                    // 終端処理
+                    byte[] encbuf = cipher.doFinal();
+                    os.write(encbuf);
+                    break;
+                }
+                total += rd;
+
+                // 暗号/複合化して出力する.
+                byte[] encbuf = cipher.update(buf, 0, rd);
                 os.write(encbuf);
-                break;
             }
 
-            // 暗号/複合化して出力する.
-            byte[] encbuf = cipher.update(buf, 0, rd);
-            os.write(encbuf);
+        } finally {
+            transferMetric.stop(st, total);
         }
     }
 
     /**
      * ファイルを消去する.<br>
+     * 内容を{@link #getSecureEraser()}の方式で上書きしてから削除する.<br>
      * 
      * @param file
      *            ファイル
@@ -163,6 +612,43 @@ public final class CryptUtils {
      *             失敗
      */
     public static void erase(File file) throws IOException {
+        secureEraser.erase(file);
+    }
+
+    /**
+     * 格納先のファイルを消去する.<br>
+     * ローカルのファイルシステムであれば{@link #erase(File)}で上書きしてから削除し、
+     * それ以外の格納先では内容を上書きできないため削除のみを行う.<br>
+     * 
+     * @param storage
+     *            格納先
+     * @param file
+     *            ファイル
+     * @throws IOException
+     *             失敗
+     */
+    public static void erase(Storage storage, File file) throws IOException {
+        if (storage == null || file == null) {
+            throw new IllegalArgumentException();
+        }
+        if (storage.isLocal()) {
+            erase(file);
+        } else {
+            storage.delete(file);
+        }
+    }
+
+    /**
+     * 従来の方式でファイルを消去する.<br>
+     * ブロックごとに同期書き込みし、ブロックごとにSecureRandomで乱数を生成する.<br>
+     * {@link #erase(File)}との性能比較のために残している.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @throws IOException
+     *             失敗
+     */
+    public static void eraseLegacy(File file) throws IOException {
         if (file == null) {
             throw new IllegalArgumentException();
         }
@@ -0,0 +1,97 @@
+package jp.seraphyware.cryptnotepad.crypt;
+
+/**
+ * 暗号化してファイルに保存した結果.<br>
+ * チャンク形式で既存のファイルを更新した場合は、変更されたチャンクとインデックスのみを書き込むため、
+ * 書き込んだバイト数はファイルのサイズより小さくなる.<br>
+ * 
+ * @author seraphy
+ */
+public final class EncryptResult {
+
+    /**
+     * 保存後のファイルのサイズ
+     */
+    private final long fileLength;
+
+    /**
+     * 書き込んだバイト数
+     */
+    private final long bytesWritten;
+
+    /**
+     * チャンクの数、チャンク形式でなければ0
+     */
+    private final int chunkCount;
+
+    /**
+     * 書き込んだチャンクの数
+     */
+    private final int chunksWritten;
+
+    /**
+     * 既存のファイルの変更部分のみを書き込んだか?
+     */
+    private final boolean incremental;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param fileLength
+     *            保存後のファイルのサイズ
+     * @param bytesWritten
+     *            書き込んだバイト数
+     * @param chunkCount
+     *            チャンクの数、チャンク形式でなければ0
+     * @param chunksWritten
+     *            書き込んだチャンクの数
+     * @param incremental
+     *            既存のファイルの変更部分のみを書き込んだ場合はtrue
+     */
+    public EncryptResult(long fileLength, long bytesWritten, int chunkCount,
+            int chunksWritten, boolean incremental) {
+        this.fileLength = fileLength;
+        this.bytesWritten = bytesWritten;
+        this.chunkCount = chunkCount;
+        this.chunksWritten = chunksWritten;
+        this.incremental = incremental;
+    }
+
+    /**
+     * ファイル全体を書き込んだ結果を作成する.
+     * 
+     * @param fileLength
+     *            ファイルのサイズ
+     * @return 結果
+     */
+    public static EncryptResult fullWrite(long fileLength) {
+        return new EncryptResult(fileLength, fileLength, 0, 0, false);
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public int getChunksWritten() {
+        return chunksWritten;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    @Override
+    public String toString() {
+        return "EncryptResult(fileLength=" + fileLength + ", bytesWritten="
+                + bytesWritten + ", chunks=" + chunksWritten + "/"
+                + chunkCount + ", incremental=" + incremental + ")";
+    }
+}
@@ -0,0 +1,633 @@
+package jp.seraphyware.cryptnotepad.crypt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * 複数のドキュメントを1つのファイルに格納するアーカイブ.<br>
+ * 小さなドキュメントを多数扱う場合に、ファイルごとのヘッダやファイルシステムへのアクセスを減らすためのものである.<br>
+ * エンベロープ形式のバージョン3として、アーカイブごとのデータキーでエントリと目次を暗号化する.<br>
+ * 目次を開いたときに復号化しておき、エントリはその位置だけを読み込んで復号化する.<br>
+ * <br>
+ * 形式は、マジックナンバー(8) + バージョン(1) + ラップされたキー長(2) + ラップされたキー +
+ * 目次の位置(8) + 目次の長さ(4) + エントリ... + 目次、となる.<br>
+ * エントリはIV(16) + AES/CBC/PKCS5Paddingで暗号化したドキュメント(ヘッダを含む平文)である.<br>
+ * 目次はIV(16) + 暗号化した(エントリ数(4) + (名前 + 位置(8) + 長さ(4) + データ長(8) + 更新日時(8) +
+ * ダイジェスト(32)) * エントリ数)である.<br>
+ * エントリの追加や削除では、確定済みの目次の後ろに新しいエントリと目次を書き込み、
+ * 最後にヘッダの目次の位置と長さを書き換えて確定する.
+ * それまではヘッダは前回の目次を指しているため、中断しても前回の内容が残る.<br>
+ * 置き換えられたエントリと目次は未使用の領域として残るため、{@link #getUnusedSize()}が大きくなったら
+ * アーカイブを作成しなおすこと.<br>
+ * ラップされたキーの位置はバージョン1と同じであるため、
+ * {@link CryptUtils#rewrapKey(File, SecretKey, SecretKey)}でラップしなおすことができる.<br>
+ * 
+ * @author seraphy
+ */
+public final class PackedArchive {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(PackedArchive.class
+            .getName());
+
+    /**
+     * エンベロープ形式のバージョン
+     */
+    static final int VERSION = 3;
+
+    /**
+     * アーカイブの拡張子
+     */
+    public static final String EXTENSION = ".cnpack";
+
+    /**
+     * 暗号化方式
+     */
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    /**
+     * IVのサイズ(AESのブロックサイズ)
+     */
+    private static final int IV_SIZE = 16;
+
+    /**
+     * ダイジェストのサイズ(SHA-256)
+     */
+    private static final int DIGEST_SIZE = 32;
+
+    /**
+     * エントリ
+     */
+    public static final class Entry {
+
+        /**
+         * 名前
+         */
+        private final String name;
+
+        /**
+         * 暗号化したエントリの位置
+         */
+        private final long offset;
+
+        /**
+         * 暗号化したエントリの長さ(IVを含む)
+         */
+        private final int slotLength;
+
+        /**
+         * データ長
+         */
+        private final long length;
+
+        /**
+         * 更新日時
+         */
+        private final long timestamp;
+
+        /**
+         * データのダイジェスト
+         */
+        private final byte[] digest;
+
+        Entry(String name, long offset, int slotLength, long length,
+                long timestamp, byte[] digest) {
+            this.name = name;
+            this.offset = offset;
+            this.slotLength = slotLength;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.digest = digest;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry(" + name + ", length=" + length + ")";
+        }
+    }
+
+    /**
+     * アーカイブのファイル
+     */
+    private final File file;
+
+    /**
+     * ファイル
+     */
+    private final RandomAccessFile fh;
+
+    /**
+     * データキー
+     */
+    private final SecretKey dataKey;
+
+    /**
+     * 目次の位置と長さの位置
+     */
+    private final long commitOffset;
+
+    /**
+     * エントリ(名前順)
+     */
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /**
+     * 次のエントリを書き込む位置(確定済みの目次の後ろ)
+     */
+    private long appendOffset;
+
+    /**
+     * 確定済みの目次の長さ
+     */
+    private int tocLength;
+
+    /**
+     * 確定済みの内容の終端(目次の後ろ)
+     */
+    private long committedEnd;
+
+    /**
+     * 確定していない変更があるか?
+     */
+    private boolean modified;
+
+    /**
+     * 書き込み可能か?
+     */
+    private final boolean writable;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param file
+     *            アーカイブのファイル
+     * @param fh
+     *            開いたファイル
+     * @param dataKey
+     *            データキー
+     * @param wrappedKeyLength
+     *            ラップされたキーの長さ
+     * @param writable
+     *            書き込み可能か?
+     */
+    private PackedArchive(File file, RandomAccessFile fh, SecretKey dataKey,
+            int wrappedKeyLength, boolean writable) {
+        this.file = file;
+        this.fh = fh;
+        this.dataKey = dataKey;
+        this.commitOffset = CryptUtils.WRAPPED_KEY_OFFSET + wrappedKeyLength;
+        this.writable = writable;
+    }
+
+    /**
+     * 空のアーカイブを作成する.<br>
+     * ファイルがあれば置き換える.<br>
+     * 
+     * @param kek
+     *            データキーをラップする対称暗号化キー
+     * @param file
+     *            アーカイブのファイル
+     * @return 書き込み可能なアーカイブ
+     * @throws IOException
+     *             ファイルの入出力に問題が生じた場合
+     * @throws GeneralSecurityException
+     *             暗号化に問題が生じた場合
+     */
+    static PackedArchive create(SecretKey kek, File file) throws IOException,
+            GeneralSecurityException {
+        if (kek == null || file == null) {
+            throw new IllegalArgumentException();
+        }
+        SecretKey dataKey = CryptUtils.generateDataKey();
+        byte[] wrappedKey = CryptUtils.wrapKey(kek, dataKey);
+
+        RandomAccessFile fh = new RandomAccessFile(file, "rw");
+        boolean success = false;
+        try {
+            fh.setLength(0);
+            fh.write(CryptUtils.ENVELOPE_MAGIC);
+            fh.write(VERSION);
+            fh.write((wrappedKey.length >> 8) & 0xff);
+            fh.write(wrappedKey.length & 0xff);
+            fh.write(wrappedKey);
+            fh.writeLong(0);
+            fh.writeInt(0);
+
+            PackedArchive archive = new PackedArchive(file, fh, dataKey,
+                    wrappedKey.length, true);
+            archive.appendOffset = fh.getFilePointer();
+            archive.modified = true;
+            archive.commit();
+            success = true;
+            return archive;
+
+        } finally {
+            if (!success) {
+                fh.close();
+            }
+        }
+    }
+
+    /**
+     * アーカイブを開いて目次を読み込む.
+     * 
+     * @param kek
+     *            データキーをラップした対称暗号化キー
+     * @param file
+     *            アーカイブのファイル
+     * @param writable
+     *            書き込み可能として開くか?
+     * @return アーカイブ
+     * @throws IOException
+     *             アーカイブでないか、壊れている場合
+     * @throws GeneralSecurityException
+     *             データキーを復元できない場合
+     */
+    static PackedArchive open(SecretKey kek, File file, boolean writable)
+            throws IOException, GeneralSecurityException {
+        if (kek == null || file == null) {
+            throw new IllegalArgumentException();
+        }
+        RandomAccessFile fh = new RandomAccessFile(file, writable ? "rw"
+                : "r");
+        boolean success = false;
+        try {
+            byte[] head = new byte[CryptUtils.WRAPPED_KEY_OFFSET];
+            if (fh.length() < head.length) {
+                throw new IOException("not an archive. " + file);
+            }
+            fh.readFully(head);
+            if (!isArchiveHeader(head)) {
+                throw new IOException("not an archive. " + file);
+            }
+            int wrappedKeyLength = ((head[CryptUtils.ENVELOPE_MAGIC.length + 1] & 0xff) << 8)
+                    | (head[CryptUtils.ENVELOPE_MAGIC.length + 2] & 0xff);
+            byte[] wrappedKey = new byte[wrappedKeyLength];
+            fh.readFully(wrappedKey);
+            SecretKey dataKey = CryptUtils.unwrapKey(kek, wrappedKey);
+
+            PackedArchive archive = new PackedArchive(file, fh, dataKey,
+                    wrappedKeyLength, writable);
+            archive.readToc();
+            success = true;
+            return archive;
+
+        } finally {
+            if (!success) {
+                fh.close();
+            }
+        }
+    }
+
+    /**
+     * データの先頭がアーカイブのヘッダであるか判定する.
+     * 
+     * @param head
+     *            データの先頭(マジックナンバーとバージョン以上の長さ)
+     * @return アーカイブであればtrue
+     */
+    static boolean isArchiveHeader(byte[] head) {
+        int versionPos = CryptUtils.ENVELOPE_MAGIC.length;
+        return head.length > versionPos && CryptUtils.isEnvelopeHeader(head)
+                && (head[versionPos] & 0xff) == VERSION;
+    }
+
+    /**
+     * ファイルがアーカイブであるか判定する.
+     * 
+     * @param file
+     *            ファイル
+     * @return アーカイブであればtrue
+     * @throws IOException
+     *             失敗
+     */
+    public static boolean isArchive(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!file.isFile()) {
+            return false;
+        }
+        byte[] head = new byte[CryptUtils.ENVELOPE_MAGIC.length + 1];
+        RandomAccessFile fh = new RandomAccessFile(file, "r");
+        try {
+            if (fh.length() < head.length) {
+                return false;
+            }
+            fh.readFully(head);
+
+        } finally {
+            fh.close();
+        }
+        return isArchiveHeader(head);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 目次を読み込む.
+     * 
+     * @throws IOException
+     *             目次が壊れている場合
+     * @throws GeneralSecurityException
+     *             目次を復号化できない場合
+     */
+    private void readToc() throws IOException, GeneralSecurityException {
+        fh.seek(commitOffset);
+        long tocOffset = fh.readLong();
+        int length = fh.readInt();
+        if (length < IV_SIZE || tocOffset < commitOffset + 12
+                || tocOffset + length > fh.length()) {
+            throw new IOException("invalid archive. " + file);
+        }
+        byte[] iv = new byte[IV_SIZE];
+        byte[] encToc = new byte[length - IV_SIZE];
+        fh.seek(tocOffset);
+        fh.readFully(iv);
+        fh.readFully(encToc);
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, dataKey, new IvParameterSpec(iv));
+        byte[] toc = cipher.doFinal(encToc);
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                toc));
+        int count = dis.readInt();
+        if (count < 0 || count > toc.length / (DIGEST_SIZE + 28)) {
+            throw new IOException("invalid archive. " + file);
+        }
+        for (int idx = 0; idx < count; idx++) {
+            String name = dis.readUTF();
+            long offset = dis.readLong();
+            int slotLength = dis.readInt();
+            long dataLength = dis.readLong();
+            long timestamp = dis.readLong();
+            byte[] digest = new byte[DIGEST_SIZE];
+            dis.readFully(digest);
+            if (offset < commitOffset + 12 || slotLength < IV_SIZE
+                    || offset + slotLength > tocOffset) {
+                throw new IOException("invalid archive entry: " + name);
+            }
+            entries.put(name, new Entry(name, offset, slotLength, dataLength,
+                    timestamp, digest));
+        }
+        appendOffset = tocOffset + length;
+        committedEnd = appendOffset;
+        tocLength = length;
+    }
+
+    /**
+     * エントリの一覧を取得する.
+     * 
+     * @return エントリ(名前順)
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * エントリを取得する.
+     * 
+     * @param name
+     *            名前
+     * @return エントリ、なければnull
+     */
+    public synchronized Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * エントリのデータを読み込んで復号化する.<br>
+     * 目次に記録したダイジェストと一致することを検証する.<br>
+     * 
+     * @param name
+     *            名前
+     * @return データ、エントリがなければnull
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized byte[] read(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        byte[] slot = new byte[entry.slotLength];
+        fh.seek(entry.offset);
+        fh.readFully(slot);
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, dataKey, new IvParameterSpec(
+                    slot, 0, IV_SIZE));
+            byte[] data = cipher.doFinal(slot, IV_SIZE, slot.length
+                    - IV_SIZE);
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            if (data.length != entry.length
+                    || !MessageDigest.isEqual(entry.digest, md.digest(data))) {
+                Arrays.fill(data, (byte) 0);
+                throw new IOException("corrupted archive entry: " + name);
+            }
+            return data;
+
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * エントリを追加する.<br>
+     * 同じ名前のエントリがあれば置き換える.<br>
+     * {@link #commit()}を呼び出すまで確定しない.<br>
+     * 
+     * @param name
+     *            名前
+     * @param data
+     *            データ
+     * @param timestamp
+     *            更新日時
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized void put(String name, byte[] data, long timestamp)
+            throws IOException {
+        checkWritable();
+        if (name == null || name.length() == 0 || data == null) {
+            throw new IllegalArgumentException();
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, dataKey);
+            byte[] iv = cipher.getIV();
+            byte[] encbuf = cipher.doFinal(data);
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+
+            long offset = appendOffset;
+            fh.seek(offset);
+            fh.write(iv);
+            fh.write(encbuf);
+            int slotLength = iv.length + encbuf.length;
+            appendOffset += slotLength;
+
+            entries.put(name, new Entry(name, offset, slotLength,
+                    data.length, timestamp, digest));
+            modified = true;
+
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * エントリを削除する.<br>
+     * {@link #commit()}を呼び出すまで確定しない.<br>
+     * 
+     * @param name
+     *            名前
+     * @return 削除した場合はtrue
+     */
+    public synchronized boolean remove(String name) {
+        checkWritable();
+        if (entries.remove(name) == null) {
+            return false;
+        }
+        modified = true;
+        return true;
+    }
+
+    /**
+     * 変更を確定する.<br>
+     * 目次を書き込んでディスクに同期してから、ヘッダの目次の位置と長さを書き換える.<br>
+     * 
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized void commit() throws IOException {
+        checkWritable();
+        if (!modified) {
+            return;
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(entries.size());
+        for (Entry entry : entries.values()) {
+            dos.writeUTF(entry.name);
+            dos.writeLong(entry.offset);
+            dos.writeInt(entry.slotLength);
+            dos.writeLong(entry.length);
+            dos.writeLong(entry.timestamp);
+            dos.write(entry.digest);
+        }
+        dos.close();
+
+        byte[] iv;
+        byte[] encToc;
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, dataKey);
+            iv = cipher.getIV();
+            encToc = cipher.doFinal(bos.toByteArray());
+
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+
+        long tocOffset = appendOffset;
+        int length = iv.length + encToc.length;
+        fh.seek(tocOffset);
+        fh.write(iv);
+        fh.write(encToc);
+        fh.setLength(tocOffset + length);
+        fh.getFD().sync();
+
+        // 最後に目次の位置と長さを書き込み、変更を確定する.
+        fh.seek(commitOffset);
+        fh.writeLong(tocOffset);
+        fh.writeInt(length);
+        fh.getFD().sync();
+
+        appendOffset = tocOffset + length;
+        committedEnd = appendOffset;
+        tocLength = length;
+        modified = false;
+    }
+
+    /**
+     * 置き換えや削除により使われていない領域のサイズを取得する.
+     * 
+     * @return 未使用のバイト数
+     */
+    public synchronized long getUnusedSize() {
+        long used = commitOffset + 12 + tocLength;
+        for (Entry entry : entries.values()) {
+            used += entry.slotLength;
+        }
+        return Math.max(0, appendOffset - used);
+    }
+
+    private void checkWritable() {
+        if (!writable) {
+            throw new IllegalStateException("read only. " + file);
+        }
+    }
+
+    /**
+     * アーカイブを閉じる.<br>
+     * 確定していない変更は破棄し、書き込んだエントリは切り詰める.<br>
+     * 
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized void close() throws IOException {
+        try {
+            if (modified) {
+                logger.log(Level.WARNING,
+                        "uncommitted changes are discarded. " + file);
+            }
+            if (writable && fh.length() > committedEnd) {
+                fh.setLength(committedEnd);
+            }
+
+        } finally {
+            fh.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PackedArchive(" + file + ", entries=" + entries.size() + ")";
+    }
+}
@@ -0,0 +1,241 @@
+package jp.seraphyware.cryptnotepad.crypt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * 再暗号化(キーの切り替え)の進捗を記録するジャーナル.<br>
+ * 処理が完了したファイルを1行ずつ追記し、書き込みごとにディスクに同期する.<br>
+ * 中断後に同じ新しいキーで再開した場合は、記録済みのファイルをスキップできる.<br>
+ * <br>
+ * ジャーナルの先頭には新しいキーから計算したチェック値を記録しておき、
+ * 異なるキーで再開された場合はジャーナルの内容を破棄する.<br>
+ * (キーそのものやパスフレーズは記録しない.)<br>
+ * 
+ * @author seraphy
+ */
+public class RekeyJournal {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(RekeyJournal.class
+            .getName());
+
+    /**
+     * ジャーナルの文字コード
+     */
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * キーのチェック値を示す行の接頭語
+     */
+    private static final String KEY_PREFIX = "key=";
+
+    /**
+     * 完了したファイルを示す行の接頭語
+     */
+    private static final String DONE_PREFIX = "done\t";
+
+    /**
+     * ジャーナルファイル
+     */
+    private final File journalFile;
+
+    /**
+     * 完了済みファイルの絶対パスの集合
+     */
+    private final Set<String> doneFiles = new HashSet<String>();
+
+    /**
+     * 追記用の出力ストリーム
+     */
+    private FileOutputStream os;
+
+    /**
+     * ジャーナルを開く.<br>
+     * 既存のジャーナルが同じキーのものであれば、その完了記録を引き継ぐ.<br>
+     * そうでなければ新しいジャーナルを作成する.<br>
+     * 
+     * @param journalFile
+     *            ジャーナルファイル
+     * @param newKey
+     *            再暗号化に用いる新しいキー
+     * @throws IOException
+     *             失敗
+     */
+    public RekeyJournal(File journalFile, SecretKey newKey) throws IOException {
+        if (journalFile == null || newKey == null) {
+            throw new IllegalArgumentException();
+        }
+        this.journalFile = journalFile;
+
+        String keyCheck = KEY_PREFIX + createKeyCheck(newKey);
+        boolean resume = false;
+        if (journalFile.exists()) {
+            resume = load(keyCheck);
+            if (resume) {
+                logger.log(Level.INFO, "resume the rekey journal. done="
+                        + doneFiles.size() + ", file=" + journalFile);
+            } else {
+                logger.log(Level.INFO,
+                        "the rekey journal is for another key. discarded. "
+                                + journalFile);
+            }
+        }
+
+        File parentDir = journalFile.getAbsoluteFile().getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+
+        os = new FileOutputStream(journalFile, resume);
+        if (!resume) {
+            write(keyCheck);
+        }
+    }
+
+    /**
+     * キーのチェック値を計算する.<br>
+     * 固定文字列に対するキー付きハッシュであり、キーそのものは復元できない.<br>
+     * 
+     * @param key
+     *            キー
+     * @return チェック値(16進数)
+     */
+    private static String createKeyCheck(SecretKey key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            byte[] digest = mac.doFinal("cryptnotepad-rekey-journal"
+                    .getBytes(ENCODING));
+
+            StringBuilder buf = new StringBuilder();
+            for (byte b : digest) {
+                buf.append(String.format("%02x", b & 0xff));
+            }
+            return buf.toString();
+
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * 既存のジャーナルを読み込む.
+     * 
+     * @param keyCheck
+     *            キーのチェック値の行
+     * @return 同じキーのジャーナルであり、読み込んだ場合はtrue
+     * @throws IOException
+     *             失敗
+     */
+    private boolean load(String keyCheck) throws IOException {
+        BufferedReader rd = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journalFile), ENCODING));
+        try {
+            String line = rd.readLine();
+            if (line == null || !line.equals(keyCheck)) {
+                return false;
+            }
+            while ((line = rd.readLine()) != null) {
+                if (line.startsWith(DONE_PREFIX)) {
+                    doneFiles.add(line.substring(DONE_PREFIX.length()));
+                }
+            }
+            return true;
+
+        } finally {
+            rd.close();
+        }
+    }
+
+    /**
+     * 1行を追記してディスクに同期する.
+     * 
+     * @param line
+     *            行
+     * @throws IOException
+     *             失敗
+     */
+    private void write(String line) throws IOException {
+        os.write((line + "\n").getBytes(ENCODING));
+        os.flush();
+        os.getFD().sync();
+    }
+
+    /**
+     * ファイルの処理が完了済みであるか?
+     * 
+     * @param file
+     *            ファイル
+     * @return 完了済みであればtrue
+     */
+    public synchronized boolean isDone(File file) {
+        return doneFiles.contains(file.getAbsolutePath());
+    }
+
+    /**
+     * ファイルの処理の完了を記録する.
+     * 
+     * @param file
+     *            ファイル
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized void markDone(File file) throws IOException {
+        if (os == null) {
+            throw new IllegalStateException("the journal is already closed.");
+        }
+        String path = file.getAbsolutePath();
+        if (doneFiles.add(path)) {
+            write(DONE_PREFIX + path);
+        }
+    }
+
+    /**
+     * 完了済みのファイル数
+     * 
+     * @return ファイル数
+     */
+    public synchronized int getDoneCount() {
+        return doneFiles.size();
+    }
+
+    /**
+     * ジャーナルを閉じる.<br>
+     * すべて完了した場合はジャーナルファイルを削除する.<br>
+     * 
+     * @param completed
+     *            すべてのファイルの処理が完了した場合はtrue
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized void close(boolean completed) throws IOException {
+        if (os != null) {
+            os.close();
+            os = null;
+        }
+        if (completed && journalFile.exists()) {
+            if (!journalFile.delete()) {
+                logger.log(Level.WARNING, "can't delete the rekey journal. "
+                        + journalFile);
+            }
+        }
+    }
+}
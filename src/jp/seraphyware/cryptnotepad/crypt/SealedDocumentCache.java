@@ -0,0 +1,349 @@
+package jp.seraphyware.cryptnotepad.crypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import jp.seraphyware.cryptnotepad.storage.StorageStat;
+import jp.seraphyware.cryptnotepad.util.CacheMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+
+/**
+ * 最近復号化したドキュメントを保持するLRUキャッシュ.<br>
+ * 閉じたドキュメントを開き直す場合に、鍵導出と復号化をやり直さずに済むようにする.<br>
+ * キーはファイルの正規化パス、サイズ、最終更新日時であり、ファイルが更新されれば一致しない.<br>
+ * 平文をメモリ上に残さないように、保持するデータはこのインスタンスの生成時に
+ * ランダムに生成したセッションキーでAES/CTRにより暗号化しておき、取り出すときに復号化する.<br>
+ * 保持するデータの合計サイズが上限を超えた場合は、最も長く使われていないものから破棄する.<br>
+ * {@link #clear()}ですべてのデータを消去し、セッションキーも作り直す.<br>
+ * キーには消去の世代も含めており、消去より前に取得したキーでは保持しない.<br>
+ * (復号化の途中でパスフレーズが変更された場合に、古いパスフレーズでの結果を保持しないため.)<br>
+ * 
+ * @author seraphy
+ */
+public class SealedDocumentCache {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger
+            .getLogger(SealedDocumentCache.class.getName());
+
+    /**
+     * キャッシュのヒット率の計測値
+     */
+    private static final CacheMetric cacheMetric = Metrics
+            .cache(Metrics.DOCUMENT_CACHE);
+
+    /**
+     * 暗号化方式
+     */
+    private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+
+    /**
+     * セッションキーのサイズ(バイト)
+     */
+    private static final int SESSION_KEY_SIZE = 16;
+
+    /**
+     * 暗号化したデータ
+     */
+    private static final class Entry {
+
+        /**
+         * 初期ベクトル
+         */
+        private final byte[] iv;
+
+        /**
+         * 暗号化したデータ
+         */
+        private final byte[] sealed;
+
+        Entry(byte[] iv, byte[] sealed) {
+            this.iv = iv;
+            this.sealed = sealed;
+        }
+
+        void wipe() {
+            Arrays.fill(iv, (byte) 0);
+            Arrays.fill(sealed, (byte) 0);
+        }
+    }
+
+    /**
+     * 乱数
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * キーごとのデータ、アクセス順
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    /**
+     * セッションキー
+     */
+    private final byte[] sessionKey = new byte[SESSION_KEY_SIZE];
+
+    /**
+     * 保持するデータの合計サイズの上限(バイト)、0の場合はキャッシュしない.
+     */
+    private long budget;
+
+    /**
+     * 保持しているデータの合計サイズ(バイト)
+     */
+    private long totalBytes;
+
+    /**
+     * 消去の世代
+     */
+    private long generation;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param budget
+     *            保持するデータの合計サイズの上限(バイト)、0の場合はキャッシュしない.
+     */
+    public SealedDocumentCache(long budget) {
+        setBudget(budget);
+        random.nextBytes(sessionKey);
+    }
+
+    /**
+     * 保持するデータの合計サイズの上限を設定する.<br>
+     * 上限を超えている場合は古いものから破棄する.<br>
+     * 
+     * @param budget
+     *            保持するデータの合計サイズの上限(バイト)、0の場合はキャッシュしない.
+     */
+    public synchronized void setBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.budget = budget;
+        evict();
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * ファイルの現在の状態に対するキーを取得する.<br>
+     * 復号化を始める前に取得し、{@link #put(String, byte[])}に渡すこと.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @param stat
+     *            格納先から取得したファイルの現在の情報、存在しない場合はnull
+     * @return キー、ファイルが存在しないかキャッシュしない場合はnull
+     */
+    public String getKey(File file, StorageStat stat) {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        long currentGeneration;
+        synchronized (this) {
+            if (budget == 0) {
+                return null;
+            }
+            currentGeneration = generation;
+        }
+        if (stat == null || !stat.isFile()) {
+            return null;
+        }
+        try {
+            return file.getCanonicalPath() + "\n" + stat.getLength() + "\n"
+                    + stat.getLastModified() + "\n" + currentGeneration;
+
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "can't get the canonical path. " + file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * データを保持しているか?<br>
+     * (ヒット率の計測には含めない.)<br>
+     * 
+     * @param key
+     *            キー、nullの場合は常になし.
+     * @return 保持していればtrue
+     */
+    public synchronized boolean contains(String key) {
+        return key != null && entries.containsKey(key);
+    }
+
+    /**
+     * データを取得する.
+     * 
+     * @param key
+     *            キー、nullの場合は常になし.
+     * @return 復号化したデータの複製、なければnull
+     */
+    public synchronized byte[] get(String key) {
+        if (key == null) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            cacheMetric.miss();
+            return null;
+        }
+        try {
+            byte[] data = crypt(Cipher.DECRYPT_MODE, entry.iv, entry.sealed);
+            cacheMetric.hit();
+            return data;
+
+        } catch (GeneralSecurityException ex) {
+            logger.log(Level.WARNING, "document cache is unavailable.", ex);
+            remove(key);
+            cacheMetric.miss();
+            return null;
+        }
+    }
+
+    /**
+     * データを暗号化して保持する.<br>
+     * データが上限より大きい場合や、キーの取得後に消去された場合は保持しない.<br>
+     * 
+     * @param key
+     *            キー、nullの場合は何もしない.
+     * @param data
+     *            復号化したデータ(内容は変更されない)
+     */
+    public synchronized void put(String key, byte[] data) {
+        if (data == null) {
+            throw new IllegalArgumentException();
+        }
+        if (key == null || data.length > budget
+                || !key.endsWith("\n" + generation)) {
+            return;
+        }
+        try {
+            byte[] iv = new byte[16];
+            random.nextBytes(iv);
+            byte[] sealed = crypt(Cipher.ENCRYPT_MODE, iv, data);
+            remove(key);
+            entries.put(key, new Entry(iv, sealed));
+            totalBytes += sealed.length;
+            evict();
+
+        } catch (GeneralSecurityException ex) {
+            logger.log(Level.WARNING, "document cache is unavailable.", ex);
+        }
+    }
+
+    /**
+     * 指定したファイルのデータを破棄する.<br>
+     * ファイルを更新または削除した場合に呼び出す.<br>
+     * 
+     * @param file
+     *            ファイル
+     */
+    public synchronized void invalidate(File file) {
+        if (file == null || entries.isEmpty()) {
+            return;
+        }
+        String prefix;
+        try {
+            prefix = file.getCanonicalPath() + "\n";
+
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "can't get the canonical path. " + file, ex);
+            clear();
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> ite = entries.entrySet().iterator();
+        while (ite.hasNext()) {
+            Map.Entry<String, Entry> mapEntry = ite.next();
+            if (mapEntry.getKey().startsWith(prefix)) {
+                Entry entry = mapEntry.getValue();
+                totalBytes -= entry.sealed.length;
+                entry.wipe();
+                ite.remove();
+            }
+        }
+    }
+
+    /**
+     * すべてのデータを消去し、セッションキーを作り直す.<br>
+     * パスフレーズが変更された場合などに呼び出す.<br>
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            entry.wipe();
+        }
+        if (!entries.isEmpty()) {
+            logger.log(Level.FINE, "document cache cleared. entries="
+                    + entries.size());
+        }
+        entries.clear();
+        totalBytes = 0;
+        generation++;
+        random.nextBytes(sessionKey);
+    }
+
+    /**
+     * キーのデータを破棄する.
+     * 
+     * @param key
+     *            キー
+     */
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            totalBytes -= entry.sealed.length;
+            entry.wipe();
+        }
+    }
+
+    /**
+     * 合計サイズが上限以下になるまで、最も長く使われていないデータから破棄する.
+     */
+    private void evict() {
+        Iterator<Entry> ite = entries.values().iterator();
+        while (totalBytes > budget && ite.hasNext()) {
+            Entry entry = ite.next();
+            totalBytes -= entry.sealed.length;
+            entry.wipe();
+            ite.remove();
+        }
+    }
+
+    /**
+     * セッションキーで暗号化または復号化する.
+     * 
+     * @param mode
+     *            暗号化または復号化
+     * @param iv
+     *            初期ベクトル
+     * @param data
+     *            データ
+     * @return 結果
+     * @throws GeneralSecurityException
+     *             失敗
+     */
+    private byte[] crypt(int mode, byte[] iv, byte[] data)
+            throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(mode, new SecretKeySpec(sessionKey, "AES"),
+                new IvParameterSpec(iv));
+        return cipher.doFinal(data);
+    }
+}
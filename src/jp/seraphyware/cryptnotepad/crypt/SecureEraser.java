@@ -0,0 +1,252 @@
+package jp.seraphyware.cryptnotepad.crypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ファイルの内容を上書きしてから削除する.<br>
+ * FileChannelに大きなバッファでまとめて書き込み、ディスクへの同期はパスごとに1回だけ行う.<br>
+ * ランダム値はSecureRandomで1回だけ生成した鍵とカウンタによるAES/CTRのキーストリームを用いる.<br>
+ * (SecureRandomを毎ブロック呼び出すよりも大幅に高速である.)<br>
+ * 複数スレッドから同時に呼び出してよい.<br>
+ * 
+ * @author seraphy
+ */
+public class SecureEraser {
+
+    /**
+     * 上書きの方式
+     */
+    public enum ErasePolicy {
+
+        /**
+         * ランダム値で1回上書きする.
+         */
+        RANDOM(Pass.RANDOM),
+
+        /**
+         * ゼロで1回上書きする.
+         */
+        ZERO(Pass.ZERO),
+
+        /**
+         * ゼロ、0xff、ランダム値の順に3回上書きする.(DoD 5220.22-M相当)
+         */
+        DOD3(Pass.ZERO, Pass.ONE, Pass.RANDOM),
+
+        /**
+         * ランダム値で3回上書きする.
+         */
+        RANDOM3(Pass.RANDOM, Pass.RANDOM, Pass.RANDOM);
+
+        private final Pass[] passes;
+
+        private ErasePolicy(Pass... passes) {
+            this.passes = passes;
+        }
+
+        public Pass[] getPasses() {
+            return passes.clone();
+        }
+    }
+
+    /**
+     * 1回の上書きで書き込む値
+     */
+    public enum Pass {
+
+        /**
+         * 0x00
+         */
+        ZERO,
+
+        /**
+         * 0xff
+         */
+        ONE,
+
+        /**
+         * ランダム値
+         */
+        RANDOM
+    }
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(SecureEraser.class
+            .getName());
+
+    /**
+     * キーストリームの鍵とカウンタの初期値を生成する乱数.<br>
+     * SecureRandomの生成と初期化は重いため、すべての消去で共有する.<br>
+     */
+    private static final SecureRandom seedRandom = new SecureRandom();
+
+    /**
+     * 上書きの方式
+     */
+    private volatile ErasePolicy policy = ErasePolicy.RANDOM;
+
+    /**
+     * バッファサイズ
+     */
+    private volatile int bufferSize = 1024 * 1024;
+
+    public ErasePolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(ErasePolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException();
+        }
+        this.policy = policy;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * ランダム値のキーストリームを生成する暗号化器を作成する.<br>
+     * 鍵とカウンタの初期値はSecureRandomから生成する.<br>
+     * 
+     * @return AES/CTRの暗号化器
+     */
+    private static Cipher createKeyStream() {
+        byte[] seed = new byte[32];
+        synchronized (seedRandom) {
+            seedRandom.nextBytes(seed);
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(seed, 0, 16,
+                    "AES"), new IvParameterSpec(seed, 16, 16));
+            return cipher;
+
+        } catch (GeneralSecurityException ex) {
+            // アルゴリズムが選択できない場合は、環境の問題である.
+            throw new RuntimeException(ex);
+
+        } finally {
+            Arrays.fill(seed, (byte) 0);
+        }
+    }
+
+    /**
+     * ファイルを上書きしてから削除する.
+     * 
+     * @param file
+     *            ファイル
+     * @throws IOException
+     *             失敗
+     */
+    public void erase(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+
+        ErasePolicy currentPolicy = policy;
+
+        RandomAccessFile fh = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = fh.getChannel();
+            long filelen = channel.size();
+            if (filelen > 0) {
+                int bufsiz = (int) Math.min(bufferSize, filelen);
+                byte[] pattern = new byte[bufsiz];
+                byte[] buf = new byte[bufsiz];
+                Cipher keyStream = null;
+
+                for (Pass pass : currentPolicy.passes) {
+                    if (pass == Pass.RANDOM && keyStream == null) {
+                        keyStream = createKeyStream();
+                    }
+                    overwrite(channel, filelen, pass, keyStream, pattern, buf);
+                }
+            }
+
+        } finally {
+            fh.close();
+        }
+
+        // ファイルエントリの削除
+        if (!file.delete()) {
+            logger.log(Level.WARNING, "can't delete the file. " + file);
+        }
+    }
+
+    /**
+     * ファイル全体を1回上書きし、最後に1回だけディスクに同期する.
+     * 
+     * @param channel
+     *            ファイルチャネル
+     * @param filelen
+     *            ファイルサイズ
+     * @param pass
+     *            書き込む値
+     * @param keyStream
+     *            ランダム値の場合のキーストリーム
+     * @param pattern
+     *            キーストリームの入力(すべてゼロ)
+     * @param buf
+     *            書き込みバッファ
+     * @throws IOException
+     *             失敗
+     */
+    private void overwrite(FileChannel channel, long filelen, Pass pass,
+            Cipher keyStream, byte[] pattern, byte[] buf) throws IOException {
+        int bufsiz = buf.length;
+        if (pass == Pass.ZERO) {
+            Arrays.fill(buf, (byte) 0);
+        } else if (pass == Pass.ONE) {
+            Arrays.fill(buf, (byte) 0xff);
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        long pos = 0;
+        channel.position(0);
+        while (pos < filelen) {
+            int outlen = (int) Math.min(bufsiz, filelen - pos);
+            if (pass == Pass.RANDOM) {
+                // ゼロを暗号化したものがキーストリームとなる.
+                try {
+                    keyStream.update(pattern, 0, outlen, buf, 0);
+
+                } catch (GeneralSecurityException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            bb.clear();
+            bb.limit(outlen);
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+            pos += outlen;
+        }
+
+        // パスごとに1回だけ同期する.
+        channel.force(false);
+    }
+}
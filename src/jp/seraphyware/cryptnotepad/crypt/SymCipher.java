@@ -7,16 +7,24 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
 import javax.crypto.SecretKey;
 import javax.swing.event.EventListenerList;
 
+import jp.seraphyware.cryptnotepad.storage.LocalStorage;
+import jp.seraphyware.cryptnotepad.storage.Storage;
+import jp.seraphyware.cryptnotepad.storage.StorageStat;
+import jp.seraphyware.cryptnotepad.storage.StorageWriter;
+import jp.seraphyware.cryptnotepad.util.CacheMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+import jp.seraphyware.cryptnotepad.util.TraceEvent;
+import jp.seraphyware.cryptnotepad.util.TraceEventType;
+
 /**
  * パスフレーズとファイル名を指定して、暗号化・復号化する.
  * 
@@ -24,6 +32,12 @@ import javax.swing.event.EventListenerList;
  */
 public class SymCipher {
 
+    /**
+     * 対称暗号化キーのキャッシュのヒット率の計測値
+     */
+    private static final CacheMetric secretKeyCacheMetric = Metrics
+            .cache(Metrics.SECRET_KEY_CACHE);
+
     /**
      * イベントリスナのリスト
      */
@@ -44,6 +58,43 @@ public class SymCipher {
      */
     private SymCryptKeySource keySource;
 
+    /**
+     * 生成済みの対称暗号化キーのキャッシュ.<br>
+     * パスフレーズまたはキーファイルが変更されるとクリアされる.<br>
+     */
+    private SecretKey cachedSecretKey;
+
+    /**
+     * キャッシュしている対称暗号化キーの生成に用いたソルト.<br>
+     * キーファイルの内容が変わるとソルトも変わるため、一致しなければキーを生成しなおす.<br>
+     */
+    private byte[] cachedSalt;
+
+    /**
+     * 前回確認したキーファイルの最終更新日時とサイズ.<br>
+     * ローカルのファイルでなければnull.<br>
+     */
+    private String cachedKeyFileStamp;
+
+    /**
+     * 暗号化時にエンベロープ形式を用いるか?<br>
+     * falseの場合は従来形式(パスフレーズから生成したキーで直接暗号化)とする.<br>
+     * 復号化はどちらの形式にも対応する.<br>
+     */
+    private volatile boolean envelopeEncryption = true;
+
+    /**
+     * エンベロープ形式で暗号化する場合のチャンクサイズ.<br>
+     * 0より大きい場合はチャンク形式で暗号化し、既存のファイルへの保存では変更されたチャンクのみを書き込む.<br>
+     * 0の場合はチャンク形式を用いない.<br>
+     */
+    private volatile int chunkSize;
+
+    /**
+     * 暗号化されたファイルの格納先
+     */
+    private volatile Storage storage = LocalStorage.getInstance();
+
     /**
      * コンストラクタ
      * 
@@ -59,14 +110,84 @@ public class SymCipher {
         this.keySaltFactory = new SymCryptKeySaltFactory();
         this.keyFactory = new SymCryptKeyFactory();
 
-        // キーファイル変更によってソルトのキャッシュをクリアする.
+        // キーファイル変更によってソルトとキーのキャッシュをクリアする.
         keySource.addPropertyChangeListener("keyFile",
                 new PropertyChangeListener() {
                     @Override
                     public void propertyChange(PropertyChangeEvent evt) {
                         keySaltFactory.clearCaches();
+                        clearSecretKeyCache();
                     }
                 });
+
+        // パスフレーズ変更によってキーのキャッシュをクリアする.
+        keySource.addPropertyChangeListener("passphrase",
+                new PropertyChangeListener() {
+                    @Override
+                    public void propertyChange(PropertyChangeEvent evt) {
+                        clearSecretKeyCache();
+                    }
+                });
+    }
+
+
+    public boolean isEnvelopeEncryption() {
+        return envelopeEncryption;
+    }
+
+    public void setEnvelopeEncryption(boolean envelopeEncryption) {
+        this.envelopeEncryption = envelopeEncryption;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * チャンク形式で暗号化する場合のチャンクサイズを設定する.
+     * 
+     * @param chunkSize
+     *            チャンクサイズ、0の場合はチャンク形式を用いない.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize != 0 && !ChunkedCipherFile.isValidChunkSize(chunkSize)) {
+            throw new IllegalArgumentException("invalid chunk size: "
+                    + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * 暗号化されたファイルの格納先を設定する.<br>
+     * ローカルのファイルシステム以外では、チャンク形式でも毎回ファイル全体を書き込み、
+     * アーカイブは扱えない.<br>
+     * 
+     * @param storage
+     *            格納先
+     */
+    public void setStorage(Storage storage) {
+        if (storage == null) {
+            throw new IllegalArgumentException();
+        }
+        this.storage = storage;
+    }
+
+    /**
+     * 格納先のファイルの情報を取得する.
+     * 
+     * @param file
+     *            ファイル
+     * @return ファイルの情報、存在しないかディレクトリであればnull
+     * @throws IOException
+     *             失敗
+     */
+    private StorageStat statFile(File file) throws IOException {
+        StorageStat stat = storage.stat(file);
+        return (stat != null && stat.isFile()) ? stat : null;
     }
 
     /**
@@ -134,16 +255,74 @@ public class SymCipher {
     }
 
     /**
-     * 対称暗号化キーを生成する.
+     * 対称暗号化キーを生成する.<br>
+     * キーの生成は繰り返し回数の多いPBKDF2であり時間がかかるため、
+     * 一度生成したキーはパスフレーズかキーファイルが変更されるまで再利用する.<br>
+     * キーファイルの指定が同じでも、ファイルの内容が変わってソルトが変わった場合は生成しなおす.<br>
+     * (ソルトはファイルのハッシュのキャッシュから得るため、キーの生成に比べて十分に軽い.)<br>
+     * ローカルのキーファイルの最終更新日時かサイズが変わった場合は、ハッシュのキャッシュを破棄してソルトを求めなおす.<br>
      * 
      * @return 対称暗号化キー
      */
-    protected SecretKey createSecretKey() {
-        char[] passphrase = keySource.getPassphrase();
+    protected synchronized SecretKey createSecretKey() {
+        String keyFile = keySource.getKeyFile();
+        String keyFileStamp = getKeyFileStamp(keyFile);
+        if (cachedSecretKey != null && keyFileStamp != null
+                && !keyFileStamp.equals(cachedKeyFileStamp)) {
+            keySaltFactory.clearCaches();
+        }
+        cachedKeyFileStamp = keyFileStamp;
+
         SymCryptKeySaltProvider saltProvider = keySaltFactory
-                .getSaltProvider(keySource.getKeyFile());
+                .getSaltProvider(keyFile);
+        byte[] salt = saltProvider.getSalt();
+
+        if (cachedSecretKey != null && Arrays.equals(salt, cachedSalt)) {
+            secretKeyCacheMetric.hit();
+
+        } else {
+            secretKeyCacheMetric.miss();
+            TraceEvent trace = TraceEventType.KEY_DERIVATION.begin();
+            try {
+                char[] passphrase = keySource.getPassphrase();
+                trace.setPath(keyFile);
 
-        return keyFactory.createKey(passphrase, saltProvider);
+                cachedSecretKey = keyFactory
+                        .createKey(passphrase, saltProvider);
+                cachedSalt = salt.clone();
+
+            } finally {
+                trace.commit();
+            }
+        }
+        return cachedSecretKey;
+    }
+
+    /**
+     * キーファイルの最終更新日時とサイズを返す.
+     * 
+     * @param keyFile
+     *            キーファイルのファイル名またはURL、もしくはnull
+     * @return 最終更新日時とサイズ、ローカルのファイルでなければnull
+     */
+    private static String getKeyFileStamp(String keyFile) {
+        if (keyFile == null || keyFile.trim().length() == 0) {
+            return null;
+        }
+        File file = new File(keyFile);
+        if (!file.isFile()) {
+            return null;
+        }
+        return file.lastModified() + ":" + file.length();
+    }
+
+    /**
+     * キャッシュされている対称暗号化キーを破棄する.
+     */
+    public synchronized void clearSecretKeyCache() {
+        cachedSecretKey = null;
+        cachedSalt = null;
+        cachedKeyFileStamp = null;
     }
 
     /**
@@ -153,14 +332,37 @@ public class SymCipher {
      *            暗号化するデータ
      * @param file
      *            書き込み先ファイル
+     * @return 結果、キャンセルされた場合はnull
      * @throws IOException
      *             失敗
      */
-    public void encrypt(byte[] data, File file) throws IOException {
+    public EncryptResult encrypt(byte[] data, File file) throws IOException {
         if (data == null) {
             data = new byte[0];
         }
-        if (file == null) {
+        return encrypt(new ByteArrayInputStream(data), data.length, file);
+    }
+
+    /**
+     * ストリームから読み込んだデータをファイルに暗号化して書き込む.<br>
+     * データ全体をメモリに置かずに暗号化する.<br>
+     * チャンク形式の場合、既存のチャンク形式のファイルには変更されたチャンクのみを書き込む.<br>
+     * (チャンクの部分的な書き込みはローカルのファイルシステムの格納先の場合のみ行い、
+     * それ以外の格納先ではエンベロープ形式でファイル全体を置き換える.)<br>
+     * 
+     * @param is
+     *            暗号化するデータのストリーム(閉じない)
+     * @param size
+     *            データのサイズ(記録用)
+     * @param file
+     *            書き込み先ファイル
+     * @return 結果、キャンセルされた場合はnull
+     * @throws IOException
+     *             失敗
+     */
+    public EncryptResult encrypt(InputStream is, long size, File file)
+            throws IOException {
+        if (is == null || file == null) {
             throw new IllegalArgumentException();
         }
 
@@ -172,10 +374,41 @@ public class SymCipher {
 
         SecretKey skey = createSecretKey();
 
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        OutputStream bos = new BufferedOutputStream(new FileOutputStream(file));
+        Storage currentStorage = storage;
+        int currentChunkSize = (envelopeEncryption && currentStorage
+                .isLocal()) ? chunkSize : 0;
+
+        TraceEvent trace = TraceEventType.ENCRYPT.begin();
+        trace.setFile(file);
+        trace.setSize(size);
+        trace.setDetail(currentChunkSize > 0 ? "chunked"
+                : envelopeEncryption ? "envelope" : "legacy");
+
         try {
-            CryptUtils.encrypt(skey, bis, bos);
+            if (currentChunkSize > 0) {
+                EncryptResult result = ChunkedCipherFile.write(skey, is, file,
+                        currentChunkSize);
+                trace.setDetail("chunked " + result.getChunksWritten() + "/"
+                        + result.getChunkCount());
+                return result;
+            }
+
+            StorageWriter writer = currentStorage.openWrite(file);
+            try {
+                OutputStream bos = new BufferedOutputStream(writer);
+                if (envelopeEncryption) {
+                    CryptUtils.encryptEnvelope(skey, is, bos);
+                } else {
+                    CryptUtils.encrypt(skey, is, bos);
+                }
+                bos.flush();
+                writer.commit();
+
+            } finally {
+                writer.close();
+            }
+            StorageStat stat = currentStorage.stat(file);
+            return EncryptResult.fullWrite(stat != null ? stat.getLength() : 0);
 
         } catch (GeneralSecurityException ex) {
             // 書き込み時のセキュリティ例外では、パスフレーズのミスやファイル選択間違いなど
@@ -183,12 +416,12 @@ public class SymCipher {
             evt.setCause(ex);
             if (firePreThrowException(evt).isCancel()) {
                 // キャンセルされた場合は例外をスローしない.
-                return;
+                return null;
             }
             throw new IOException(ex);
 
         } finally {
-            bos.close();
+            trace.commit();
         }
     }
 
@@ -203,9 +436,36 @@ public class SymCipher {
      *             失敗
      */
     public byte[] decrypt(File file) throws IOException {
-        if (file == null || !file.exists() || file.isDirectory()) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (!decrypt(file, bos)) {
+            // ファイルがない場合と、キャンセルされた場合は結果をnullとして返す.
             return null;
         }
+        return bos.toByteArray();
+    }
+
+    /**
+     * 暗号化されたファイルを指定して、復元したデータをストリームに書き込む.<br>
+     * データ全体をメモリに置かずに復号化する.<br>
+     * ファイルがない場合や復号化がキャンセルされた場合はfalseを返す.<br>
+     * (キャンセルされた場合でも、途中までのデータが書き込まれている可能性がある.)<br>
+     * 
+     * @param file
+     *            暗号化されたファイル
+     * @param os
+     *            出力先(閉じない)
+     * @return 復号化した場合はtrue
+     * @throws IOException
+     *             失敗
+     */
+    public boolean decrypt(File file, OutputStream os) throws IOException {
+        if (os == null) {
+            throw new IllegalArgumentException();
+        }
+        StorageStat stat = (file != null) ? statFile(file) : null;
+        if (stat == null) {
+            return false;
+        }
 
         // パスフレーズが設定されているか確認する.
         SymCipherEvent evt = new SymCipherEvent(this, false, file);
@@ -213,42 +473,233 @@ public class SymCipher {
             throw new CipherCancelException();
         }
 
-        SecretKey skey = createSecretKey();
-
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        InputStream bis = new BufferedInputStream(new FileInputStream(file));
         try {
-            CryptUtils.decrypt(skey, bis, bos);
+            decryptFile(file, stat, os);
+            return true;
 
         } catch (GeneralSecurityException ex) {
             // パスフレーズが一致しないかドキュメントの選択を誤ったか、ファイルが破損しているなど
             // 暗号化解除にかかる問題があった場合.
             evt.setCause(ex);
             if (firePreThrowException(evt).isCancel()) {
-                // キャンセルされた場合は結果をnullとして返す.
+                return false;
+            }
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * 暗号化されたファイルを指定して、読み込むと復号化されたデータが得られるストリームを開く.<br>
+     * データ全体をメモリに置かずに、必要な部分だけを順に復号化する.<br>
+     * ファイルがない場合や復号化がキャンセルされた場合はnullを返す.<br>
+     * 
+     * @param file
+     *            暗号化されたファイル
+     * @return 入力ストリーム、もしくはnull
+     * @throws IOException
+     *             失敗
+     */
+    public InputStream openDecryptStream(File file) throws IOException {
+        if (file == null || statFile(file) == null) {
+            return null;
+        }
+
+        // パスフレーズが設定されているか確認する.
+        SymCipherEvent evt = new SymCipherEvent(this, false, file);
+        if (firePreDecryption(evt).isCancel()) {
+            throw new CipherCancelException();
+        }
+
+        SecretKey skey = createSecretKey();
+        recoverChunkedFile(file);
+        InputStream bis = new BufferedInputStream(storage.openRead(file, 0,
+                -1));
+        try {
+            InputStream is = CryptUtils.openDecryptStream(skey, bis);
+            bis = null;
+            return is;
+
+        } catch (GeneralSecurityException ex) {
+            evt.setCause(ex);
+            if (firePreThrowException(evt).isCancel()) {
                 return null;
             }
             throw new IOException(ex);
 
         } finally {
-            bis.close();
+            if (bis != null) {
+                bis.close();
+            }
+        }
+    }
+
+    /**
+     * アーカイブを開いて目次を読み込む.<br>
+     * 復号化がキャンセルされた場合はnullを返す.<br>
+     * アーカイブはローカルのファイルシステムの格納先でのみ扱える.<br>
+     * 
+     * @param file
+     *            アーカイブのファイル
+     * @param writable
+     *            書き込み可能として開くか?
+     * @return アーカイブ、もしくはnull
+     * @throws IOException
+     *             アーカイブでないか、読み込みに失敗した場合
+     */
+    public PackedArchive openArchive(File file, boolean writable)
+            throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!storage.isLocal()) {
+            throw new IOException("archive requires a local storage. " + file);
+        }
+
+        // パスフレーズが設定されているか確認する.
+        SymCipherEvent evt = new SymCipherEvent(this, false, file);
+        if (firePreDecryption(evt).isCancel()) {
+            throw new CipherCancelException();
         }
 
+        SecretKey skey = createSecretKey();
+        TraceEvent trace = TraceEventType.DECRYPT.begin();
+        trace.setFile(file);
+        trace.setDetail("archive");
+        try {
+            return PackedArchive.open(skey, file, writable);
+
+        } catch (GeneralSecurityException ex) {
+            evt.setCause(ex);
+            if (firePreThrowException(evt).isCancel()) {
+                return null;
+            }
+            throw new IOException(ex);
+
+        } finally {
+            trace.commit();
+        }
+    }
+
+    /**
+     * 空のアーカイブを作成する.<br>
+     * ファイルがあれば置き換える.<br>
+     * アーカイブはローカルのファイルシステムの格納先でのみ扱える.<br>
+     * 
+     * @param file
+     *            アーカイブのファイル
+     * @return 書き込み可能なアーカイブ
+     * @throws IOException
+     *             失敗
+     */
+    public PackedArchive createArchive(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!storage.isLocal()) {
+            throw new IOException("archive requires a local storage. " + file);
+        }
+
+        // パスフレーズが設定されているか確認する.
+        SymCipherEvent evt = new SymCipherEvent(this, true, file);
+        if (firePreEncryption(evt).isCancel()) {
+            throw new CipherCancelException();
+        }
+
+        SecretKey skey = createSecretKey();
+        try {
+            return PackedArchive.create(skey, file);
+
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * イベントを通知せずにファイルを復号化する.<br>
+     * パスフレーズの入力や例外の表示などのUIを伴わないため、バックグラウンドでの先読みに用いる.<br>
+     * パスフレーズが設定済みであることは呼び出し元で確認すること.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @return 復号化されたデータ、ファイルが存在しない場合はnull
+     * @throws IOException
+     *             ファイルの読み込みに失敗した場合
+     * @throws GeneralSecurityException
+     *             パスフレーズが一致しないなど、復号化に失敗した場合
+     */
+    public byte[] decryptQuietly(File file) throws IOException,
+            GeneralSecurityException {
+        StorageStat stat = (file != null) ? statFile(file) : null;
+        if (stat == null) {
+            return null;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        decryptFile(file, stat, bos);
         return bos.toByteArray();
     }
 
+    /**
+     * ファイルを復号化する.
+     * 
+     * @param file
+     *            ファイル
+     * @param stat
+     *            ファイルの情報
+     * @param bos
+     *            復号化されたデータの出力先
+     * @throws IOException
+     *             ファイルの読み込みに失敗した場合
+     * @throws GeneralSecurityException
+     *             復号化に失敗した場合
+     */
+    private void decryptFile(File file, StorageStat stat, OutputStream bos)
+            throws IOException, GeneralSecurityException {
+        SecretKey skey = createSecretKey();
+
+        TraceEvent trace = TraceEventType.DECRYPT.begin();
+        trace.setFile(file);
+        trace.setSize(stat.getLength());
+
+        recoverChunkedFile(file);
+        InputStream bis = new BufferedInputStream(storage.openRead(file, 0,
+                -1));
+        try {
+            CryptUtils.decrypt(skey, bis, bos);
+
+        } finally {
+            bis.close();
+            trace.commit();
+        }
+    }
+
+    /**
+     * ローカルの格納先であれば、中断されたチャンク形式の保存のジャーナルを反映する.<br>
+     * (チャンク形式の書き込みはローカルの格納先のみで行う.)<br>
+     * 
+     * @param file
+     *            ファイル
+     * @throws IOException
+     *             反映できなかった場合
+     */
+    private void recoverChunkedFile(File file) throws IOException {
+        if (storage.isLocal()) {
+            ChunkedCipherFile.recover(file);
+        }
+    }
+
     /**
      * ファイルを安全に削除する.<br>
      * すでにファイルが存在しなければ何もしない.<br>
+     * ローカルのファイルシステム以外の格納先では、上書きせずに削除する.<br>
      * 
      * @param file
      *            削除するファイル.
      * @throws IOException
      */
     public void delete(File file) throws IOException {
-        if (file == null || !file.exists()) {
+        if (file == null || storage.stat(file) == null) {
             return;
         }
-        CryptUtils.erase(file);
+        CryptUtils.erase(storage, file);
     }
 }
@@ -0,0 +1,393 @@
+package jp.seraphyware.cryptnotepad.crypt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKey;
+
+/**
+ * 古いキーで暗号化されたファイルを新しいキーで暗号化しなおす.<br>
+ * パスフレーズまたはキーファイルを変更した場合に、既存のファイルを一括で切り替えるために用いる.<br>
+ * キーの生成は構築時に1回だけ行い、以降は複数スレッドから同時に{@link #rekey(File)}を呼び出してよい.<br>
+ * <br>
+ * エンベロープ形式のファイルは、ヘッダのデータキーを新しいキーでラップしなおすだけで完了する.<br>
+ * 従来形式のファイルは全体を暗号化しなおす.(新しい暗号化器がエンベロープ形式であれば、エンベロープ形式に変換される.)<br>
+ * 従来形式のファイルは以下の手順で置き換える.<br>
+ * <ol>
+ * <li>古いキーで復号化し、新しいキーで一時ファイル(*.rekey-tmp)に暗号化してディスクに同期する.</li>
+ * <li>元のファイルをバックアップ(*.rekey-bak)に改名する.</li>
+ * <li>一時ファイルを元のファイル名に改名する.</li>
+ * <li>バックアップを消去し、ジャーナルに完了を記録する.</li>
+ * </ol>
+ * どの段階で中断しても、再実行時に残された一時ファイルとバックアップから状態を判定して続行できる.<br>
+ * ジャーナルに記録される前に中断した場合でも、新しいキーで復号化できるファイルは処理済みとみなす.<br>
+ * 
+ * @author seraphy
+ */
+public class SymCipherRekeyer {
+
+    /**
+     * 1ファイルの処理結果
+     */
+    public enum Result {
+
+        /**
+         * 新しいキーで暗号化しなおした
+         */
+        REKEYED,
+
+        /**
+         * エンベロープ形式のデータキーをラップしなおした
+         */
+        REWRAPPED,
+
+        /**
+         * 中断されていた処理を完了させた
+         */
+        RECOVERED,
+
+        /**
+         * すでに新しいキーで暗号化されていた
+         */
+        SKIPPED
+    }
+
+    /**
+     * 復号化されたデータが正しいか検証するためのインターフェイス.<br>
+     * 誤ったキーで復号化しても、まれにパディングが一致して例外にならないことがあるため、
+     * データの形式から正しく復号化できたかを判定する.<br>
+     */
+    public interface PlainDataVerifier {
+
+        /**
+         * 復号化されたデータが正しいか?
+         * 
+         * @param data
+         *            復号化されたデータ
+         * @return 正しければtrue
+         */
+        boolean verify(byte[] data);
+    }
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger
+            .getLogger(SymCipherRekeyer.class.getName());
+
+    /**
+     * 一時ファイルの拡張子
+     */
+    public static final String TMP_SUFFIX = ".rekey-tmp";
+
+    /**
+     * バックアップファイルの拡張子
+     */
+    public static final String BAK_SUFFIX = ".rekey-bak";
+
+    /**
+     * 古いキー
+     */
+    private final SecretKey oldKey;
+
+    /**
+     * 新しいキー
+     */
+    private final SecretKey newKey;
+
+    /**
+     * 暗号化しなおす場合にエンベロープ形式を用いるか?
+     */
+    private final boolean envelopeEncryption;
+
+    /**
+     * 復号化されたデータの検証
+     */
+    private final PlainDataVerifier verifier;
+
+    /**
+     * ジャーナル
+     */
+    private final RekeyJournal journal;
+
+    /**
+     * コンストラクタ.<br>
+     * 古いキーと新しいキーを生成し、ジャーナルを開く.<br>
+     * 
+     * @param oldCipher
+     *            現在のパスフレーズとキーファイルの暗号化器
+     * @param newCipher
+     *            新しいパスフレーズとキーファイルの暗号化器
+     * @param verifier
+     *            復号化されたデータの検証
+     * @param journalFile
+     *            ジャーナルファイル
+     * @throws IOException
+     *             ジャーナルが開けない場合
+     */
+    public SymCipherRekeyer(SymCipher oldCipher, SymCipher newCipher,
+            PlainDataVerifier verifier, File journalFile) throws IOException {
+        if (oldCipher == null || newCipher == null || verifier == null
+                || journalFile == null) {
+            throw new IllegalArgumentException();
+        }
+        this.oldKey = oldCipher.createSecretKey();
+        this.newKey = newCipher.createSecretKey();
+        this.envelopeEncryption = newCipher.isEnvelopeEncryption();
+        this.verifier = verifier;
+
+        if (Arrays.equals(oldKey.getEncoded(), newKey.getEncoded())) {
+            throw new IllegalArgumentException(
+                    "the new key is same as the old key.");
+        }
+
+        this.journal = new RekeyJournal(journalFile, newKey);
+    }
+
+    /**
+     * 一時ファイルまたはバックアップファイルであれば、その元となるファイルを返す.
+     * 
+     * @param file
+     *            ファイル
+     * @return 元のファイル、一時ファイルでもバックアップファイルでもなければnull
+     */
+    public static File getOriginalFile(File file) {
+        String path = file.getPath();
+        if (path.endsWith(TMP_SUFFIX)) {
+            return new File(path.substring(0, path.length()
+                    - TMP_SUFFIX.length()));
+        }
+        if (path.endsWith(BAK_SUFFIX)) {
+            return new File(path.substring(0, path.length()
+                    - BAK_SUFFIX.length()));
+        }
+        return null;
+    }
+
+    /**
+     * 1つのファイルを新しいキーで暗号化しなおす.<br>
+     * 前回中断された処理の一時ファイルやバックアップが残っていれば、その続きから処理する.<br>
+     * 
+     * @param file
+     *            暗号化されたファイル
+     * @return 処理結果
+     * @throws IOException
+     *             失敗
+     */
+    public Result rekey(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        File bakFile = new File(file.getPath() + BAK_SUFFIX);
+
+        if (!file.exists()) {
+            if (bakFile.exists() && tmpFile.exists()) {
+                // 元ファイルをバックアップに改名した後で中断した場合.
+                // 一時ファイルは同期済みであるため、そのまま置き換える.
+                rename(tmpFile, file);
+                CryptUtils.erase(bakFile);
+                journal.markDone(file);
+                return Result.RECOVERED;
+            }
+            if (bakFile.exists()) {
+                // 通常は起こり得ないが、元ファイルを戻して最初からやり直す.
+                rename(bakFile, file);
+            } else {
+                throw new FileNotFoundException(file.getPath());
+            }
+        }
+
+        if (bakFile.exists()) {
+            // 一時ファイルを元ファイル名に改名した後で中断した場合.
+            if (decryptAndVerify(newKey, file) == null) {
+                throw new IOException("can't recover. " + file);
+            }
+            CryptUtils.erase(bakFile);
+            journal.markDone(file);
+            return Result.RECOVERED;
+        }
+
+        if (tmpFile.exists()) {
+            // 一時ファイルの書き込み中に中断した場合は破棄する.
+            CryptUtils.erase(tmpFile);
+        }
+
+        if (journal.isDone(file)) {
+            return Result.SKIPPED;
+        }
+
+        if (CryptUtils.isEnvelope(file)) {
+            return rewrap(file);
+        }
+
+        byte[] data = decryptAndVerify(oldKey, file);
+        if (data == null) {
+            if (decryptAndVerify(newKey, file) != null) {
+                // ジャーナルに記録する前に中断したか、すでに新しいキーのファイル.
+                journal.markDone(file);
+                return Result.SKIPPED;
+            }
+            throw new IOException("can't decrypt with the old key. " + file);
+        }
+
+        try {
+            writeEncrypted(data, tmpFile);
+
+        } finally {
+            Arrays.fill(data, (byte) 0);
+        }
+
+        rename(file, bakFile);
+        rename(tmpFile, file);
+        CryptUtils.erase(bakFile);
+
+        journal.markDone(file);
+        logger.log(Level.FINE, "rekeyed. " + file);
+        return Result.REKEYED;
+    }
+
+    /**
+     * エンベロープ形式のファイルのデータキーをラップしなおす.<br>
+     * 古いキーでデータキーを復元できず、新しいキーで復元できる場合は処理済みとみなす.<br>
+     * 
+     * @param file
+     *            エンベロープ形式のファイル
+     * @return 処理結果
+     * @throws IOException
+     *             失敗
+     */
+    private Result rewrap(File file) throws IOException {
+        try {
+            CryptUtils.rewrapKey(file, oldKey, newKey);
+
+        } catch (GeneralSecurityException ex) {
+            if (decryptAndVerify(newKey, file) != null) {
+                // ジャーナルに記録する前に中断したか、すでに新しいキーのファイル.
+                journal.markDone(file);
+                return Result.SKIPPED;
+            }
+            throw new IOException("can't unwrap with the old key. " + file, ex);
+        }
+
+        journal.markDone(file);
+        logger.log(Level.FINE, "rewrapped. " + file);
+        return Result.REWRAPPED;
+    }
+
+    /**
+     * ファイルを復号化し、データを検証する.
+     * 
+     * @param key
+     *            キー
+     * @param file
+     *            ファイル
+     * @return 復号化されたデータ、復号化できないか検証に失敗した場合はnull
+     * @throws IOException
+     *             ファイルの読み込みに失敗した場合
+     */
+    private byte[] decryptAndVerify(SecretKey key, File file)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            CryptUtils.decrypt(key, is, bos);
+
+        } catch (GeneralSecurityException ex) {
+            logger.log(Level.FINE, "decryption failed. " + file, ex);
+            return null;
+
+        } finally {
+            is.close();
+        }
+
+        byte[] data = bos.toByteArray();
+        if (!verifier.verify(data)) {
+            Arrays.fill(data, (byte) 0);
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * 新しいキーで暗号化してファイルに書き込み、ディスクに同期する.
+     * 
+     * @param data
+     *            データ
+     * @param file
+     *            出力先ファイル
+     * @throws IOException
+     *             失敗
+     */
+    private void writeEncrypted(byte[] data, File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            OutputStream bos = new BufferedOutputStream(fos);
+            InputStream is = new ByteArrayInputStream(data);
+            if (envelopeEncryption) {
+                CryptUtils.encryptEnvelope(newKey, is, bos);
+            } else {
+                CryptUtils.encrypt(newKey, is, bos);
+            }
+            bos.flush();
+            fos.getFD().sync();
+
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * ファイルを改名する.
+     * 
+     * @param src
+     *            改名元
+     * @param dest
+     *            改名先
+     * @throws IOException
+     *             改名できなかった場合
+     */
+    private static void rename(File src, File dest) throws IOException {
+        if (!src.renameTo(dest)) {
+            throw new IOException("can't rename. " + src + " to " + dest);
+        }
+    }
+
+    /**
+     * 完了済みとして記録されているファイル数
+     * 
+     * @return ファイル数
+     */
+    public int getDoneCount() {
+        return journal.getDoneCount();
+    }
+
+    /**
+     * ジャーナルを閉じる.<br>
+     * すべて完了した場合はジャーナルを削除する.<br>
+     * 
+     * @param completed
+     *            すべてのファイルの処理が完了した場合はtrue
+     * @throws IOException
+     *             失敗
+     */
+    public void close(boolean completed) throws IOException {
+        journal.close(completed);
+    }
+}
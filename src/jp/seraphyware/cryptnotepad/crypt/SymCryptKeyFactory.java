@@ -8,6 +8,9 @@ import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import jp.seraphyware.cryptnotepad.util.LatencyMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+
 /**
  * パスワードベース(PBKDF2WithHmacSHA1)を用いて、
  * AES用の対称暗号化キーを生成する.<br>
@@ -15,6 +18,12 @@ import javax.crypto.spec.SecretKeySpec;
  * @author seraphy
  */
 public class SymCryptKeyFactory {
+
+    /**
+     * 鍵導出の処理時間の計測値
+     */
+    private static final LatencyMetric createKeyMetric = Metrics
+            .latency(Metrics.CREATE_KEY);
     
     /**
      * 生成するキーのビット長.<br>
@@ -63,6 +72,7 @@ public class SymCryptKeyFactory {
             throw new IllegalArgumentException("パスフレーズまたはソルトの指定がありません.");
         }
 
+        long st = createKeyMetric.start();
         try {
             byte[] salt = saltProvider.getSalt();
             SecretKeyFactory factory = SecretKeyFactory
@@ -79,6 +89,9 @@ public class SymCryptKeyFactory {
         } catch (GeneralSecurityException ex) {
             // キー生成やアルゴリズムが選択できない場合は、環境の問題である.
             throw new RuntimeException(ex);
+
+        } finally {
+            createKeyMetric.stop(st, 0);
         }
     }   
 }
@@ -0,0 +1,1367 @@
+package jp.seraphyware.cryptnotepad.crypt;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ドキュメントの版の履歴を、重複を除いたチャンクとして保持する.<br>
+ * 保存するドキュメントの平文を内容によって境界を決めるチャンクに分割し、
+ * チャンクはキー付きハッシュ(HMAC-SHA256)をアドレスとして暗号化して格納する.<br>
+ * 同じアドレスのチャンクがすでにあれば格納しないため、版の間やドキュメントの間で共通する部分は1つだけ保持される.<br>
+ * 版ごとに、チャンクのアドレスの並びを暗号化したマニフェストを作成する.<br>
+ * <br>
+ * 格納先は次のとおり.<br>
+ * 
+ * <pre>
+ * store.key                    ストアのマスターキー(エンベロープ形式で暗号化)
+ * chunks/xx/アドレス            チャンク(IV + AES/CBC/PKCS5Padding)
+ * manifests/ドキュメント/版.rev  マニフェスト(IV + AES/CBC/PKCS5Padding)
+ * </pre>
+ * 
+ * チャンクとマニフェストを暗号化するキーとアドレスのキーは、マスターキーから導出する.<br>
+ * マスターキーはパスフレーズとキーファイルから生成したキーでラップされているため、
+ * パスフレーズを変更する場合はstore.keyをラップしなおせばよい.<br>
+ * ドキュメントのディレクトリ名はドキュメントの相対パスのキー付きハッシュである.<br>
+ * 参照されなくなったチャンクは{@link #gc(long)}で削除する.<br>
+ * 
+ * @author seraphy
+ */
+public class VersionStore {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(VersionStore.class
+            .getName());
+
+    /**
+     * コンテンツディレクトリ下のストアのディレクトリ名
+     */
+    public static final String DIR_NAME = ".versions";
+
+    /**
+     * 参照されなくなったチャンクを削除するまでの猶予期間の既定値(mSec).<br>
+     * 保存中でマニフェストがまだ作成されていないチャンクを削除しないためである.<br>
+     */
+    public static final long DEFAULT_GC_GRACE = 60 * 60 * 1000L;
+
+    /**
+     * マスターキーのファイル名
+     */
+    private static final String KEY_FILE_NAME = "store.key";
+
+    /**
+     * チャンクのディレクトリ名
+     */
+    private static final String CHUNKS_DIR = "chunks";
+
+    /**
+     * マニフェストのディレクトリ名
+     */
+    private static final String MANIFESTS_DIR = "manifests";
+
+    /**
+     * マニフェストの拡張子
+     */
+    private static final String MANIFEST_SUFFIX = ".rev";
+
+    /**
+     * 書き込み中の一時ファイルの拡張子
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * マニフェストの形式のバージョン
+     */
+    private static final int MANIFEST_VERSION = 1;
+
+    /**
+     * マスターキーのサイズ
+     */
+    private static final int MASTER_KEY_SIZE = 32;
+
+    /**
+     * 暗号化方式
+     */
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    /**
+     * キー付きハッシュの方式
+     */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * IVのサイズ
+     */
+    private static final int IV_SIZE = 16;
+
+    /**
+     * アドレスのサイズ
+     */
+    private static final int ADDRESS_SIZE = 32;
+
+    /**
+     * ドキュメントのディレクトリ名の長さ(16進数の桁数)
+     */
+    private static final int DOCUMENT_DIR_LENGTH = 40;
+
+    /**
+     * ストアのディレクトリ
+     */
+    private final File storeDir;
+
+    /**
+     * 対象とするドキュメントのルートディレクトリ(ストアの親ディレクトリ)
+     */
+    private final File baseDir;
+
+    /**
+     * マスターキーをラップするキーを生成する暗号
+     */
+    private final SymCipher symCipher;
+
+    /**
+     * 乱数
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * 導出したキー、まだ読み込んでいなければnull
+     */
+    private Keys keys;
+
+    /**
+     * マスターキーから導出したキー
+     */
+    private static final class Keys {
+
+        /**
+         * マスターキーのラップに用いたキー
+         */
+        final SecretKey kek;
+
+        /**
+         * チャンクとマニフェストを暗号化するキー
+         */
+        final SecretKey encKey;
+
+        /**
+         * アドレスのキー
+         */
+        final SecretKey macKey;
+
+        /**
+         * チャンクの境界を決めるGearハッシュのテーブル
+         */
+        final long[] gear = new long[256];
+
+        Keys(SecretKey kek, byte[] master) throws GeneralSecurityException {
+            this.kek = kek;
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(master, MAC_ALGORITHM));
+
+            byte[] enc = mac.doFinal(label("encryption"));
+            byte[] address = mac.doFinal(label("address"));
+            try {
+                encKey = new SecretKeySpec(enc, 0, 16, "AES");
+                macKey = new SecretKeySpec(address, MAC_ALGORITHM);
+
+            } finally {
+                Arrays.fill(enc, (byte) 0);
+                Arrays.fill(address, (byte) 0);
+            }
+
+            for (int blk = 0; blk < gear.length / 4; blk++) {
+                mac.update(label("gear"));
+                mac.update((byte) blk);
+                byte[] hash = mac.doFinal();
+                for (int idx = 0; idx < 4; idx++) {
+                    long v = 0;
+                    for (int pos = 0; pos < 8; pos++) {
+                        v = (v << 8) | (hash[idx * 8 + pos] & 0xff);
+                    }
+                    gear[blk * 4 + idx] = v;
+                }
+            }
+        }
+
+        private static byte[] label(String name) {
+            try {
+                return name.getBytes("UTF-8");
+
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * 版
+     */
+    public static final class Revision {
+
+        /**
+         * ドキュメントの相対パス
+         */
+        private final String documentPath;
+
+        /**
+         * 版番号(1から)
+         */
+        private final int number;
+
+        /**
+         * 保存日時
+         */
+        private final long timestamp;
+
+        /**
+         * データ長
+         */
+        private final long length;
+
+        /**
+         * この版で新たに格納したチャンクのバイト数
+         */
+        private final long storedBytes;
+
+        /**
+         * チャンクのアドレス
+         */
+        private final byte[][] addresses;
+
+        /**
+         * チャンクの長さ
+         */
+        private final int[] lengths;
+
+        Revision(String documentPath, int number, long timestamp, long length,
+                long storedBytes, byte[][] addresses, int[] lengths) {
+            this.documentPath = documentPath;
+            this.number = number;
+            this.timestamp = timestamp;
+            this.length = length;
+            this.storedBytes = storedBytes;
+            this.addresses = addresses;
+            this.lengths = lengths;
+        }
+
+        public String getDocumentPath() {
+            return documentPath;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getStoredBytes() {
+            return storedBytes;
+        }
+
+        public int getChunkCount() {
+            return addresses.length;
+        }
+
+        /**
+         * 基準の版に含まれないチャンクのバイト数を取得する.<br>
+         * この版を基準の版から作るために必要なデータ量である.<br>
+         * 
+         * @param base
+         *            基準の版、nullの場合はこの版のすべてのチャンク
+         * @return バイト数
+         */
+        public long getDiffSize(Revision base) {
+            Set<String> baseAddresses = new HashSet<String>();
+            if (base != null) {
+                for (byte[] address : base.addresses) {
+                    baseAddresses.add(toHex(address));
+                }
+            }
+            long size = 0;
+            for (int idx = 0; idx < addresses.length; idx++) {
+                if (baseAddresses.add(toHex(addresses[idx]))) {
+                    size += lengths[idx];
+                }
+            }
+            return size;
+        }
+
+        /**
+         * 同じ内容の版であるか?
+         * 
+         * @param other
+         *            比較する版
+         * @return チャンクの並びが同じであればtrue
+         */
+        boolean isSameContent(Revision other) {
+            return other != null && length == other.length
+                    && Arrays.deepEquals(addresses, other.addresses);
+        }
+
+        @Override
+        public String toString() {
+            return "Revision(" + documentPath + "#" + number + ", length="
+                    + length + ", chunks=" + addresses.length + ", stored="
+                    + storedBytes + ")";
+        }
+    }
+
+    /**
+     * 参照されなくなったチャンクの削除の結果
+     */
+    public static final class GcResult {
+
+        /**
+         * 参照されているチャンクの数
+         */
+        private final int liveChunks;
+
+        /**
+         * 削除したチャンクの数
+         */
+        private final int deletedChunks;
+
+        /**
+         * 削除したチャンクのファイルサイズの合計
+         */
+        private final long freedBytes;
+
+        GcResult(int liveChunks, int deletedChunks, long freedBytes) {
+            this.liveChunks = liveChunks;
+            this.deletedChunks = deletedChunks;
+            this.freedBytes = freedBytes;
+        }
+
+        public int getLiveChunks() {
+            return liveChunks;
+        }
+
+        public int getDeletedChunks() {
+            return deletedChunks;
+        }
+
+        public long getFreedBytes() {
+            return freedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "live=" + liveChunks + ", deleted=" + deletedChunks
+                    + ", freed=" + freedBytes;
+        }
+    }
+
+    /**
+     * コンストラクタ
+     * 
+     * @param storeDir
+     *            ストアのディレクトリ(ドキュメントのルートディレクトリ下の{@link #DIR_NAME})
+     * @param symCipher
+     *            マスターキーをラップするキーを生成する暗号
+     */
+    public VersionStore(File storeDir, SymCipher symCipher) {
+        if (storeDir == null || symCipher == null) {
+            throw new IllegalArgumentException();
+        }
+        this.storeDir = storeDir.getAbsoluteFile();
+        this.baseDir = this.storeDir.getParentFile();
+        this.symCipher = symCipher;
+    }
+
+    /**
+     * ディレクトリが版の履歴のストアであるか判定する.
+     * 
+     * @param dir
+     *            ディレクトリ
+     * @return ストアであればtrue
+     */
+    public static boolean isStoreDir(File dir) {
+        return dir != null && DIR_NAME.equals(dir.getName());
+    }
+
+    /**
+     * ストアのマスターキーのファイルを取得する.<br>
+     * パスフレーズを変更する場合は、このファイルをラップしなおす必要がある.<br>
+     * 
+     * @param storeDir
+     *            ストアのディレクトリ
+     * @return マスターキーのファイル
+     */
+    public static File getKeyFile(File storeDir) {
+        return new File(storeDir, KEY_FILE_NAME);
+    }
+
+    public File getStoreDir() {
+        return storeDir;
+    }
+
+    /**
+     * ファイルに対するドキュメントの相対パスを取得する.
+     * 
+     * @param file
+     *            暗号化ファイル
+     * @return 相対パス(区切りは/)、ルートディレクトリ下にないかストアの中の場合はnull
+     * @throws IOException
+     *             パスを正規化できない場合
+     */
+    public String getDocumentPath(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        String base = baseDir.getCanonicalPath() + File.separator;
+        String path = file.getCanonicalPath();
+        if (!path.startsWith(base)) {
+            return null;
+        }
+        String relativePath = path.substring(base.length()).replace(
+                File.separatorChar, '/');
+        if (relativePath.length() == 0 || relativePath.equals(DIR_NAME)
+                || relativePath.startsWith(DIR_NAME + "/")) {
+            return null;
+        }
+        return relativePath;
+    }
+
+    /**
+     * ドキュメントの保存を版として記録する準備をする.<br>
+     * 返されたレコーダーでストリームをラップして保存し、保存に成功したら
+     * {@link Recorder#commit()}、失敗したら{@link Recorder#abort()}を呼び出す.<br>
+     * 
+     * @param file
+     *            暗号化ファイル
+     * @return レコーダー、ファイルがルートディレクトリ下にない場合はnull
+     * @throws IOException
+     *             パスを正規化できない場合
+     */
+    public Recorder record(File file) throws IOException {
+        String documentPath = getDocumentPath(file);
+        if (documentPath == null) {
+            return null;
+        }
+        return new Recorder(documentPath);
+    }
+
+    /**
+     * ドキュメントの版の一覧を取得する.
+     * 
+     * @param file
+     *            暗号化ファイル
+     * @return 版の一覧(古い順)、なければ空
+     * @throws IOException
+     *             失敗
+     */
+    public List<Revision> list(File file) throws IOException {
+        String documentPath = getDocumentPath(file);
+        if (documentPath == null) {
+            return Collections.emptyList();
+        }
+        try {
+            Keys keys = getKeys();
+            List<Revision> revisions = new ArrayList<Revision>();
+            for (int number : listNumbers(getDocumentDir(keys, documentPath))) {
+                Revision revision = readManifest(keys,
+                        getManifestFile(keys, documentPath, number));
+                if (!documentPath.equals(revision.getDocumentPath())) {
+                    throw new IOException("invalid manifest. " + documentPath
+                            + "#" + number);
+                }
+                revisions.add(revision);
+            }
+            return revisions;
+
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * ドキュメントの指定した版を取得する.
+     * 
+     * @param file
+     *            暗号化ファイル
+     * @param number
+     *            版番号
+     * @return 版、なければnull
+     * @throws IOException
+     *             失敗
+     */
+    public Revision getRevision(File file, int number) throws IOException {
+        for (Revision revision : list(file)) {
+            if (revision.getNumber() == number) {
+                return revision;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 版の内容(保存したドキュメントの平文)を読み込むストリームを開く.<br>
+     * チャンクは読み込むときに復号化し、アドレスと一致することを検証する.<br>
+     * 
+     * @param revision
+     *            版
+     * @return 入力ストリーム
+     * @throws IOException
+     *             失敗
+     */
+    public InputStream openRevision(Revision revision) throws IOException {
+        if (revision == null) {
+            throw new IllegalArgumentException();
+        }
+        try {
+            return new RevisionInputStream(getKeys(), revision);
+
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * ドキュメントの古い版のマニフェストを削除し、新しい版のみ残す.<br>
+     * チャンクは削除しないため、{@link #gc(long)}で削除すること.<br>
+     * 
+     * @param file
+     *            暗号化ファイル
+     * @param keep
+     *            残す版の数(1以上)
+     * @return 削除した版の数
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized int prune(File file, int keep) throws IOException {
+        if (keep < 1) {
+            throw new IllegalArgumentException("invalid keep: " + keep);
+        }
+        String documentPath = getDocumentPath(file);
+        if (documentPath == null) {
+            return 0;
+        }
+        try {
+            Keys keys = getKeys();
+            List<Integer> numbers = listNumbers(getDocumentDir(keys,
+                    documentPath));
+            int count = 0;
+            for (int idx = 0; idx < numbers.size() - keep; idx++) {
+                File manifestFile = getManifestFile(keys, documentPath,
+                        numbers.get(idx));
+                if (!manifestFile.delete()) {
+                    throw new IOException("can't delete. " + manifestFile);
+                }
+                count++;
+            }
+            return count;
+
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * どの版からも参照されていないチャンクを削除する.<br>
+     * すべてのマニフェストを読み込めなければ、何も削除せずに例外とする.<br>
+     * 保存中のチャンクを削除しないように、更新日時が猶予期間内のものは削除しない.<br>
+     * 
+     * @param grace
+     *            猶予期間(mSec)
+     * @return 結果
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized GcResult gc(long grace) throws IOException {
+        if (grace < 0) {
+            throw new IllegalArgumentException();
+        }
+        Set<String> live = new HashSet<String>();
+        try {
+            Keys keys = getKeys();
+            File[] docDirs = new File(storeDir, MANIFESTS_DIR).listFiles();
+            if (docDirs != null) {
+                for (File docDir : docDirs) {
+                    for (int number : listNumbers(docDir)) {
+                        Revision revision = readManifest(keys, new File(docDir,
+                                formatNumber(number)));
+                        for (byte[] address : revision.addresses) {
+                            live.add(toHex(address));
+                        }
+                    }
+                }
+            }
+
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+
+        long threshold = System.currentTimeMillis() - grace;
+        int deleted = 0;
+        long freedBytes = 0;
+        File[] chunkDirs = new File(storeDir, CHUNKS_DIR).listFiles();
+        if (chunkDirs != null) {
+            for (File chunkDir : chunkDirs) {
+                File[] chunkFiles = chunkDir.listFiles();
+                if (chunkFiles == null) {
+                    continue;
+                }
+                for (File chunkFile : chunkFiles) {
+                    if (live.contains(chunkFile.getName())
+                            || chunkFile.lastModified() >= threshold) {
+                        continue;
+                    }
+                    long size = chunkFile.length();
+                    if (chunkFile.delete()) {
+                        deleted++;
+                        freedBytes += size;
+                    }
+                }
+            }
+        }
+        logger.log(Level.INFO, "version store gc. " + storeDir + " live="
+                + live.size() + ", deleted=" + deleted + ", freed="
+                + freedBytes);
+        return new GcResult(live.size(), deleted, freedBytes);
+    }
+
+    /**
+     * マスターキーから導出したキーを取得する.<br>
+     * マスターキーがなければ作成する.<br>
+     * パスフレーズかキーファイルが変更されていれば、マスターキーを読み込みなおす.<br>
+     * 
+     * @return キー
+     * @throws IOException
+     *             マスターキーを読み書きできない場合
+     * @throws GeneralSecurityException
+     *             マスターキーを復元できない場合
+     */
+    private synchronized Keys getKeys() throws IOException,
+            GeneralSecurityException {
+        SecretKey kek = symCipher.createSecretKey();
+        if (keys != null && keys.kek == kek) {
+            return keys;
+        }
+
+        File keyFile = getKeyFile(storeDir);
+        byte[] master;
+        if (keyFile.exists()) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            InputStream is = new BufferedInputStream(new FileInputStream(
+                    keyFile));
+            try {
+                CryptUtils.decrypt(kek, is, bos);
+
+            } finally {
+                is.close();
+            }
+            master = bos.toByteArray();
+            if (master.length != MASTER_KEY_SIZE) {
+                throw new IOException("invalid store key. " + keyFile);
+            }
+
+        } else {
+            master = new byte[MASTER_KEY_SIZE];
+            random.nextBytes(master);
+
+            if (!storeDir.isDirectory() && !storeDir.mkdirs()) {
+                throw new IOException("can't create the directory. "
+                        + storeDir);
+            }
+            File tmpFile = new File(storeDir, KEY_FILE_NAME + TMP_SUFFIX);
+            OutputStream os = new FileOutputStream(tmpFile);
+            try {
+                CryptUtils.encryptEnvelope(kek,
+                        new ByteArrayInputStream(master), os);
+
+            } finally {
+                os.close();
+            }
+            if (!tmpFile.renameTo(keyFile)) {
+                tmpFile.delete();
+                throw new IOException("can't create the store key. "
+                        + keyFile);
+            }
+            logger.log(Level.INFO, "version store created. " + storeDir);
+        }
+
+        try {
+            keys = new Keys(kek, master);
+
+        } finally {
+            Arrays.fill(master, (byte) 0);
+        }
+        return keys;
+    }
+
+    /**
+     * ドキュメントのマニフェストのディレクトリを取得する.
+     * 
+     * @param keys
+     *            キー
+     * @param documentPath
+     *            ドキュメントの相対パス
+     * @return ディレクトリ
+     * @throws GeneralSecurityException
+     *             失敗
+     */
+    private File getDocumentDir(Keys keys, String documentPath)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(keys.macKey);
+        mac.update(Keys.label("path:"));
+        String name = toHex(mac.doFinal(Keys.label(documentPath))).substring(
+                0, DOCUMENT_DIR_LENGTH);
+        return new File(new File(storeDir, MANIFESTS_DIR), name);
+    }
+
+    private File getManifestFile(Keys keys, String documentPath, int number)
+            throws GeneralSecurityException {
+        return new File(getDocumentDir(keys, documentPath),
+                formatNumber(number));
+    }
+
+    private static String formatNumber(int number) {
+        return String.format("%08d", number) + MANIFEST_SUFFIX;
+    }
+
+    /**
+     * ドキュメントのディレクトリにある版番号の一覧を取得する.
+     * 
+     * @param docDir
+     *            ドキュメントのディレクトリ
+     * @return 版番号(昇順)
+     */
+    private static List<Integer> listNumbers(File docDir) {
+        List<Integer> numbers = new ArrayList<Integer>();
+        String[] names = docDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.endsWith(MANIFEST_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    numbers.add(Integer.valueOf(name.substring(0, name.length()
+                            - MANIFEST_SUFFIX.length())));
+
+                } catch (NumberFormatException ex) {
+                    logger.log(Level.FINE, "ignore. " + name);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * チャンクのファイルを取得する.
+     * 
+     * @param hex
+     *            アドレス(16進数)
+     * @return ファイル
+     */
+    private File getChunkFile(String hex) {
+        File chunkDir = new File(new File(storeDir, CHUNKS_DIR),
+                hex.substring(0, 2));
+        return new File(chunkDir, hex);
+    }
+
+    /**
+     * チャンクを暗号化して格納する.<br>
+     * すでに格納されていれば、更新日時のみ更新する.<br>
+     * 
+     * @param keys
+     *            キー
+     * @param hex
+     *            アドレス(16進数)
+     * @param buf
+     *            バッファ
+     * @param off
+     *            位置
+     * @param len
+     *            長さ
+     * @return 新たに格納した場合はtrue
+     * @throws IOException
+     *             失敗
+     * @throws GeneralSecurityException
+     *             暗号化できない場合
+     */
+    private boolean storeChunk(Keys keys, String hex, byte[] buf, int off,
+            int len) throws IOException, GeneralSecurityException {
+        File chunkFile = getChunkFile(hex);
+        if (chunkFile.exists()) {
+            // 猶予期間内のチャンクはgcで削除されないため、参照されたことを記録する.
+            chunkFile.setLastModified(System.currentTimeMillis());
+            return false;
+        }
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, keys.encKey);
+        byte[] iv = cipher.getIV();
+        byte[] encbuf = cipher.doFinal(buf, off, len);
+
+        File chunkDir = chunkFile.getParentFile();
+        if (!chunkDir.isDirectory() && !chunkDir.mkdirs()) {
+            throw new IOException("can't create the directory. " + chunkDir);
+        }
+        writeAtomically(chunkFile, iv, encbuf);
+        return true;
+    }
+
+    /**
+     * 一時ファイルに書き込んでから改名する.<br>
+     * 改名先がすでにある場合は、同じ内容を書き込んだとみなす.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @param iv
+     *            IV
+     * @param encbuf
+     *            暗号化したデータ
+     * @throws IOException
+     *             失敗
+     */
+    private static void writeAtomically(File file, byte[] iv, byte[] encbuf)
+            throws IOException {
+        File tmpFile = File.createTempFile(file.getName(), TMP_SUFFIX,
+                file.getParentFile());
+        boolean success = false;
+        try {
+            OutputStream os = new FileOutputStream(tmpFile);
+            try {
+                os.write(iv);
+                os.write(encbuf);
+
+            } finally {
+                os.close();
+            }
+            success = tmpFile.renameTo(file) || file.exists();
+
+        } finally {
+            if (!success) {
+                tmpFile.delete();
+            }
+        }
+        if (!success) {
+            throw new IOException("can't rename. " + tmpFile);
+        }
+        tmpFile.delete();
+    }
+
+    /**
+     * 版を記録する.<br>
+     * 直前の版と同じ内容であれば記録しない.<br>
+     * 
+     * @param keys
+     *            キー
+     * @param documentPath
+     *            ドキュメントの相対パス
+     * @param timestamp
+     *            保存日時
+     * @param length
+     *            データ長
+     * @param storedBytes
+     *            新たに格納したチャンクのバイト数
+     * @param addresses
+     *            チャンクのアドレス
+     * @param lengths
+     *            チャンクの長さ
+     * @return 記録した版、もしくは同じ内容の直前の版
+     * @throws IOException
+     *             失敗
+     * @throws GeneralSecurityException
+     *             暗号化できない場合
+     */
+    private synchronized Revision writeManifest(Keys keys,
+            String documentPath, long timestamp, long length,
+            long storedBytes, byte[][] addresses, int[] lengths)
+            throws IOException, GeneralSecurityException {
+        File docDir = getDocumentDir(keys, documentPath);
+        List<Integer> numbers = listNumbers(docDir);
+        int number = 1;
+        if (!numbers.isEmpty()) {
+            int last = numbers.get(numbers.size() - 1);
+            Revision lastRevision = readManifest(keys, new File(docDir,
+                    formatNumber(last)));
+            Revision revision = new Revision(documentPath, last, timestamp,
+                    length, storedBytes, addresses, lengths);
+            if (revision.isSameContent(lastRevision)) {
+                return lastRevision;
+            }
+            number = last + 1;
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(MANIFEST_VERSION);
+        dos.writeUTF(documentPath);
+        dos.writeLong(timestamp);
+        dos.writeLong(length);
+        dos.writeLong(storedBytes);
+        dos.writeInt(addresses.length);
+        for (int idx = 0; idx < addresses.length; idx++) {
+            dos.write(addresses[idx]);
+            dos.writeInt(lengths[idx]);
+        }
+        dos.close();
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, keys.encKey);
+        byte[] iv = cipher.getIV();
+        byte[] encbuf = cipher.doFinal(bos.toByteArray());
+
+        if (!docDir.isDirectory() && !docDir.mkdirs()) {
+            throw new IOException("can't create the directory. " + docDir);
+        }
+        writeAtomically(new File(docDir, formatNumber(number)), iv, encbuf);
+        return new Revision(documentPath, number, timestamp, length,
+                storedBytes, addresses, lengths);
+    }
+
+    /**
+     * マニフェストを読み込む.
+     * 
+     * @param keys
+     *            キー
+     * @param manifestFile
+     *            マニフェストのファイル
+     * @return 版
+     * @throws IOException
+     *             失敗
+     * @throws GeneralSecurityException
+     *             復号化できない場合
+     */
+    private static Revision readManifest(Keys keys, File manifestFile)
+            throws IOException, GeneralSecurityException {
+        byte[] data = readFile(manifestFile);
+        if (data.length < IV_SIZE) {
+            throw new IOException("invalid manifest. " + manifestFile);
+        }
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, keys.encKey, new IvParameterSpec(
+                data, 0, IV_SIZE));
+        byte[] plain = cipher.doFinal(data, IV_SIZE, data.length - IV_SIZE);
+
+        String name = manifestFile.getName();
+        int number = Integer.parseInt(name.substring(0, name.length()
+                - MANIFEST_SUFFIX.length()));
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                plain));
+        int version = dis.readInt();
+        if (version != MANIFEST_VERSION) {
+            throw new IOException("unsupported version: " + version);
+        }
+        String documentPath = dis.readUTF();
+        long timestamp = dis.readLong();
+        long length = dis.readLong();
+        long storedBytes = dis.readLong();
+        int count = dis.readInt();
+        if (count < 0 || count > plain.length / (ADDRESS_SIZE + 4)) {
+            throw new IOException("invalid manifest. " + manifestFile);
+        }
+        byte[][] addresses = new byte[count][];
+        int[] lengths = new int[count];
+        for (int idx = 0; idx < count; idx++) {
+            addresses[idx] = new byte[ADDRESS_SIZE];
+            dis.readFully(addresses[idx]);
+            lengths[idx] = dis.readInt();
+        }
+        return new Revision(documentPath, number, timestamp, length,
+                storedBytes, addresses, lengths);
+    }
+
+    /**
+     * ファイル全体を読み込む.
+     * 
+     * @param file
+     *            ファイル
+     * @return データ
+     * @throws IOException
+     *             失敗
+     */
+    private static byte[] readFile(File file) throws IOException {
+        long size = file.length();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("too large. " + file);
+        }
+        byte[] data = new byte[(int) size];
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            dis.readFully(data);
+
+        } finally {
+            dis.close();
+        }
+        return data;
+    }
+
+    /**
+     * バイト列を16進数の文字列にする.
+     * 
+     * @param data
+     *            バイト列
+     * @return 16進数の文字列
+     */
+    private static String toHex(byte[] data) {
+        StringBuilder buf = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            buf.append(Character.forDigit((b >> 4) & 0x0f, 16));
+            buf.append(Character.forDigit(b & 0x0f, 16));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * ドキュメントの保存を版として記録するレコーダー.<br>
+     * ラップしたストリームから読み込まれたデータをチャンクに分割して格納し、
+     * {@link #commit()}でマニフェストを作成する.<br>
+     * 版の記録に失敗しても、ドキュメントの保存は妨げないように、
+     * ストリームの読み込みでは例外とせずに記録を中止する.<br>
+     */
+    public final class Recorder implements ContentDefinedChunker.ChunkHandler {
+
+        /**
+         * ドキュメントの相対パス
+         */
+        private final String documentPath;
+
+        /**
+         * キー、まだデータを受け取っていなければnull
+         */
+        private Keys recordKeys;
+
+        /**
+         * アドレスの計算
+         */
+        private Mac mac;
+
+        /**
+         * 分割器
+         */
+        private ContentDefinedChunker chunker;
+
+        /**
+         * チャンクのアドレス
+         */
+        private final List<byte[]> addresses = new ArrayList<byte[]>();
+
+        /**
+         * チャンクの長さ
+         */
+        private final List<Integer> lengths = new ArrayList<Integer>();
+
+        /**
+         * データ長
+         */
+        private long length;
+
+        /**
+         * 新たに格納したチャンクのバイト数
+         */
+        private long storedBytes;
+
+        /**
+         * 記録を中止したか?
+         */
+        private boolean failed;
+
+        Recorder(String documentPath) {
+            this.documentPath = documentPath;
+        }
+
+        /**
+         * 読み込んだデータを記録するストリームでラップする.<br>
+         * キーはデータを最初に読み込むときに取得するため、
+         * パスフレーズの確認の後に読み込まれるストリームであること.<br>
+         * 
+         * @param is
+         *            ドキュメントの平文のストリーム
+         * @return ラップしたストリーム
+         */
+        public InputStream wrap(InputStream is) {
+            return new FilterInputStream(is) {
+                @Override
+                public int read() throws IOException {
+                    int v = super.read();
+                    if (v >= 0) {
+                        feed(new byte[] { (byte) v }, 0, 1);
+                    }
+                    return v;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int rd = super.read(b, off, len);
+                    if (rd > 0) {
+                        feed(b, off, rd);
+                    }
+                    return rd;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    // 読み飛ばすと記録できないため、読み込んで捨てる.
+                    byte[] buf = new byte[(int) Math.min(n, 8192)];
+                    int rd = read(buf, 0, buf.length);
+                    return Math.max(rd, 0);
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * データを分割器に渡す.<br>
+         * 失敗した場合は記録を中止する.<br>
+         * 
+         * @param b
+         *            データ
+         * @param off
+         *            位置
+         * @param len
+         *            長さ
+         */
+        private void feed(byte[] b, int off, int len) {
+            if (failed) {
+                return;
+            }
+            try {
+                ensureChunker();
+                chunker.update(b, off, len);
+                length += len;
+
+            } catch (Exception ex) {
+                fail(ex);
+            }
+        }
+
+        private void ensureChunker() throws IOException,
+                GeneralSecurityException {
+            if (chunker == null) {
+                recordKeys = getKeys();
+                mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(recordKeys.macKey);
+                chunker = new ContentDefinedChunker(recordKeys.gear, this);
+            }
+        }
+
+        private void fail(Exception ex) {
+            failed = true;
+            logger.log(Level.WARNING, "can't record the revision. "
+                    + documentPath, ex);
+            if (chunker != null) {
+                chunker.wipe();
+            }
+        }
+
+        @Override
+        public void chunk(byte[] buf, int off, int len) throws IOException {
+            mac.update(buf, off, len);
+            byte[] address = mac.doFinal();
+            try {
+                if (storeChunk(recordKeys, toHex(address), buf, off, len)) {
+                    storedBytes += len;
+                }
+
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+            addresses.add(address);
+            lengths.add(len);
+        }
+
+        /**
+         * 保存に成功した場合に、版のマニフェストを作成する.
+         * 
+         * @return 記録した版、記録を中止した場合はnull
+         */
+        public Revision commit() {
+            if (failed) {
+                return null;
+            }
+            try {
+                ensureChunker();
+                chunker.finish();
+
+                int[] lens = new int[lengths.size()];
+                for (int idx = 0; idx < lens.length; idx++) {
+                    lens[idx] = lengths.get(idx);
+                }
+                Revision revision = writeManifest(recordKeys, documentPath,
+                        System.currentTimeMillis(), length, storedBytes,
+                        addresses.toArray(new byte[addresses.size()][]), lens);
+                logger.log(Level.FINE, "revision recorded. " + revision);
+                return revision;
+
+            } catch (Exception ex) {
+                fail(ex);
+                return null;
+
+            } finally {
+                chunker.wipe();
+            }
+        }
+
+        /**
+         * 保存に失敗した場合に記録を中止する.<br>
+         * 格納済みのチャンクは{@link VersionStore#gc(long)}で削除される.<br>
+         */
+        public void abort() {
+            failed = true;
+            if (chunker != null) {
+                chunker.wipe();
+            }
+        }
+    }
+
+    /**
+     * 版のチャンクを順に復号化して読み込むストリーム.
+     */
+    private final class RevisionInputStream extends InputStream {
+
+        /**
+         * キー
+         */
+        private final Keys streamKeys;
+
+        /**
+         * 版
+         */
+        private final Revision revision;
+
+        /**
+         * アドレスの検証
+         */
+        private final Mac mac;
+
+        /**
+         * 暗号
+         */
+        private final Cipher cipher;
+
+        /**
+         * 次のチャンクの番号
+         */
+        private int idx;
+
+        /**
+         * 復号化したチャンク
+         */
+        private byte[] chunk = new byte[0];
+
+        /**
+         * チャンクの読み込み位置
+         */
+        private int pos;
+
+        RevisionInputStream(Keys streamKeys, Revision revision)
+                throws GeneralSecurityException {
+            this.streamKeys = streamKeys;
+            this.revision = revision;
+            this.mac = Mac.getInstance(MAC_ALGORITHM);
+            this.mac.init(streamKeys.macKey);
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+        }
+
+        /**
+         * チャンクを読み終えていれば次のチャンクを復号化する.
+         * 
+         * @return 終端であればfalse
+         * @throws IOException
+         *             チャンクがないか、壊れている場合
+         */
+        private boolean ensure() throws IOException {
+            while (pos >= chunk.length) {
+                if (idx >= revision.addresses.length) {
+                    return false;
+                }
+                byte[] address = revision.addresses[idx];
+                String hex = toHex(address);
+                byte[] data = readFile(getChunkFile(hex));
+                Arrays.fill(chunk, (byte) 0);
+                try {
+                    if (data.length < IV_SIZE) {
+                        throw new IOException("invalid chunk. " + hex);
+                    }
+                    cipher.init(Cipher.DECRYPT_MODE, streamKeys.encKey,
+                            new IvParameterSpec(data, 0, IV_SIZE));
+                    chunk = cipher.doFinal(data, IV_SIZE, data.length
+                            - IV_SIZE);
+
+                } catch (GeneralSecurityException ex) {
+                    throw new IOException(ex);
+                }
+                if (chunk.length != revision.lengths[idx]
+                        || !MessageDigest.isEqual(address, mac.doFinal(chunk))) {
+                    throw new IOException("corrupted chunk. " + hex);
+                }
+                pos = 0;
+                idx++;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensure()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensure()) {
+                return -1;
+            }
+            int rd = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, rd);
+            pos += rd;
+            return rd;
+        }
+
+        @Override
+        public void close() {
+            Arrays.fill(chunk, (byte) 0);
+            pos = chunk.length;
+            idx = revision.addresses.length;
+        }
+    }
+}
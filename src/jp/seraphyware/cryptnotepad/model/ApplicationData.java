@@ -1,10 +1,27 @@
 package jp.seraphyware.cryptnotepad.model;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
+import jp.seraphyware.cryptnotepad.util.LatencyMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+
 /**
  * textでもimageでもないデータを復号化した場合のデータのコンテナ.<br>
+ * 大きなバイナリはヒープ上の配列ではなく{@link OffHeapBuffer}に保持することができる.<br>
+ * この場合、{@link #dispose()}によりデータを消去する.<br>
+ * さらに大きなバイナリはメモリに置かず、{@link ContentSource}から必要なときに読み込むこともできる.<br>
+ * 内容の比較は長さを比べてから、内容のダイジェスト(SHA-256)で行う.<br>
+ * ダイジェストは必要になったときに一度だけ計算して保持するため、
+ * 大きなデータを繰り返し比較してもデータ全体を走査するのは最初の一回だけとなる.<br>
+ * (保持しているデータは変更しないこと.)<br>
  * 
  * @author seraphy
  */
@@ -12,6 +29,17 @@ public final class ApplicationData implements Serializable {
 
     private static final long serialVersionUID = -9023165507568809612L;
 
+    /**
+     * ダイジェストのアルゴリズム
+     */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * ダイジェストの計算の処理時間の計測値
+     */
+    private static final LatencyMetric digestMetric = Metrics
+            .latency(Metrics.CONTENT_DIGEST);
+
     /**
      * Content-Typeの情報.<br>
      * 必須.<br>
@@ -36,6 +64,25 @@ public final class ApplicationData implements Serializable {
      */
     private final String text;
 
+    /**
+     * データ本体(ヒープ外のバイナリ).<br>
+     * ヒープ外のバッファが設定されている場合は常に非nullとなる.<br>
+     * シリアライズの対象とはしない.<br>
+     */
+    private final transient OffHeapBuffer buffer;
+
+    /**
+     * データ本体(必要なときに読み込むバイナリ).<br>
+     * 読み込み元が設定されている場合は常に非nullとなる.<br>
+     * シリアライズの対象とはしない.<br>
+     */
+    private final transient ContentSource source;
+
+    /**
+     * 内容のダイジェスト、まだ計算していなければnull
+     */
+    private transient volatile byte[] digest;
+
     public ApplicationData(String contentType, byte[] data, String documentTitle) {
         if (contentType == null || contentType.length() == 0
                 || documentTitle == null || documentTitle.trim().length() == 0) {
@@ -44,6 +91,8 @@ public final class ApplicationData implements Serializable {
         this.contentType = contentType.trim();
         this.data = (data == null) ? new byte[0] : data;
         this.text = null;
+        this.buffer = null;
+        this.source = null;
         this.documentTitle = documentTitle.trim();
     }
 
@@ -55,6 +104,60 @@ public final class ApplicationData implements Serializable {
         this.contentType = contentType.trim();
         this.data = null;
         this.text = (text == null) ? "" : text;
+        this.buffer = null;
+        this.source = null;
+        this.documentTitle = documentTitle.trim();
+    }
+
+    /**
+     * ヒープ外のバッファにバイナリを保持するデータを作成する.<br>
+     * バッファはこのオブジェクトが所有し、{@link #dispose()}で消去される.<br>
+     * 
+     * @param contentType
+     *            コンテントタイプ
+     * @param buffer
+     *            データ本体
+     * @param documentTitle
+     *            タイトル
+     */
+    public ApplicationData(String contentType, OffHeapBuffer buffer,
+            String documentTitle) {
+        if (contentType == null || contentType.length() == 0
+                || documentTitle == null || documentTitle.trim().length() == 0
+                || buffer == null) {
+            throw new IllegalArgumentException();
+        }
+        this.contentType = contentType.trim();
+        this.data = null;
+        this.text = null;
+        this.buffer = buffer;
+        this.source = null;
+        this.documentTitle = documentTitle.trim();
+    }
+
+    /**
+     * 必要なときに読み込み元から読み込むバイナリのデータを作成する.<br>
+     * データはメモリには置かない.<br>
+     * 
+     * @param contentType
+     *            コンテントタイプ
+     * @param source
+     *            データの読み込み元
+     * @param documentTitle
+     *            タイトル
+     */
+    public ApplicationData(String contentType, ContentSource source,
+            String documentTitle) {
+        if (contentType == null || contentType.length() == 0
+                || documentTitle == null || documentTitle.trim().length() == 0
+                || source == null) {
+            throw new IllegalArgumentException();
+        }
+        this.contentType = contentType.trim();
+        this.data = null;
+        this.text = null;
+        this.buffer = null;
+        this.source = source;
         this.documentTitle = documentTitle.trim();
     }
 
@@ -76,23 +179,317 @@ public final class ApplicationData implements Serializable {
         return documentTitle;
     }
 
+    /**
+     * バイナリを取得する.<br>
+     * ヒープ外のバッファに保持している場合は、ヒープ上に複製したものを返す.<br>
+     * 読み込み元から読み込む場合は、すべて読み込んだものを返す.<br>
+     * 大きなデータの場合は{@link #openStream()}を用いること.<br>
+     * 
+     * @return バイナリ、テキストの場合はnull
+     * @throws IllegalStateException
+     *             配列に入らない大きさの場合、読み込み元から読み込めない場合
+     */
     public byte[] getData() {
+        if (buffer != null) {
+            return buffer.toByteArray();
+        }
+        if (source != null) {
+            return readSource();
+        }
         return data;
     }
 
+    /**
+     * 読み込み元からすべて読み込む.
+     * 
+     * @return データ
+     */
+    private byte[] readSource() {
+        long length = source.length();
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("too large. " + length);
+        }
+        byte[] result = new byte[(int) length];
+        try {
+            InputStream is = source.openStream();
+            try {
+                int pos = 0;
+                while (pos < result.length) {
+                    int rd = is.read(result, pos, result.length - pos);
+                    if (rd < 0) {
+                        throw new IOException("unexpected end of stream.");
+                    }
+                    pos += rd;
+                }
+
+            } finally {
+                is.close();
+            }
+
+        } catch (IOException ex) {
+            Arrays.fill(result, (byte) 0);
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+        return result;
+    }
+
     public String getText() {
         return text;
     }
 
-    @Override
-    public int hashCode() {
-        if (text != null) {
-            return text.hashCode();
+    /**
+     * ヒープ外のバッファを取得する.
+     * 
+     * @return バッファ、ヒープ外に保持していない場合はnull
+     */
+    public OffHeapBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * 読み込み元を取得する.
+     * 
+     * @return 読み込み元、読み込み元から読み込むデータでない場合はnull
+     */
+    public ContentSource getSource() {
+        return source;
+    }
+
+    /**
+     * バイナリの長さを取得する.
+     * 
+     * @return バイナリの長さ、テキストの場合は-1
+     */
+    public long getLength() {
+        if (buffer != null) {
+            return buffer.length();
+        }
+        if (source != null) {
+            return source.length();
+        }
+        if (data != null) {
+            return data.length;
+        }
+        return -1;
+    }
+
+    /**
+     * バイナリを読み込むストリームを開く.<br>
+     * ヒープ外のバッファに保持している場合も複製せずに読み込む.<br>
+     * 読み込み元から読み込む場合は、読み込み元のストリームを開く.<br>
+     * 
+     * @return 入力ストリーム、テキストの場合はnull
+     * @throws IOException
+     *             読み込み元を開けない場合
+     */
+    public InputStream openStream() throws IOException {
+        if (buffer != null) {
+            return buffer.openStream();
+        }
+        if (source != null) {
+            return source.openStream();
         }
         if (data != null) {
-            return Arrays.hashCode(data);
+            return new ByteArrayInputStream(data);
         }
-        return contentType.hashCode() ^ documentTitle.hashCode();
+        return null;
+    }
+
+    /**
+     * ヒープ外のバッファに保持している場合、そのデータを消去する.<br>
+     * {@link #changeDocumentTitle(String)}で作成したオブジェクトとはバッファを共有するため、
+     * いずれも使われなくなってから呼び出すこと.<br>
+     */
+    public void dispose() {
+        if (buffer != null) {
+            buffer.wipe();
+        }
+    }
+
+    /**
+     * 内容のダイジェスト(SHA-256)を取得する.<br>
+     * バイナリの場合はデータそのもののダイジェスト、
+     * テキストの場合はUTF-16BEで表したテキストのダイジェストとする.<br>
+     * 初回のみ計算し、以降は保持している値を返す.<br>
+     * 変更の確認や重複の判定に用いる.<br>
+     * 
+     * @return ダイジェストの複製
+     * @throws IllegalStateException
+     *             ヒープ外のバッファが消去済みの場合
+     */
+    public byte[] getDigest() {
+        return digest().clone();
+    }
+
+    /**
+     * 内容のダイジェストを取得する.<br>
+     * まだ計算していなければ計算して保持する.<br>
+     * 
+     * @return ダイジェスト
+     */
+    private byte[] digest() {
+        byte[] result = digest;
+        if (result == null) {
+            result = computeDigest();
+            digest = result;
+        }
+        return result;
+    }
+
+    /**
+     * 内容のダイジェストを計算する.
+     * 
+     * @return ダイジェスト
+     */
+    private byte[] computeDigest() {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+
+        } catch (NoSuchAlgorithmException ex) {
+            // アルゴリズムがみつからない = 環境の問題
+            throw new RuntimeException(ex);
+        }
+
+        long st = digestMetric.start();
+        byte[] buf = new byte[8192];
+        long total = 0;
+        if (text != null) {
+            char[] cbuf = new char[buf.length / 2];
+            int len = text.length();
+            for (int pos = 0; pos < len; pos += cbuf.length) {
+                int sz = Math.min(cbuf.length, len - pos);
+                text.getChars(pos, pos + sz, cbuf, 0);
+                for (int idx = 0; idx < sz; idx++) {
+                    buf[idx * 2] = (byte) (cbuf[idx] >> 8);
+                    buf[idx * 2 + 1] = (byte) cbuf[idx];
+                }
+                md.update(buf, 0, sz * 2);
+            }
+            total = len * 2L;
+            Arrays.fill(cbuf, '\0');
+
+        } else if (data != null) {
+            md.update(data);
+            total = data.length;
+
+        } else {
+            if (buffer != null && buffer.isWiped()) {
+                throw new IllegalStateException("the buffer was wiped.");
+            }
+            try {
+                InputStream is = openStream();
+                try {
+                    for (;;) {
+                        int rd = is.read(buf);
+                        if (rd < 0) {
+                            break;
+                        }
+                        md.update(buf, 0, rd);
+                        total += rd;
+                    }
+
+                } finally {
+                    is.close();
+                }
+
+            } catch (IOException ex) {
+                // 計算中に消去された場合、読み込み元から読み込めない場合
+                throw new IllegalStateException(ex.getMessage(), ex);
+            }
+        }
+        Arrays.fill(buf, (byte) 0);
+        digestMetric.stop(st, total);
+        return md.digest();
+    }
+
+    /**
+     * 内容が等しいか判定する.<br>
+     * コンテントタイプとタイトルは比較しない.<br>
+     * テキストとバイナリの種類と長さが異なれば、内容を見ずに等しくないとする.<br>
+     * テキストは文字列を直接比較する.
+     * (テキストは編集のたびに作り直されるため、ダイジェストを保持しておく意味がない.)<br>
+     * 同じデータを共有していれば等しいとし、それ以外はダイジェストを比較する.<br>
+     * ダイジェストが未計算であれば計算するため、読み込み元から読み込むデータでは全体を読み込むことがある.<br>
+     * 
+     * @param o
+     *            比較対象、null可
+     * @return 内容が等しければtrue
+     */
+    public boolean contentEquals(ApplicationData o) {
+        if (o == null) {
+            return false;
+        }
+        if (o == this) {
+            return true;
+        }
+        if ((text != null) != (o.text != null)
+                || getContentLength() != o.getContentLength()) {
+            return false;
+        }
+        if (text != null) {
+            return text.equals(o.text);
+        }
+        if (isSharing(o)) {
+            return true;
+        }
+        return MessageDigest.isEqual(digest(), o.digest());
+    }
+
+    /**
+     * 内容が変わっていないことが安価に確認できるか判定する.<br>
+     * {@link #contentEquals(ApplicationData)}と同様に比較するが、
+     * 読み込み元から読み込むデータで双方のダイジェストが未計算の場合は、
+     * ファイル全体の読み込みを避けるため、同じ読み込み元でなければ変更ありとみなす.<br>
+     * falseは変更されている可能性があることを示すのみであり、{@link #equals(Object)}には用いない.<br>
+     * 
+     * @param o
+     *            比較対象、null可
+     * @return 変わっていないことが確認できればtrue
+     */
+    public boolean isUnchangedFrom(ApplicationData o) {
+        if (o != null && o != this && text == null
+                && (digest == null || o.digest == null)
+                && (source != null || o.source != null) && !isSharing(o)) {
+            return false;
+        }
+        return contentEquals(o);
+    }
+
+    /**
+     * 同じデータを共有しているか判定する.
+     * 
+     * @param o
+     *            比較対象
+     * @return 共有していればtrue
+     */
+    private boolean isSharing(ApplicationData o) {
+        return (data != null && data == o.data)
+                || (buffer != null && buffer == o.buffer)
+                || (source != null && source == o.source);
+    }
+
+    /**
+     * 内容の長さを取得する.
+     * 
+     * @return バイナリの長さ、テキストの場合は文字数
+     */
+    private long getContentLength() {
+        if (text != null) {
+            return text.length();
+        }
+        return getLength();
+    }
+
+    /**
+     * ハッシュ値を返す.<br>
+     * 内容を走査しないように、コンテントタイプとタイトルと長さから求める.<br>
+     */
+    @Override
+    public int hashCode() {
+        long length = getContentLength();
+        return contentType.hashCode() ^ documentTitle.hashCode()
+                ^ (int) (length ^ (length >>> 32));
     }
 
     @Override
@@ -102,21 +499,16 @@ public final class ApplicationData implements Serializable {
         }
         if (obj != null && obj instanceof ApplicationData) {
             ApplicationData o = (ApplicationData) obj;
-            if (contentType.equals(o.contentType)
-                    && documentTitle.equals(o.documentTitle)) {
-                if (text != null) {
-                    return text.equals(o.text);
-                }
-                if (data != null) {
-                    return Arrays.equals(data, o.data);
-                }
-            }
+            return contentType.equals(o.contentType)
+                    && documentTitle.equals(o.documentTitle)
+                    && contentEquals(o);
         }
         return false;
     }
 
     /**
      * アプリケーションデータのタイトルを変更した新しいオブジェクトを返す.<br>
+     * ヒープ外のバッファや読み込み元は複製せずに共有する.<br>
      * 
      * @param newTitle
      *            新しいタイトル
@@ -125,10 +517,37 @@ public final class ApplicationData implements Serializable {
     public ApplicationData changeDocumentTitle(String newTitle) {
         String contentType = getContentType();
         String text = getText();
-        byte[] data = getData();
+        ApplicationData newData;
         if (text != null) {
-            return new ApplicationData(contentType, text, newTitle);
+            newData = new ApplicationData(contentType, text, newTitle);
+        } else if (source != null) {
+            newData = new ApplicationData(contentType, source, newTitle);
+        } else if (buffer != null) {
+            newData = new ApplicationData(contentType, buffer, newTitle);
+        } else {
+            newData = new ApplicationData(contentType, data, newTitle);
+        }
+        // 内容は同じなので計算済みのダイジェストを引き継ぐ.
+        newData.digest = digest;
+        return newData;
+    }
+
+    /**
+     * ヒープ外のバッファはシリアライズできないため、ヒープ上に複製したものに置き換える.<br>
+     * 読み込み元から読み込むデータはシリアライズできない.<br>
+     * 
+     * @return シリアライズするオブジェクト
+     * @throws ObjectStreamException
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        if (source != null) {
+            throw new NotSerializableException("the data is read from "
+                    + source);
+        }
+        if (buffer != null) {
+            return new ApplicationData(contentType, buffer.toByteArray(),
+                    documentTitle);
         }
-        return new ApplicationData(contentType, data, newTitle);
+        return this;
     }
 }
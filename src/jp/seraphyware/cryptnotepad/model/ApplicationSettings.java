@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Properties;
@@ -30,6 +31,16 @@ public final class ApplicationSettings implements Serializable {
     private static final Logger logger = Logger
             .getLogger(ApplicationSettings.class.getName());
 
+    /**
+     * 書き込み中の一時ファイルの拡張子
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * 置き換え中の元のファイルのバックアップの拡張子
+     */
+    private static final String BAK_SUFFIX = ".bak";
+
     /**
      * シングルトン
      */
@@ -118,6 +129,63 @@ public final class ApplicationSettings implements Serializable {
      */
     private String extensionsForBinary = "doc,docx,xls,xlsx,pdf,rtf,odf";
 
+    /**
+     * 新規に暗号化する場合にエンベロープ形式(ドキュメントごとのデータキー)を用いるか?
+     */
+    private boolean envelopeEncryption = true;
+
+    /**
+     * ファイル消去時の上書きの方式(SecureEraser.ErasePolicyの名前)
+     */
+    private String erasePolicy = "RANDOM";
+
+    /**
+     * EDTが停止したとみなす時間(mSec)、0以下の場合は監視しない.
+     */
+    private int edtWatchdogThreshold = 1000;
+
+    /**
+     * 最近復号化したドキュメントを保持するキャッシュのサイズ(KiB)、0の場合はキャッシュしない.
+     */
+    private int documentCacheSize = 16 * 1024;
+
+    /**
+     * 復号化したバイナリをヒープ外に保持する暗号化ファイルのサイズ(KiB)、0以下の場合はヒープ外に保持しない.
+     */
+    private int offHeapThreshold = 16 * 1024;
+
+    /**
+     * テキストと画像以外のドキュメントをメモリに復号化せず、必要なときに暗号化ファイルから順に
+     * 復号化する暗号化ファイルのサイズ(KiB)、0以下の場合は常にメモリに復号化する.
+     */
+    private int streamingThreshold = 64 * 1024;
+
+    /**
+     * エンベロープ形式で暗号化する場合にチャンク形式とするチャンクサイズ(KiB)、0以下の場合はチャンク形式としない.<br>
+     * チャンク形式のファイルへの上書き保存では、変更されたチャンクのみを書き込む.<br>
+     */
+    private int chunkedSaveSize = 0;
+
+    /**
+     * コンテンツディレクトリ下のドキュメントを保存するごとに、重複を除いて版の履歴を記録するか?
+     */
+    private boolean versionHistory = false;
+
+    /**
+     * 最後に読み込みまたは書き込みしたファイルの内容、まだなければnull
+     */
+    private transient Properties storedProps;
+
+    /**
+     * 最後に読み込みまたは書き込みしたファイルの最終更新日時
+     */
+    private transient long storedLastModified;
+
+    /**
+     * 最後に読み込みまたは書き込みしたファイルのサイズ
+     */
+    private transient long storedLength;
+
     /**
      * プライベートコンストラクタ
      */
@@ -303,8 +371,96 @@ public final class ApplicationSettings implements Serializable {
                 extensionsForBinary);
     }
 
+    public boolean isEnvelopeEncryption() {
+        return envelopeEncryption;
+    }
+
+    public void setEnvelopeEncryption(boolean envelopeEncryption) {
+        boolean oldValue = this.envelopeEncryption;
+        this.envelopeEncryption = envelopeEncryption;
+        propChange.firePropertyChange("envelopeEncryption", oldValue,
+                envelopeEncryption);
+    }
+
+    public String getErasePolicy() {
+        return erasePolicy;
+    }
+
+    public void setErasePolicy(String erasePolicy) {
+        String oldValue = this.erasePolicy;
+        this.erasePolicy = erasePolicy;
+        propChange.firePropertyChange("erasePolicy", oldValue, erasePolicy);
+    }
+
+    public int getEdtWatchdogThreshold() {
+        return edtWatchdogThreshold;
+    }
+
+    public void setEdtWatchdogThreshold(int edtWatchdogThreshold) {
+        int oldValue = this.edtWatchdogThreshold;
+        this.edtWatchdogThreshold = edtWatchdogThreshold;
+        propChange.firePropertyChange("edtWatchdogThreshold", oldValue,
+                edtWatchdogThreshold);
+    }
+
+    public int getDocumentCacheSize() {
+        return documentCacheSize;
+    }
+
+    public void setDocumentCacheSize(int documentCacheSize) {
+        int oldValue = this.documentCacheSize;
+        this.documentCacheSize = documentCacheSize;
+        propChange.firePropertyChange("documentCacheSize", oldValue,
+                documentCacheSize);
+    }
+
+    public int getOffHeapThreshold() {
+        return offHeapThreshold;
+    }
+
+    public void setOffHeapThreshold(int offHeapThreshold) {
+        int oldValue = this.offHeapThreshold;
+        this.offHeapThreshold = offHeapThreshold;
+        propChange.firePropertyChange("offHeapThreshold", oldValue,
+                offHeapThreshold);
+    }
+
+    public int getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    public void setStreamingThreshold(int streamingThreshold) {
+        int oldValue = this.streamingThreshold;
+        this.streamingThreshold = streamingThreshold;
+        propChange.firePropertyChange("streamingThreshold", oldValue,
+                streamingThreshold);
+    }
+
+    public int getChunkedSaveSize() {
+        return chunkedSaveSize;
+    }
+
+    public void setChunkedSaveSize(int chunkedSaveSize) {
+        int oldValue = this.chunkedSaveSize;
+        this.chunkedSaveSize = chunkedSaveSize;
+        propChange.firePropertyChange("chunkedSaveSize", oldValue,
+                chunkedSaveSize);
+    }
+
+    public boolean isVersionHistory() {
+        return versionHistory;
+    }
+
+    public void setVersionHistory(boolean versionHistory) {
+        boolean oldValue = this.versionHistory;
+        this.versionHistory = versionHistory;
+        propChange.firePropertyChange("versionHistory", oldValue,
+                versionHistory);
+    }
+
     /**
-     * ファイルに保存する.
+     * ファイルに保存する.<br>
+     * {@link #toProperties()}で現在の設定値を取り出して{@link #store(File, Properties)}で書き込む.<br>
      * 
      * @param file
      *            書き込み先ファイル
@@ -313,24 +469,18 @@ public final class ApplicationSettings implements Serializable {
      * @return 書き込み完了はtrue、書き込み不可の場合はfalse
      */
     public boolean save(File file) throws IOException {
-        if (file == null) {
-            throw new IllegalArgumentException();
-        }
+        return store(file, toProperties());
+    }
 
+    /**
+     * 現在の設定値をプロパティとして取り出す.<br>
+     * 設定値を変更するスレッド(EDT)で呼び出すこと.<br>
+     * 
+     * @return 設定値のプロパティ
+     */
+    public Properties toProperties() {
         Properties props = new Properties();
 
-        if (file.exists()) {
-
-            if (!file.canWrite()) {
-                // 書き込み不可であれば何もしない
-                return false;
-            }
-
-            // 現在のファイルの読み込み
-            props.loadFromXML(new BufferedInputStream(new FileInputStream(file)));
-        }
-
-        // 設定項目
         props.setProperty("lastUseDir",
                 (lastUseDir == null) ? "" : lastUseDir.getAbsolutePath());
         props.setProperty("lastUseImportTextEncoding",
@@ -356,22 +506,114 @@ public final class ApplicationSettings implements Serializable {
         props.setProperty("extensionsForBinary",
                 toSafeString(extensionsForBinary));
 
+        props.setProperty("envelopeEncryption",
+                Boolean.toString(envelopeEncryption));
+        props.setProperty("erasePolicy", toSafeString(erasePolicy));
+        props.setProperty("edtWatchdogThreshold",
+                Integer.toString(edtWatchdogThreshold));
+        props.setProperty("documentCacheSize",
+                Integer.toString(documentCacheSize));
+        props.setProperty("offHeapThreshold",
+                Integer.toString(offHeapThreshold));
+        props.setProperty("streamingThreshold",
+                Integer.toString(streamingThreshold));
+        props.setProperty("chunkedSaveSize",
+                Integer.toString(chunkedSaveSize));
+        props.setProperty("versionHistory", Boolean.toString(versionHistory));
+
+        return props;
+    }
+
+    /**
+     * 設定値のプロパティをファイルに保存する.<br>
+     * ファイルにある、このクラスが扱わない項目はそのまま残す.<br>
+     * 前回の読み込みまたは書き込みの後にファイルが外部から変更されていなければ、
+     * ファイルを読み直さずに前回の内容に設定値を上書きする.<br>
+     * 内容に変更がなければ書き込まない.<br>
+     * 書き込みは一時ファイルに行ってから置き換えるため、途中で失敗しても元のファイルは壊れない.<br>
+     * (置き換えの途中で中断した場合は、次回の読み込み時に一時ファイルかバックアップから復元する.)<br>
+     * 任意のスレッドから呼び出し可能.<br>
+     * 
+     * @param file
+     *            書き込み先ファイル
+     * @param values
+     *            設定値のプロパティ
+     * @throws IOException
+     *             失敗した場合
+     * @return 書き込み完了(変更なしを含む)はtrue、書き込み不可の場合はfalse
+     */
+    public synchronized boolean store(File file, Properties values)
+            throws IOException {
+        if (file == null || values == null) {
+            throw new IllegalArgumentException();
+        }
+        Properties props = new Properties();
+
+        if (file.exists()) {
+
+            if (!file.canWrite()) {
+                // 書き込み不可であれば何もしない
+                return false;
+            }
+
+            if (storedProps != null && isUnchanged(file)) {
+                // 前回から変更されていなければ、前回の内容を使う.
+                props.putAll(storedProps);
+
+            } else {
+                // 現在のファイルの読み込み
+                props.putAll(readXML(file));
+            }
+        }
+
+        props.putAll(values);
+        if (props.equals(storedProps) && isUnchanged(file)) {
+            logger.log(Level.FINE, "appConfig is not changed.");
+            return true;
+        }
+
         logger.log(Level.FINE, "appConfig=" + props);
 
-        // ファイルへの書き込み
-        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        // 一時ファイルに書き込んでから置き換える.
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(tmpFile);
         try {
+            OutputStream os = new BufferedOutputStream(fos);
             props.storeToXML(os, "");
+            os.flush();
+            fos.getFD().sync();
 
         } finally {
-            os.close();
+            fos.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            // 置き換えできない環境(Windows)では、元のファイルをバックアップに退避してから置き換え、
+            // 置き換えできたらバックアップを削除する.
+            File bakFile = new File(file.getPath() + BAK_SUFFIX);
+            if (bakFile.exists() && !bakFile.delete()) {
+                throw new IOException("can't delete. " + bakFile);
+            }
+            if (!file.renameTo(bakFile)) {
+                throw new IOException("can't rename. " + file);
+            }
+            if (!tmpFile.renameTo(file)) {
+                if (!bakFile.renameTo(file)) {
+                    logger.log(Level.WARNING, "can't restore. " + bakFile);
+                }
+                throw new IOException("can't rename. " + tmpFile);
+            }
+            if (!bakFile.delete()) {
+                logger.log(Level.WARNING, "can't delete. " + bakFile);
+            }
         }
 
+        setStored(file, props);
         return true;
     }
 
     /**
-     * ファイルから復元する.
+     * ファイルから復元する.<br>
+     * ファイルがなければ、保存の途中で残された一時ファイルかバックアップから復元する.<br>
      * 
      * @param file
      * @throws IOException
@@ -383,8 +625,14 @@ public final class ApplicationSettings implements Serializable {
 
         Properties props = new Properties();
 
+        if (!file.exists()) {
+            recover(file);
+        }
         if (file.exists()) {
-            props.loadFromXML(new FileInputStream(file));
+            props = readXML(file);
+            synchronized (this) {
+                setStored(file, props);
+            }
         }
 
         lastUseDir = parseFile(props.getProperty("lastUseDir"), lastUseDir);
@@ -414,6 +662,102 @@ public final class ApplicationSettings implements Serializable {
                 props.getProperty("extensionsForPicture"), extensionsForPicture);
         extensionsForBinary = chooseString(
                 props.getProperty("extensionsForBinary"), extensionsForBinary);
+
+        envelopeEncryption = parseBoolean(
+                props.getProperty("envelopeEncryption"), envelopeEncryption);
+        erasePolicy = chooseString(props.getProperty("erasePolicy"),
+                erasePolicy);
+        edtWatchdogThreshold = parseInt(
+                props.getProperty("edtWatchdogThreshold"),
+                edtWatchdogThreshold);
+        documentCacheSize = parseInt(props.getProperty("documentCacheSize"),
+                documentCacheSize);
+        offHeapThreshold = parseInt(props.getProperty("offHeapThreshold"),
+                offHeapThreshold);
+        streamingThreshold = parseInt(
+                props.getProperty("streamingThreshold"), streamingThreshold);
+        chunkedSaveSize = parseInt(props.getProperty("chunkedSaveSize"),
+                chunkedSaveSize);
+        versionHistory = parseBoolean(props.getProperty("versionHistory"),
+                versionHistory);
+    }
+
+    /**
+     * 保存の途中で中断して残された一時ファイルかバックアップをファイルに戻す.<br>
+     * 一時ファイルは書き込みを終えていればバックアップより新しいため、読み込める場合は一時ファイルを優先する.<br>
+     * (書き込みの途中で中断した一時ファイルは読み込めないため、バックアップを用いる.)<br>
+     * 
+     * @param file
+     *            存在しないファイル
+     */
+    private static void recover(File file) {
+        File[] candidates = { new File(file.getPath() + TMP_SUFFIX),
+                new File(file.getPath() + BAK_SUFFIX) };
+        for (File candidate : candidates) {
+            if (!candidate.exists()) {
+                continue;
+            }
+            try {
+                readXML(candidate);
+
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "can't read. " + candidate, ex);
+                continue;
+            }
+            if (candidate.renameTo(file)) {
+                logger.log(Level.INFO, "recovered. " + candidate);
+                return;
+            }
+            logger.log(Level.WARNING, "can't rename. " + candidate);
+        }
+    }
+
+    /**
+     * XMLのプロパティファイルを読み込む.
+     * 
+     * @param file
+     *            ファイル
+     * @return プロパティ
+     * @throws IOException
+     *             失敗した場合
+     */
+    private static Properties readXML(File file) throws IOException {
+        Properties props = new Properties();
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            props.loadFromXML(is);
+
+        } finally {
+            is.close();
+        }
+        return props;
+    }
+
+    /**
+     * ファイルの内容と日時を、最後に読み込みまたは書き込みした状態として記録する.
+     * 
+     * @param file
+     *            ファイル
+     * @param props
+     *            ファイルの内容
+     */
+    private void setStored(File file, Properties props) {
+        storedProps = new Properties();
+        storedProps.putAll(props);
+        storedLastModified = file.lastModified();
+        storedLength = file.length();
+    }
+
+    /**
+     * 最後に読み込みまたは書き込みした後に、ファイルが変更されていないか?
+     * 
+     * @param file
+     *            ファイル
+     * @return 変更されていなければtrue
+     */
+    private boolean isUnchanged(File file) {
+        return file.exists() && file.lastModified() == storedLastModified
+                && file.length() == storedLength;
     }
 
     /**
@@ -438,6 +782,22 @@ public final class ApplicationSettings implements Serializable {
         return defValue;
     }
 
+    /**
+     * 文字列から真偽値に変換する. nullまたは空文字の場合はデフォルトを用いる.
+     * 
+     * @param str
+     *            文字列
+     * @param defValue
+     *            デフォルト
+     * @return 真偽値
+     */
+    private static boolean parseBoolean(String str, boolean defValue) {
+        if (str != null && str.trim().length() > 0) {
+            return Boolean.parseBoolean(str.trim());
+        }
+        return defValue;
+    }
+
     /**
      * 文字列からファイルオブジェクト(File)に変換する. nullまたは空文字、あるいは変換できない場合はデフォルトを用いる.
      * 
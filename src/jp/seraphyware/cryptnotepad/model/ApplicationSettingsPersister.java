@@ -0,0 +1,219 @@
+package jp.seraphyware.cryptnotepad.model;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.Timer;
+
+/**
+ * アプリケーション設定の変更をバックグラウンドでファイルに保存する.<br>
+ * 設定のプロパティ変更通知を受けてから一定時間、次の変更がなければ
+ * EDTで設定値を取り出し、バックグラウンドのスレッドで書き込む.<br>
+ * 連続した変更はまとめて1回の書き込みになる.<br>
+ * 書き込みは{@link ApplicationSettings#store(File, Properties)}により、
+ * 一時ファイルに書き込んでから置き換える.<br>
+ * 
+ * @author seraphy
+ */
+public class ApplicationSettingsPersister implements PropertyChangeListener {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger
+            .getLogger(ApplicationSettingsPersister.class.getName());
+
+    /**
+     * 変更から書き込みまでの待ち時間の既定値(mSec)
+     */
+    public static final int DEFAULT_DELAY = 1000;
+
+    /**
+     * アプリケーション設定
+     */
+    private final ApplicationSettings settings;
+
+    /**
+     * 書き込み先ファイル
+     */
+    private final File file;
+
+    /**
+     * 変更から書き込みまでの待ち時間のタイマー
+     */
+    private final Timer timer;
+
+    /**
+     * 書き込み用のスレッド
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 未保存の変更があるか?
+     */
+    private boolean dirty;
+
+    /**
+     * 最後に投入した書き込み、なければnull
+     */
+    private Future<?> lastWrite;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param settings
+     *            アプリケーション設定
+     * @param file
+     *            書き込み先ファイル
+     * @param delay
+     *            変更から書き込みまでの待ち時間(mSec)
+     */
+    public ApplicationSettingsPersister(ApplicationSettings settings,
+            File file, int delay) {
+        if (settings == null || file == null || delay < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.settings = settings;
+        this.file = file;
+
+        timer = new Timer(delay, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                saveLater();
+            }
+        });
+        timer.setRepeats(false);
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SettingsWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 設定の変更の監視を開始する.
+     */
+    public void start() {
+        settings.addPropertyChangeListener(this);
+    }
+
+    /**
+     * 設定が変更された場合、書き込みを予約する.<br>
+     * 待ち時間内に次の変更があれば、さらに待つ.<br>
+     */
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+        synchronized (this) {
+            dirty = true;
+        }
+        timer.restart();
+    }
+
+    /**
+     * 保存する設定値を取り出す.<br>
+     * EDTで呼び出される.<br>
+     * 保存する値を調整する場合はオーバーライドする.<br>
+     * 
+     * @return 設定値
+     */
+    protected Properties createSnapshot() {
+        return settings.toProperties();
+    }
+
+    /**
+     * 未保存の変更があれば設定値を取り出し、バックグラウンドで書き込む.<br>
+     * EDTで呼び出される.<br>
+     */
+    private void saveLater() {
+        final Properties snapshot;
+        synchronized (this) {
+            if (!dirty || executor.isShutdown()) {
+                return;
+            }
+            dirty = false;
+            snapshot = createSnapshot();
+            lastWrite = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    write(snapshot);
+                }
+            });
+        }
+    }
+
+    /**
+     * 設定値をファイルに書き込む.<br>
+     * 失敗してもログに記録するだけとする.<br>
+     * 
+     * @param snapshot
+     *            設定値
+     */
+    private void write(Properties snapshot) {
+        try {
+            long st = System.currentTimeMillis();
+            if (settings.store(file, snapshot)) {
+                logger.log(Level.FINE, "config file was saved. ("
+                        + (System.currentTimeMillis() - st) + "ms)");
+            }
+
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "config file save failed.", ex);
+        }
+    }
+
+    /**
+     * 待ち時間中の変更があればただちに書き込み、書き込みの完了を待つ.<br>
+     * EDTで呼び出すこと.<br>
+     */
+    public void flush() {
+        timer.stop();
+        saveLater();
+        Future<?> pending;
+        synchronized (this) {
+            pending = lastWrite;
+        }
+        if (pending != null) {
+            try {
+                pending.get();
+
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+
+            } catch (ExecutionException ex) {
+                logger.log(Level.WARNING, "config file save failed.", ex);
+            }
+        }
+    }
+
+    /**
+     * 監視を終了し、未保存の変更を書き込んでから書き込み用のスレッドを終了する.<br>
+     * EDTで呼び出すこと.<br>
+     */
+    public void close() {
+        settings.removePropertyChangeListener(this);
+        flush();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package jp.seraphyware.cryptnotepad.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 必要になったときにストリームとして読み込むドキュメントの内容.<br>
+ * 暗号化ファイルや作業ファイルなど、メモリに置かずにファイルから順に読み込むデータを表す.<br>
+ * 
+ * @author seraphy
+ */
+public interface ContentSource {
+
+    /**
+     * データの長さを取得する.
+     * 
+     * @return データの長さ
+     */
+    long length();
+
+    /**
+     * データを先頭から読み込むストリームを開く.<br>
+     * 呼び出し元でストリームを閉じること.<br>
+     * 
+     * @return 入力ストリーム
+     * @throws IOException
+     *             読み込めない場合、元のファイルが変更された場合
+     */
+    InputStream openStream() throws IOException;
+}
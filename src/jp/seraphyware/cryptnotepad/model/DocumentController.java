@@ -3,24 +3,45 @@ package jp.seraphyware.cryptnotepad.model;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import jp.seraphyware.cryptnotepad.crypt.ChunkedCipherFile;
+import jp.seraphyware.cryptnotepad.crypt.CipherCancelException;
+import jp.seraphyware.cryptnotepad.crypt.CryptUtils;
+import jp.seraphyware.cryptnotepad.crypt.EncryptResult;
+import jp.seraphyware.cryptnotepad.crypt.PackedArchive;
+import jp.seraphyware.cryptnotepad.crypt.SealedDocumentCache;
+import jp.seraphyware.cryptnotepad.crypt.SecureEraser;
 import jp.seraphyware.cryptnotepad.crypt.SymCipher;
 import jp.seraphyware.cryptnotepad.crypt.SymCipherEvent;
 import jp.seraphyware.cryptnotepad.crypt.SymCipherEventListener;
+import jp.seraphyware.cryptnotepad.crypt.VersionStore;
+import jp.seraphyware.cryptnotepad.storage.LocalStorage;
+import jp.seraphyware.cryptnotepad.storage.Storage;
+import jp.seraphyware.cryptnotepad.storage.StorageStat;
+import jp.seraphyware.cryptnotepad.util.TraceEvent;
+import jp.seraphyware.cryptnotepad.util.TraceEventType;
 
 /**
  * ドキュメントの制御クラス.
@@ -96,6 +117,17 @@ public class DocumentController implements SymCipherEventListener {
      */
     private SymCipher symCipher;
 
+    /**
+     * 最近復号化したドキュメントのキャッシュ
+     */
+    private final SealedDocumentCache documentCache = new SealedDocumentCache(
+            0);
+
+    /**
+     * 版の履歴のストア、版の履歴が無効であればnull
+     */
+    private volatile VersionStore versionStore;
+
     /**
      * パスフレーズの確認済みフラグ.
      */
@@ -106,6 +138,16 @@ public class DocumentController implements SymCipherEventListener {
      */
     private PassphraseUIProvider passphraseUiProvider;
 
+    /**
+     * アプリケーション設定の暗号化形式と消去方式の変更を反映するリスナ
+     */
+    private final PropertyChangeListener appConfigListener = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            applyAppConfig();
+        }
+    };
+
     /**
      * コンストラクタ
      */
@@ -126,17 +168,102 @@ public class DocumentController implements SymCipherEventListener {
                     public void propertyChange(PropertyChangeEvent evt) {
                         // パスフレーズが変更された場合はパスワード確認済みをリセットする.
                         passphraseVerified = false;
+
+                        // 以前のパスフレーズで復号化したドキュメントは破棄する.
+                        documentCache.clear();
+                    }
+                });
+        settingsModel.addPropertyChangeListener("keyFile",
+                new PropertyChangeListener() {
+                    @Override
+                    public void propertyChange(PropertyChangeEvent evt) {
+                        // 以前のキーファイルで復号化したドキュメントは破棄する.
+                        documentCache.clear();
                     }
                 });
 
         // 暗号化・復号化前イベント
         symCipher.addSymCipherEventListener(this);
+
+        // 暗号化形式と消去方式の設定
+        applyAppConfig();
+        appConfig.addPropertyChangeListener("envelopeEncryption",
+                appConfigListener);
+        appConfig.addPropertyChangeListener("erasePolicy", appConfigListener);
+        appConfig.addPropertyChangeListener("documentCacheSize",
+                appConfigListener);
+        appConfig.addPropertyChangeListener("versionHistory",
+                appConfigListener);
     }
 
     public void dispose() {
+        appConfig.removePropertyChangeListener("envelopeEncryption",
+                appConfigListener);
+        appConfig.removePropertyChangeListener("erasePolicy",
+                appConfigListener);
+        appConfig.removePropertyChangeListener("documentCacheSize",
+                appConfigListener);
+        appConfig.removePropertyChangeListener("versionHistory",
+                appConfigListener);
+        documentCache.clear();
         settingsModel.clear();
     }
 
+    /**
+     * 最近復号化したドキュメントのキャッシュを消去する.<br>
+     * 緊急最小化などで、メモリ上にドキュメントを残したくない場合に呼び出す.<br>
+     */
+    public void clearDocumentCache() {
+        documentCache.clear();
+    }
+
+    /**
+     * アプリケーション設定の暗号化形式と消去方式、ドキュメントのキャッシュのサイズ、
+     * チャンク形式のチャンクサイズ、版の履歴を反映する.<br>
+     * アプリケーション設定をファイルからロードした後にも呼び出すこと.<br>
+     */
+    public void applyAppConfig() {
+        symCipher.setEnvelopeEncryption(appConfig.isEnvelopeEncryption());
+
+        String erasePolicy = appConfig.getErasePolicy();
+        if (erasePolicy != null && erasePolicy.trim().length() > 0) {
+            try {
+                CryptUtils.getSecureEraser().setPolicy(
+                        SecureEraser.ErasePolicy.valueOf(erasePolicy.trim()));
+
+            } catch (IllegalArgumentException ex) {
+                logger.log(Level.WARNING, "unknown erasePolicy: "
+                        + erasePolicy);
+            }
+        }
+
+        int documentCacheSize = appConfig.getDocumentCacheSize();
+        documentCache.setBudget(Math.max(0, documentCacheSize) * 1024L);
+
+        int chunkedSaveSize = appConfig.getChunkedSaveSize();
+        long chunkSize = Math.max(0, chunkedSaveSize) * 1024L;
+        if (chunkSize > 0
+                && (chunkSize > Integer.MAX_VALUE || !ChunkedCipherFile
+                        .isValidChunkSize((int) chunkSize))) {
+            logger.log(Level.WARNING, "invalid chunkedSaveSize: "
+                    + chunkedSaveSize);
+            chunkSize = 0;
+        }
+        symCipher.setChunkSize((int) chunkSize);
+
+        File contentsDir = appConfig.getContentsDir();
+        if (appConfig.isVersionHistory() && contentsDir != null) {
+            File storeDir = new File(contentsDir, VersionStore.DIR_NAME)
+                    .getAbsoluteFile();
+            VersionStore store = versionStore;
+            if (store == null || !store.getStoreDir().equals(storeDir)) {
+                versionStore = new VersionStore(storeDir, symCipher);
+            }
+        } else {
+            versionStore = null;
+        }
+    }
+
     public void setPassphraseUiProvider(
             PassphraseUIProvider passphraseUiProvider) {
         this.passphraseUiProvider = passphraseUiProvider;
@@ -154,6 +281,36 @@ public class DocumentController implements SymCipherEventListener {
         return symCipher;
     }
 
+    public Storage getStorage() {
+        return symCipher.getStorage();
+    }
+
+    /**
+     * 暗号化されたファイルの格納先を設定する.<br>
+     * 平文のファイルの読み込みと保存、版の履歴はローカルのファイルシステムのままとする.<br>
+     * 
+     * @param storage
+     *            格納先
+     */
+    public void setStorage(Storage storage) {
+        symCipher.setStorage(storage);
+        documentCache.clear();
+    }
+
+    /**
+     * 格納先の暗号化ファイルの情報を取得する.
+     * 
+     * @param file
+     *            ファイル
+     * @return ファイルの情報、存在しないかディレクトリであればnull
+     * @throws IOException
+     *             失敗
+     */
+    private StorageStat statFile(File file) throws IOException {
+        StorageStat stat = getStorage().stat(file);
+        return (stat != null && stat.isFile()) ? stat : null;
+    }
+
     @Override
     public void preDecryption(SymCipherEvent e) {
         // パスフレーズをチェックし、必要ならばUIでパスフレーズを入力してもらう.
@@ -312,8 +469,12 @@ public class DocumentController implements SymCipherEventListener {
             return null;
         }
 
-        int len = (int) file.length();
-        byte[] buf = new byte[len];
+        long size = file.length();
+        if (size > Integer.MAX_VALUE - 8) {
+            // 配列に入らない大きさの場合は、ストリームで読み込むこと.
+            throw new IOException("too large. " + file + " (" + size + ")");
+        }
+        byte[] buf = new byte[(int) size];
 
         RandomAccessFile fh = new RandomAccessFile(file, "r");
         try {
@@ -327,6 +488,55 @@ public class DocumentController implements SymCipherEventListener {
         return buf;
     }
 
+    /**
+     * バイナリデータをヒープ外のバッファに読み取ります.<br>
+     * ファイルが存在しない場合はnullを返します.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @return バッファ、もしくはnull
+     * @throws IOException
+     *             失敗
+     */
+    public OffHeapBuffer loadBinaryOffHeap(File file) throws IOException {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        InputStream is = new FileInputStream(file);
+        try {
+            return OffHeapBuffer.readFrom(is);
+
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * 指定したサイズのバイナリをヒープ外のバッファに保持するべきか判定する.<br>
+     * 
+     * @param size
+     *            サイズ
+     * @return ヒープ外に保持する場合はtrue
+     */
+    public boolean isOffHeapSize(long size) {
+        int threshold = appConfig.getOffHeapThreshold();
+        return threshold > 0 && size >= threshold * 1024L;
+    }
+
+    /**
+     * 指定したサイズの暗号化ファイルをメモリに復号化せずに、
+     * 必要なときに暗号化ファイルから順に復号化するべきか判定する.<br>
+     * (テキストと画像以外のドキュメントの場合.)<br>
+     * 
+     * @param size
+     *            サイズ
+     * @return 必要なときに復号化する場合はtrue
+     */
+    public boolean isStreamingSize(long size) {
+        int threshold = appConfig.getStreamingThreshold();
+        return threshold > 0 && size >= threshold * 1024L;
+    }
+
     /**
      * テキストファイルをロードする.<br>
      * 
@@ -371,6 +581,9 @@ public class DocumentController implements SymCipherEventListener {
      * コンテンツが画像であればBufferedImageが返される.<br>
      * それ以外のバイナリデータであればApplicationDataが返される.<br>
      * ファイルがなければnullが返される.<br>
+     * 暗号化ファイルのサイズが設定値以上であれば、バイナリはヒープ外のバッファに保持する.<br>
+     * さらに大きい場合、テキストと画像以外はヘッダのみを復号化し、
+     * データは必要なときに暗号化ファイルから順に復号化する.<br>
      * 
      * @param file
      *            ファイル
@@ -379,167 +592,727 @@ public class DocumentController implements SymCipherEventListener {
      *             失敗
      */
     public ApplicationData decrypt(File file) throws IOException {
-        byte[] data = symCipher.decrypt(file);
-        if (data == null) {
-            // ファイルが存在しない場合、
-            // もしくは存在しないとみなす場合.
-            return null;
-        }
-
-        HashMap<String, String> headers = new HashMap<String, String>();
-
-        int offset = parseHeader(data, headers);
-        logger.log(Level.FINE, "headers=" + headers);
-
-        // データ長さ
-        int length = Integer.parseInt(headers.get("content-length"));
-
-        // オリジナルファイル名
-        String orgFileName = null;
-        String contentDisposition = headers.get("content-disposition");
-        if (contentDisposition != null && contentDisposition.length() > 0) {
-            Map<String, String> argMap = parseOptions(contentDisposition);
-            logger.log(Level.INFO, "contentDisposition(args)=" + argMap);
-
-            orgFileName = argMap.get("filename");
+        StorageStat stat = (file != null) ? statFile(file) : null;
+        if (stat != null && isStreamingSize(stat.getLength())) {
+            DocumentHeader header = readDocumentHeader(file);
+            if (header == null) {
+                // 復号化がキャンセルされた場合.
+                return null;
+            }
+            if (header.textEncoding == null
+                    && !header.contentType.startsWith("image/")) {
+                return new ApplicationData(header.contentType,
+                        new EncryptedContentSource(file, stat, header),
+                        header.orgFileName);
+            }
         }
-        if (orgFileName == null || orgFileName.trim().length() == 0) {
-            // オリジナルファイル名が未設定であれば実ファイル名から補完する.
-            orgFileName = file.getName();
+        if (stat != null && isOffHeapSize(stat.getLength())) {
+            return decryptOffHeap(file);
         }
 
-        // コンテントタイプ
-        String contentType = headers.get("content-type");
-        if (contentType == null || contentType.trim().length() == 0) {
-            logger.log(Level.WARNING, "contentType is missing.");
-            contentType = "application/unknown";
+        // 最近復号化したものであれば、キャッシュから取り出す.
+        // (キーは復号化する前のファイルの状態とする.)
+        String cacheKey = documentCache.getKey(file, stat);
+        byte[] data = documentCache.get(cacheKey);
+        if (data == null) {
+            boolean passphraseRequired = !settingsModel.isValid();
+            data = symCipher.decrypt(file);
+            if (data == null) {
+                // ファイルが存在しない場合、
+                // もしくは存在しないとみなす場合.
+                return null;
+            }
+            if (passphraseRequired) {
+                // パスフレーズの入力でキャッシュが消去されているため、キーを取り直す.
+                cacheKey = documentCache.getKey(file, statFile(file));
+            }
+            documentCache.put(cacheKey, data);
         }
+        try {
+            return parseDocument(file, data);
 
-        // 文字列データの場合
-        String textEncoding = getTextEncoding(contentType);
-        if (textEncoding != null) {
-            String text = new String(data, offset, length, textEncoding);
-            return new ApplicationData(contentType, text, orgFileName);
+        } finally {
+            // 復号化したデータはメモリから消去する.
+            Arrays.fill(data, (byte) 0);
         }
-
-        // 画像データの場合か、それ以外の場合
-        byte[] buf = new byte[length];
-        System.arraycopy(data, offset, buf, 0, length);
-        return new ApplicationData(contentType, buf, orgFileName);
     }
 
     /**
-     * コンテントタイプから文字コード指定を取り出す.<br>
-     * 文字コードの指定がない場合は現在の設定値をデフォルトとして採用する.<br>
-     * コンテントタイプがテキストでない場合はnullを返す.<br>
+     * ファイルを復号化して、バイナリはヒープ外のバッファに保持する.<br>
+     * 復号化したデータはヘッダとボディに分けて、ボディは直接バッファに書き込む.<br>
+     * テキストの場合は文字列に変換し、バッファは消去する.<br>
+     * 大きなデータであるため、最近復号化したドキュメントのキャッシュは用いない.<br>
      * 
-     * @param contentType
-     *            コンテントタイプ
-     * @return 文字コード、もしくはnull
+     * @param file
+     *            ファイル
+     * @return 復号化されたテキストまたは画像またはApplicationData、もしくはnull
+     * @throws IOException
+     *             失敗
      */
-    public String getTextEncoding(String contentType) {
-        if (contentType != null && contentType.startsWith("text/")) {
-            // 文字コードの取得
-            Map<String, String> argMap = parseOptions(contentType);
-            logger.log(Level.INFO, "contentType(args)=" + argMap);
-            String encoding = argMap.get("charset");
+    private ApplicationData decryptOffHeap(File file) throws IOException {
+        OffHeapBuffer body = new OffHeapBuffer();
+        boolean success = false;
+        try {
+            HeaderSplitter splitter = new HeaderSplitter(
+                    body.getOutputStream());
+            if (!symCipher.decrypt(file, splitter)) {
+                // 復号化がキャンセルされた場合.
+                return null;
+            }
 
-            if (encoding == null || encoding.trim().length() == 0) {
-                // 未指定の場合は現在のエンコーディング指定を使用する.
-                encoding = settingsModel.getEncoding();
+            DocumentHeader header = parseDocumentHeader(file,
+                    splitter.getHeader());
+            if (header.length > body.length()) {
+                throw new IOException("invalid content-length. " + file);
+            }
+            body.truncate(header.length);
+
+            // 文字列データの場合
+            if (header.textEncoding != null) {
+                String text = readText(body.openStream(), header.textEncoding);
+                return new ApplicationData(header.contentType, text,
+                        header.orgFileName);
+            }
+
+            // 画像データの場合か、それ以外の場合
+            success = true;
+            return new ApplicationData(header.contentType, body,
+                    header.orgFileName);
+
+        } finally {
+            if (!success) {
+                body.wipe();
             }
-            return encoding;
         }
-        return null;
     }
 
     /**
-     * データからヘッダ部を解析し、ボディ部へのインデックスを戻り値とする.
+     * 暗号化ファイルの先頭のみを復号化して、ドキュメントのコンテントタイプを取得する.<br>
+     * ボディは復号化しないため、テキストであるか判定してから読み込む場合に用いる.<br>
      * 
-     * @param data
-     *            データ
-     * @param headers
-     *            解析したヘッダを格納するマップ、ヘッダのキーはすべて小文字にそろえられる
-     * @return ボディ部へのインデックス
+     * @param file
+     *            ファイル
+     * @return コンテントタイプ、ファイルがないか復号化がキャンセルされた場合はnull
+     * @throws IOException
+     *             失敗
      */
-    protected int parseHeader(byte[] data, Map<String, String> headers) {
-        if (headers == null) {
+    public String readContentType(File file) throws IOException {
+        if (file == null) {
             throw new IllegalArgumentException();
         }
-        if (data == null) {
-            data = new byte[0];
+        DocumentHeader header = readDocumentHeader(file);
+        return (header != null) ? header.contentType : null;
+    }
+
+    /**
+     * 暗号化ファイルの先頭を復号化して、ドキュメントのヘッダのみを読み込む.
+     * 
+     * @param file
+     *            ファイル
+     * @return ヘッダの解析結果、復号化がキャンセルされた場合はnull
+     * @throws IOException
+     *             失敗
+     */
+    private DocumentHeader readDocumentHeader(File file) throws IOException {
+        InputStream is = symCipher.openDecryptStream(file);
+        if (is == null) {
+            return null;
         }
+        HeaderSplitter splitter = new HeaderSplitter(null);
+        try {
+            while (!splitter.isHeaderComplete()) {
+                int c = is.read();
+                if (c < 0) {
+                    throw new IOException("invalid document header. " + file);
+                }
+                splitter.write(c);
+            }
 
-        // 現在位置
-        int pos = 0;
+        } finally {
+            is.close();
+        }
+        return parseDocumentHeader(file, splitter.getHeader());
+    }
 
-        // データの長さ
-        int len = data.length;
+    /**
+     * 暗号化ファイルから必要なときに順に復号化するドキュメントの内容.<br>
+     * 作成時のファイルのサイズと最終更新日時を記録し、
+     * その後にファイルが変更された場合は読み込みを例外とする.<br>
+     */
+    private final class EncryptedContentSource implements ContentSource {
 
-        // ヘッダとして認識された行のリスト
-        ArrayList<String> headerLines = new ArrayList<String>();
+        /**
+         * 暗号化ファイル
+         */
+        private final File file;
 
-        // 現在処理中のヘッダ行を編集するためのバッファ
-        StringBuilder strbuf = new StringBuilder();
+        /**
+         * 復号化したデータのボディ部へのインデックス
+         */
+        private final int offset;
 
-        // ヘッダを読み取るためのバッファ
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        /**
+         * データ長さ
+         */
+        private final long length;
 
-        // データからヘッダ部を取り出すループ.
-        while (pos < len) {
-            byte c = data[pos++];
-            if (c == '\r') {
-                // CRは無視する. (簡略化のため)
-                continue;
-            }
+        /**
+         * 作成時の暗号化ファイルのサイズ
+         */
+        private final long fileLength;
 
-            // 行終端判定
-            if (c == '\n') {
-                if (buf.size() == 0) {
-                    // 行頭で終端であれば、ヘッダの取得終了とする.
-                    break;
-                }
+        /**
+         * 作成時の暗号化ファイルの最終更新日時
+         */
+        private final long lastModified;
 
-                // ヘッダ行
-                String line;
-                try {
-                    line = new String(buf.toByteArray(), "UTF-8");
+        EncryptedContentSource(File file, StorageStat stat,
+                DocumentHeader header) {
+            this.file = file;
+            this.offset = header.offset;
+            this.length = header.length;
+            this.fileLength = stat.getLength();
+            this.lastModified = stat.getLastModified();
+        }
 
-                } catch (UnsupportedEncodingException ex) {
-                    throw new RuntimeException(ex);
-                }
+        File getFile() {
+            return file;
+        }
 
-                if (line.startsWith(" ") || line.startsWith("\t")) {
-                    // タブまたは空白で始まる場合は前の継続行
-                    strbuf.append(line.trim());
+        @Override
+        public long length() {
+            return length;
+        }
 
-                } else {
-                    // 前のヘッダ行を確定して次の行に進む
-                    if (strbuf.length() > 0) {
-                        headerLines.add(strbuf.toString());
-                        strbuf.setLength(0);
+        @Override
+        public InputStream openStream() throws IOException {
+            StorageStat stat = statFile(file);
+            if (stat == null || stat.getLength() != fileLength
+                    || stat.getLastModified() != lastModified) {
+                throw new IOException("the document was modified. " + file);
+            }
+            InputStream is = symCipher.openDecryptStream(file);
+            if (is == null) {
+                throw new CipherCancelException();
+            }
+            boolean success = false;
+            try {
+                // ヘッダを読み飛ばす.
+                byte[] buf = new byte[offset];
+                int pos = 0;
+                while (pos < offset) {
+                    int rd = is.read(buf, pos, offset - pos);
+                    if (rd < 0) {
+                        throw new IOException("invalid document. " + file);
                     }
-                    strbuf.append(line);
+                    pos += rd;
                 }
+                success = true;
+                return new LimitedInputStream(is, length);
 
-                // バッファのリセット
-                buf.reset();
-                continue;
+            } finally {
+                if (!success) {
+                    is.close();
+                }
             }
-
-            // バッファに追加
-            buf.write(c);
         }
 
-        // 最後の処理中のヘッダ行を確定する.
-        if (strbuf.length() > 0) {
-            headerLines.add(strbuf.toString());
-            strbuf.setLength(0);
+        @Override
+        public String toString() {
+            return "EncryptedContentSource(" + file + ", " + length + ")";
         }
+    }
 
-        // ヘッダの解析
-        for (String line : headerLines) {
-            parseKeyValue(line, ':', headers);
+    /**
+     * 指定した長さまでを読み込む入力ストリーム.<br>
+     * 指定した長さに満たずに終端に達した場合は例外とする.<br>
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        /**
+         * 残りの長さ
+         */
+        private long remaining;
+
+        LimitedInputStream(InputStream is, long length) {
+            super(is);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int rd = read(b, 0, 1);
+            return (rd < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int rd = super.read(b, off, (int) Math.min(len, remaining));
+            if (rd < 0) {
+                throw new IOException("unexpected end of the document.");
+            }
+            remaining -= rd;
+            return rd;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long sz = super.skip(Math.min(n, remaining));
+            remaining -= sz;
+            return sz;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * ストリームから文字列を読み込む.
+     * 
+     * @param is
+     *            入力ストリーム
+     * @param encoding
+     *            文字コード
+     * @return 文字列
+     * @throws IOException
+     *             失敗
+     */
+    private String readText(InputStream is, String encoding)
+            throws IOException {
+        StringBuilder buf = new StringBuilder();
+        char[] cbuf = new char[4096];
+        Reader reader = new InputStreamReader(is, encoding);
+        try {
+            for (;;) {
+                int rd = reader.read(cbuf);
+                if (rd < 0) {
+                    break;
+                }
+                buf.append(cbuf, 0, rd);
+            }
+
+        } finally {
+            reader.close();
+            Arrays.fill(cbuf, '\0');
+        }
+        return buf.toString();
+    }
+
+    /**
+     * 復号化したデータのヘッダを解析してコンテンツを取得する.
+     * 
+     * @param file
+     *            ファイル
+     * @param data
+     *            復号化したデータ
+     * @return 復号化されたテキストまたは画像またはApplicationData
+     * @throws IOException
+     *             失敗
+     */
+    private ApplicationData parseDocument(File file, byte[] data)
+            throws IOException {
+        DocumentHeader header = parseDocumentHeader(file, data);
+        int offset = header.offset;
+        int length = (int) header.length;
+
+        // 文字列データの場合
+        if (header.textEncoding != null) {
+            String text = new String(data, offset, length, header.textEncoding);
+            return new ApplicationData(header.contentType, text,
+                    header.orgFileName);
+        }
+
+        // 画像データの場合か、それ以外の場合
+        byte[] buf = new byte[length];
+        System.arraycopy(data, offset, buf, 0, length);
+        return new ApplicationData(header.contentType, buf, header.orgFileName);
+    }
+
+    /**
+     * ドキュメントのヘッダの解析結果
+     */
+    private static final class DocumentHeader {
+
+        /**
+         * ボディ部へのインデックス
+         */
+        int offset;
+
+        /**
+         * データ長さ
+         */
+        long length;
+
+        /**
+         * コンテントタイプ
+         */
+        String contentType;
+
+        /**
+         * オリジナルファイル名
+         */
+        String orgFileName;
+
+        /**
+         * テキストの文字コード、テキストでなければnull
+         */
+        String textEncoding;
+    }
+
+    /**
+     * 復号化したデータのヘッダを解析する.
+     * 
+     * @param file
+     *            ファイル
+     * @param data
+     *            復号化したデータ、もしくはヘッダ部のみ
+     * @return ヘッダの解析結果
+     * @throws IOException
+     *             失敗
+     */
+    private DocumentHeader parseDocumentHeader(File file, byte[] data)
+            throws IOException {
+
+        TraceEvent trace = TraceEventType.HEADER_PARSE.begin();
+        trace.setFile(file);
+
+        HashMap<String, String> headers = new HashMap<String, String>();
+
+        DocumentHeader header = new DocumentHeader();
+        header.offset = parseHeader(data, headers);
+        logger.log(Level.FINE, "headers=" + headers);
+
+        // データ長さ
+        header.length = Long.parseLong(headers.get("content-length"));
+        trace.setSize(header.length);
+
+        // オリジナルファイル名
+        String orgFileName = null;
+        String contentDisposition = headers.get("content-disposition");
+        if (contentDisposition != null && contentDisposition.length() > 0) {
+            Map<String, String> argMap = parseOptions(contentDisposition);
+            logger.log(Level.INFO, "contentDisposition(args)=" + argMap);
+
+            orgFileName = argMap.get("filename");
+        }
+        if (orgFileName == null || orgFileName.trim().length() == 0) {
+            // オリジナルファイル名が未設定であれば実ファイル名から補完する.
+            orgFileName = file.getName();
+        }
+        header.orgFileName = orgFileName;
+
+        // コンテントタイプ
+        String contentType = headers.get("content-type");
+        if (contentType == null || contentType.trim().length() == 0) {
+            logger.log(Level.WARNING, "contentType is missing.");
+            contentType = "application/unknown";
+        }
+        header.contentType = contentType;
+        trace.setContentType(contentType);
+        trace.commit();
+
+        header.textEncoding = getTextEncoding(contentType);
+        return header;
+    }
+
+    /**
+     * 復号化したデータをヘッダとボディに分ける出力ストリーム.<br>
+     * ヘッダは空行まで(空行を含む)をメモリに保持し、ボディは出力先にそのまま書き込む.<br>
+     * ヘッダの判定は{@link DocumentController#parseHeader(byte[], Map)}と同じく、
+     * CRを無視して空行があればヘッダの終わりとする.<br>
+     */
+    private static final class HeaderSplitter extends OutputStream {
+
+        /**
+         * ヘッダの最大サイズ
+         */
+        private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+        /**
+         * ヘッダ
+         */
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+        /**
+         * ボディの出力先
+         */
+        private final OutputStream body;
+
+        /**
+         * 現在の行の長さ(CRを除く)
+         */
+        private int lineLength;
+
+        /**
+         * ヘッダの終わりに達したか?
+         */
+        private boolean inBody;
+
+        /**
+         * コンストラクタ
+         * 
+         * @param body
+         *            ボディの出力先、ヘッダのみを読み込む場合はnull
+         */
+        HeaderSplitter(OutputStream body) {
+            this.body = body;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (!inBody && len > 0) {
+                byte c = b[off++];
+                len--;
+                header.write(c);
+                if (c == '\n') {
+                    inBody = (lineLength == 0);
+                    lineLength = 0;
+                } else if (c != '\r') {
+                    lineLength++;
+                }
+                if (header.size() > MAX_HEADER_SIZE) {
+                    throw new IOException("document header is too large.");
+                }
+            }
+            if (len > 0) {
+                if (body == null) {
+                    throw new IOException("unexpected document body.");
+                }
+                body.write(b, off, len);
+            }
+        }
+
+        /**
+         * ヘッダの終わりに達したか?
+         * 
+         * @return ヘッダの終わりに達していればtrue
+         */
+        boolean isHeaderComplete() {
+            return inBody;
+        }
+
+        /**
+         * ヘッダを取得する.
+         * 
+         * @return ヘッダ(空行を含む)
+         */
+        byte[] getHeader() {
+            return header.toByteArray();
+        }
+    }
+
+    /**
+     * ファイルを先読みして、最近復号化したドキュメントのキャッシュに入れておく.<br>
+     * ファイルを開く前に、バックグラウンドのスレッドから投機的に呼び出される.<br>
+     * パスフレーズの入力やエラー表示などのUIは伴わず、パスフレーズが未設定の場合や
+     * キャッシュ済みの場合、キャッシュに入らない大きさの場合は何もしない.<br>
+     * 復号化できないファイルは無視する.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @return 先読みした場合はtrue
+     * @throws IOException
+     *             ファイルの読み込みに失敗した場合
+     */
+    public boolean prefetch(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!settingsModel.isValid()) {
+            return false;
+        }
+        StorageStat stat = statFile(file);
+        if (stat == null || stat.getLength() > documentCache.getBudget()
+                || isOffHeapSize(stat.getLength())
+                || isStreamingSize(stat.getLength())) {
+            return false;
+        }
+        String cacheKey = documentCache.getKey(file, stat);
+        if (cacheKey == null || documentCache.contains(cacheKey)) {
+            return false;
+        }
+
+        byte[] data;
+        try {
+            data = symCipher.decryptQuietly(file);
+
+        } catch (GeneralSecurityException ex) {
+            // 暗号化ファイルでないか、パスフレーズが一致しない.
+            logger.log(Level.FINE, "prefetch skipped. " + file + ": " + ex);
+            return false;
+        }
+        if (data == null) {
+            return false;
+        }
+        try {
+            if (!isValidDocument(data)) {
+                return false;
+            }
+            documentCache.put(cacheKey, data);
+            return true;
+
+        } finally {
+            Arrays.fill(data, (byte) 0);
+        }
+    }
+
+    /**
+     * 復号化されたデータがドキュメントの形式であるか判定する.<br>
+     * ヘッダにContent-Typeと妥当なContent-Lengthがあればドキュメントとみなす.<br>
+     * 
+     * @param data
+     *            復号化されたデータ
+     * @return ドキュメントの形式であればtrue
+     */
+    public boolean isValidDocument(byte[] data) {
+        if (data == null) {
+            return false;
+        }
+        HashMap<String, String> headers = new HashMap<String, String>();
+        int offset = parseHeader(data, headers);
+        if (!headers.containsKey("content-type")) {
+            return false;
+        }
+        try {
+            int length = Integer.parseInt(headers.get("content-length"));
+            return length >= 0 && offset + length <= data.length;
+
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * コンテントタイプから文字コード指定を取り出す.<br>
+     * 文字コードの指定がない場合は現在の設定値をデフォルトとして採用する.<br>
+     * コンテントタイプがテキストでない場合はnullを返す.<br>
+     * 
+     * @param contentType
+     *            コンテントタイプ
+     * @return 文字コード、もしくはnull
+     */
+    public String getTextEncoding(String contentType) {
+        if (contentType != null && contentType.startsWith("text/")) {
+            // 文字コードの取得
+            Map<String, String> argMap = parseOptions(contentType);
+            logger.log(Level.INFO, "contentType(args)=" + argMap);
+            String encoding = argMap.get("charset");
+
+            if (encoding == null || encoding.trim().length() == 0) {
+                // 未指定の場合は現在のエンコーディング指定を使用する.
+                encoding = settingsModel.getEncoding();
+            }
+            return encoding;
+        }
+        return null;
+    }
+
+    /**
+     * データからヘッダ部を解析し、ボディ部へのインデックスを戻り値とする.
+     * 
+     * @param data
+     *            データ
+     * @param headers
+     *            解析したヘッダを格納するマップ、ヘッダのキーはすべて小文字にそろえられる
+     * @return ボディ部へのインデックス
+     */
+    protected int parseHeader(byte[] data, Map<String, String> headers) {
+        if (headers == null) {
+            throw new IllegalArgumentException();
+        }
+        if (data == null) {
+            data = new byte[0];
+        }
+
+        // 現在位置
+        int pos = 0;
+
+        // データの長さ
+        int len = data.length;
+
+        // ヘッダとして認識された行のリスト
+        ArrayList<String> headerLines = new ArrayList<String>();
+
+        // 現在処理中のヘッダ行を編集するためのバッファ
+        StringBuilder strbuf = new StringBuilder();
+
+        // ヘッダを読み取るためのバッファ
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        // データからヘッダ部を取り出すループ.
+        while (pos < len) {
+            byte c = data[pos++];
+            if (c == '\r') {
+                // CRは無視する. (簡略化のため)
+                continue;
+            }
+
+            // 行終端判定
+            if (c == '\n') {
+                if (buf.size() == 0) {
+                    // 行頭で終端であれば、ヘッダの取得終了とする.
+                    break;
+                }
+
+                // ヘッダ行
+                String line;
+                try {
+                    line = new String(buf.toByteArray(), "UTF-8");
+
+                } catch (UnsupportedEncodingException ex) {
+                    throw new RuntimeException(ex);
+                }
+
+                if (line.startsWith(" ") || line.startsWith("\t")) {
+                    // タブまたは空白で始まる場合は前の継続行
+                    strbuf.append(line.trim());
+
+                } else {
+                    // 前のヘッダ行を確定して次の行に進む
+                    if (strbuf.length() > 0) {
+                        headerLines.add(strbuf.toString());
+                        strbuf.setLength(0);
+                    }
+                    strbuf.append(line);
+                }
+
+                // バッファのリセット
+                buf.reset();
+                continue;
+            }
+
+            // バッファに追加
+            buf.write(c);
+        }
+
+        // 最後の処理中のヘッダ行を確定する.
+        if (strbuf.length() > 0) {
+            headerLines.add(strbuf.toString());
+            strbuf.setLength(0);
+        }
+
+        // ヘッダの解析
+        for (String line : headerLines) {
+            parseKeyValue(line, ':', headers);
         }
 
         // ボディ位置を返す.
@@ -611,7 +1384,8 @@ public class DocumentController implements SymCipherEventListener {
             throw new IllegalArgumentException();
         }
 
-        FileUpdateNotifier notifier = new FileUpdateNotifier(file);
+        FileUpdateNotifier notifier = new FileUpdateNotifier(file,
+                LocalStorage.getInstance());
         try {
             if (text == null) {
                 text = "";
@@ -635,12 +1409,16 @@ public class DocumentController implements SymCipherEventListener {
     }
 
     /**
-     * アプリケーションデータを暗号化して保存する.
+     * アプリケーションデータを暗号化して保存する.<br>
+     * チャンク形式の場合、既存のファイルには変更されたチャンクのみを書き込む.<br>
+     * 書き込んだバイト数は結果から取得できる.<br>
      * @param file 保存先ファイル名
      * @param data 保存するデータ
+     * @return 結果、キャンセルされた場合はnull
      * @throws IOException 失敗
      */
-    public void encrypt(File file, ApplicationData data) throws IOException {
+    public EncryptResult encrypt(File file, ApplicationData data)
+            throws IOException {
         if (file == null || data == null) {
             throw new IllegalArgumentException();
         }
@@ -648,15 +1426,140 @@ public class DocumentController implements SymCipherEventListener {
         String contentType = data.getContentType();
         String docTitle = data.getDocumentTitle();
 
+        EncryptResult result;
         String textEncoding = getTextEncoding(contentType);
-        byte[] bytes;
         if (textEncoding != null) {
-            bytes = data.getText().getBytes(textEncoding);
+            byte[] bytes = data.getText().getBytes(textEncoding);
+            result = encrypt(file, bytes, contentType, docTitle);
+
+        } else if (isSourceOf(file, data)) {
+            // 保存先の暗号化ファイルから読み込むデータの場合は、
+            // 一時ファイルに暗号化してから置き換える.
+            File tmpFile = createTempFile(file);
+            boolean success = false;
+            try {
+                result = encryptStream(tmpFile, file, data, contentType,
+                        docTitle);
+                replaceFile(tmpFile, file);
+                success = true;
+
+            } finally {
+                if (!success) {
+                    try {
+                        getStorage().delete(tmpFile);
+
+                    } catch (IOException ex) {
+                        logger.log(Level.WARNING, "can't delete. " + tmpFile,
+                                ex);
+                    }
+                }
+            }
+
         } else {
-            bytes = data.getData();
+            // ヒープ外のバッファや読み込み元の場合も複製せずに暗号化する.
+            result = encryptStream(file, file, data, contentType, docTitle);
+        }
+
+        if (result != null && logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "saved. " + file + " " + result);
+        }
+        return result;
+    }
+
+    /**
+     * バイナリのアプリケーションデータをストリームとして読み込みながら暗号化して保存する.
+     * 
+     * @param file
+     *            保存先ファイル名
+     * @param documentFile
+     *            版の履歴を記録するドキュメントのファイル
+     * @param data
+     *            保存するデータ
+     * @param contentType
+     *            データの形式を表すMIMEタイプ
+     * @param docTitle
+     *            オリジナルファイル名
+     * @return 結果、キャンセルされた場合はnull
+     * @throws IOException
+     *             失敗
+     */
+    private EncryptResult encryptStream(File file, File documentFile,
+            ApplicationData data, String contentType, String docTitle)
+            throws IOException {
+        InputStream is = data.openStream();
+        try {
+            return encrypt(file, documentFile, is, data.getLength(),
+                    contentType, docTitle);
+
+        } finally {
+            is.close();
         }
+    }
+
+    /**
+     * データが指定した暗号化ファイルから読み込むものであるか判定する.
+     * 
+     * @param file
+     *            暗号化ファイル
+     * @param data
+     *            データ
+     * @return 指定した暗号化ファイルから読み込む場合はtrue
+     * @throws IOException
+     *             パスを正規化できない場合
+     */
+    private boolean isSourceOf(File file, ApplicationData data)
+            throws IOException {
+        ContentSource source = data.getSource();
+        if (source instanceof EncryptedContentSource) {
+            File sourceFile = ((EncryptedContentSource) source).getFile();
+            return sourceFile.getCanonicalFile().equals(
+                    file.getCanonicalFile());
+        }
+        return false;
+    }
+
+    /**
+     * 保存先と同じディレクトリに、他と重ならない一時ファイルの名前を作成する.<br>
+     * 隠しファイルとし、格納先の書き込み中の一時ファイルと同じ拡張子とする.<br>
+     * (ファイルは作成しない.)<br>
+     * 
+     * @param file
+     *            保存先ファイル
+     * @return 一時ファイル
+     * @throws IOException
+     *             失敗
+     */
+    private File createTempFile(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        for (;;) {
+            File tmpFile = new File(dir, "." + file.getName() + "."
+                    + UUID.randomUUID().toString() + LocalStorage.TMP_SUFFIX);
+            if (getStorage().stat(tmpFile) == null) {
+                return tmpFile;
+            }
+        }
+    }
+
+    /**
+     * 一時ファイルで既存のファイルを置き換える.
+     * 
+     * @param tmpFile
+     *            一時ファイル
+     * @param file
+     *            置き換えるファイル
+     * @throws IOException
+     *             失敗
+     */
+    private void replaceFile(File tmpFile, File file) throws IOException {
+        FileUpdateNotifier notifier = new FileUpdateNotifier(file,
+                getStorage());
+        try {
+            documentCache.invalidate(file);
+            getStorage().rename(tmpFile, file);
 
-        encrypt(file, bytes, contentType, docTitle);
+        } finally {
+            notifier.checkAndNotify();
+        }
     }
 
     /**
@@ -670,15 +1573,97 @@ public class DocumentController implements SymCipherEventListener {
      *            データの形式を表すMIMEタイプ
      * @param orgFileName
      *            オリジナルファイル名、nullの場合は保存先ファイル名を用いる.
+     * @return 結果、キャンセルされた場合はnull
      * @throws IOException
      *             失敗
      */
-    private void encrypt(File file, byte[] data, String contentType,
+    public EncryptResult encrypt(File file, byte[] data, String contentType,
             String orgFileName) throws IOException {
         if (data == null) {
             data = new byte[0];
         }
+        return encrypt(file, file, new ByteArrayInputStream(data),
+                data.length, contentType, orgFileName);
+    }
+
+    /**
+     * MIMEを指定して読み込み元のデータを暗号化して保存する.<br>
+     * 読み込みながら暗号化するため、データ全体をメモリに置かない.<br>
+     * テキストの場合も文字コードは変換せずに、そのまま暗号化する.<br>
+     * 
+     * @param file
+     *            保存先ファイル名
+     * @param source
+     *            データの読み込み元
+     * @param contentType
+     *            データの形式を表すMIMEタイプ
+     * @param orgFileName
+     *            オリジナルファイル名、nullの場合は保存先ファイル名を用いる.
+     * @return 結果、キャンセルされた場合はnull
+     * @throws IOException
+     *             失敗
+     */
+    public EncryptResult encrypt(File file, ContentSource source,
+            String contentType, String orgFileName) throws IOException {
+        if (file == null || source == null) {
+            throw new IllegalArgumentException();
+        }
+        InputStream is = source.openStream();
+        try {
+            return encrypt(file, file, is, source.length(), contentType,
+                    orgFileName);
+
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * MIMEを指定してストリームから読み込んだデータを暗号化して保存する.<br>
+     * ヘッダとデータを連結したストリームとして暗号化するため、データ全体をメモリに置かない.<br>
+     * 
+     * @param file
+     *            保存先ファイル名
+     * @param documentFile
+     *            版の履歴を記録するドキュメントのファイル
+     * @param is
+     *            データのストリーム(閉じない)
+     * @param length
+     *            データの長さ
+     * @param contentType
+     *            データの形式を表すMIMEタイプ
+     * @param orgFileName
+     *            オリジナルファイル名、nullの場合は保存先ファイル名を用いる.
+     * @return 結果、キャンセルされた場合はnull
+     * @throws IOException
+     *             失敗
+     */
+    private EncryptResult encrypt(File file, File documentFile,
+            InputStream is, long length, String contentType,
+            String orgFileName) throws IOException {
+        byte[] buf = createDocumentHeader(file.getName(), length, contentType,
+                orgFileName);
+        return encryptPlain(file, documentFile, new SequenceInputStream(
+                new ByteArrayInputStream(buf), is), buf.length + length);
+    }
 
+    /**
+     * ドキュメントのヘッダを作成する.
+     * 
+     * @param fileName
+     *            保存先ファイル名
+     * @param length
+     *            データの長さ
+     * @param contentType
+     *            データの形式を表すMIMEタイプ
+     * @param orgFileName
+     *            オリジナルファイル名、nullの場合は保存先ファイル名を用いる.
+     * @return ヘッダ
+     * @throws IOException
+     *             失敗
+     */
+    private byte[] createDocumentHeader(String fileName, long length,
+            String contentType, String orgFileName) throws IOException {
         String dpType;
         if (contentType.startsWith("text/") || contentType.startsWith("image/")) {
             dpType = "inline";
@@ -688,41 +1673,234 @@ public class DocumentController implements SymCipherEventListener {
 
         String displayName;
         if (orgFileName == null || orgFileName.trim().length() == 0) {
-            displayName = file.getName();
+            displayName = fileName;
         } else {
             displayName = orgFileName;
         }
 
-        byte[] buf;
-        {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bos.write(("Content-Type: " + contentType + "\r\n")
+                    .getBytes("UTF-8"));
+            bos.write(("Content-Length: " + length + "\r\n")
+                    .getBytes("UTF-8"));
+            bos.write(("Content-Disposition: " + dpType + ";filename="
+                    + displayName + "\r\n").getBytes("UTF-8"));
+            bos.write(("Content-Transfer-Encoding: binary\r\n")
+                    .getBytes("UTF-8"));
+            bos.write("\r\n".getBytes("UTF-8"));
+
+        } finally {
+            bos.close();
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * アーカイブを開く.
+     * 
+     * @param file
+     *            アーカイブのファイル
+     * @param writable
+     *            書き込み可能として開くか?
+     * @return アーカイブ、復号化がキャンセルされた場合はnull
+     * @throws IOException
+     *             失敗
+     */
+    public PackedArchive openArchive(File file, boolean writable)
+            throws IOException {
+        return symCipher.openArchive(file, writable);
+    }
+
+    /**
+     * 空のアーカイブを作成する.<br>
+     * ファイルがあれば置き換える.<br>
+     * 
+     * @param file
+     *            アーカイブのファイル
+     * @return 書き込み可能なアーカイブ
+     * @throws IOException
+     *             失敗
+     */
+    public PackedArchive createArchive(File file) throws IOException {
+        return symCipher.createArchive(file);
+    }
+
+    /**
+     * アーカイブのエントリを復号化してコンテンツを取得する.<br>
+     * エントリはファイルと同じ形式のドキュメントである.<br>
+     * 
+     * @param archive
+     *            アーカイブ
+     * @param name
+     *            エントリの名前
+     * @return 復号化されたテキストまたは画像またはApplicationData、エントリがなければnull
+     * @throws IOException
+     *             失敗
+     */
+    public ApplicationData decrypt(PackedArchive archive, String name)
+            throws IOException {
+        if (archive == null || name == null) {
+            throw new IllegalArgumentException();
+        }
+        byte[] data = archive.read(name);
+        if (data == null) {
+            return null;
+        }
+        try {
+            return parseDocument(new File(archive.getFile(), name), data);
+
+        } finally {
+            Arrays.fill(data, (byte) 0);
+        }
+    }
+
+    /**
+     * アプリケーションデータをアーカイブのエントリとして暗号化して書き込む.<br>
+     * 同じ名前のエントリがあれば置き換える.<br>
+     * 変更は{@link PackedArchive#commit()}を呼び出すまで確定しない.<br>
+     * 
+     * @param archive
+     *            書き込み可能なアーカイブ
+     * @param name
+     *            エントリの名前
+     * @param data
+     *            保存するデータ
+     * @throws IOException
+     *             失敗
+     */
+    public void encrypt(PackedArchive archive, String name,
+            ApplicationData data) throws IOException {
+        if (archive == null || name == null || data == null) {
+            throw new IllegalArgumentException();
+        }
+        String contentType = data.getContentType();
+        String textEncoding = getTextEncoding(contentType);
+        byte[] contents;
+        if (textEncoding != null) {
+            contents = data.getText().getBytes(textEncoding);
+        } else {
+            contents = data.getData();
+        }
+
+        String entryName = name.substring(name.lastIndexOf('/') + 1);
+        byte[] header = createDocumentHeader(entryName, contents.length,
+                contentType, data.getDocumentTitle());
+        byte[] document = new byte[header.length + contents.length];
+        try {
+            System.arraycopy(header, 0, document, 0, header.length);
+            System.arraycopy(contents, 0, document, header.length,
+                    contents.length);
+            archive.put(name, document, System.currentTimeMillis());
+
+        } finally {
+            Arrays.fill(document, (byte) 0);
+            if (textEncoding != null) {
+                Arrays.fill(contents, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * ヘッダを含むドキュメントの平文を暗号化して保存する.<br>
+     * 版の履歴が有効であれば、暗号化しながら版として記録する.<br>
+     * 版の記録に失敗しても保存は失敗としない.<br>
+     * 保存先がドキュメントのファイルと異なる一時ファイルの場合は、ファイルの更新を通知しない.
+     * (置き換えたときに通知される.)<br>
+     * 
+     * @param file
+     *            保存先ファイル名
+     * @param documentFile
+     *            版の履歴を記録するドキュメントのファイル
+     * @param plain
+     *            ヘッダを含む平文のストリーム(閉じない)
+     * @param length
+     *            平文の長さ
+     * @return 結果、キャンセルされた場合はnull
+     * @throws IOException
+     *             失敗
+     */
+    private EncryptResult encryptPlain(File file, File documentFile,
+            InputStream plain, long length) throws IOException {
+        VersionStore.Recorder recorder = null;
+        VersionStore store = versionStore;
+        if (store != null) {
             try {
-                bos.write(("Content-Type: " + contentType + "\r\n")
-                        .getBytes("UTF-8"));
-                bos.write(("Content-Length: " + data.length + "\r\n")
-                        .getBytes("UTF-8"));
-                bos.write(("Content-Disposition: " + dpType + ";filename="
-                        + displayName + "\r\n").getBytes("UTF-8"));
-                bos.write(("Content-Transfer-Encoding: binary\r\n")
-                        .getBytes("UTF-8"));
-                bos.write("\r\n".getBytes("UTF-8"));
-                bos.write(data);
+                recorder = store.record(documentFile);
 
-            } finally {
-                bos.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "can't record the revision. "
+                        + documentFile, ex);
             }
-            buf = bos.toByteArray();
         }
 
-        FileUpdateNotifier notifier = new FileUpdateNotifier(file);
+        EncryptResult result = null;
+        FileUpdateNotifier notifier = new FileUpdateNotifier(
+                file.equals(documentFile) ? file : null, getStorage());
         try {
-            symCipher.encrypt(buf, file);
+            documentCache.invalidate(file);
+            InputStream is = (recorder != null) ? recorder.wrap(plain) : plain;
+            result = symCipher.encrypt(is, length, file);
+            return result;
 
         } finally {
+            if (recorder != null) {
+                if (result != null) {
+                    recorder.commit();
+                } else {
+                    recorder.abort();
+                }
+            }
             notifier.checkAndNotify();
         }
     }
 
+    /**
+     * ドキュメントを版の履歴の指定した版の内容に戻す.<br>
+     * 戻した内容も新しい版として記録される.<br>
+     * 
+     * @param file
+     *            暗号化ファイル
+     * @param revision
+     *            版
+     * @return 結果、キャンセルされた場合はnull
+     * @throws IOException
+     *             失敗
+     */
+    public EncryptResult restoreRevision(File file,
+            VersionStore.Revision revision) throws IOException {
+        if (file == null || revision == null) {
+            throw new IllegalArgumentException();
+        }
+        VersionStore store = openVersionStore();
+        InputStream is = store.openRevision(revision);
+        try {
+            return encryptPlain(file, file, is, revision.getLength());
+
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * 版の履歴のストアを取得する.<br>
+     * 版の履歴が無効の場合でも、コンテンツディレクトリ下のストアを開く.<br>
+     * 
+     * @return ストア
+     */
+    public VersionStore openVersionStore() {
+        VersionStore store = versionStore;
+        if (store != null) {
+            return store;
+        }
+        File contentsDir = appConfig.getContentsDir();
+        if (contentsDir == null) {
+            throw new IllegalStateException("contentsDir is not specified.");
+        }
+        return new VersionStore(new File(contentsDir, VersionStore.DIR_NAME),
+                symCipher);
+    }
+
     /**
      * 平文でバイナリデータをファイルに保存します.
      * 
@@ -733,20 +1911,41 @@ public class DocumentController implements SymCipherEventListener {
      * @throws IOException
      */
     public void savePlainBinary(File file, byte[] data) throws IOException {
-        if (file == null) {
+        if (data == null) {
+            data = new byte[0];
+        }
+        savePlainBinary(file, new ByteArrayInputStream(data));
+    }
+
+    /**
+     * 平文でストリームから読み込んだバイナリデータをファイルに保存します.
+     * 
+     * @param file
+     *            ファイル
+     * @param is
+     *            データのストリーム(閉じない)
+     * @throws IOException
+     */
+    public void savePlainBinary(File file, InputStream is) throws IOException {
+        if (file == null || is == null) {
             throw new IllegalArgumentException();
         }
 
-        FileUpdateNotifier notifier = new FileUpdateNotifier(file);
+        FileUpdateNotifier notifier = new FileUpdateNotifier(file,
+                LocalStorage.getInstance());
         try {
-            if (data == null) {
-                data = new byte[0];
-            }
-
             OutputStream os = new BufferedOutputStream(new FileOutputStream(
                     file));
             try {
-                os.write(data);
+                byte[] buf = new byte[8192];
+                for (;;) {
+                    int rd = is.read(buf);
+                    if (rd < 0) {
+                        break;
+                    }
+                    os.write(buf, 0, rd);
+                }
+                Arrays.fill(buf, (byte) 0);
 
             } finally {
                 os.close();
@@ -764,17 +1963,30 @@ public class DocumentController implements SymCipherEventListener {
 
         private File file;
 
+        private Storage storage;
+
         private boolean exists;
 
-        FileUpdateNotifier(File file) {
+        FileUpdateNotifier(File file, Storage storage) {
             this.file = file;
+            this.storage = storage;
             if (file != null) {
-                exists = file.exists();
+                exists = exists();
+            }
+        }
+
+        private boolean exists() {
+            try {
+                return storage.stat(file) != null;
+
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "can't stat. " + file, ex);
+                return false;
             }
         }
 
         void checkAndNotify() {
-            if (file != null && file.exists()) {
+            if (file != null && exists()) {
                 if (passphraseUiProvider != null) {
                     File oldFile = exists ? file : null;
                     passphraseUiProvider.fileUpdated(oldFile, file);
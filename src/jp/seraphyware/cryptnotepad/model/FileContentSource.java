@@ -0,0 +1,76 @@
+package jp.seraphyware.cryptnotepad.model;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 平文のファイルをドキュメントの内容とする.<br>
+ * 作業ファイルの内容をメモリに読み込まずに暗号化する場合に用いる.<br>
+ * 作成時のファイルのサイズと最終更新日時を記録し、
+ * その後にファイルが変更された場合は読み込みを例外とする.<br>
+ * 
+ * @author seraphy
+ */
+public final class FileContentSource implements ContentSource {
+
+    /**
+     * ファイル
+     */
+    private final File file;
+
+    /**
+     * 作成時のファイルのサイズ
+     */
+    private final long length;
+
+    /**
+     * 作成時のファイルの最終更新日時
+     */
+    private final long lastModified;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param file
+     *            ファイル
+     * @throws IOException
+     *             ファイルが存在しない場合
+     */
+    public FileContentSource(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!file.isFile()) {
+            throw new IOException("file not found. " + file);
+        }
+        this.file = file;
+        this.length = file.length();
+        this.lastModified = file.lastModified();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        if (!file.isFile() || file.length() != length
+                || file.lastModified() != lastModified) {
+            throw new IOException("the file was modified. " + file);
+        }
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    @Override
+    public String toString() {
+        return "FileContentSource(" + file + ", " + length + ")";
+    }
+}
@@ -0,0 +1,517 @@
+package jp.seraphyware.cryptnotepad.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Javaヒープの外(ダイレクトバッファ)にバイナリデータを保持するバッファ.<br>
+ * 復号化した大きなデータをヒープに置かないために用いる.<br>
+ * ヒープ上の配列はGCにより複製されたまま消去されずに残る可能性があり、
+ * また大きなデータはヒープを圧迫するためである.<br>
+ * データは一定サイズのチャンクに分けて保持し、末尾への追記のみ可能である.<br>
+ * {@link #wipe()}によりすべてのチャンクをゼロで消去してから解放する.<br>
+ * (解放はJVMの内部APIをリフレクションで呼び出す.
+ * 使えない場合はGCによる解放を待つが、内容は消去済みである.)<br>
+ * 
+ * @author seraphy
+ */
+public final class OffHeapBuffer implements Closeable {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(OffHeapBuffer.class
+            .getName());
+
+    /**
+     * チャンクのサイズ(バイト)
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * ゼロ埋め用のバッファ
+     */
+    private static final byte[] ZEROS = new byte[8192];
+
+    /**
+     * チャンクのリスト
+     */
+    private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+    /**
+     * データの長さ
+     */
+    private long length;
+
+    /**
+     * 消去済みであるか?
+     */
+    private boolean wiped;
+
+    /**
+     * 空のバッファを作成する.
+     */
+    public OffHeapBuffer() {
+        super();
+    }
+
+    /**
+     * ストリームのすべてのデータを読み込んだバッファを作成する.<br>
+     * 読み込みに失敗した場合は、読み込んだデータを消去する.<br>
+     * 
+     * @param is
+     *            入力ストリーム(閉じない)
+     * @return バッファ
+     * @throws IOException
+     *             読み込みに失敗した場合
+     */
+    public static OffHeapBuffer readFrom(InputStream is) throws IOException {
+        if (is == null) {
+            throw new IllegalArgumentException();
+        }
+        OffHeapBuffer buffer = new OffHeapBuffer();
+        boolean success = false;
+        try {
+            byte[] buf = new byte[8192];
+            try {
+                for (;;) {
+                    int rd = is.read(buf);
+                    if (rd < 0) {
+                        break;
+                    }
+                    buffer.write(buf, 0, rd);
+                }
+            } finally {
+                fill(buf, 0, buf.length);
+            }
+            success = true;
+
+        } finally {
+            if (!success) {
+                buffer.wipe();
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * データの長さを取得する.
+     * 
+     * @return データの長さ
+     */
+    public synchronized long length() {
+        return length;
+    }
+
+    /**
+     * 消去済みであるか?
+     * 
+     * @return 消去済みであればtrue
+     */
+    public synchronized boolean isWiped() {
+        return wiped;
+    }
+
+    /**
+     * 末尾にデータを追記する.
+     * 
+     * @param b
+     *            データ
+     * @param off
+     *            データの開始位置
+     * @param len
+     *            データの長さ
+     */
+    public synchronized void write(byte[] b, int off, int len) {
+        if (b == null || off < 0 || len < 0 || off + len > b.length) {
+            throw new IllegalArgumentException();
+        }
+        checkNotWiped();
+        while (len > 0) {
+            int pos = (int) (length % CHUNK_SIZE);
+            if (pos == 0 && length / CHUNK_SIZE == chunks.size()) {
+                chunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+            }
+            ByteBuffer chunk = chunks.get((int) (length / CHUNK_SIZE));
+            int sz = Math.min(len, CHUNK_SIZE - pos);
+            chunk.position(pos);
+            chunk.put(b, off, sz);
+            off += sz;
+            len -= sz;
+            length += sz;
+        }
+    }
+
+    /**
+     * 指定した位置からデータを読み込む.
+     * 
+     * @param position
+     *            読み込み開始位置
+     * @param b
+     *            読み込み先
+     * @param off
+     *            読み込み先の開始位置
+     * @param len
+     *            読み込む最大の長さ
+     * @return 読み込んだ長さ、末尾であれば-1
+     */
+    public synchronized int read(long position, byte[] b, int off, int len) {
+        if (position < 0 || b == null || off < 0 || len < 0
+                || off + len > b.length) {
+            throw new IllegalArgumentException();
+        }
+        checkNotWiped();
+        if (position >= length) {
+            return (len == 0) ? 0 : -1;
+        }
+        len = (int) Math.min(len, length - position);
+        int total = 0;
+        while (total < len) {
+            ByteBuffer chunk = chunks.get((int) (position / CHUNK_SIZE));
+            int pos = (int) (position % CHUNK_SIZE);
+            int sz = Math.min(len - total, CHUNK_SIZE - pos);
+            chunk.position(pos);
+            chunk.get(b, off + total, sz);
+            position += sz;
+            total += sz;
+        }
+        return total;
+    }
+
+    /**
+     * データの長さを切り詰める.<br>
+     * 切り詰めた部分は消去する.<br>
+     * 
+     * @param newLength
+     *            新しい長さ、現在の長さ以上であれば何もしない.
+     */
+    public synchronized void truncate(long newLength) {
+        if (newLength < 0) {
+            throw new IllegalArgumentException();
+        }
+        checkNotWiped();
+        if (newLength >= length) {
+            return;
+        }
+        int keepChunks = (int) ((newLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        while (chunks.size() > keepChunks) {
+            release(chunks.remove(chunks.size() - 1));
+        }
+        if (keepChunks > 0) {
+            int pos = (int) (newLength - (long) (keepChunks - 1) * CHUNK_SIZE);
+            clear(chunks.get(keepChunks - 1), pos);
+        }
+        length = newLength;
+    }
+
+    /**
+     * データ全体を読み込む入力ストリームを開く.<br>
+     * ストリームを開いたあとにデータを消去した場合、読み込みは例外となる.<br>
+     * 
+     * @return 入力ストリーム
+     */
+    public InputStream openStream() {
+        return openStream(0, length());
+    }
+
+    /**
+     * データの一部を読み込む入力ストリームを開く.<br>
+     * データを複製せずに、範囲を切り出して参照する.<br>
+     * 
+     * @param offset
+     *            開始位置
+     * @param len
+     *            長さ
+     * @return 入力ストリーム
+     */
+    public InputStream openStream(final long offset, final long len) {
+        if (offset < 0 || len < 0 || offset + len > length()) {
+            throw new IllegalArgumentException();
+        }
+        return new InputStream() {
+
+            private long pos = offset;
+
+            private long mark = offset;
+
+            private final long end = offset + len;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int rd = read(b, 0, 1);
+                return (rd < 0) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int sz) throws IOException {
+                if (sz == 0) {
+                    return 0;
+                }
+                if (pos >= end) {
+                    return -1;
+                }
+                int rd;
+                try {
+                    rd = OffHeapBuffer.this.read(pos, b, off,
+                            (int) Math.min(sz, end - pos));
+
+                } catch (IllegalStateException ex) {
+                    throw new IOException(ex.getMessage());
+                }
+                if (rd > 0) {
+                    pos += rd;
+                }
+                return rd;
+            }
+
+            @Override
+            public long skip(long n) {
+                long sz = Math.max(0, Math.min(n, end - pos));
+                pos += sz;
+                return sz;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, end - pos);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return true;
+            }
+
+            @Override
+            public synchronized void mark(int readlimit) {
+                mark = pos;
+            }
+
+            @Override
+            public synchronized void reset() {
+                pos = mark;
+            }
+        };
+    }
+
+    /**
+     * 末尾に追記する出力ストリームを取得する.
+     * 
+     * @return 出力ストリーム
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    OffHeapBuffer.this.write(b, off, len);
+
+                } catch (IllegalStateException ex) {
+                    throw new IOException(ex.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * データ全体を出力ストリームに書き込む.
+     * 
+     * @param os
+     *            出力ストリーム
+     * @throws IOException
+     *             書き込みに失敗した場合
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        if (os == null) {
+            throw new IllegalArgumentException();
+        }
+        byte[] buf = new byte[8192];
+        try {
+            InputStream is = openStream();
+            for (;;) {
+                int rd = is.read(buf);
+                if (rd < 0) {
+                    break;
+                }
+                os.write(buf, 0, rd);
+            }
+        } finally {
+            fill(buf, 0, buf.length);
+        }
+    }
+
+    /**
+     * データ全体をヒープ上の配列に複製する.<br>
+     * 配列の消去は呼び出し元の責任とする.<br>
+     * 
+     * @return データの複製
+     * @throws IllegalStateException
+     *             配列に入らない大きさの場合
+     */
+    public synchronized byte[] toByteArray() {
+        checkNotWiped();
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("too large. " + length);
+        }
+        byte[] data = new byte[(int) length];
+        read(0, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * すべてのチャンクをゼロで消去してから解放する.<br>
+     * 消去後は読み書きできない.複数回呼び出してもよい.<br>
+     */
+    public synchronized void wipe() {
+        if (wiped) {
+            return;
+        }
+        for (ByteBuffer chunk : chunks) {
+            release(chunk);
+        }
+        chunks.clear();
+        length = 0;
+        wiped = true;
+    }
+
+    /**
+     * {@link #wipe()}と同じ.
+     */
+    @Override
+    public void close() {
+        wipe();
+    }
+
+    private void checkNotWiped() {
+        if (wiped) {
+            throw new IllegalStateException("the buffer was wiped.");
+        }
+    }
+
+    /**
+     * 配列をゼロで埋める.
+     * 
+     * @param b
+     *            配列
+     * @param off
+     *            開始位置
+     * @param len
+     *            長さ
+     */
+    private static void fill(byte[] b, int off, int len) {
+        Arrays.fill(b, off, off + len, (byte) 0);
+    }
+
+    /**
+     * チャンクの指定位置から末尾までをゼロで消去する.
+     * 
+     * @param chunk
+     *            チャンク
+     * @param from
+     *            開始位置
+     */
+    private static void clear(ByteBuffer chunk, int from) {
+        chunk.clear();
+        chunk.position(from);
+        while (chunk.hasRemaining()) {
+            chunk.put(ZEROS, 0, Math.min(ZEROS.length, chunk.remaining()));
+        }
+    }
+
+    /**
+     * チャンクを消去して解放する.
+     * 
+     * @param chunk
+     *            チャンク
+     */
+    private static void release(ByteBuffer chunk) {
+        clear(chunk, 0);
+        Deallocator.free(chunk);
+    }
+
+    /**
+     * ダイレクトバッファを明示的に解放する.<br>
+     * Java9以降はsun.misc.Unsafe#invokeCleaner、
+     * それより前はsun.nio.ch.DirectBuffer#cleaner()のclean()を用いる.<br>
+     * いずれも使えない場合はGCにまかせる.<br>
+     */
+    private static final class Deallocator {
+
+        /**
+         * Unsafeのインスタンス、使わない場合はnull
+         */
+        private static Object unsafe;
+
+        /**
+         * Unsafe#invokeCleaner、使わない場合はnull
+         */
+        private static Method invokeCleaner;
+
+        /**
+         * 明示的な解放が使えるか?
+         */
+        private static boolean available = true;
+
+        static {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method method = unsafeClass.getMethod("invokeCleaner",
+                        ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = method;
+
+            } catch (Exception ex) {
+                // Java8以前
+                logger.log(Level.FINEST, "Unsafe#invokeCleaner is not found.");
+            }
+        }
+
+        private Deallocator() {
+            super();
+        }
+
+        static synchronized void free(ByteBuffer chunk) {
+            if (!available) {
+                return;
+            }
+            try {
+                if (invokeCleaner != null) {
+                    invokeCleaner.invoke(unsafe, chunk);
+
+                } else {
+                    Method cleanerMethod = chunk.getClass().getMethod(
+                            "cleaner");
+                    cleanerMethod.setAccessible(true);
+                    Object cleaner = cleanerMethod.invoke(chunk);
+                    if (cleaner != null) {
+                        Method clean = cleaner.getClass().getMethod("clean");
+                        clean.setAccessible(true);
+                        clean.invoke(cleaner);
+                    }
+                }
+
+            } catch (Exception ex) {
+                // 以降はGCにまかせる.
+                available = false;
+                logger.log(Level.INFO, "direct buffer can't be freed"
+                        + " explicitly. " + ex);
+            }
+        }
+    }
+}
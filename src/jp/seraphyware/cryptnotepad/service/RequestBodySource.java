@@ -0,0 +1,109 @@
+package jp.seraphyware.cryptnotepad.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import jp.seraphyware.cryptnotepad.model.ContentSource;
+
+/**
+ * HTTPの要求の本文を読み込み元とするドキュメントの内容.<br>
+ * 本文はメモリに置かずに、暗号化しながら順に読み込む.<br>
+ * 本文は一度しか読めないため、ストリームは一度だけ開くことができる.<br>
+ * 
+ * @author seraphy
+ */
+final class RequestBodySource implements ContentSource {
+
+    /**
+     * 要求の本文
+     */
+    private final InputStream is;
+
+    /**
+     * 本文の長さ(Content-Length)
+     */
+    private final long length;
+
+    /**
+     * ストリームを開いたか?
+     */
+    private boolean opened;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param is
+     *            要求の本文
+     * @param length
+     *            本文の長さ
+     */
+    RequestBodySource(InputStream is, long length) {
+        if (is == null || length < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.is = is;
+        this.length = length;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * 本文を読み込むストリームを開く.<br>
+     * 本文の長さだけ読み込むと終端となり、本文が長さに満たない場合は例外とする.<br>
+     * ストリームを閉じても要求の本文は閉じない.<br>
+     */
+    @Override
+    public synchronized InputStream openStream() throws IOException {
+        if (opened) {
+            throw new IOException("request body already consumed.");
+        }
+        opened = true;
+        return new FilterInputStream(is) {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int rd = read(b, 0, 1);
+                return (rd < 0) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int rd = in.read(b, off, (int) Math.min(len, remaining));
+                if (rd < 0) {
+                    throw new IOException("unexpected end of request body.");
+                }
+                remaining -= rd;
+                return rd;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                throw new IOException("skip not supported.");
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(in.available(), remaining);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public void close() throws IOException {
+                // 要求の本文はサービス側で閉じる.
+            }
+        };
+    }
+}
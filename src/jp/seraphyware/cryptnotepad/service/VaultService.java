@@ -0,0 +1,984 @@
+package jp.seraphyware.cryptnotepad.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.seraphyware.cryptnotepad.crypt.ChunkedCipherFile;
+import jp.seraphyware.cryptnotepad.crypt.EncryptResult;
+import jp.seraphyware.cryptnotepad.crypt.VersionStore;
+import jp.seraphyware.cryptnotepad.model.ApplicationData;
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+import jp.seraphyware.cryptnotepad.model.OffHeapBuffer;
+import jp.seraphyware.cryptnotepad.storage.Storage;
+import jp.seraphyware.cryptnotepad.storage.StorageStat;
+import jp.seraphyware.cryptnotepad.util.AccessToken;
+import jp.seraphyware.cryptnotepad.util.LatencyMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * ディレクトリ配下の暗号化ファイルを、ループバックアドレスのHTTPで提供するサービス.<br>
+ * 1つのドキュメントコントローラを全ての要求で共有するため、
+ * 導出済みの鍵、キーファイルのハッシュ(ソルト)、最近復号化したドキュメントのキャッシュは
+ * 最初の要求以降はすべての要求で再利用される.<br>
+ * 要求は固定数のワーカースレッドで並行に処理し、同じファイルに対する読み込みは並行に、
+ * 書き込みは排他的に行う(パスのハッシュで分けたロック).<br>
+ * <br>
+ * 要求にはヘッダ{@value #TOKEN_HEADER}で起動時に生成したトークンを指定する必要がある.<br>
+ * トークンは本人のみが読めるトークンファイルに「ポート番号 トークン」として書き込まれる.<br>
+ * <br>
+ * <ul>
+ * <li>GET /list 「相対パス TAB サイズ TAB 更新日時」の行を返す(版の履歴、一時ファイルを除く)</li>
+ * <li>GET /doc/相対パス 復号化した内容を返す.
+ * Content-Typeは暗号化時のもの、タイトルは{@value #TITLE_HEADER}(URLエンコード)で返す</li>
+ * <li>PUT /doc/相対パス 本文を暗号化して保存する. Content-Lengthは必須.
+ * テキストは{@value #MAX_TEXT_SIZE}バイトまで.
+ * タイトルは{@value #TITLE_HEADER}(URLエンコード)、省略時はファイル名とする</li>
+ * <li>GET /search?q=文字列 文字列を含むテキストの相対パスの行を返す</li>
+ * </ul>
+ * 本文はメモリに置かずに、読み込みながら暗号化し、復号化しながら送る
+ * (テキストと、ストリーミングの閾値未満のバイナリを除く).<br>
+ * 
+ * @author seraphy
+ */
+public class VaultService {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(VaultService.class
+            .getName());
+
+    /**
+     * 認証用のトークンを指定するヘッダ
+     */
+    public static final String TOKEN_HEADER = "X-Vault-Token";
+
+    /**
+     * ドキュメントのタイトルを指定するヘッダ(UTF-8でURLエンコードする)
+     */
+    public static final String TITLE_HEADER = "X-Document-Title";
+
+    /**
+     * ユーザーデータディレクトリに作成するトークンファイルの名前
+     */
+    public static final String TOKEN_FILE = "vault.token";
+
+    /**
+     * ファイルのロックの分割数(2の累乗)
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * 転送のバッファサイズ
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * テキストの本文の最大サイズ.<br>
+     * テキストは文字列としてメモリに読み込むため、これを超える要求は受け付けない.<br>
+     */
+    private static final int MAX_TEXT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * ドキュメントコントローラ
+     */
+    private final DocumentController documentController;
+
+    /**
+     * 提供するディレクトリ
+     */
+    private final File rootDir;
+
+    /**
+     * ファイルのロック、相対パスのハッシュで選ぶ
+     */
+    private final ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+
+    /**
+     * 処理した要求の数
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * エラーを返した要求の数
+     */
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /**
+     * 要求の処理時間の計測値
+     */
+    private final LatencyMetric requestMetric = Metrics
+            .latency(Metrics.SERVICE_REQUEST);
+
+    /**
+     * HTTPサーバ、開始していなければnull
+     */
+    private HttpServer server;
+
+    /**
+     * ワーカースレッド
+     */
+    private ExecutorService executor;
+
+    /**
+     * トークンファイル、作成していなければnull
+     */
+    private File tokenFile;
+
+    /**
+     * 認証用のトークン
+     */
+    private String token;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            パスフレーズを設定済みのドキュメントコントローラ
+     * @param rootDir
+     *            提供するディレクトリ
+     */
+    public VaultService(DocumentController documentController, File rootDir) {
+        if (documentController == null || rootDir == null) {
+            throw new IllegalArgumentException();
+        }
+        this.documentController = documentController;
+        this.rootDir = rootDir.getAbsoluteFile();
+        for (int idx = 0; idx < locks.length; idx++) {
+            locks[idx] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    /**
+     * サービスを開始する.<br>
+     * トークンファイルを指定した場合は、一時ファイルに書き込んでから置き換える.<br>
+     * 
+     * @param port
+     *            ポート番号、0の場合は空いているポート
+     * @param threads
+     *            ワーカースレッド数
+     * @param tokenFile
+     *            トークンファイル、不要ならばnull
+     * @throws IOException
+     *             待ち受けに失敗した場合
+     */
+    public synchronized void start(int port, int threads, File tokenFile)
+            throws IOException {
+        if (port < 0 || port > 65535 || threads < 1) {
+            throw new IllegalArgumentException();
+        }
+        if (server != null) {
+            throw new IllegalStateException("already started.");
+        }
+
+        token = AccessToken.generate();
+
+        // 応答のヘッダと本文が別々に送られるため、Nagleアルゴリズムを無効にしないと
+        // クライアントの遅延ACKと重なって要求ごとに数十mSec待たされる.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(
+                InetAddress.getByName("127.0.0.1"), port), 0);
+        httpServer.createContext("/list", new ServiceHandler("GET") {
+            @Override
+            protected void handle(HttpExchange exchange, String path)
+                    throws IOException {
+                if (!path.equals("/list")) {
+                    sendError(exchange, HttpStatus.NOT_FOUND, "not found.");
+                    return;
+                }
+                handleList(exchange);
+            }
+        });
+        httpServer.createContext("/doc/", new ServiceHandler("GET", "PUT") {
+            @Override
+            protected void handle(HttpExchange exchange, String path)
+                    throws IOException {
+                String relativePath = path.substring("/doc/".length());
+                if (exchange.getRequestMethod().equals("PUT")) {
+                    handlePut(exchange, relativePath);
+                } else {
+                    handleGet(exchange, relativePath);
+                }
+            }
+        });
+        httpServer.createContext("/search", new ServiceHandler("GET") {
+            @Override
+            protected void handle(HttpExchange exchange, String path)
+                    throws IOException {
+                if (!path.equals("/search")) {
+                    sendError(exchange, HttpStatus.NOT_FOUND, "not found.");
+                    return;
+                }
+                handleSearch(exchange);
+            }
+        });
+
+        final AtomicInteger seq = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VaultService-"
+                        + seq.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        server = httpServer;
+
+        if (tokenFile != null) {
+            AccessToken.writeTokenFile(tokenFile, getPort(), token);
+            this.tokenFile = tokenFile;
+        }
+        logger.log(Level.INFO, "vault service started. port=" + getPort()
+                + ", threads=" + threads + ", dir=" + rootDir);
+    }
+
+    /**
+     * サービスを停止する.<br>
+     * 処理中の要求は最大1秒待ち、トークンファイルは削除する.<br>
+     */
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(1);
+        server = null;
+        executor.shutdownNow();
+        executor = null;
+        if (tokenFile != null) {
+            if (tokenFile.exists() && !tokenFile.delete()) {
+                logger.log(Level.WARNING, "can't delete. " + tokenFile);
+            }
+            tokenFile = null;
+        }
+        logger.log(Level.INFO, "vault service stopped. requests="
+                + requestCount + ", errors=" + errorCount);
+    }
+
+    /**
+     * 待ち受けているポート番号を取得する.
+     * 
+     * @return ポート番号、開始していなければ-1
+     */
+    public synchronized int getPort() {
+        if (server == null) {
+            return -1;
+        }
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * 認証用のトークンを取得する.
+     * 
+     * @return トークン、開始していなければnull
+     */
+    public synchronized String getToken() {
+        return token;
+    }
+
+    /**
+     * 処理した要求の数
+     * 
+     * @return 要求の数
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * エラーを返した要求の数
+     * 
+     * @return 要求の数
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * 相対パスに対応するファイルのロックを取得する.
+     * 
+     * @param relativePath
+     *            相対パス('/'区切り)
+     * @return ロック
+     */
+    private ReadWriteLock getLock(String relativePath) {
+        int hash = relativePath.hashCode();
+        hash ^= (hash >>> 16);
+        return locks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * 相対パスに対応するファイルを取得する.<br>
+     * ディレクトリの外を指すパス、版の履歴、一時ファイルは拒否する.<br>
+     * 
+     * @param path
+     *            相対パス('/'区切り)
+     * @return ファイル、パスが不正な場合はnull
+     */
+    private File resolve(String path) {
+        if (path.length() == 0 || path.startsWith("/")
+                || path.indexOf('\\') >= 0 || path.indexOf(':') >= 0) {
+            return null;
+        }
+        for (String name : path.split("/")) {
+            if (name.length() == 0 || name.equals(".") || name.equals("..")
+                    || name.equals(VersionStore.DIR_NAME)
+                    || isWorkingFileName(name)) {
+                return null;
+            }
+            for (int idx = 0; idx < name.length(); idx++) {
+                if (Character.isISOControl(name.charAt(idx))) {
+                    return null;
+                }
+            }
+        }
+        return new File(rootDir, path.replace('/', File.separatorChar));
+    }
+
+    /**
+     * 保存中や置き換え中の一時ファイルの名前であるか判定する.<br>
+     * (*.tmp, *.storage-tmp, *.rekey-tmp, *.chunk-journalなど)
+     * 
+     * @param name
+     *            ファイル名
+     * @return 一時ファイルの名前であればtrue
+     */
+    private static boolean isWorkingFileName(String name) {
+        return name.endsWith(".tmp") || name.endsWith("-tmp")
+                || name.endsWith(ChunkedCipherFile.JOURNAL_SUFFIX);
+    }
+
+    /**
+     * ファイルの一覧を返す.
+     * 
+     * @param exchange
+     *            要求
+     * @throws IOException
+     *             失敗
+     */
+    private void handleList(HttpExchange exchange) throws IOException {
+        List<String> paths = new ArrayList<String>();
+        List<StorageStat> stats = new ArrayList<StorageStat>();
+        collect(rootDir, "", paths, stats);
+
+        Writer wr = beginText(exchange, HttpStatus.OK);
+        try {
+            for (int idx = 0; idx < paths.size(); idx++) {
+                StorageStat stat = stats.get(idx);
+                wr.write(paths.get(idx) + "\t" + stat.getLength() + "\t"
+                        + stat.getLastModified() + "\n");
+            }
+
+        } finally {
+            wr.close();
+        }
+    }
+
+    /**
+     * 文字列を含むテキストの一覧を返す.<br>
+     * テキスト以外のドキュメントは対象外とする.<br>
+     * 復号化できないドキュメントはログに記録して読み飛ばす.<br>
+     * 
+     * @param exchange
+     *            要求
+     * @throws IOException
+     *             失敗
+     */
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        String query = getQueryParameter(exchange, "q");
+        if (query == null || query.length() == 0) {
+            sendError(exchange, HttpStatus.BAD_REQUEST, "q is required.");
+            return;
+        }
+
+        List<String> paths = new ArrayList<String>();
+        List<StorageStat> stats = new ArrayList<StorageStat>();
+        collect(rootDir, "", paths, stats);
+
+        Writer wr = beginText(exchange, HttpStatus.OK);
+        try {
+            for (String path : paths) {
+                boolean found;
+                try {
+                    found = contains(path, query);
+
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "can't search. " + path, ex);
+                    continue;
+
+                } catch (RuntimeException ex) {
+                    logger.log(Level.WARNING, "can't search. " + path, ex);
+                    continue;
+                }
+                if (found) {
+                    wr.write(path + "\n");
+                    wr.flush();
+                }
+            }
+
+        } finally {
+            wr.close();
+        }
+    }
+
+    /**
+     * ドキュメントがテキストであり、文字列を含むか判定する.<br>
+     * 先にヘッダのみを復号化して、テキスト以外であればボディは復号化しない.<br>
+     * 
+     * @param path
+     *            相対パス
+     * @param query
+     *            文字列
+     * @return 含む場合はtrue
+     * @throws IOException
+     *             失敗
+     */
+    private boolean contains(String path, String query) throws IOException {
+        File file = new File(rootDir, path.replace('/', File.separatorChar));
+        Lock lock = getLock(path).readLock();
+        lock.lock();
+        try {
+            String contentType = documentController.readContentType(file);
+            if (contentType == null
+                    || documentController.getTextEncoding(contentType) == null) {
+                return false;
+            }
+            ApplicationData data = documentController.decrypt(file);
+            if (data == null) {
+                return false;
+            }
+            try {
+                String text = data.getText();
+                return text != null && text.indexOf(query) >= 0;
+
+            } finally {
+                data.dispose();
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * ドキュメントを復号化して返す.<br>
+     * テキストはContent-Typeの文字コード、省略されている場合は現在の設定の文字コードで返す.<br>
+     * 
+     * @param exchange
+     *            要求
+     * @param relativePath
+     *            相対パス
+     * @throws IOException
+     *             失敗
+     */
+    private void handleGet(HttpExchange exchange, String relativePath)
+            throws IOException {
+        File file = resolve(relativePath);
+        if (file == null) {
+            sendError(exchange, HttpStatus.BAD_REQUEST, "invalid path.");
+            return;
+        }
+
+        Lock lock = getLock(relativePath).readLock();
+        lock.lock();
+        try {
+            ApplicationData data = documentController.decrypt(file);
+            if (data == null) {
+                sendError(exchange, HttpStatus.NOT_FOUND, "not found.");
+                return;
+            }
+            try {
+                Headers headers = exchange.getResponseHeaders();
+                headers.set("Content-Type", data.getContentType());
+                headers.set(TITLE_HEADER, encodeTitle(data.getDocumentTitle()));
+
+                String textEncoding = documentController.getTextEncoding(data
+                        .getContentType());
+                if (textEncoding != null) {
+                    byte[] bytes = data.getText().getBytes(textEncoding);
+                    sendBody(exchange, HttpStatus.OK, bytes);
+                    return;
+                }
+
+                long length = data.getLength();
+                beginResponse(exchange, HttpStatus.OK, (length == 0) ? -1
+                        : length);
+                if (length > 0) {
+                    InputStream is = data.openStream();
+                    try {
+                        OutputStream os = exchange.getResponseBody();
+                        try {
+                            transfer(is, os);
+
+                        } finally {
+                            os.close();
+                        }
+
+                    } finally {
+                        is.close();
+                    }
+                }
+
+            } finally {
+                data.dispose();
+            }
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 要求の本文を暗号化して保存する.<br>
+     * テキストは文字コードで読み込んでから保存し、
+     * それ以外は本文を読み込みながら暗号化する.<br>
+     * 
+     * @param exchange
+     *            要求
+     * @param relativePath
+     *            相対パス
+     * @throws IOException
+     *             失敗
+     */
+    private void handlePut(HttpExchange exchange, String relativePath)
+            throws IOException {
+        File file = resolve(relativePath);
+        if (file == null) {
+            sendError(exchange, HttpStatus.BAD_REQUEST, "invalid path.");
+            return;
+        }
+
+        Headers requestHeaders = exchange.getRequestHeaders();
+        long length;
+        try {
+            String value = requestHeaders.getFirst("Content-Length");
+            length = (value != null) ? Long.parseLong(value.trim()) : -1;
+
+        } catch (NumberFormatException ex) {
+            length = -1;
+        }
+        if (length < 0) {
+            sendError(exchange, HttpStatus.LENGTH_REQUIRED,
+                    "Content-Length is required.");
+            return;
+        }
+
+        String contentType = requestHeaders.getFirst("Content-Type");
+        if (contentType == null || contentType.trim().length() == 0) {
+            contentType = "application/octet-stream";
+        }
+        String title = decodeTitle(requestHeaders.getFirst(TITLE_HEADER));
+        if (title == null) {
+            title = file.getName();
+        }
+        if (!isHeaderValue(contentType) || !isHeaderValue(title)) {
+            sendError(exchange, HttpStatus.BAD_REQUEST,
+                    "invalid content-type or title.");
+            return;
+        }
+
+        Storage storage = documentController.getStorage();
+        InputStream body = exchange.getRequestBody();
+        try {
+            ApplicationData data;
+            String textEncoding = documentController
+                    .getTextEncoding(contentType);
+            if (textEncoding != null) {
+                if (length > MAX_TEXT_SIZE) {
+                    sendError(exchange, HttpStatus.REQUEST_ENTITY_TOO_LARGE,
+                            "text too large.");
+                    return;
+                }
+                byte[] bytes = readFully(new RequestBodySource(body, length)
+                        .openStream(), (int) length);
+                data = new ApplicationData(contentType, new String(bytes,
+                        textEncoding), title);
+
+            } else if (storage.isLocal()
+                    && documentController.getSymCipher().getChunkSize() > 0) {
+                // チャンク形式は既存のファイルを書き換えるため、
+                // 本文が途中で切れてもファイルが壊れないように、すべて受け取ってから暗号化する.
+                data = new ApplicationData(contentType,
+                        OffHeapBuffer.readFrom(new RequestBodySource(body,
+                                length).openStream()), title);
+
+            } else {
+                data = new ApplicationData(contentType, new RequestBodySource(
+                        body, length), title);
+            }
+
+            Lock lock = getLock(relativePath).writeLock();
+            lock.lock();
+            try {
+                boolean created = storage.stat(file) == null;
+                EncryptResult result = documentController.encrypt(file, data);
+                if (result == null) {
+                    throw new IOException("encryption cancelled. " + file);
+                }
+                beginResponse(exchange, created ? HttpStatus.CREATED
+                        : HttpStatus.NO_CONTENT, -1);
+
+            } finally {
+                lock.unlock();
+                data.dispose();
+            }
+
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * ディレクトリ配下のファイルを再帰的に列挙する.<br>
+     * 版の履歴のストアと一時ファイルは対象外とする.<br>
+     * 
+     * @param dir
+     *            ディレクトリ
+     * @param prefix
+     *            ディレクトリの相対パス('/'区切り、ルートの場合は空)
+     * @param paths
+     *            相対パスの格納先
+     * @param stats
+     *            ファイルの状態の格納先
+     * @throws IOException
+     *             失敗
+     */
+    private void collect(File dir, String prefix, List<String> paths,
+            List<StorageStat> stats) throws IOException {
+        Storage storage = documentController.getStorage();
+        File[] children = storage.list(dir);
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String name = child.getName();
+            if (VersionStore.isStoreDir(child) || isWorkingFileName(name)) {
+                continue;
+            }
+            StorageStat stat = storage.stat(child);
+            if (stat == null) {
+                // 列挙後に削除された場合
+                continue;
+            }
+            if (stat.isDirectory()) {
+                collect(child, prefix + name + "/", paths, stats);
+
+            } else {
+                paths.add(prefix + name);
+                stats.add(stat);
+            }
+        }
+    }
+
+    /**
+     * ヘッダとして書き込める値か判定する.<br>
+     * 制御文字を含む値はドキュメントのヘッダを壊すため拒否する.<br>
+     * 
+     * @param value
+     *            値
+     * @return 書き込める場合はtrue
+     */
+    private static boolean isHeaderValue(String value) {
+        if (value.trim().length() == 0) {
+            return false;
+        }
+        for (int idx = 0; idx < value.length(); idx++) {
+            if (Character.isISOControl(value.charAt(idx))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String encodeTitle(String title)
+            throws UnsupportedEncodingException {
+        return URLEncoder.encode(title, "UTF-8").replace("+", "%20");
+    }
+
+    private static String decodeTitle(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(value.trim(), "UTF-8");
+
+        } catch (IllegalArgumentException ex) {
+            return value.trim();
+
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * クエリ文字列からパラメータを取得する.
+     * 
+     * @param exchange
+     *            要求
+     * @param name
+     *            パラメータ名
+     * @return 値、なければnull
+     * @throws IOException
+     *             失敗
+     */
+    private static String getQueryParameter(HttpExchange exchange, String name)
+            throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            int pos = param.indexOf('=');
+            String key = (pos >= 0) ? param.substring(0, pos) : param;
+            if (key.equals(name)) {
+                try {
+                    return URLDecoder.decode(
+                            (pos >= 0) ? param.substring(pos + 1) : "",
+                            "UTF-8");
+
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException("invalid query. " + query, ex);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * テキストの応答を開始する.<br>
+     * 長さは不明であるため、チャンク形式で送る.<br>
+     * 
+     * @param exchange
+     *            要求
+     * @param status
+     *            状態コード
+     * @return 応答の本文のライタ
+     * @throws IOException
+     *             失敗
+     */
+    private static Writer beginText(HttpExchange exchange, int status)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=UTF-8");
+        beginResponse(exchange, status, 0);
+        return new OutputStreamWriter(exchange.getResponseBody(), "UTF-8");
+    }
+
+    /**
+     * 応答を開始する.<br>
+     * 要求の本文を終端まで読んでいないと、応答を書き終えた時点で接続が再利用されずに閉じられるため、
+     * 先に要求の本文を閉じる(残りは読み捨てられる).<br>
+     * 
+     * @param exchange
+     *            要求
+     * @param status
+     *            状態コード
+     * @param length
+     *            応答の本文の長さ、0の場合はチャンク形式、-1の場合は本文なし
+     * @throws IOException
+     *             失敗
+     */
+    private static void beginResponse(HttpExchange exchange, int status,
+            long length) throws IOException {
+        exchange.getRequestBody().close();
+        exchange.sendResponseHeaders(status, length);
+    }
+
+    private static void sendBody(HttpExchange exchange, int status,
+            byte[] body) throws IOException {
+        beginResponse(exchange, status, (body.length == 0) ? -1
+                : body.length);
+        OutputStream os = exchange.getResponseBody();
+        try {
+            os.write(body);
+
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status,
+            String message) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=UTF-8");
+        sendBody(exchange, status, (message + "\n").getBytes("UTF-8"));
+    }
+
+    private static void transfer(InputStream is, OutputStream os)
+            throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        int rd;
+        while ((rd = is.read(buf)) >= 0) {
+            os.write(buf, 0, rd);
+        }
+    }
+
+    private static byte[] readFully(InputStream is, int length)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(length);
+        transfer(is, bos);
+        return bos.toByteArray();
+    }
+
+    /**
+     * HTTPの状態コード
+     */
+    private static final class HttpStatus {
+
+        static final int OK = 200;
+
+        static final int CREATED = 201;
+
+        static final int NO_CONTENT = 204;
+
+        static final int BAD_REQUEST = 400;
+
+        static final int UNAUTHORIZED = 401;
+
+        static final int NOT_FOUND = 404;
+
+        static final int METHOD_NOT_ALLOWED = 405;
+
+        static final int LENGTH_REQUIRED = 411;
+
+        static final int REQUEST_ENTITY_TOO_LARGE = 413;
+
+        static final int INTERNAL_ERROR = 500;
+
+        private HttpStatus() {
+            super();
+        }
+    }
+
+    /**
+     * 要求の共通処理.<br>
+     * トークンとメソッドを確認し、処理時間を計測し、失敗した場合はエラーを返す.<br>
+     */
+    private abstract class ServiceHandler implements HttpHandler {
+
+        /**
+         * 受け付けるメソッド
+         */
+        private final List<String> methods;
+
+        ServiceHandler(String... methods) {
+            this.methods = Arrays.asList(methods);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long st = requestMetric.start();
+            requestCount.incrementAndGet();
+            try {
+                if (!isAuthorized(exchange)) {
+                    errorCount.incrementAndGet();
+                    sendError(exchange, HttpStatus.UNAUTHORIZED,
+                            "unauthorized.");
+                    return;
+                }
+                if (!methods.contains(exchange.getRequestMethod())) {
+                    errorCount.incrementAndGet();
+                    exchange.getResponseHeaders().set("Allow",
+                            methods.toString().replaceAll("[\\[\\]]", ""));
+                    sendError(exchange, HttpStatus.METHOD_NOT_ALLOWED,
+                            "method not allowed.");
+                    return;
+                }
+                handle(exchange, exchange.getRequestURI().getPath());
+                if (exchange.getResponseCode() >= 400) {
+                    errorCount.incrementAndGet();
+                }
+
+            } catch (Exception ex) {
+                errorCount.incrementAndGet();
+                logger.log(Level.WARNING, "vault request failed. "
+                        + exchange.getRequestMethod() + " "
+                        + exchange.getRequestURI(), ex);
+                if (exchange.getResponseCode() < 0) {
+                    // 応答を送る前であればエラーを返す.
+                    try {
+                        sendError(exchange, HttpStatus.INTERNAL_ERROR,
+                                String.valueOf(ex.getMessage()));
+
+                    } catch (IOException ex2) {
+                        logger.log(Level.FINE, "can't send the error.", ex2);
+                    }
+                }
+
+            } finally {
+                exchange.close();
+                requestMetric.stop(st, 0);
+            }
+        }
+
+        /**
+         * 要求のトークンが一致するか判定する.
+         * 
+         * @param exchange
+         *            要求
+         * @return 一致する場合はtrue
+         * @throws IOException
+         *             失敗
+         */
+        private boolean isAuthorized(HttpExchange exchange) throws IOException {
+            String value = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+            if (value == null) {
+                return false;
+            }
+            // 一致するまでの時間からトークンを推測されないように比較する.
+            return MessageDigest.isEqual(value.getBytes("UTF-8"), getToken()
+                    .getBytes("UTF-8"));
+        }
+
+        /**
+         * 要求を処理する.
+         * 
+         * @param exchange
+         *            要求
+         * @param path
+         *            要求のパス(デコード済み)
+         * @throws IOException
+         *             失敗
+         */
+        protected abstract void handle(HttpExchange exchange, String path)
+                throws IOException;
+    }
+}
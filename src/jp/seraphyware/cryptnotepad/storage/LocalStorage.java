@@ -0,0 +1,236 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * ローカルのファイルシステムの格納先.<br>
+ * 書き込みは同じディレクトリの一時ファイルに行い、
+ * 確定時にディスクに同期してから改名して置き換える.<br>
+ * ディレクトリの監視は一定間隔の走査による.<br>
+ * 
+ * @author seraphy
+ */
+public final class LocalStorage implements Storage {
+
+    /**
+     * 書き込み中の一時ファイルの拡張子
+     */
+    public static final String TMP_SUFFIX = ".storage-tmp";
+
+    /**
+     * 監視の走査間隔(mSec)
+     */
+    private static final long WATCH_INTERVAL = 3000;
+
+    /**
+     * シングルトン
+     */
+    private static final LocalStorage INSTANCE = new LocalStorage();
+
+    private LocalStorage() {
+        super();
+    }
+
+    /**
+     * インスタンスを取得する.
+     * 
+     * @return インスタンス
+     */
+    public static LocalStorage getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    @Override
+    public StorageStat stat(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        if (file.isDirectory()) {
+            return new StorageStat(true, 0, file.lastModified());
+        }
+        if (file.isFile()) {
+            return new StorageStat(false, file.length(), file.lastModified());
+        }
+        return null;
+    }
+
+    @Override
+    public File[] list(File dir) throws IOException {
+        if (dir == null) {
+            throw new IllegalArgumentException();
+        }
+        return dir.listFiles();
+    }
+
+    @Override
+    public InputStream openRead(File file, long offset, long length)
+            throws IOException {
+        if (file == null || offset < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.toString());
+        }
+        if (offset == 0 && length < 0) {
+            return new FileInputStream(file);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.seek(offset);
+        final long end = (length < 0) ? Long.MAX_VALUE : offset + length;
+        return new InputStream() {
+            private long pos = raf.getFilePointer();
+
+            @Override
+            public int read() throws IOException {
+                if (pos >= end) {
+                    return -1;
+                }
+                int ch = raf.read();
+                if (ch >= 0) {
+                    pos++;
+                }
+                return ch;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (pos >= end) {
+                    return -1;
+                }
+                int rd = raf.read(b, off, (int) Math.min(len, end - pos));
+                if (rd > 0) {
+                    pos += rd;
+                }
+                return rd;
+            }
+
+            @Override
+            public void close() throws IOException {
+                raf.close();
+            }
+        };
+    }
+
+    @Override
+    public StorageWriter openWrite(final File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        if (!parentDir.isDirectory() && !parentDir.mkdirs()
+                && !parentDir.isDirectory()) {
+            throw new IOException("can't create the directory. " + parentDir);
+        }
+        final File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        final FileOutputStream fos = new FileOutputStream(tmpFile);
+        final OutputStream os = new BufferedOutputStream(fos, 64 * 1024);
+        return new StorageWriter() {
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                os.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                os.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                os.flush();
+            }
+
+            @Override
+            public void commit() throws IOException {
+                if (closed) {
+                    throw new IOException("already closed. " + file);
+                }
+                os.flush();
+                fos.getFD().sync();
+                closed = true;
+                fos.close();
+                if (!tmpFile.renameTo(file)) {
+                    // 置き換えできない環境(Windows)では、削除してから置き換える.
+                    if (!file.delete() || !tmpFile.renameTo(file)) {
+                        discard();
+                        throw new IOException("can't rename. " + tmpFile);
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        fos.close();
+
+                    } finally {
+                        discard();
+                    }
+                }
+            }
+
+            private void discard() {
+                if (tmpFile.exists() && !tmpFile.delete()) {
+                    tmpFile.deleteOnExit();
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean delete(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!file.exists()) {
+            return false;
+        }
+        if (!file.delete()) {
+            throw new IOException("can't delete. " + file);
+        }
+        return true;
+    }
+
+    @Override
+    public void rename(File src, File dest) throws IOException {
+        if (src == null || dest == null) {
+            throw new IllegalArgumentException();
+        }
+        if (!src.renameTo(dest)) {
+            // 置き換えできない環境(Windows)では、削除してから置き換える.
+            if (!dest.isFile() || !dest.delete() || !src.renameTo(dest)) {
+                throw new IOException("can't rename. " + src + " -> " + dest);
+            }
+        }
+    }
+
+    @Override
+    public StorageWatch watch(File dir, FileFilter filter,
+            StorageListener listener) {
+        return new PollingWatch(this, dir, filter, listener, WATCH_INTERVAL)
+                .start();
+    }
+
+    @Override
+    public String toString() {
+        return "LocalStorage";
+    }
+}
@@ -0,0 +1,213 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * メモリ上のオブジェクトストア.<br>
+ * 遠隔のオブジェクトストアの代わりに用いるもので、
+ * 要求ごとに指定した遅延を入れ、要求数と取得したバイト数を数える.<br>
+ * 
+ * @author seraphy
+ */
+public class MemoryObjectStore implements ObjectStore {
+
+    /**
+     * オブジェクト
+     */
+    private static final class StoredObject {
+
+        final byte[] data;
+
+        final ObjectInfo info;
+
+        StoredObject(byte[] data, ObjectInfo info) {
+            this.data = data;
+            this.info = info;
+        }
+    }
+
+    /**
+     * キーをキーとするオブジェクト
+     */
+    private final TreeMap<String, StoredObject> objects = new TreeMap<String, StoredObject>();
+
+    /**
+     * 要求ごとの遅延(mSec)
+     */
+    private final long latency;
+
+    /**
+     * etagの採番
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * 要求数
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * 取得したバイト数
+     */
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    /**
+     * 遅延のないストアを構築する.
+     */
+    public MemoryObjectStore() {
+        this(0);
+    }
+
+    /**
+     * コンストラクタ
+     * 
+     * @param latency
+     *            要求ごとの遅延(mSec)
+     */
+    public MemoryObjectStore(long latency) {
+        if (latency < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.latency = latency;
+    }
+
+    /**
+     * 要求を数え、遅延させる.
+     * 
+     * @throws IOException
+     *             割り込まれた場合
+     */
+    private void request() throws IOException {
+        requests.incrementAndGet();
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    public ObjectInfo head(String key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException();
+        }
+        request();
+        synchronized (objects) {
+            StoredObject obj = objects.get(key);
+            return (obj != null) ? obj.info : null;
+        }
+    }
+
+    @Override
+    public List<ObjectInfo> list(String prefix) throws IOException {
+        if (prefix == null) {
+            throw new IllegalArgumentException();
+        }
+        request();
+        List<ObjectInfo> result = new ArrayList<ObjectInfo>();
+        synchronized (objects) {
+            for (Map.Entry<String, StoredObject> entry : objects.tailMap(
+                    prefix).entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    break;
+                }
+                result.add(entry.getValue().info);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public InputStream get(String key, String ifMatch, long offset,
+            long length) throws IOException {
+        if (key == null || offset < 0) {
+            throw new IllegalArgumentException();
+        }
+        request();
+        StoredObject obj;
+        synchronized (objects) {
+            obj = objects.get(key);
+        }
+        if (obj == null) {
+            return null;
+        }
+        if (ifMatch != null && !ifMatch.equals(obj.info.getEtag())) {
+            throw new IOException("precondition failed. " + key);
+        }
+        int off = (int) Math.min(offset, obj.data.length);
+        int len = obj.data.length - off;
+        if (length >= 0 && length < len) {
+            len = (int) length;
+        }
+        bytesDownloaded.addAndGet(len);
+        return new ByteArrayInputStream(obj.data, off, len);
+    }
+
+    @Override
+    public ObjectInfo put(String key, InputStream is, long length)
+            throws IOException {
+        if (key == null || is == null || length < 0
+                || length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException();
+        }
+        request();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream((int) length);
+        byte[] buf = new byte[64 * 1024];
+        int rd;
+        while ((rd = is.read(buf)) >= 0) {
+            bos.write(buf, 0, rd);
+        }
+        byte[] data = bos.toByteArray();
+        if (data.length != length) {
+            throw new IOException("length mismatch. " + key);
+        }
+        ObjectInfo info = new ObjectInfo(key, data.length,
+                System.currentTimeMillis(), Long.toString(generation
+                        .incrementAndGet()));
+        synchronized (objects) {
+            objects.put(key, new StoredObject(data, info));
+        }
+        return info;
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException();
+        }
+        request();
+        synchronized (objects) {
+            return objects.remove(key) != null;
+        }
+    }
+
+    /**
+     * これまでの要求数
+     * 
+     * @return 要求数
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * これまでに取得したバイト数
+     * 
+     * @return バイト数
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+}
@@ -0,0 +1,380 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * メモリ上の格納先.<br>
+ * ファイルの絶対パスをキーとしてファイルの内容を保持する.<br>
+ * ディレクトリはファイルを書き込んだときに親ディレクトリがすべて作成される.<br>
+ * 変更は書き込みや削除を行ったスレッドから、ただちに監視しているリスナーに通知される.<br>
+ * ディスクを経由しないため、動作確認や格納先による処理時間の違いの計測に用いることができる.<br>
+ * 
+ * @author seraphy
+ */
+public final class MemoryStorage implements Storage {
+
+    /**
+     * ファイルの内容
+     */
+    private static final class Entry {
+
+        final byte[] data;
+
+        final long lastModified;
+
+        Entry(byte[] data, long lastModified) {
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * 監視の登録
+     */
+    private final class Watch implements StorageWatch {
+
+        final String dirKey;
+
+        final File dir;
+
+        final FileFilter filter;
+
+        final StorageListener listener;
+
+        Watch(File dir, FileFilter filter, StorageListener listener) {
+            this.dirKey = toKey(dir);
+            this.dir = dir;
+            this.filter = filter;
+            this.listener = listener;
+        }
+
+        /**
+         * 変更されたファイルが監視の対象であるか?<br>
+         * ファイルと、監視するディレクトリまでの親ディレクトリがフィルタを通る場合に対象とする.<br>
+         * 
+         * @param key
+         *            変更されたファイルのキー
+         * @return 対象であればtrue
+         */
+        boolean accept(String key) {
+            if (!key.startsWith(childPrefix(dirKey))) {
+                return false;
+            }
+            if (filter != null) {
+                File file = new File(key);
+                while (file != null && !file.getPath().equals(dirKey)) {
+                    if (!filter.accept(file)) {
+                        return false;
+                    }
+                    file = file.getParentFile();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            watches.remove(this);
+        }
+    }
+
+    /**
+     * 絶対パスをキーとするファイル
+     */
+    private final TreeMap<String, Entry> files = new TreeMap<String, Entry>();
+
+    /**
+     * 絶対パスで示されるディレクトリ
+     */
+    private final TreeSet<String> dirs = new TreeSet<String>();
+
+    /**
+     * 監視の登録
+     */
+    private final List<Watch> watches = new CopyOnWriteArrayList<Watch>();
+
+    /**
+     * ファイルのキーを取得する.
+     * 
+     * @param file
+     *            ファイル
+     * @return キー
+     */
+    private static String toKey(File file) {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        return file.getAbsoluteFile().getPath();
+    }
+
+    /**
+     * キーの子要素の接頭語を取得する.
+     * 
+     * @param key
+     *            キー
+     * @return 接頭語
+     */
+    private static String childPrefix(String key) {
+        return key.endsWith(File.separator) ? key : key + File.separator;
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+
+    @Override
+    public synchronized StorageStat stat(File file) throws IOException {
+        String key = toKey(file);
+        Entry entry = files.get(key);
+        if (entry != null) {
+            return new StorageStat(false, entry.data.length,
+                    entry.lastModified);
+        }
+        if (dirs.contains(key)) {
+            return new StorageStat(true, 0, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized File[] list(File dir) throws IOException {
+        String key = toKey(dir);
+        if (!dirs.contains(key)) {
+            return null;
+        }
+        String prefix = childPrefix(key);
+        TreeSet<String> names = new TreeSet<String>();
+        collectChildNames(files.tailMap(prefix).keySet(), prefix, names);
+        collectChildNames(dirs.tailSet(prefix), prefix, names);
+        File base = dir.getAbsoluteFile();
+        List<File> children = new ArrayList<File>();
+        for (String name : names) {
+            children.add(new File(base, name));
+        }
+        return children.toArray(new File[children.size()]);
+    }
+
+    /**
+     * キーのうち、接頭語の直下の名前を集める.
+     * 
+     * @param keys
+     *            接頭語以降の昇順のキー
+     * @param prefix
+     *            接頭語
+     * @param names
+     *            名前の格納先
+     */
+    private static void collectChildNames(Iterable<String> keys,
+            String prefix, TreeSet<String> names) {
+        for (String key : keys) {
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            String rest = key.substring(prefix.length());
+            int pos = rest.indexOf(File.separatorChar);
+            names.add(pos < 0 ? rest : rest.substring(0, pos));
+        }
+    }
+
+    @Override
+    public InputStream openRead(File file, long offset, long length)
+            throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException();
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = files.get(toKey(file));
+        }
+        if (entry == null) {
+            throw new FileNotFoundException(file.toString());
+        }
+        // 内容は置き換えのみで変更されないため、共有してよい.
+        int off = (int) Math.min(offset, entry.data.length);
+        int len = entry.data.length - off;
+        if (length >= 0 && length < len) {
+            len = (int) length;
+        }
+        return new ByteArrayInputStream(entry.data, off, len);
+    }
+
+    @Override
+    public StorageWriter openWrite(final File file) throws IOException {
+        final String key = toKey(file);
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        return new StorageWriter() {
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                ensureOpen();
+                bos.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ensureOpen();
+                bos.write(b, off, len);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                ensureOpen();
+                closed = true;
+                put(key, bos.toByteArray());
+            }
+
+            @Override
+            public void close() throws IOException {
+                closed = true;
+            }
+
+            private void ensureOpen() throws IOException {
+                if (closed) {
+                    throw new IOException("already closed. " + file);
+                }
+            }
+        };
+    }
+
+    /**
+     * ファイルの内容を置き換える.<br>
+     * 親ディレクトリがなければ作成する.<br>
+     * 
+     * @param key
+     *            キー
+     * @param data
+     *            内容
+     * @throws IOException
+     *             同名のディレクトリがある場合
+     */
+    private void put(String key, byte[] data) throws IOException {
+        synchronized (this) {
+            if (dirs.contains(key)) {
+                throw new IOException("is a directory. " + key);
+            }
+            File parent = new File(key).getParentFile();
+            while (parent != null && dirs.add(parent.getPath())) {
+                parent = parent.getParentFile();
+            }
+            files.put(key, new Entry(data, System.currentTimeMillis()));
+        }
+        fireChanged(key);
+    }
+
+    @Override
+    public boolean delete(File file) throws IOException {
+        String key = toKey(file);
+        synchronized (this) {
+            if (files.remove(key) == null) {
+                if (!dirs.contains(key)) {
+                    return false;
+                }
+                String prefix = childPrefix(key);
+                SortedMap<String, Entry> tail = files.tailMap(prefix);
+                if ((!tail.isEmpty() && tail.firstKey().startsWith(prefix))
+                        || isChildDir(prefix)) {
+                    throw new IOException("directory not empty. " + file);
+                }
+                dirs.remove(key);
+            }
+        }
+        fireChanged(key);
+        return true;
+    }
+
+    /**
+     * 接頭語の配下にディレクトリがあるか?
+     * 
+     * @param prefix
+     *            接頭語
+     * @return あればtrue
+     */
+    private boolean isChildDir(String prefix) {
+        String next = dirs.ceiling(prefix);
+        return next != null && next.startsWith(prefix);
+    }
+
+    @Override
+    public void rename(File src, File dest) throws IOException {
+        String srcKey = toKey(src);
+        String destKey = toKey(dest);
+        synchronized (this) {
+            Entry entry = files.get(srcKey);
+            if (entry == null || dirs.contains(destKey)) {
+                throw new IOException("can't rename. " + src + " -> " + dest);
+            }
+            File parent = new File(destKey).getParentFile();
+            while (parent != null && dirs.add(parent.getPath())) {
+                parent = parent.getParentFile();
+            }
+            files.remove(srcKey);
+            files.put(destKey, entry);
+        }
+        fireChanged(srcKey);
+        fireChanged(destKey);
+    }
+
+    @Override
+    public StorageWatch watch(File dir, FileFilter filter,
+            StorageListener listener) {
+        if (dir == null || listener == null) {
+            throw new IllegalArgumentException();
+        }
+        Watch watch = new Watch(dir, filter, listener);
+        watches.add(watch);
+        return watch;
+    }
+
+    /**
+     * 変更されたファイルを配下に含む監視に通知する.
+     * 
+     * @param key
+     *            変更されたファイルのキー
+     */
+    private void fireChanged(String key) {
+        for (Watch watch : watches) {
+            if (watch.accept(key)) {
+                watch.listener.storageChanged(watch.dir);
+            }
+        }
+    }
+
+    /**
+     * ディレクトリを作成する.<br>
+     * 親ディレクトリがなければ作成する.<br>
+     * 
+     * @param dir
+     *            ディレクトリ
+     * @throws IOException
+     *             同名のファイルがある場合
+     */
+    public synchronized void mkdirs(File dir) throws IOException {
+        String key = toKey(dir);
+        if (files.containsKey(key)) {
+            throw new IOException("is a file. " + dir);
+        }
+        File parent = new File(key);
+        while (parent != null && dirs.add(parent.getPath())) {
+            parent = parent.getParentFile();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryStorage";
+    }
+}
@@ -0,0 +1,73 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+/**
+ * オブジェクトストアのオブジェクトの情報.
+ * 
+ * @author seraphy
+ */
+public final class ObjectInfo {
+
+    /**
+     * キー('/'区切り)
+     */
+    private final String key;
+
+    /**
+     * サイズ
+     */
+    private final long size;
+
+    /**
+     * 最終更新日時
+     */
+    private final long lastModified;
+
+    /**
+     * 内容が変わるたびに変わる識別子
+     */
+    private final String etag;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param key
+     *            キー('/'区切り)
+     * @param size
+     *            サイズ
+     * @param lastModified
+     *            最終更新日時
+     * @param etag
+     *            内容が変わるたびに変わる識別子
+     */
+    public ObjectInfo(String key, long size, long lastModified, String etag) {
+        if (key == null || etag == null) {
+            throw new IllegalArgumentException();
+        }
+        this.key = key;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.etag = etag;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectInfo(key=" + key + ", size=" + size + ", lastModified="
+                + lastModified + ", etag=" + etag + ")";
+    }
+}
@@ -0,0 +1,82 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * オブジェクトストアのクライアント.<br>
+ * キー('/'区切り)に対してオブジェクト全体を置き換えるストアであり、
+ * ディレクトリや改名、部分的な書き込みはない.<br>
+ * 各メソッドの呼び出しが1回の要求に相当する.<br>
+ * 
+ * @author seraphy
+ */
+public interface ObjectStore {
+
+    /**
+     * オブジェクトの情報を取得する.
+     * 
+     * @param key
+     *            キー
+     * @return 情報、存在しなければnull
+     * @throws IOException
+     *             失敗
+     */
+    ObjectInfo head(String key) throws IOException;
+
+    /**
+     * キーが接頭語で始まるオブジェクトをキーの昇順に列挙する.
+     * 
+     * @param prefix
+     *            接頭語
+     * @return オブジェクトの情報
+     * @throws IOException
+     *             失敗
+     */
+    List<ObjectInfo> list(String prefix) throws IOException;
+
+    /**
+     * オブジェクトの指定した範囲を取得する.
+     * 
+     * @param key
+     *            キー
+     * @param ifMatch
+     *            このetagと一致する場合のみ取得する、条件がなければnull
+     * @param offset
+     *            開始位置
+     * @param length
+     *            長さ、負の場合は終わりまで
+     * @return 内容、存在しなければnull
+     * @throws IOException
+     *             失敗、もしくはetagが一致しない場合
+     */
+    InputStream get(String key, String ifMatch, long offset, long length)
+            throws IOException;
+
+    /**
+     * オブジェクトを作成もしくは置き換える.
+     * 
+     * @param key
+     *            キー
+     * @param is
+     *            内容
+     * @param length
+     *            内容の長さ
+     * @return 作成したオブジェクトの情報
+     * @throws IOException
+     *             失敗
+     */
+    ObjectInfo put(String key, InputStream is, long length) throws IOException;
+
+    /**
+     * オブジェクトを削除する.
+     * 
+     * @param key
+     *            キー
+     * @return 削除した場合はtrue、存在しなかった場合はfalse
+     * @throws IOException
+     *             失敗
+     */
+    boolean delete(String key) throws IOException;
+}
@@ -0,0 +1,630 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * オブジェクトストアを格納先とし、ローカルのディレクトリに読み込みキャッシュを持つ格納先.<br>
+ * ルートディレクトリからの相対パス('/'区切り)をオブジェクトのキーとする.<br>
+ * ディレクトリはキーの接頭語として表されるため、配下にファイルがなければ存在しない.<br>
+ * <br>
+ * 読み込みのたびにオブジェクトのetagを問い合わせ、キャッシュと一致すればキャッシュから読み込む.<br>
+ * ファイル全体の読み込みでキャッシュがなければ、オブジェクト全体をキャッシュに取得してから読み込む.<br>
+ * 範囲を指定した読み込みでキャッシュがなければ、範囲のみをストアから取得し、
+ * オブジェクト全体はバックグラウンドでキャッシュに取得する.<br>
+ * 書き込みは一時ファイルに行い、確定時にストアに送ってからキャッシュに加える.<br>
+ * 
+ * @author seraphy
+ */
+public class ObjectStoreStorage implements Storage {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger
+            .getLogger(ObjectStoreStorage.class.getName());
+
+    /**
+     * 監視の走査間隔(mSec)
+     */
+    private static final long WATCH_INTERVAL = 10000;
+
+    /**
+     * キャッシュしたオブジェクト
+     */
+    private static final class CachedObject {
+
+        final String etag;
+
+        final File file;
+
+        CachedObject(String etag, File file) {
+            this.etag = etag;
+            this.file = file;
+        }
+    }
+
+    /**
+     * オブジェクトストア
+     */
+    private final ObjectStore store;
+
+    /**
+     * ルートディレクトリ
+     */
+    private final File rootDir;
+
+    /**
+     * キャッシュのディレクトリ
+     */
+    private final File cacheDir;
+
+    /**
+     * キーをキーとするキャッシュ
+     */
+    private final ConcurrentHashMap<String, CachedObject> cache = new ConcurrentHashMap<String, CachedObject>();
+
+    /**
+     * バックグラウンドで取得中のキー
+     */
+    private final Set<String> fetching = Collections
+            .synchronizedSet(new HashSet<String>());
+
+    /**
+     * バックグラウンドでの取得
+     */
+    private final ExecutorService executor;
+
+    /**
+     * キャッシュのファイルの採番
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * キャッシュから読み込んだ回数
+     */
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    /**
+     * キャッシュになかった回数
+     */
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * コンストラクタ
+     * 
+     * @param store
+     *            オブジェクトストア
+     * @param rootDir
+     *            ルートディレクトリ、この配下のファイルをオブジェクトとする
+     * @param cacheDir
+     *            キャッシュのディレクトリ
+     */
+    public ObjectStoreStorage(ObjectStore store, File rootDir, File cacheDir) {
+        if (store == null || rootDir == null || cacheDir == null) {
+            throw new IllegalArgumentException();
+        }
+        this.store = store;
+        this.rootDir = rootDir.getAbsoluteFile();
+        this.cacheDir = cacheDir;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ObjectStoreCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public ObjectStore getStore() {
+        return store;
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    /**
+     * ファイルに対応するキーを取得する.
+     * 
+     * @param file
+     *            ファイル
+     * @return キー、ルートディレクトリの場合は空文字
+     * @throws IOException
+     *             ルートディレクトリの外のファイルの場合
+     */
+    private String toKey(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+        String root = rootDir.getPath();
+        String path = file.getAbsoluteFile().getPath();
+        if (path.equals(root)) {
+            return "";
+        }
+        String prefix = root.endsWith(File.separator) ? root : root
+                + File.separator;
+        if (!path.startsWith(prefix)) {
+            throw new IOException("outside of the storage. " + file);
+        }
+        return path.substring(prefix.length()).replace(File.separatorChar,
+                '/');
+    }
+
+    /**
+     * キーに対応するファイルを取得する.
+     * 
+     * @param key
+     *            キー
+     * @return ファイル
+     */
+    private File toFile(String key) {
+        return new File(rootDir, key.replace('/', File.separatorChar));
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+
+    @Override
+    public StorageStat stat(File file) throws IOException {
+        String key = toKey(file);
+        if (key.length() > 0) {
+            ObjectInfo info = store.head(key);
+            if (info != null) {
+                return new StorageStat(false, info.getSize(),
+                        info.getLastModified());
+            }
+        }
+        List<ObjectInfo> children = store.list(dirPrefix(key));
+        if (key.length() == 0 || !children.isEmpty()) {
+            long lastModified = 0;
+            for (ObjectInfo child : children) {
+                lastModified = Math.max(lastModified, child.getLastModified());
+            }
+            return new StorageStat(true, 0, lastModified);
+        }
+        return null;
+    }
+
+    /**
+     * ディレクトリのキーから、配下のキーの接頭語を取得する.
+     * 
+     * @param key
+     *            ディレクトリのキー
+     * @return 接頭語
+     */
+    private static String dirPrefix(String key) {
+        return key.length() == 0 ? "" : key + "/";
+    }
+
+    @Override
+    public File[] list(File dir) throws IOException {
+        String key = toKey(dir);
+        String prefix = dirPrefix(key);
+        List<ObjectInfo> objects = store.list(prefix);
+        if (objects.isEmpty() && key.length() > 0) {
+            return null;
+        }
+        TreeMap<String, File> children = new TreeMap<String, File>();
+        for (ObjectInfo info : objects) {
+            String rest = info.getKey().substring(prefix.length());
+            int pos = rest.indexOf('/');
+            String name = (pos < 0) ? rest : rest.substring(0, pos);
+            if (!children.containsKey(name)) {
+                children.put(name, toFile(prefix + name));
+            }
+        }
+        return children.values().toArray(new File[children.size()]);
+    }
+
+    @Override
+    public InputStream openRead(File file, long offset, long length)
+            throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException();
+        }
+        final String key = toKey(file);
+        ObjectInfo info = store.head(key);
+        if (info == null) {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        CachedObject cached = cache.get(key);
+        if (cached != null && cached.etag.equals(info.getEtag())
+                && cached.file.isFile()) {
+            cacheHits.incrementAndGet();
+            return LocalStorage.getInstance().openRead(cached.file, offset,
+                    length);
+        }
+        cacheMisses.incrementAndGet();
+
+        if (offset == 0 && length < 0) {
+            // 全体の読み込みはキャッシュに取得してから読み込む
+            CachedObject fetched = fetch(info, cached);
+            InputStream is = LocalStorage.getInstance().openRead(
+                    fetched.file, 0, -1);
+            if (cache.get(key) != fetched) {
+                // 取得中に書き込まれた場合は、読み込み用にのみ用いる
+                discard(fetched.file);
+            }
+            return is;
+        }
+
+        // 範囲の読み込みは範囲のみを取得し、全体はバックグラウンドで取得する
+        InputStream is = store.get(key, info.getEtag(), offset, length);
+        if (is == null) {
+            throw new FileNotFoundException(file.toString());
+        }
+        fetchLater(info);
+        return is;
+    }
+
+    /**
+     * オブジェクト全体をキャッシュに取得する.<br>
+     * 取得中にキャッシュが置き換えられていた場合は登録しない.<br>
+     * 
+     * @param info
+     *            オブジェクトの情報
+     * @param expected
+     *            取得前のキャッシュ、なければnull
+     * @return 取得したキャッシュ
+     * @throws IOException
+     *             失敗、もしくは取得中にオブジェクトが置き換えられた場合
+     */
+    private CachedObject fetch(ObjectInfo info, CachedObject expected)
+            throws IOException {
+        String key = info.getKey();
+        File cacheFile = newCacheFile(key);
+        boolean success = false;
+        try {
+            InputStream is = store.get(key, info.getEtag(), 0, -1);
+            if (is == null) {
+                throw new FileNotFoundException(key);
+            }
+            try {
+                FileOutputStream fos = new FileOutputStream(cacheFile);
+                try {
+                    OutputStream os = new BufferedOutputStream(fos,
+                            64 * 1024);
+                    byte[] buf = new byte[64 * 1024];
+                    int rd;
+                    while ((rd = is.read(buf)) >= 0) {
+                        os.write(buf, 0, rd);
+                    }
+                    os.flush();
+
+                } finally {
+                    fos.close();
+                }
+
+            } finally {
+                is.close();
+            }
+            CachedObject cached = new CachedObject(info.getEtag(), cacheFile);
+            boolean installed = (expected == null) ? cache.putIfAbsent(key,
+                    cached) == null : cache.replace(key, expected, cached);
+            if (installed && expected != null) {
+                discard(expected.file);
+            }
+            success = true;
+            return cached;
+
+        } finally {
+            if (!success) {
+                discard(cacheFile);
+            }
+        }
+    }
+
+    /**
+     * オブジェクト全体をバックグラウンドでキャッシュに取得する.<br>
+     * 同じキーを取得中であれば何もしない.<br>
+     * 
+     * @param info
+     *            オブジェクトの情報
+     */
+    private void fetchLater(final ObjectInfo info) {
+        final String key = info.getKey();
+        if (!fetching.add(key)) {
+            return;
+        }
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        CachedObject cached = cache.get(key);
+                        if (cached == null
+                                || !cached.etag.equals(info.getEtag())) {
+                            CachedObject fetched = fetch(info, cached);
+                            if (cache.get(key) != fetched) {
+                                discard(fetched.file);
+                            }
+                        }
+
+                    } catch (IOException ex) {
+                        // 取得中に置き換えられた場合など. 次の読み込みで再度取得する.
+                        logger.log(Level.FINE, "cache fetch failed. " + key,
+                                ex);
+
+                    } finally {
+                        fetching.remove(key);
+                    }
+                }
+            });
+
+        } catch (RuntimeException ex) {
+            // 停止後など
+            fetching.remove(key);
+            logger.log(Level.FINE, "cache fetch rejected. " + key, ex);
+        }
+    }
+
+    /**
+     * キャッシュを登録し、以前のキャッシュのファイルを削除する.
+     * 
+     * @param key
+     *            キー
+     * @param cached
+     *            キャッシュ
+     */
+    private void install(String key, CachedObject cached) {
+        CachedObject old = cache.put(key, cached);
+        if (old != null && !old.file.equals(cached.file)) {
+            discard(old.file);
+        }
+    }
+
+    /**
+     * キャッシュを破棄する.
+     * 
+     * @param key
+     *            キー
+     */
+    private void evict(String key) {
+        CachedObject old = cache.remove(key);
+        if (old != null) {
+            discard(old.file);
+        }
+    }
+
+    /**
+     * キャッシュのファイルを削除する.<br>
+     * 読み込み中などで削除できなければ終了時に削除する.<br>
+     * 
+     * @param file
+     *            ファイル
+     */
+    private static void discard(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * キャッシュの新しいファイルを取得する.<br>
+     * キーのハッシュと通番からなる名前とし、読み込み中のキャッシュを上書きしないようにする.<br>
+     * 
+     * @param key
+     *            キー
+     * @return ファイル
+     * @throws IOException
+     *             ディレクトリが作成できない場合
+     */
+    private File newCacheFile(String key) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()
+                && !cacheDir.isDirectory()) {
+            throw new IOException("can't create the directory. " + cacheDir);
+        }
+        byte[] digest;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            digest = md.digest(key.getBytes(Charset.forName("UTF-8")));
+
+        } catch (NoSuchAlgorithmException ex) {
+            // アルゴリズムがみつからない = 環境の問題
+            throw new RuntimeException(ex);
+        }
+        StringBuilder buf = new StringBuilder();
+        for (int idx = 0; idx < 16; idx++) {
+            buf.append(String.format("%02x", digest[idx] & 0xff));
+        }
+        buf.append('-').append(sequence.incrementAndGet());
+        return new File(cacheDir, buf.toString());
+    }
+
+    @Override
+    public StorageWriter openWrite(final File file) throws IOException {
+        final String key = toKey(file);
+        if (key.length() == 0) {
+            throw new IOException("is a directory. " + file);
+        }
+        final File spoolFile = newCacheFile(key);
+        final FileOutputStream fos = new FileOutputStream(spoolFile);
+        final OutputStream os = new BufferedOutputStream(fos, 64 * 1024);
+        return new StorageWriter() {
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                os.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                os.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                os.flush();
+            }
+
+            @Override
+            public void commit() throws IOException {
+                if (closed) {
+                    throw new IOException("already closed. " + file);
+                }
+                closed = true;
+                boolean success = false;
+                try {
+                    os.flush();
+                    fos.close();
+                    ObjectInfo info;
+                    InputStream is = new BufferedInputStream(
+                            new FileInputStream(spoolFile));
+                    try {
+                        info = store.put(key, is, spoolFile.length());
+
+                    } finally {
+                        is.close();
+                    }
+                    // 書き込んだ内容はそのままキャッシュとする
+                    install(key, new CachedObject(info.getEtag(), spoolFile));
+                    success = true;
+
+                } finally {
+                    if (!success) {
+                        discard(spoolFile);
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        fos.close();
+
+                    } finally {
+                        discard(spoolFile);
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean delete(File file) throws IOException {
+        String key = toKey(file);
+        if (key.length() == 0) {
+            throw new IOException("can't delete the root. " + file);
+        }
+        evict(key);
+        // ディレクトリは配下のオブジェクトがなくなれば消えるため、ファイルのみ削除する
+        return store.delete(key);
+    }
+
+    /**
+     * ストアには改名がないため、複写してから削除する.<br>
+     */
+    @Override
+    public void rename(File src, File dest) throws IOException {
+        String srcKey = toKey(src);
+        String destKey = toKey(dest);
+        if (srcKey.length() == 0 || destKey.length() == 0) {
+            throw new IOException("can't rename. " + src + " -> " + dest);
+        }
+        ObjectInfo info = store.head(srcKey);
+        if (info == null) {
+            throw new FileNotFoundException(src.toString());
+        }
+        InputStream is = store.get(srcKey, info.getEtag(), 0, -1);
+        if (is == null) {
+            throw new FileNotFoundException(src.toString());
+        }
+        ObjectInfo copied;
+        try {
+            copied = store.put(destKey, is, info.getSize());
+
+        } finally {
+            is.close();
+        }
+        CachedObject cached = cache.remove(srcKey);
+        if (cached != null && cached.etag.equals(info.getEtag())) {
+            install(destKey, new CachedObject(copied.getEtag(), cached.file));
+        } else {
+            if (cached != null) {
+                discard(cached.file);
+            }
+            evict(destKey);
+        }
+        store.delete(srcKey);
+    }
+
+    @Override
+    public StorageWatch watch(File dir, FileFilter filter,
+            StorageListener listener) {
+        return new PollingWatch(this, dir, filter, listener, WATCH_INTERVAL)
+                .start();
+    }
+
+    /**
+     * バックグラウンドでの取得を停止し、キャッシュのファイルを削除する.
+     */
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        List<String> keys = new ArrayList<String>(cache.keySet());
+        for (String key : keys) {
+            evict(key);
+        }
+    }
+
+    /**
+     * キャッシュから読み込んだ回数
+     * 
+     * @return 回数
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * キャッシュになかった回数
+     * 
+     * @return 回数
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectStoreStorage(" + rootDir + ")";
+    }
+}
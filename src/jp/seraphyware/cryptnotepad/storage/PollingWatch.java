@@ -0,0 +1,163 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 一定間隔でディレクトリ配下を走査して変更を検知する監視.<br>
+ * ファイルとディレクトリの一覧と、それぞれのサイズと更新日時を前回と比較する.<br>
+ * 変更の通知を持たない格納先で用いる.<br>
+ * 
+ * @author seraphy
+ */
+final class PollingWatch implements StorageWatch, Runnable {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(PollingWatch.class
+            .getName());
+
+    /**
+     * 格納先
+     */
+    private final Storage storage;
+
+    /**
+     * 監視するディレクトリ
+     */
+    private final File dir;
+
+    /**
+     * 監視するファイルとディレクトリのフィルタ、nullの場合はすべて
+     */
+    private final FileFilter filter;
+
+    /**
+     * リスナー
+     */
+    private final StorageListener listener;
+
+    /**
+     * 走査の間隔(mSec)
+     */
+    private final long interval;
+
+    /**
+     * 監視スレッド
+     */
+    private final Thread thread;
+
+    /**
+     * 停止したか?
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param storage
+     *            格納先
+     * @param dir
+     *            監視するディレクトリ
+     * @param filter
+     *            監視するファイルとディレクトリのフィルタ、nullの場合はすべて
+     * @param listener
+     *            リスナー
+     * @param interval
+     *            走査の間隔(mSec)
+     */
+    PollingWatch(Storage storage, File dir, FileFilter filter,
+            StorageListener listener, long interval) {
+        if (storage == null || dir == null || listener == null
+                || interval <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.storage = storage;
+        this.dir = dir;
+        this.filter = filter;
+        this.listener = listener;
+        this.interval = interval;
+        this.thread = new Thread(this, "StorageWatch-" + dir.getName());
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * 監視を開始する.
+     * 
+     * @return このインスタンス
+     */
+    PollingWatch start() {
+        thread.start();
+        return this;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        Map<File, StorageStat> prev = null;
+        while (!cancelled) {
+            try {
+                Map<File, StorageStat> snapshot = new HashMap<File, StorageStat>();
+                scan(dir, snapshot);
+                if (prev != null && !prev.equals(snapshot)) {
+                    listener.storageChanged(dir);
+                }
+                prev = snapshot;
+
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "storage scan failed. " + dir, ex);
+
+            } catch (RuntimeException ex) {
+                logger.log(Level.WARNING, "storage watch failed. " + dir, ex);
+            }
+            try {
+                Thread.sleep(interval);
+
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * ディレクトリ配下を再帰的に走査する.
+     * 
+     * @param parent
+     *            ディレクトリ
+     * @param snapshot
+     *            ファイルとディレクトリの情報の格納先
+     * @throws IOException
+     *             失敗
+     */
+    private void scan(File parent, Map<File, StorageStat> snapshot)
+            throws IOException {
+        File[] children = storage.list(parent);
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (filter != null && !filter.accept(child)) {
+                continue;
+            }
+            StorageStat stat = storage.stat(child);
+            if (stat == null) {
+                continue;
+            }
+            snapshot.put(child, stat);
+            if (stat.isDirectory()) {
+                scan(child, snapshot);
+            }
+        }
+    }
+}
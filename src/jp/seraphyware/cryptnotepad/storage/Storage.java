@@ -0,0 +1,121 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 暗号化ファイルの格納先.<br>
+ * ファイルはローカルのファイルシステムと同じく{@link File}で指定するが、
+ * 実際の格納先は実装によって、ローカルのファイルシステム、メモリ、オブジェクトストアなどとなる.<br>
+ * すべてのメソッドは複数のスレッドから同時に呼び出される.<br>
+ * <br>
+ * 書き込みは{@link StorageWriter#commit()}で確定するまで他から見えず、
+ * 確定した時点で以前の内容と置き換わる.<br>
+ * 
+ * @author seraphy
+ */
+public interface Storage {
+
+    /**
+     * ファイルがローカルのファイルシステム上の実在のファイルであるか?<br>
+     * trueの場合は、{@link java.io.RandomAccessFile}などで直接読み書きしてよい.<br>
+     * (チャンク形式の部分的な上書きや、アーカイブ、上書きによる消去はローカルの場合のみ行う.)<br>
+     * 
+     * @return ローカルのファイルシステムであればtrue
+     */
+    boolean isLocal();
+
+    /**
+     * ファイルまたはディレクトリの情報を取得する.
+     * 
+     * @param file
+     *            ファイルまたはディレクトリ
+     * @return 情報、存在しなければnull
+     * @throws IOException
+     *             失敗
+     */
+    StorageStat stat(File file) throws IOException;
+
+    /**
+     * ディレクトリ直下のファイルとディレクトリを列挙する.
+     * 
+     * @param dir
+     *            ディレクトリ
+     * @return ファイルとディレクトリ、ディレクトリでなければnull
+     * @throws IOException
+     *             失敗
+     */
+    File[] list(File dir) throws IOException;
+
+    /**
+     * ファイルの指定した範囲を読み込むストリームを開く.
+     * 
+     * @param file
+     *            ファイル
+     * @param offset
+     *            開始位置
+     * @param length
+     *            長さ、負の場合はファイルの終わりまで
+     * @return 入力ストリーム
+     * @throws java.io.FileNotFoundException
+     *             ファイルが存在しない場合
+     * @throws IOException
+     *             失敗
+     */
+    InputStream openRead(File file, long offset, long length)
+            throws IOException;
+
+    /**
+     * ファイルに書き込むストリームを開く.<br>
+     * {@link StorageWriter#commit()}を呼び出すまでは、ファイルは以前の内容のままである.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @return 出力ストリーム
+     * @throws IOException
+     *             失敗
+     */
+    StorageWriter openWrite(File file) throws IOException;
+
+    /**
+     * ファイルを削除する.<br>
+     * 内容の上書きは行わない.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @return 削除した場合はtrue、存在しなかった場合はfalse
+     * @throws IOException
+     *             削除できなかった場合
+     */
+    boolean delete(File file) throws IOException;
+
+    /**
+     * ファイルを改名する.<br>
+     * 改名先のファイルがあれば置き換える.<br>
+     * 
+     * @param src
+     *            改名元
+     * @param dest
+     *            改名先
+     * @throws IOException
+     *             失敗
+     */
+    void rename(File src, File dest) throws IOException;
+
+    /**
+     * ディレクトリ配下の変更の監視を開始する.<br>
+     * 変更を検知すると、実装のスレッドからリスナーが呼び出される.<br>
+     * 
+     * @param dir
+     *            監視するディレクトリ
+     * @param filter
+     *            監視するファイルとディレクトリのフィルタ、nullの場合はすべて.
+     *            除外したディレクトリの配下も監視しない.
+     * @param listener
+     *            リスナー
+     * @return 監視、{@link StorageWatch#cancel()}で停止する
+     */
+    StorageWatch watch(File dir, FileFilter filter, StorageListener listener);
+}
@@ -0,0 +1,21 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+import java.io.File;
+import java.util.EventListener;
+
+/**
+ * 格納先の変更を受け取るリスナー.
+ * 
+ * @author seraphy
+ */
+public interface StorageListener extends EventListener {
+
+    /**
+     * 監視しているディレクトリ配下でファイルが作成、変更、削除されたことを通知される.<br>
+     * 複数の変更がまとめて通知される場合がある.<br>
+     * 
+     * @param dir
+     *            監視しているディレクトリ
+     */
+    void storageChanged(File dir);
+}
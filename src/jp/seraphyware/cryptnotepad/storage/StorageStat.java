@@ -0,0 +1,80 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+/**
+ * 格納先のファイルまたはディレクトリの情報.
+ * 
+ * @author seraphy
+ */
+public final class StorageStat {
+
+    /**
+     * ディレクトリであるか?
+     */
+    private final boolean directory;
+
+    /**
+     * ファイルのサイズ、ディレクトリの場合は0
+     */
+    private final long length;
+
+    /**
+     * 最終更新日時
+     */
+    private final long lastModified;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param directory
+     *            ディレクトリであればtrue
+     * @param length
+     *            ファイルのサイズ、ディレクトリの場合は0
+     * @param lastModified
+     *            最終更新日時
+     */
+    public StorageStat(boolean directory, long length, long lastModified) {
+        this.directory = directory;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public boolean isFile() {
+        return !directory;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (length ^ lastModified) ^ (directory ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (obj instanceof StorageStat) {
+            StorageStat o = (StorageStat) obj;
+            return directory == o.directory && length == o.length
+                    && lastModified == o.lastModified;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "StorageStat(directory=" + directory + ", length=" + length
+                + ", lastModified=" + lastModified + ")";
+    }
+}
@@ -0,0 +1,14 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+/**
+ * 格納先の変更の監視.
+ * 
+ * @author seraphy
+ */
+public interface StorageWatch {
+
+    /**
+     * 監視を停止する.
+     */
+    void cancel();
+}
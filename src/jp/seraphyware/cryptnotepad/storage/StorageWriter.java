@@ -0,0 +1,29 @@
+package jp.seraphyware.cryptnotepad.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 格納先のファイルへの書き込み.<br>
+ * {@link #commit()}で書き込んだ内容を確定してファイルを置き換える.<br>
+ * 確定せずに{@link #close()}した場合は、書き込んだ内容を破棄する.<br>
+ * 
+ * @author seraphy
+ */
+public abstract class StorageWriter extends OutputStream {
+
+    /**
+     * 書き込んだ内容を確定してファイルを置き換え、ストリームを閉じる.
+     * 
+     * @throws IOException
+     *             失敗
+     */
+    public abstract void commit() throws IOException;
+
+    /**
+     * ストリームを閉じる.<br>
+     * 確定していなければ書き込んだ内容を破棄する.<br>
+     */
+    @Override
+    public abstract void close() throws IOException;
+}
@@ -0,0 +1,380 @@
+package jp.seraphyware.cryptnotepad.sync;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ファイルのブロックごとのシグネチャ.<br>
+ * ファイルを固定長のブロックに分割し、ブロックごとにローリングチェックサム(弱いハッシュ)と、
+ * SHA-256の先頭16バイト(強いハッシュ)を保持する. 最後のブロックは短くてもよい.<br>
+ * 受信側が既存のファイルから作成して送信側に渡し、
+ * 送信側はこれと一致するブロックを送らずに済ませる.<br>
+ * 
+ * @author seraphy
+ */
+public final class BlockSignature {
+
+    /**
+     * 強いハッシュの長さ
+     */
+    public static final int STRONG_LENGTH = 16;
+
+    /**
+     * ブロックサイズの最小値
+     */
+    public static final int MIN_BLOCK_SIZE = 512;
+
+    /**
+     * ブロックサイズの最大値
+     */
+    public static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * ブロックサイズ
+     */
+    private final int blockSize;
+
+    /**
+     * ファイルの長さ
+     */
+    private final long length;
+
+    /**
+     * ブロックごとの弱いハッシュ
+     */
+    private final int[] weak;
+
+    /**
+     * ブロックごとの強いハッシュ
+     */
+    private final byte[][] strong;
+
+    /**
+     * 弱いハッシュからブロック番号への索引、最初の検索時に作成する.
+     */
+    private Map<Integer, int[]> index;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param blockSize
+     *            ブロックサイズ
+     * @param length
+     *            ファイルの長さ
+     * @param weak
+     *            ブロックごとの弱いハッシュ
+     * @param strong
+     *            ブロックごとの強いハッシュ
+     */
+    private BlockSignature(int blockSize, long length, int[] weak,
+            byte[][] strong) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * ブロックサイズが有効であるか?
+     * 
+     * @param blockSize
+     *            ブロックサイズ
+     * @return 有効であればtrue
+     */
+    public static boolean isValidBlockSize(int blockSize) {
+        return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE;
+    }
+
+    /**
+     * ファイルの長さに応じたブロックサイズを求める.<br>
+     * rsyncと同様に長さの平方根を8の倍数に丸め、最小値と最大値の範囲に収める.<br>
+     * 
+     * @param length
+     *            ファイルの長さ
+     * @return ブロックサイズ
+     */
+    public static int getDefaultBlockSize(long length) {
+        long size = ((long) Math.sqrt(length)) & ~7L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * ストリームからシグネチャを作成する.
+     * 
+     * @param is
+     *            入力ストリーム
+     * @param blockSize
+     *            ブロックサイズ
+     * @return シグネチャ
+     * @throws IOException
+     *             読み込みに失敗した場合
+     */
+    public static BlockSignature create(InputStream is, int blockSize)
+            throws IOException {
+        if (is == null || !isValidBlockSize(blockSize)) {
+            throw new IllegalArgumentException();
+        }
+        MessageDigest md = createDigest();
+        int[] weak = new int[16];
+        byte[][] strong = new byte[16][];
+        int count = 0;
+        long length = 0;
+        byte[] buf = new byte[blockSize];
+        for (;;) {
+            int len = readFully(is, buf);
+            if (len == 0) {
+                break;
+            }
+            if (count == weak.length) {
+                weak = Arrays.copyOf(weak, count * 2);
+                strong = Arrays.copyOf(strong, count * 2);
+            }
+            weak[count] = RollingChecksum.checksum(buf, 0, len);
+            strong[count] = strongHash(md, buf, 0, len);
+            count++;
+            length += len;
+            if (len < blockSize) {
+                break;
+            }
+        }
+        return new BlockSignature(blockSize, length, Arrays.copyOf(weak,
+                count), Arrays.copyOf(strong, count));
+    }
+
+    /**
+     * 空のファイルのシグネチャを作成する.<br>
+     * 受信側にファイルがない場合に用いる.<br>
+     * 
+     * @param blockSize
+     *            ブロックサイズ
+     * @return シグネチャ
+     */
+    public static BlockSignature empty(int blockSize) {
+        if (!isValidBlockSize(blockSize)) {
+            throw new IllegalArgumentException();
+        }
+        return new BlockSignature(blockSize, 0, new int[0], new byte[0][]);
+    }
+
+    /**
+     * バッファが一杯になるか、ストリームの終端まで読み込む.
+     * 
+     * @param is
+     *            入力ストリーム
+     * @param buf
+     *            バッファ
+     * @return 読み込んだバイト数
+     * @throws IOException
+     *             失敗
+     */
+    private static int readFully(InputStream is, byte[] buf)
+            throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            int rd = is.read(buf, total, buf.length - total);
+            if (rd < 0) {
+                break;
+            }
+            total += rd;
+        }
+        return total;
+    }
+
+    /**
+     * シグネチャを書き込む.
+     * 
+     * @param out
+     *            出力先
+     * @throws IOException
+     *             失敗
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(blockSize);
+        out.writeLong(length);
+        out.writeInt(weak.length);
+        for (int idx = 0; idx < weak.length; idx++) {
+            out.writeInt(weak[idx]);
+            out.write(strong[idx]);
+        }
+    }
+
+    /**
+     * シグネチャを読み込む.
+     * 
+     * @param in
+     *            入力元
+     * @return シグネチャ
+     * @throws IOException
+     *             失敗、もしくは内容が不正な場合
+     */
+    public static BlockSignature read(DataInput in) throws IOException {
+        int blockSize = in.readInt();
+        long length = in.readLong();
+        int count = in.readInt();
+        if (!isValidBlockSize(blockSize) || length < 0 || count < 0
+                || (length + blockSize - 1) / blockSize != count) {
+            throw new IOException("invalid signature.");
+        }
+        int[] weak = new int[count];
+        byte[][] strong = new byte[count][];
+        for (int idx = 0; idx < count; idx++) {
+            weak[idx] = in.readInt();
+            strong[idx] = new byte[STRONG_LENGTH];
+            in.readFully(strong[idx]);
+        }
+        return new BlockSignature(blockSize, length, weak, strong);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    /**
+     * 最後のブロックの長さを取得する.
+     * 
+     * @return 最後のブロックの長さ、ブロックがなければ0
+     */
+    public int getLastBlockLength() {
+        if (weak.length == 0) {
+            return 0;
+        }
+        return (int) (length - (long) (weak.length - 1) * blockSize);
+    }
+
+    /**
+     * ブロックの長さを取得する.
+     * 
+     * @param blockIndex
+     *            ブロック番号
+     * @return ブロックの長さ
+     */
+    public int getBlockLength(int blockIndex) {
+        return (blockIndex == weak.length - 1) ? getLastBlockLength()
+                : blockSize;
+    }
+
+    /**
+     * ウィンドウと一致するブロックを探す.<br>
+     * 弱いハッシュが一致したブロックについてのみ、強いハッシュを計算して比較する.<br>
+     * 同じ内容のブロックが複数ある場合は、preferredが候補にあればそれを優先する.<br>
+     * 
+     * @param md
+     *            強いハッシュの計算に用いるダイジェスト
+     * @param checksum
+     *            ウィンドウのローリングチェックサム
+     * @param buf
+     *            バッファ
+     * @param off
+     *            ウィンドウの位置
+     * @param len
+     *            ウィンドウの長さ
+     * @param preferred
+     *            優先するブロック番号
+     * @return 一致したブロック番号、なければ-1
+     */
+    public int find(MessageDigest md, int checksum, byte[] buf, int off,
+            int len, int preferred) {
+        if (index == null) {
+            index = createIndex();
+        }
+        int[] candidates = index.get(checksum);
+        if (candidates == null) {
+            return -1;
+        }
+        byte[] hash = null;
+        int found = -1;
+        for (int blockIndex : candidates) {
+            if (getBlockLength(blockIndex) != len) {
+                continue;
+            }
+            if (hash == null) {
+                hash = strongHash(md, buf, off, len);
+            }
+            if (Arrays.equals(hash, strong[blockIndex])) {
+                if (blockIndex == preferred) {
+                    return blockIndex;
+                }
+                if (found < 0) {
+                    found = blockIndex;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 弱いハッシュからブロック番号への索引を作成する.
+     * 
+     * @return 索引
+     */
+    private Map<Integer, int[]> createIndex() {
+        Map<Integer, int[]> map = new HashMap<Integer, int[]>();
+        for (int blockIndex = 0; blockIndex < weak.length; blockIndex++) {
+            int[] blocks = map.get(weak[blockIndex]);
+            if (blocks == null) {
+                blocks = new int[] { blockIndex };
+            } else {
+                blocks = Arrays.copyOf(blocks, blocks.length + 1);
+                blocks[blocks.length - 1] = blockIndex;
+            }
+            map.put(weak[blockIndex], blocks);
+        }
+        return map;
+    }
+
+    /**
+     * 強いハッシュを計算する.
+     * 
+     * @param md
+     *            ダイジェスト
+     * @param buf
+     *            バッファ
+     * @param off
+     *            位置
+     * @param len
+     *            長さ
+     * @return 強いハッシュ
+     */
+    private static byte[] strongHash(MessageDigest md, byte[] buf, int off,
+            int len) {
+        md.reset();
+        md.update(buf, off, len);
+        return Arrays.copyOf(md.digest(), STRONG_LENGTH);
+    }
+
+    /**
+     * SHA-256のダイジェストを作成する.
+     * 
+     * @return ダイジェスト
+     */
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+
+        } catch (NoSuchAlgorithmException ex) {
+            // アルゴリズムがみつからない = 環境の問題
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BlockSignature(blockSize=" + blockSize + ", length=" + length
+                + ", blocks=" + weak.length + ")";
+    }
+}
@@ -0,0 +1,392 @@
+package jp.seraphyware.cryptnotepad.sync;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+
+/**
+ * 受信側のファイルのシグネチャに対する差分の作成と適用.<br>
+ * 差分は、受信側のファイルのブロックを参照する複写命令と、
+ * 一致するブロックがない部分のデータ命令の並びであり、終端命令で終わる.<br>
+ * 送信側はデータをローリングチェックサムで1バイトずつずらしながらブロックを探すため、
+ * 挿入や削除によって位置がずれた部分も複写命令になる.<br>
+ * <br>
+ * 形式は、複写命令が 1(1) + ブロック番号(4) + ブロック数(4)、
+ * データ命令が 2(1) + 長さ(4) + データ、終端命令が 0(1) である.<br>
+ * 
+ * @author seraphy
+ */
+public final class Delta {
+
+    /**
+     * 終端命令
+     */
+    private static final int OP_END = 0;
+
+    /**
+     * 複写命令
+     */
+    private static final int OP_COPY = 1;
+
+    /**
+     * データ命令
+     */
+    private static final int OP_DATA = 2;
+
+    /**
+     * データ命令の最大長
+     */
+    private static final int MAX_DATA_LENGTH = 64 * 1024;
+
+    /**
+     * 差分の作成結果
+     */
+    public static final class Stats {
+
+        private final long length;
+
+        private final long copiedBytes;
+
+        private final long literalBytes;
+
+        Stats(long length, long copiedBytes, long literalBytes) {
+            this.length = length;
+            this.copiedBytes = copiedBytes;
+            this.literalBytes = literalBytes;
+        }
+
+        /**
+         * 送信側のデータの長さ
+         * 
+         * @return 長さ
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * 受信側のブロックから複写されるバイト数
+         * 
+         * @return バイト数
+         */
+        public long getCopiedBytes() {
+            return copiedBytes;
+        }
+
+        /**
+         * データ命令として送るバイト数
+         * 
+         * @return バイト数
+         */
+        public long getLiteralBytes() {
+            return literalBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Delta.Stats(length=" + length + ", copied=" + copiedBytes
+                    + ", literal=" + literalBytes + ")";
+        }
+    }
+
+    private Delta() {
+        super();
+    }
+
+    /**
+     * 差分を作成する.
+     * 
+     * @param signature
+     *            受信側のファイルのシグネチャ
+     * @param is
+     *            送信側のデータ
+     * @param out
+     *            差分の出力先
+     * @param md
+     *            送信側のデータ全体のダイジェストの計算先、不要ならばnull
+     * @return 作成結果
+     * @throws IOException
+     *             失敗
+     */
+    public static Stats encode(BlockSignature signature, InputStream is,
+            DataOutput out, MessageDigest md) throws IOException {
+        if (signature == null || is == null || out == null) {
+            throw new IllegalArgumentException();
+        }
+        Encoder encoder = new Encoder(signature, out);
+        encoder.encode(is, md);
+        return new Stats(encoder.length, encoder.copiedBytes,
+                encoder.literalBytes);
+    }
+
+    /**
+     * 差分を適用する.<br>
+     * 受信側のファイルのブロックと差分のデータから、送信側のデータを復元して出力する.<br>
+     * 
+     * @param basis
+     *            受信側のファイル、ファイルがない場合はnull
+     * @param blockSize
+     *            シグネチャのブロックサイズ
+     * @param in
+     *            差分
+     * @param os
+     *            復元したデータの出力先
+     * @return 復元したデータの長さ
+     * @throws IOException
+     *             失敗、もしくは差分が不正な場合
+     */
+    public static long apply(RandomAccessFile basis, int blockSize,
+            DataInput in, OutputStream os) throws IOException {
+        if (in == null || os == null
+                || !BlockSignature.isValidBlockSize(blockSize)) {
+            throw new IllegalArgumentException();
+        }
+        long basisLength = (basis != null) ? basis.length() : 0;
+        byte[] buf = new byte[Math.max(blockSize, MAX_DATA_LENGTH)];
+        long total = 0;
+        for (;;) {
+            int op = in.readUnsignedByte();
+            if (op == OP_END) {
+                break;
+            }
+            if (op == OP_COPY) {
+                int blockIndex = in.readInt();
+                int count = in.readInt();
+                long pos = (long) blockIndex * blockSize;
+                long end = Math.min(basisLength, pos + (long) count
+                        * blockSize);
+                if (blockIndex < 0 || count < 1 || pos >= end
+                        || end <= pos + (long) (count - 1) * blockSize) {
+                    throw new IOException("invalid copy. block=" + blockIndex
+                            + ", count=" + count);
+                }
+                basis.seek(pos);
+                while (pos < end) {
+                    int len = (int) Math.min(buf.length, end - pos);
+                    basis.readFully(buf, 0, len);
+                    os.write(buf, 0, len);
+                    pos += len;
+                    total += len;
+                }
+
+            } else if (op == OP_DATA) {
+                int len = in.readInt();
+                if (len < 1 || len > MAX_DATA_LENGTH) {
+                    throw new IOException("invalid data length. " + len);
+                }
+                in.readFully(buf, 0, len);
+                os.write(buf, 0, len);
+                total += len;
+
+            } else {
+                throw new IOException("invalid delta op. " + op);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 差分の作成の状態
+     */
+    private static final class Encoder {
+
+        private final BlockSignature signature;
+
+        private final DataOutput out;
+
+        private final int blockSize;
+
+        private final MessageDigest blockDigest = BlockSignature
+                .createDigest();
+
+        private final RollingChecksum rc = new RollingChecksum();
+
+        /**
+         * 未出力の複写命令の先頭のブロック番号、なければ-1
+         */
+        private int copyStart = -1;
+
+        /**
+         * 未出力の複写命令のブロック数
+         */
+        private int copyCount;
+
+        private long length;
+
+        private long copiedBytes;
+
+        private long literalBytes;
+
+        Encoder(BlockSignature signature, DataOutput out) {
+            this.signature = signature;
+            this.out = out;
+            this.blockSize = signature.getBlockSize();
+        }
+
+        /**
+         * データを読み込みながら差分を出力する.<br>
+         * バッファにはローリングのためにブロックサイズより1バイト以上多く保持し、
+         * 不足したら未出力のデータを出力してから残りを先頭に詰めて読み足す.<br>
+         * 
+         * @param is
+         *            送信側のデータ
+         * @param md
+         *            データ全体のダイジェスト、不要ならばnull
+         * @throws IOException
+         *             失敗
+         */
+        void encode(InputStream is, MessageDigest md) throws IOException {
+            byte[] buf = new byte[Math.max(blockSize * 4, 4 * MAX_DATA_LENGTH)];
+            int len = 0; // バッファ内の有効なデータの長さ
+            int pos = 0; // ウィンドウの先頭
+            int lit = 0; // 未出力のデータの先頭
+            boolean eof = false;
+            boolean rolling = false;
+            int lastLength = signature.getLastBlockLength();
+
+            for (;;) {
+                if (!eof && len - pos <= blockSize) {
+                    flushLiteral(buf, lit, pos);
+                    System.arraycopy(buf, pos, buf, 0, len - pos);
+                    len -= pos;
+                    pos = 0;
+                    lit = 0;
+                    while (len < buf.length) {
+                        int rd = is.read(buf, len, buf.length - len);
+                        if (rd < 0) {
+                            eof = true;
+                            break;
+                        }
+                        if (md != null) {
+                            md.update(buf, len, rd);
+                        }
+                        len += rd;
+                        length += rd;
+                    }
+                }
+
+                int window = Math.min(blockSize, len - pos);
+                if (window <= 0) {
+                    break;
+                }
+
+                if (window < blockSize) {
+                    // 終端の短いウィンドウは、受信側の最後のブロックとだけ一致しうる.
+                    if (lastLength > 0 && lastLength < blockSize
+                            && window >= lastLength) {
+                        int tail = len - lastLength;
+                        rc.reset(buf, tail, lastLength);
+                        int found = signature.find(blockDigest,
+                                rc.getValue(), buf, tail, lastLength, -1);
+                        if (found >= 0) {
+                            flushLiteral(buf, lit, tail);
+                            copy(found, lastLength);
+                            lit = len;
+                        }
+                    }
+                    pos = len;
+                    break;
+                }
+
+                if (!rolling) {
+                    rc.reset(buf, pos, blockSize);
+                    rolling = true;
+                }
+                int preferred = (copyStart >= 0) ? copyStart + copyCount : -1;
+                int found = signature.find(blockDigest, rc.getValue(), buf,
+                        pos, blockSize, preferred);
+                if (found >= 0) {
+                    flushLiteral(buf, lit, pos);
+                    copy(found, blockSize);
+                    pos += blockSize;
+                    lit = pos;
+                    rolling = false;
+                    continue;
+                }
+
+                if (pos + blockSize < len) {
+                    rc.roll(buf[pos], buf[pos + blockSize]);
+                } else {
+                    rolling = false;
+                }
+                pos++;
+                if (pos - lit >= MAX_DATA_LENGTH) {
+                    flushLiteral(buf, lit, pos);
+                    lit = pos;
+                }
+            }
+            flushLiteral(buf, lit, pos);
+            flushCopy();
+            out.writeByte(OP_END);
+        }
+
+        /**
+         * ブロックの複写命令を追加する.<br>
+         * 直前の複写命令と連続するブロックであればまとめる.<br>
+         * 
+         * @param blockIndex
+         *            ブロック番号
+         * @param blockLength
+         *            ブロックの長さ
+         * @throws IOException
+         *             失敗
+         */
+        private void copy(int blockIndex, int blockLength) throws IOException {
+            if (copyStart >= 0 && copyStart + copyCount == blockIndex) {
+                copyCount++;
+            } else {
+                flushCopy();
+                copyStart = blockIndex;
+                copyCount = 1;
+            }
+            copiedBytes += blockLength;
+        }
+
+        /**
+         * 未出力の複写命令を出力する.
+         * 
+         * @throws IOException
+         *             失敗
+         */
+        private void flushCopy() throws IOException {
+            if (copyStart >= 0) {
+                out.writeByte(OP_COPY);
+                out.writeInt(copyStart);
+                out.writeInt(copyCount);
+                copyStart = -1;
+                copyCount = 0;
+            }
+        }
+
+        /**
+         * 未出力のデータをデータ命令として出力する.
+         * 
+         * @param buf
+         *            バッファ
+         * @param from
+         *            開始位置
+         * @param to
+         *            終了位置
+         * @throws IOException
+         *             失敗
+         */
+        private void flushLiteral(byte[] buf, int from, int to)
+                throws IOException {
+            if (from >= to) {
+                return;
+            }
+            flushCopy();
+            for (int off = from; off < to; off += MAX_DATA_LENGTH) {
+                int len = Math.min(MAX_DATA_LENGTH, to - off);
+                out.writeByte(OP_DATA);
+                out.writeInt(len);
+                out.write(buf, off, len);
+            }
+            literalBytes += to - from;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package jp.seraphyware.cryptnotepad.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ローカルのディレクトリを同期先とする通信路.<br>
+ * 要求のメッセージを解釈してディレクトリに対して処理し、応答のメッセージを返す.<br>
+ * 遠隔の同期先の代わりに、同じ形式のメッセージをメモリ上でやりとりするため、
+ * 転送量の計測や動作確認に用いることができる.<br>
+ * <br>
+ * 差分を適用したファイルは一時ファイルに書き込み、
+ * ハッシュが送信側と一致することを確認してから置き換える.<br>
+ * 
+ * @author seraphy
+ */
+public class DirectorySyncPeer implements SyncTransport {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger
+            .getLogger(DirectorySyncPeer.class.getName());
+
+    /**
+     * 差分を適用中の一時ファイルの拡張子
+     */
+    public static final String TMP_SUFFIX = ".sync-tmp";
+
+    /**
+     * 同期先のディレクトリ
+     */
+    private final File rootDir;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param rootDir
+     *            同期先のディレクトリ
+     */
+    public DirectorySyncPeer(File rootDir) {
+        if (rootDir == null) {
+            throw new IllegalArgumentException();
+        }
+        this.rootDir = rootDir;
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    @Override
+    public byte[] call(byte[] request) throws IOException {
+        if (request == null) {
+            throw new IllegalArgumentException();
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                request));
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            handle(in, new DataOutputStream(body));
+            out.writeByte(SyncProtocol.STATUS_OK);
+            body.writeTo(out);
+
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "sync request failed.", ex);
+            bos.reset();
+            out.writeByte(SyncProtocol.STATUS_ERROR);
+            out.writeUTF(String.valueOf(ex.getMessage()));
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * 要求を処理する.
+     * 
+     * @param in
+     *            要求
+     * @param out
+     *            応答の内容の出力先
+     * @throws IOException
+     *             失敗
+     */
+    private void handle(DataInputStream in, DataOutputStream out)
+            throws IOException {
+        int op = in.readUnsignedByte();
+        switch (op) {
+        case SyncProtocol.OP_LIST:
+            list(out);
+            break;
+
+        case SyncProtocol.OP_SIGNATURE: {
+            File file = resolve(in.readUTF());
+            int blockSize = in.readInt();
+            if (!BlockSignature.isValidBlockSize(blockSize)) {
+                throw new IOException("invalid block size. " + blockSize);
+            }
+            if (!file.isFile()) {
+                out.writeBoolean(false);
+                break;
+            }
+            InputStream is = new BufferedInputStream(
+                    new FileInputStream(file));
+            try {
+                BlockSignature signature = BlockSignature.create(is,
+                        blockSize);
+                out.writeBoolean(true);
+                signature.write(out);
+
+            } finally {
+                is.close();
+            }
+            break;
+        }
+
+        case SyncProtocol.OP_PATCH: {
+            File file = resolve(in.readUTF());
+            long lastModified = in.readLong();
+            int blockSize = in.readInt();
+            if (!BlockSignature.isValidBlockSize(blockSize)) {
+                throw new IOException("invalid block size. " + blockSize);
+            }
+            patch(file, lastModified, blockSize, in);
+            break;
+        }
+
+        case SyncProtocol.OP_DELETE: {
+            File file = resolve(in.readUTF());
+            if (file.exists() && !file.delete()) {
+                throw new IOException("can't delete. " + file);
+            }
+            break;
+        }
+
+        default:
+            throw new IOException("unknown op. " + op);
+        }
+    }
+
+    /**
+     * ディレクトリ配下のファイルの一覧を出力する.
+     * 
+     * @param out
+     *            出力先
+     * @throws IOException
+     *             失敗
+     */
+    private void list(DataOutputStream out) throws IOException {
+        List<File> files = new ArrayList<File>();
+        List<String> paths = new ArrayList<String>();
+        if (rootDir.isDirectory()) {
+            collect(rootDir, "", files, paths);
+        }
+        out.writeInt(files.size());
+        for (int idx = 0; idx < files.size(); idx++) {
+            File file = files.get(idx);
+            out.writeUTF(paths.get(idx));
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+        }
+    }
+
+    /**
+     * ディレクトリ配下のファイルを再帰的に列挙する.
+     * 
+     * @param dir
+     *            ディレクトリ
+     * @param prefix
+     *            ディレクトリの相対パス('/'区切り、ルートの場合は空)
+     * @param files
+     *            ファイルの格納先
+     * @param paths
+     *            相対パスの格納先
+     */
+    private static void collect(File dir, String prefix, List<File> files,
+            List<String> paths) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                collect(child, path + "/", files, paths);
+
+            } else if (!child.getName().endsWith(TMP_SUFFIX)) {
+                files.add(child);
+                paths.add(path);
+            }
+        }
+    }
+
+    /**
+     * 相対パスに対応するファイルを取得する.<br>
+     * ディレクトリの外を指すパスは拒否する.<br>
+     * 
+     * @param path
+     *            相対パス('/'区切り)
+     * @return ファイル
+     * @throws IOException
+     *             パスが不正な場合
+     */
+    private File resolve(String path) throws IOException {
+        if (path.length() == 0 || path.startsWith("/")
+                || path.indexOf('\\') >= 0 || path.indexOf(':') >= 0) {
+            throw new IOException("invalid path. " + path);
+        }
+        for (String name : path.split("/")) {
+            if (name.length() == 0 || name.equals(".") || name.equals("..")) {
+                throw new IOException("invalid path. " + path);
+            }
+        }
+        return new File(rootDir, path.replace('/', File.separatorChar));
+    }
+
+    /**
+     * 差分を適用してファイルを置き換える.
+     * 
+     * @param file
+     *            対象ファイル
+     * @param lastModified
+     *            更新日時
+     * @param blockSize
+     *            ブロックサイズ
+     * @param in
+     *            差分とハッシュ
+     * @throws IOException
+     *             失敗、もしくはハッシュが一致しない場合
+     */
+    private void patch(File file, long lastModified, int blockSize,
+            DataInputStream in) throws IOException {
+        File parentDir = file.getParentFile();
+        if (!parentDir.isDirectory() && !parentDir.mkdirs()
+                && !parentDir.isDirectory()) {
+            throw new IOException("can't create the directory. " + parentDir);
+        }
+
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        boolean success = false;
+        try {
+            MessageDigest md = BlockSignature.createDigest();
+            RandomAccessFile basis = file.isFile() ? new RandomAccessFile(
+                    file, "r") : null;
+            try {
+                FileOutputStream fos = new FileOutputStream(tmpFile);
+                try {
+                    OutputStream os = new BufferedOutputStream(
+                            new DigestOutputStream(fos, md), 64 * 1024);
+                    Delta.apply(basis, blockSize, in, os);
+                    os.flush();
+                    fos.getFD().sync();
+
+                } finally {
+                    fos.close();
+                }
+
+            } finally {
+                if (basis != null) {
+                    basis.close();
+                }
+            }
+
+            byte[] expected = new byte[SyncProtocol.HASH_LENGTH];
+            in.readFully(expected);
+            if (!MessageDigest.isEqual(expected, md.digest())) {
+                throw new IOException("hash mismatch. " + file);
+            }
+
+            tmpFile.setLastModified(lastModified);
+            if (!tmpFile.renameTo(file)) {
+                // 置き換えできない環境(Windows)では、削除してから置き換える.
+                if (!file.delete() || !tmpFile.renameTo(file)) {
+                    throw new IOException("can't rename. " + tmpFile);
+                }
+            }
+            success = true;
+
+        } finally {
+            if (!success && tmpFile.exists() && !tmpFile.delete()) {
+                tmpFile.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package jp.seraphyware.cryptnotepad.sync;
+
+/**
+ * rsync形式のローリングチェックサム.<br>
+ * ウィンドウのバイトの和(a)と、aの累積和(b)を16ビットずつ組み合わせた32ビットの値である.<br>
+ * ウィンドウを1バイトずらすときは、先頭のバイトを除いて末尾のバイトを加えるだけで計算できる.<br>
+ * 衝突しやすいため、一致した場合は強いハッシュで確認すること.<br>
+ * 
+ * @author seraphy
+ */
+public final class RollingChecksum {
+
+    /**
+     * バイトの和
+     */
+    private int a;
+
+    /**
+     * バイトの和の累積和
+     */
+    private int b;
+
+    /**
+     * ウィンドウの長さ
+     */
+    private int length;
+
+    /**
+     * ウィンドウのチェックサムを計算しなおす.
+     * 
+     * @param buf
+     *            バッファ
+     * @param off
+     *            ウィンドウの位置
+     * @param len
+     *            ウィンドウの長さ
+     */
+    public void reset(byte[] buf, int off, int len) {
+        int sa = 0;
+        int sb = 0;
+        for (int idx = 0; idx < len; idx++) {
+            sa += buf[off + idx] & 0xff;
+            sb += (len - idx) * (buf[off + idx] & 0xff);
+        }
+        a = sa;
+        b = sb;
+        length = len;
+    }
+
+    /**
+     * ウィンドウを1バイトずらす.
+     * 
+     * @param out
+     *            ウィンドウから外れる先頭のバイト
+     * @param in
+     *            ウィンドウに加わる末尾のバイト
+     */
+    public void roll(byte out, byte in) {
+        int o = out & 0xff;
+        a += (in & 0xff) - o;
+        b += a - length * o;
+    }
+
+    /**
+     * 現在のチェックサムを取得する.
+     * 
+     * @return チェックサム
+     */
+    public int getValue() {
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * バッファのチェックサムを計算する.
+     * 
+     * @param buf
+     *            バッファ
+     * @param off
+     *            位置
+     * @param len
+     *            長さ
+     * @return チェックサム
+     */
+    public static int checksum(byte[] buf, int off, int len) {
+        RollingChecksum rc = new RollingChecksum();
+        rc.reset(buf, off, len);
+        return rc.getValue();
+    }
+}
@@ -0,0 +1,57 @@
+package jp.seraphyware.cryptnotepad.sync;
+
+/**
+ * 同期の要求と応答の種別.<br>
+ * 要求は種別(1)につづいて種別ごとの内容、応答は状態(1)につづいて内容となる.<br>
+ * 状態がエラーの場合の内容は、エラーメッセージ(UTF)である.<br>
+ * パスは同期するディレクトリからの相対パスで、区切り文字は'/'とする.<br>
+ * 
+ * @author seraphy
+ */
+final class SyncProtocol {
+
+    /**
+     * ファイルの一覧の要求.<br>
+     * 応答はファイル数(4) + (パス(UTF) + サイズ(8) + 更新日時(8))...<br>
+     */
+    static final int OP_LIST = 1;
+
+    /**
+     * シグネチャの要求.<br>
+     * 要求はパス(UTF) + ブロックサイズ(4)、
+     * 応答は存在フラグ(1) + シグネチャ(存在する場合のみ)<br>
+     */
+    static final int OP_SIGNATURE = 2;
+
+    /**
+     * 差分の適用の要求.<br>
+     * 要求はパス(UTF) + 更新日時(8) + ブロックサイズ(4) + 差分 + データ全体のSHA-256(32)、
+     * 応答は内容なし.<br>
+     */
+    static final int OP_PATCH = 3;
+
+    /**
+     * ファイルの削除の要求.<br>
+     * 要求はパス(UTF)、応答は内容なし.<br>
+     */
+    static final int OP_DELETE = 4;
+
+    /**
+     * 応答の状態: 成功
+     */
+    static final int STATUS_OK = 0;
+
+    /**
+     * 応答の状態: エラー
+     */
+    static final int STATUS_ERROR = 1;
+
+    /**
+     * データ全体のハッシュの長さ
+     */
+    static final int HASH_LENGTH = 32;
+
+    private SyncProtocol() {
+        super();
+    }
+}
@@ -0,0 +1,25 @@
+package jp.seraphyware.cryptnotepad.sync;
+
+import java.io.IOException;
+
+/**
+ * 同期先との通信路.<br>
+ * 要求のメッセージを送り、応答のメッセージを受け取る.<br>
+ * 送受信するメッセージの長さの合計が、通信路上の転送量となる.<br>
+ * 
+ * @author seraphy
+ */
+public interface SyncTransport {
+
+    /**
+     * 要求を送り、応答を受け取る.<br>
+     * 複数のスレッドから同時に呼び出される.<br>
+     * 
+     * @param request
+     *            要求
+     * @return 応答
+     * @throws IOException
+     *             通信に失敗した場合
+     */
+    byte[] call(byte[] request) throws IOException;
+}
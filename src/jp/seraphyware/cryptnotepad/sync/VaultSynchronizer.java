@@ -0,0 +1,347 @@
+package jp.seraphyware.cryptnotepad.sync;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ファイルを同期先に送る同期処理.<br>
+ * 同期先にあるファイルのシグネチャを受け取り、一致しないブロックのみを差分として送る.<br>
+ * 同期先のファイルとサイズと更新日時が一致するファイルは送らない.<br>
+ * 暗号化されたファイルをそのまま送るため、キーは必要としない.<br>
+ * <br>
+ * 暗号文はどこか1バイトでも平文が変わると以降がすべて変わるため、
+ * 差分が小さくなるのは、変更されたチャンクのみを書き換えるチャンク形式のファイルや、
+ * 追記されるだけの版の履歴やアーカイブである.<br>
+ * 
+ * @author seraphy
+ */
+public class VaultSynchronizer {
+
+    /**
+     * 同期先のファイルの情報
+     */
+    public static final class PeerFile {
+
+        private final long size;
+
+        private final long lastModified;
+
+        PeerFile(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * ファイルのサイズと更新日時が一致するか判定する.
+         * 
+         * @param file
+         *            ファイル
+         * @return 一致する場合はtrue
+         */
+        public boolean matches(File file) {
+            return file.length() == size && file.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * ファイルの同期の結果
+     */
+    public static final class Result {
+
+        private final boolean sent;
+
+        private final boolean created;
+
+        private final long fileSize;
+
+        private final long wireBytes;
+
+        private final long literalBytes;
+
+        Result(boolean sent, boolean created, long fileSize, long wireBytes,
+                long literalBytes) {
+            this.sent = sent;
+            this.created = created;
+            this.fileSize = fileSize;
+            this.wireBytes = wireBytes;
+            this.literalBytes = literalBytes;
+        }
+
+        /**
+         * ファイルを送ったか?
+         * 
+         * @return 同期先と一致していたため送らなかった場合はfalse
+         */
+        public boolean isSent() {
+            return sent;
+        }
+
+        /**
+         * 同期先に新規に作成したか?
+         * 
+         * @return 同期先にファイルがなかった場合はtrue
+         */
+        public boolean isCreated() {
+            return created;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        /**
+         * シグネチャと差分の送受信に要したバイト数
+         * 
+         * @return バイト数
+         */
+        public long getWireBytes() {
+            return wireBytes;
+        }
+
+        /**
+         * 差分のうちデータとして送ったバイト数
+         * 
+         * @return バイト数
+         */
+        public long getLiteralBytes() {
+            return literalBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Result(sent=" + sent + ", created=" + created
+                    + ", fileSize=" + fileSize + ", wire=" + wireBytes
+                    + ", literal=" + literalBytes + ")";
+        }
+    }
+
+    /**
+     * 通信路
+     */
+    private final SyncTransport transport;
+
+    /**
+     * 送信したバイト数
+     */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * 受信したバイト数
+     */
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * 同期先のファイルの一覧、最初に必要になったときに取得する.
+     */
+    private Map<String, PeerFile> peerFiles;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param transport
+     *            同期先との通信路
+     */
+    public VaultSynchronizer(SyncTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException();
+        }
+        this.transport = transport;
+    }
+
+    /**
+     * 要求を送り、応答を受け取る.
+     * 
+     * @param request
+     *            要求
+     * @return 応答
+     * @throws IOException
+     *             失敗
+     */
+    private byte[] call(ByteArrayOutputStream request) throws IOException {
+        byte[] req = request.toByteArray();
+        bytesSent.addAndGet(req.length);
+        byte[] res = transport.call(req);
+        bytesReceived.addAndGet(res.length);
+        return res;
+    }
+
+    /**
+     * 応答の内容を読み込むストリームを作成する.<br>
+     * 応答がエラーであれば例外とする.<br>
+     * 
+     * @param response
+     *            応答
+     * @return 応答の内容
+     * @throws IOException
+     *             エラーの応答の場合
+     */
+    private static DataInputStream open(byte[] response) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                response));
+        int status = in.readUnsignedByte();
+        if (status != SyncProtocol.STATUS_OK) {
+            throw new IOException("peer error: " + in.readUTF());
+        }
+        return in;
+    }
+
+    /**
+     * 同期先のファイルの一覧を取得する.<br>
+     * 初回のみ同期先に問い合わせる.<br>
+     * 
+     * @return 相対パス('/'区切り)をキーとするファイルの情報
+     * @throws IOException
+     *             失敗
+     */
+    public synchronized Map<String, PeerFile> getPeerFiles()
+            throws IOException {
+        if (peerFiles == null) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bos.write(SyncProtocol.OP_LIST);
+            DataInputStream in = open(call(bos));
+            int count = in.readInt();
+            Map<String, PeerFile> files = new TreeMap<String, PeerFile>();
+            for (int idx = 0; idx < count; idx++) {
+                String path = in.readUTF();
+                files.put(path, new PeerFile(in.readLong(), in.readLong()));
+            }
+            peerFiles = Collections.unmodifiableMap(files);
+        }
+        return peerFiles;
+    }
+
+    /**
+     * ファイルを同期先に送る.<br>
+     * 同期先にファイルがあればシグネチャを受け取り、差分のみを送る.<br>
+     * 
+     * @param file
+     *            送るファイル
+     * @param path
+     *            同期先での相対パス('/'区切り)
+     * @param blockSize
+     *            ブロックサイズ、0以下の場合はファイルサイズから決める
+     * @return 結果
+     * @throws IOException
+     *             失敗、もしくは送信中にファイルが変更された場合
+     */
+    public Result push(File file, String path, int blockSize)
+            throws IOException {
+        if (file == null || path == null) {
+            throw new IllegalArgumentException();
+        }
+        long lastModified = file.lastModified();
+        long fileSize = file.length();
+
+        PeerFile peerFile = getPeerFiles().get(path);
+        if (peerFile != null && peerFile.matches(file)) {
+            return new Result(false, false, fileSize, 0, 0);
+        }
+        int bs = (blockSize > 0) ? blockSize : BlockSignature
+                .getDefaultBlockSize(fileSize);
+        long wireBytes = 0;
+
+        // 同期先のシグネチャ(同期先になければ空とし、問い合わせない)
+        BlockSignature signature = BlockSignature.empty(bs);
+        if (peerFile != null) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeByte(SyncProtocol.OP_SIGNATURE);
+            out.writeUTF(path);
+            out.writeInt(bs);
+            out.flush();
+            byte[] res = call(bos);
+            wireBytes += bos.size() + res.length;
+            DataInputStream in = open(res);
+            if (in.readBoolean()) {
+                signature = BlockSignature.read(in);
+            }
+        }
+
+        // 差分の作成
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(SyncProtocol.OP_PATCH);
+        out.writeUTF(path);
+        out.writeLong(lastModified);
+        out.writeInt(bs);
+        MessageDigest md = BlockSignature.createDigest();
+        Delta.Stats stats;
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            stats = Delta.encode(signature, is, out, md);
+
+        } finally {
+            is.close();
+        }
+        out.write(md.digest());
+        out.flush();
+        if (stats.getLength() != fileSize
+                || file.lastModified() != lastModified) {
+            throw new IOException("file changed while syncing. " + file);
+        }
+
+        byte[] res = call(bos);
+        wireBytes += bos.size() + res.length;
+        open(res);
+        return new Result(true, peerFile == null, fileSize, wireBytes,
+                stats.getLiteralBytes());
+    }
+
+    /**
+     * 同期先のファイルを削除する.
+     * 
+     * @param path
+     *            同期先での相対パス('/'区切り)
+     * @throws IOException
+     *             失敗
+     */
+    public void delete(String path) throws IOException {
+        if (path == null) {
+            throw new IllegalArgumentException();
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(SyncProtocol.OP_DELETE);
+        out.writeUTF(path);
+        out.flush();
+        open(call(bos));
+    }
+
+    /**
+     * これまでに送信したバイト数
+     * 
+     * @return バイト数
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * これまでに受信したバイト数
+     * 
+     * @return バイト数
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+}
@@ -18,6 +18,7 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -36,8 +37,11 @@ import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.Timer;
 
+import jp.seraphyware.cryptnotepad.crypt.CryptUtils;
 import jp.seraphyware.cryptnotepad.model.ApplicationData;
 import jp.seraphyware.cryptnotepad.model.DocumentController;
+import jp.seraphyware.cryptnotepad.model.FileContentSource;
+import jp.seraphyware.cryptnotepad.model.OffHeapBuffer;
 import jp.seraphyware.cryptnotepad.util.ErrorMessageHelper;
 import jp.seraphyware.cryptnotepad.util.XMLResourceBundle;
 
@@ -772,7 +776,10 @@ public class BinaryInternalFrame extends DocumentInternalFrame {
         }
 
         // 安全な消去
-        documentController.getSymCipher().delete(workingFile);
+        // (ワークファイルは暗号化ファイルの格納先によらず、ローカルの平文のファイルである.)
+        if (workingFile.exists()) {
+            CryptUtils.erase(workingFile);
+        }
 
         // プロパティの更新
         setWorkingFile(null);
@@ -792,37 +799,65 @@ public class BinaryInternalFrame extends DocumentInternalFrame {
             throw new IllegalStateException("no-data");
         }
 
-        // ワークファイルから読み込み
-        byte[] contents = documentController.loadBinary(workingFile);
-        if (contents == null) {
-            // ワークファイルが削除されていた場合はワーキングファイルを閉じたことにする.
-            eraseWorkingFile();
-            return;
-        }
-
         // ワークファイルの内容を暗号化ファイルに格納
         String contentType = data.getContentType();
         String documentTitld = data.getDocumentTitle();
 
-        // テキストであればバイナリからテキストに変換する
-        String text = null;
-        if (contentType.startsWith("text/")) {
-            text = new String(contents, getDocuemtnEncodingOrDefault(data));
+        // ワークファイルから読み込み
+        // (テキスト以外の大きなファイルはヒープ外のバッファに読み込み、
+        // さらに大きなファイルは読み込まずに保存時にワークファイルから直接暗号化する.)
+        ApplicationData newData;
+        if (!contentType.startsWith("text/")
+                && documentController.isStreamingSize(workingFile.length())) {
+            newData = !workingFile.isFile() ? null : new ApplicationData(
+                    contentType, new FileContentSource(workingFile),
+                    documentTitld);
+
+        } else if (!contentType.startsWith("text/")
+                && documentController.isOffHeapSize(workingFile.length())) {
+            OffHeapBuffer buffer = documentController
+                    .loadBinaryOffHeap(workingFile);
+            newData = (buffer == null) ? null : new ApplicationData(
+                    contentType, buffer, documentTitld);
+
+        } else {
+            byte[] contents = documentController.loadBinary(workingFile);
+            if (contents == null) {
+                newData = null;
+
+            } else if (contentType.startsWith("text/")) {
+                // テキストであればバイナリからテキストに変換する
+                String text = new String(contents,
+                        getDocuemtnEncodingOrDefault(data));
+                newData = new ApplicationData(contentType, text, documentTitld);
+
+            } else {
+                newData = new ApplicationData(contentType, contents,
+                        documentTitld);
+            }
+        }
+        if (newData == null) {
+            // ワークファイルが削除されていた場合はワーキングファイルを閉じたことにする.
+            eraseWorkingFile();
+            return;
         }
 
         // プロパティの更新
+        // (内容が変わっていなければ、現在のデータをそのまま使う.)
         this.workingFileLastModified = workingFile.lastModified();
         this.workingFileSize = workingFile.length();
-        if (text != null) {
-            setData(new ApplicationData(contentType, text, documentTitld));
+        if (newData.isUnchangedFrom(data)) {
+            newData.dispose();
+
         } else {
-            setData(new ApplicationData(contentType, contents, documentTitld));
+            setData(newData);
         }
     }
 
     @Override
     protected void save() throws IOException {
         super.save();
+        detachFromPlainFile();
         // ワーキングファイルが存在すれば保存後でも変更ありにマークしておく.
         setModified(workingFile != null && workingFile.exists());
     }
@@ -830,10 +865,32 @@ public class BinaryInternalFrame extends DocumentInternalFrame {
     @Override
     protected void saveAs() throws IOException {
         super.saveAs();
+        detachFromPlainFile();
         // ワーキングファイルが存在すれば保存後でも変更ありにマークしておく.
         setModified(workingFile != null && workingFile.exists());
     }
 
+    /**
+     * データが平文のファイル(ワークファイルや取り込んだファイル)から読み込むものであれば、
+     * 保存した暗号化ファイルから必要なときに復号化するデータに置き換える.<br>
+     * ワークファイルが消去された後もデータを読み込めるようにするためである.<br>
+     * 
+     * @throws IOException
+     *             失敗
+     */
+    protected void detachFromPlainFile() throws IOException {
+        ApplicationData data = getData();
+        File file = getFile();
+        if (data == null || !(data.getSource() instanceof FileContentSource)
+                || file == null || !file.exists()) {
+            return;
+        }
+        ApplicationData newData = documentController.decrypt(file);
+        if (newData != null) {
+            setData(newData);
+        }
+    }
+
     /**
      * データをワークファイルにロードする.
      * 
@@ -873,15 +930,22 @@ public class BinaryInternalFrame extends DocumentInternalFrame {
         }
 
         // ワーキングファイルに出力
-        byte[] content = data.getData();
-        if (content == null) {
+        // (ヒープ外のバッファの場合も複製せずに出力する.)
+        String text = data.getText();
+        if (text != null) {
             // テキストの場合はバイナリに変換する.
-            String text = data.getText();
-            if (text != null) {
-                content = text.getBytes(getDocuemtnEncodingOrDefault(data));
+            byte[] content = text.getBytes(getDocuemtnEncodingOrDefault(data));
+            documentController.savePlainBinary(workingFile, content);
+
+        } else {
+            InputStream is = data.openStream();
+            try {
+                documentController.savePlainBinary(workingFile, is);
+
+            } finally {
+                is.close();
             }
         }
-        documentController.savePlainBinary(workingFile, content);
 
         // ワーキングファイルへの書き出し時点のファイル更新日時とサイズを保存
         this.workingFileLastModified = workingFile.lastModified();
@@ -211,6 +211,11 @@ public abstract class DocumentInternalFrame extends JInternalFrame {
             firePropertyChange(IS_CLOSED_PROPERTY, Boolean.FALSE, Boolean.TRUE);
             dispose();
 
+            // ヒープ外に保持しているデータがあれば消去する.
+            if (data != null) {
+                data.dispose();
+            }
+
         } catch (PropertyVetoException pve) {
             // 無視する.
         }
@@ -294,7 +299,8 @@ public abstract class DocumentInternalFrame extends JInternalFrame {
     }
 
     /**
-     * アプリケーションデータを設定する.
+     * アプリケーションデータを設定する.<br>
+     * 以前のデータがヒープ外のバッファを持ち、新しいデータと共有していなければ消去する.<br>
      * 
      * @param data
      */
@@ -303,6 +309,10 @@ public abstract class DocumentInternalFrame extends JInternalFrame {
         this.data = data;
         firePropertyChange(PROPERTY_DATA, oldValue, data);
         setModified(false);
+        if (oldValue != null && oldValue.getBuffer() != null
+                && (data == null || data.getBuffer() != oldValue.getBuffer())) {
+            oldValue.dispose();
+        }
     }
 
     /**
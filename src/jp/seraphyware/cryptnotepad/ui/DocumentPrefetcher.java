@@ -0,0 +1,129 @@
+package jp.seraphyware.cryptnotepad.ui;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jp.seraphyware.cryptnotepad.model.DocumentController;
+
+/**
+ * ファイル一覧で選択されたドキュメントを投機的に先読みする.<br>
+ * ツリーの選択が変わると、少し待ってから優先度の低いバックグラウンドのスレッドで
+ * ファイルを復号化し、最近復号化したドキュメントのキャッシュに入れておく.<br>
+ * これにより、続けてファイルを開く場合はキャッシュから開くことができる.<br>
+ * 待っている間に選択が変われば、以前の先読みは取り消す.<br>
+ * (すでに復号化を始めたものは完了させる.)<br>
+ * 
+ * @author seraphy
+ */
+public class DocumentPrefetcher implements PropertyChangeListener {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger
+            .getLogger(DocumentPrefetcher.class.getName());
+
+    /**
+     * 選択が変わってから先読みを始めるまでの待ち時間(mSec).<br>
+     * カーソルキーで選択を移動している間は先読みしないようにする.<br>
+     */
+    private static final long DELAY = 200;
+
+    /**
+     * ドキュメントコントローラ
+     */
+    private final DocumentController documentController;
+
+    /**
+     * 先読み用のスレッド
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * 予約中または実行中の先読み、なければnull
+     */
+    private ScheduledFuture<?> pending;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param documentController
+     *            ドキュメントコントローラ
+     */
+    public DocumentPrefetcher(DocumentController documentController) {
+        if (documentController == null) {
+            throw new IllegalArgumentException();
+        }
+        this.documentController = documentController;
+        this.executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "DocumentPrefetcher");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * ツリーの選択が変わった場合、そのファイルの先読みを予約する.
+     */
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+        Object value = evt.getNewValue();
+        prefetch((value instanceof File) ? (File) value : null);
+    }
+
+    /**
+     * ファイルの先読みを予約する.<br>
+     * まだ始まっていない以前の先読みは取り消す.<br>
+     * 
+     * @param file
+     *            ファイル、nullの場合は取り消すだけ
+     */
+    public synchronized void prefetch(final File file) {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        if (file == null || file.isDirectory() || executor.isShutdown()) {
+            return;
+        }
+        pending = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long st = System.currentTimeMillis();
+                    if (documentController.prefetch(file)) {
+                        logger.log(Level.FINE, "prefetched. " + file + " ("
+                                + (System.currentTimeMillis() - st) + "ms)");
+                    }
+
+                } catch (Exception ex) {
+                    logger.log(Level.FINE, "prefetch failed. " + file, ex);
+                }
+            }
+        }, DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 先読みを終了する.
+     */
+    public synchronized void shutdown() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        executor.shutdownNow();
+    }
+}
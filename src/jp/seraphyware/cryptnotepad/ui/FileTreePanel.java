@@ -9,8 +9,10 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
+import java.io.FileFilter;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,9 +34,12 @@ import javax.swing.JTree;
 import javax.swing.KeyStroke;
 import javax.swing.ScrollPaneConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.event.AncestorEvent;
 import javax.swing.event.AncestorListener;
 import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeSelectionEvent;
+import javax.swing.event.TreeSelectionListener;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
 import javax.swing.tree.DefaultTreeModel;
@@ -42,8 +47,17 @@ import javax.swing.tree.TreePath;
 import javax.swing.tree.TreeSelectionModel;
 
 import jp.seraphyware.cryptnotepad.Main;
+import jp.seraphyware.cryptnotepad.crypt.VersionStore;
 import jp.seraphyware.cryptnotepad.model.ApplicationSettings;
+import jp.seraphyware.cryptnotepad.storage.Storage;
+import jp.seraphyware.cryptnotepad.storage.StorageListener;
+import jp.seraphyware.cryptnotepad.storage.StorageStat;
+import jp.seraphyware.cryptnotepad.storage.StorageWatch;
 import jp.seraphyware.cryptnotepad.util.ErrorMessageHelper;
+import jp.seraphyware.cryptnotepad.util.LatencyMetric;
+import jp.seraphyware.cryptnotepad.util.Metrics;
+import jp.seraphyware.cryptnotepad.util.TraceEvent;
+import jp.seraphyware.cryptnotepad.util.TraceEventType;
 
 /**
  * ファイルツリーのパネル
@@ -64,17 +78,44 @@ public class FileTreePanel extends JPanel {
      */
     public static final String PROPERTY_SELECTEDFILE = "selectedFile";
 
+    /**
+     * フォーカスされたファイルのプロパティ変更イベント用のキー.<br>
+     * (クリックやカーソル移動でツリーの選択が変わるたびに通知される.)<br>
+     */
+    public static final String PROPERTY_FOCUSEDFILE = "focusedFile";
+
     /**
      * ロガー.<br>
      */
     private static final Logger logger = Logger.getLogger(FileTreePanel.class
             .getName());
 
+    /**
+     * ツリーの更新の処理時間の計測値
+     */
+    private static final LatencyMetric refreshMetric = Metrics
+            .latency(Metrics.FILE_TREE_REFRESH);
+
     /**
      * アプリケーション設定
      */
     private ApplicationSettings appConfig;
 
+    /**
+     * 暗号化されたファイルの格納先
+     */
+    private final Storage storage;
+
+    /**
+     * コンテンツディレクトリの変更の監視、監視していなければnull
+     */
+    private StorageWatch watch;
+
+    /**
+     * 監視しているコンテンツディレクトリ
+     */
+    private File watchedDir;
+
     /**
      * ツリーモデル
      */
@@ -96,11 +137,24 @@ public class FileTreePanel extends JPanel {
      */
     private File selectedFile;
 
+    /**
+     * リフレッシュの世代.<br>
+     * バックグラウンドでの探索中に、別のリフレッシュが行われたかを判定する.<br>
+     */
+    private int refreshGeneration;
+
     /**
      * コンストラクタ
+     * 
+     * @param storage
+     *            暗号化されたファイルの格納先
      */
-    public FileTreePanel() {
+    public FileTreePanel(Storage storage) {
         super(new BorderLayout());
+        if (storage == null) {
+            throw new IllegalArgumentException();
+        }
+        this.storage = storage;
 
         appConfig = ApplicationSettings.getInstance();
 
@@ -140,6 +194,15 @@ public class FileTreePanel extends JPanel {
         };
         tree.setCellRenderer(treeCellRenderer);
 
+        tree.addTreeSelectionListener(new TreeSelectionListener() {
+            @Override
+            public void valueChanged(TreeSelectionEvent e) {
+                // ツリーの選択が変わったことを通知する.
+                firePropertyChange(PROPERTY_FOCUSEDFILE, null,
+                        getFocusedFile());
+            }
+        });
+
         tree.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
@@ -279,7 +342,7 @@ public class FileTreePanel extends JPanel {
         if (newName.length() > 0) {
             try {
                 logger.log(Level.INFO, "rename " + file + " => " + newName);
-                file.renameTo(new File(file.getParentFile(), newName));
+                storage.rename(file, new File(file.getParentFile(), newName));
                 refresh();
 
             } catch (Exception ex) {
@@ -298,9 +361,118 @@ public class FileTreePanel extends JPanel {
                     "ApplicationSettings#contentsDirが未設定です.");
         }
 
-        // 現在選択しているアイテムのパスを取得する.
-        File currentSelection = getFocusedFile();
-        DefaultMutableTreeNode restoreNode = null;
+        refreshGeneration++;
+        applyTree(scanTree(rootDir));
+        watchContentsDir(rootDir);
+    }
+
+    /**
+     * ツリーのファイル一覧をバックグラウンドで探索し、完了したらツリーに反映する.<br>
+     * 起動時など、ファイル一覧の探索で画面の表示を待たせたくない場合に用いる.<br>
+     * 完了前に{@link #refresh()}が呼び出された場合は、探索結果は破棄される.<br>
+     * 
+     * @param completionHandler
+     *            ツリーに反映したあとにEDTで呼び出される処理、nullの場合はなし
+     */
+    public void refreshAsync(final Runnable completionHandler) {
+        final File rootDir = appConfig.getContentsDir();
+        if (rootDir == null) {
+            throw new IllegalStateException(
+                    "ApplicationSettings#contentsDirが未設定です.");
+        }
+
+        final int generation = ++refreshGeneration;
+        watchContentsDir(rootDir);
+        SwingWorker<DefaultMutableTreeNode, Void> worker = new SwingWorker<DefaultMutableTreeNode, Void>() {
+            @Override
+            protected DefaultMutableTreeNode doInBackground() throws Exception {
+                return scanTree(rootDir);
+            }
+
+            @Override
+            protected void done() {
+                if (generation != refreshGeneration) {
+                    // 後からリフレッシュされている場合は破棄する.
+                    return;
+                }
+                try {
+                    applyTree(get());
+                    if (completionHandler != null) {
+                        completionHandler.run();
+                    }
+
+                } catch (Exception ex) {
+                    logger.log(Level.WARNING, "fileTreeScanError." + ex, ex);
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    /**
+     * コンテンツディレクトリの変更の監視を開始する.<br>
+     * 他のプロセスや同期によってファイルが追加、削除された場合にツリーをリフレッシュする.<br>
+     * 監視中のディレクトリと異なる場合は、以前の監視は停止する.<br>
+     * 
+     * @param rootDir
+     *            コンテンツディレクトリ
+     */
+    private void watchContentsDir(final File rootDir) {
+        if (watch != null) {
+            if (rootDir.equals(watchedDir)) {
+                return;
+            }
+            watch.cancel();
+        }
+        watchedDir = rootDir;
+        watch = storage.watch(rootDir, new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                // 版の履歴のストアは監視しない.
+                return !(VersionStore.isStoreDir(file) && rootDir
+                        .equals(file.getParentFile()));
+            }
+        }, new StorageListener() {
+            @Override
+            public void storageChanged(File dir) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (watch != null && rootDir.equals(watchedDir)) {
+                            refreshAsync(null);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * コンテンツディレクトリの監視を停止する.
+     */
+    @Override
+    public void removeNotify() {
+        if (watch != null) {
+            watch.cancel();
+            watch = null;
+            watchedDir = null;
+        }
+        super.removeNotify();
+    }
+
+    /**
+     * ディレクトリ下のファイルを探索してツリーのノードを構築する.<br>
+     * Swingのコンポーネントには触れないため、任意のスレッドから呼び出せる.<br>
+     * 
+     * @param rootDir
+     *            ルートディレクトリ
+     * @return ルートノード
+     */
+    private DefaultMutableTreeNode scanTree(File rootDir) {
+        long st = refreshMetric.start();
+        TraceEvent trace = TraceEventType.TREE_REFRESH.begin();
+        trace.setFile(rootDir);
+        int count = 0;
 
         // ルートノード
         DefaultMutableTreeNode root = new DefaultMutableTreeNode(rootDir);
@@ -317,7 +489,7 @@ public class FileTreePanel extends JPanel {
             logger.log(Level.FINE, "dir=" + dir);
             File[] files = null;
             try {
-                files = dir.listFiles();
+                files = storage.list(dir);
 
             } catch (Exception ex) {
                 // ファイル一覧の取得に失敗した場合は空とする.
@@ -334,16 +506,60 @@ public class FileTreePanel extends JPanel {
             for (File file : files) {
                 logger.log(Level.FINER, "file=" + file);
 
-                DefaultMutableTreeNode node = new DefaultMutableTreeNode(file);
+                if (dirNode == root && VersionStore.isStoreDir(file)) {
+                    // 版の履歴のストアは表示しない.
+                    continue;
+                }
+
+                StorageStat stat = null;
+                try {
+                    stat = storage.stat(file);
+
+                } catch (Exception ex) {
+                    logger.log(Level.INFO, "fileTreeTraversalError." + ex, ex);
+                }
+                if (stat == null) {
+                    // 探索中に削除された場合
+                    continue;
+                }
+
+                // ディレクトリのみ子を許可し、ダブルクリックの判定に用いる.
+                DefaultMutableTreeNode node = new DefaultMutableTreeNode(file,
+                        stat.isDirectory());
                 dirNode.add(node);
+                count++;
 
-                if (file.isDirectory()) {
+                if (stat.isDirectory()) {
                     queue.push(node);
                 }
+            }
+        }
+
+        refreshMetric.stop(st, 0);
+        trace.setDetail("nodes=" + count);
+        trace.commit();
+        return root;
+    }
 
+    /**
+     * 構築したノードをツリーに設定し、リフレッシュ前の選択を復元する.
+     * 
+     * @param root
+     *            ルートノード
+     */
+    private void applyTree(DefaultMutableTreeNode root) {
+        // 現在選択しているアイテムのパスを取得する.
+        File currentSelection = getFocusedFile();
+        DefaultMutableTreeNode restoreNode = null;
+        if (currentSelection != null) {
+            Enumeration<?> enm = root.breadthFirstEnumeration();
+            while (enm.hasMoreElements()) {
+                DefaultMutableTreeNode node = (DefaultMutableTreeNode) enm
+                        .nextElement();
                 // リフレッシュ前に選択中のファイルがみつかった場合は、このノードを覚える
-                if (file.equals(currentSelection)) {
+                if (currentSelection.equals(node.getUserObject())) {
                     restoreNode = node;
+                    break;
                 }
             }
         }
@@ -364,13 +580,25 @@ public class FileTreePanel extends JPanel {
      * @return 選択されているファイル、ディレクトリ、もしくはnull
      */
     public File getFocusedFile() {
+        DefaultMutableTreeNode node = getFocusedNode();
+        if (node != null) {
+            File file = (File) node.getUserObject();
+            return file;
+        }
+        return null;
+    }
+
+    /**
+     * ツリー上で現在フォーカスされているノードを取得する.
+     * 
+     * @return ノード、もしくはnull
+     */
+    private DefaultMutableTreeNode getFocusedNode() {
         TreePath select = tree.getSelectionPath();
         if (select != null) {
             Object[] path = select.getPath();
             if (path != null && path.length > 0) {
-                DefaultMutableTreeNode node = (DefaultMutableTreeNode) path[path.length - 1];
-                File file = (File) node.getUserObject();
-                return file;
+                return (DefaultMutableTreeNode) path[path.length - 1];
             }
         }
         return null;
@@ -380,8 +608,9 @@ public class FileTreePanel extends JPanel {
      * ダブルクリック時のハンドラ
      */
     protected void onDblClick() {
-        File file = getFocusedFile();
-        if (file != null && !file.isDirectory()) {
+        DefaultMutableTreeNode node = getFocusedNode();
+        File file = (node != null) ? (File) node.getUserObject() : null;
+        if (file != null && !node.getAllowsChildren()) {
             setSelectedFile(file);
             ActionEvent e = new ActionEvent(this, ActionEvent.ACTION_PERFORMED,
                     COMMAND_SELECTFILE);
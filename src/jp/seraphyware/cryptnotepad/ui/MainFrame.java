@@ -55,14 +55,16 @@ import javax.swing.WindowConstants;
 import javax.swing.event.AncestorEvent;
 import javax.swing.event.AncestorListener;
 
-import jp.seraphyware.cryptnotepad.crypt.CryptUtils;
 import jp.seraphyware.cryptnotepad.model.ApplicationData;
 import jp.seraphyware.cryptnotepad.model.ApplicationSettings;
 import jp.seraphyware.cryptnotepad.model.DocumentController;
+import jp.seraphyware.cryptnotepad.model.FileContentSource;
+import jp.seraphyware.cryptnotepad.model.OffHeapBuffer;
 import jp.seraphyware.cryptnotepad.model.SettingsModel;
 import jp.seraphyware.cryptnotepad.model.DocumentController.PassphraseUIProvider;
 import jp.seraphyware.cryptnotepad.util.ErrorMessageHelper;
 import jp.seraphyware.cryptnotepad.util.FileDropTarget;
+import jp.seraphyware.cryptnotepad.util.StartupTimeline;
 import jp.seraphyware.cryptnotepad.util.XMLResourceBundle;
 
 /**
@@ -105,6 +107,11 @@ public class MainFrame extends JFrame implements PassphraseUIProvider {
      */
     private FileTreePanel fileTreePanel;
 
+    /**
+     * ファイル一覧で選択されたドキュメントの先読み
+     */
+    private DocumentPrefetcher documentPrefetcher;
+
     /**
      * 設定ダイアログを開くアクション
      */
@@ -278,10 +285,22 @@ public class MainFrame extends JFrame implements PassphraseUIProvider {
         desktop.setBackground(Color.lightGray);
 
         // ファイル一覧パネル
-        fileTreePanel = new FileTreePanel();
-        fileTreePanel.refresh();
+        // (ファイル一覧の探索はバックグラウンドで行い、画面の表示を待たせない.)
+        fileTreePanel = new FileTreePanel(documentController.getStorage());
+        final long treeScanStart = System.nanoTime();
+        fileTreePanel.refreshAsync(new Runnable() {
+            @Override
+            public void run() {
+                StartupTimeline.record("treeScan", treeScanStart);
+            }
+        });
         JPanel leftPanel = createFileTreePanel(fileTreePanel);
 
+        // ファイル一覧で選択されたドキュメントを先読みする.
+        documentPrefetcher = new DocumentPrefetcher(documentController);
+        fileTreePanel.addPropertyChangeListener(
+                FileTreePanel.PROPERTY_FOCUSEDFILE, documentPrefetcher);
+
         // パスフレーズの入力・確認が必要な場合なハンドラを設定する.
         documentController.setPassphraseUiProvider(this);
 
@@ -768,6 +787,23 @@ public class MainFrame extends JFrame implements PassphraseUIProvider {
         }
     }
 
+    /**
+     * 他のプロセスや起動時の引数から指定されたファイルを開く.<br>
+     * ウィンドウを前面に表示してから、暗号化されたファイルとして順に開く.<br>
+     * 
+     * @param files
+     *            ファイル
+     */
+    public void openFiles(List<File> files) {
+        if ((getExtendedState() & Frame.ICONIFIED) != 0) {
+            setExtendedState(getExtendedState() & ~Frame.ICONIFIED);
+        }
+        toFront();
+        for (File file : files) {
+            onOpenFile(file, false);
+        }
+    }
+
     /**
      * 任意の非暗号化ファイルを開く.
      */
@@ -825,22 +861,35 @@ public class MainFrame extends JFrame implements PassphraseUIProvider {
 
         if (!contentType.startsWith("text/")) {
             // テキスト以外(画像とバイナリ)の場合はバイナリとして読み込む
-            byte[] buf;
+            // (大きなファイルはヒープ外のバッファに読み込み、
+            // さらに大きな画像以外のファイルは読み込まずに保存時に直接暗号化する.)
             try {
-                buf = documentController.loadBinary(file);
+                if (!contentType.startsWith("image/")
+                        && documentController.isStreamingSize(file.length())) {
+                    data = new ApplicationData(contentType,
+                            new FileContentSource(file), docTitle);
+
+                } else if (documentController.isOffHeapSize(file.length())) {
+                    OffHeapBuffer buf = documentController
+                            .loadBinaryOffHeap(file);
+                    data = (buf == null) ? null : new ApplicationData(
+                            contentType, buf, docTitle);
+
+                } else {
+                    byte[] buf = documentController.loadBinary(file);
+                    data = (buf == null) ? null : new ApplicationData(
+                            contentType, buf, docTitle);
+                }
 
             } catch (Exception ex) {
                 ErrorMessageHelper.showErrorDialog(this, ex);
                 return;
             }
 
-            if (buf == null) {
+            if (data == null) {
                 return;
             }
 
-            // バイナリデータの構築
-            data = new ApplicationData(contentType, buf, docTitle);
-
             if (contentType.startsWith("image/")) {
                 // 新規に画像ドキュメントを開く.
                 internalFrame = createPictureInternalFrame(null, data);
@@ -949,8 +998,9 @@ public class MainFrame extends JFrame implements PassphraseUIProvider {
         JFileChooser fileChooser = FileChooserEx.createFileChooser(
                 appConfig.getLastUseDir(), false);
 
-        // 複数選択可
+        // 複数選択可、フォルダも選択可
         fileChooser.setMultiSelectionEnabled(true);
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
         fileChooser.setDialogTitle(resource.getString("secureerase.title"));
 
         int ret = fileChooser.showOpenDialog(this);
@@ -973,49 +1023,56 @@ public class MainFrame extends JFrame implements PassphraseUIProvider {
         ret = JOptionPane.showConfirmDialog(this, message, title,
                 JOptionPane.YES_NO_OPTION);
         if (ret == JOptionPane.YES_OPTION) {
-            // 選択されたファイルをすべて削除する.
-            for (File file : files) {
-                try {
-                    if (file.exists() && !file.isDirectory()) {
-                        appConfig.setLastUseDir(file.getParentFile());
-                        CryptUtils.erase(file);
-                    }
-
-                } catch (Exception ex) {
-                    ErrorMessageHelper.showErrorDialog(this, ex);
-                }
-            }
-            fileTreePanel.refresh();
+            // 選択されたファイルとフォルダをすべて削除する.
+            appConfig.setLastUseDir(files[0].getAbsoluteFile().getParentFile());
+            startSecureErase(Arrays.asList(files));
         }
     }
 
     /**
-     * ファイルの削除
+     * ファイルまたはフォルダの削除
      */
     protected void onDelete(File file) {
-        if (file == null || file.isDirectory()) {
-            // ファイルが指定されていないか、ファイルでなければスキップする.
+        if (file == null || !file.exists()
+                || file.equals(appConfig.getContentsDir())) {
+            // ファイルが指定されていないか、文書ディレクトリそのものであればスキップする.
             return;
         }
 
         String title = resource.getString("confirm.title");
-        String messageTmpl = resource.getString("confirm.erase.file");
+        String messageTmpl = resource
+                .getString(file.isDirectory() ? "confirm.erase.folder"
+                        : "confirm.erase.file");
         String message = String.format(messageTmpl, file.getName());
 
         int ret = JOptionPane.showConfirmDialog(this, message, title,
                 JOptionPane.YES_NO_OPTION);
         if (ret == JOptionPane.YES_OPTION) {
-            try {
-                // ランダム値で埋めてからファイルエントリを削除する.
-                CryptUtils.erase(file);
+            // ランダム値で埋めてからファイルエントリを削除する.
+            startSecureErase(Arrays.asList(file));
+        }
+    }
 
+    /**
+     * ファイルとフォルダの完全な削除をバックグラウンドで開始する.<br>
+     * 完了後にファイル一覧を1回だけ更新する.<br>
+     * 
+     * @param files
+     *            削除するファイルまたはフォルダ
+     */
+    protected void startSecureErase(List<File> files) {
+        SecureEraseWorker worker = new SecureEraseWorker(this, files,
+                appConfig.getContentsDir(),
+                resource.getString("secureerase.title"),
+                resource.getString("secureerase.progress.note"));
+        worker.setCompletionHandler(new Runnable() {
+            @Override
+            public void run() {
                 // ファイル一覧を更新する.
                 fileTreePanel.refresh();
-
-            } catch (Exception ex) {
-                ErrorMessageHelper.showErrorDialog(this, ex);
             }
-        }
+        });
+        worker.execute();
     }
 
     /**
@@ -1047,6 +1104,9 @@ public class MainFrame extends JFrame implements PassphraseUIProvider {
      * 緊急最小化する.
      */
     protected void onEmergencyMinimize() {
+        // 最近復号化したドキュメントのキャッシュを消去する.
+        documentController.clearDocumentCache();
+
         // 保存されている、すべてのドキュメントは閉じる
         for (JInternalFrame child : desktop.getAllFrames()) {
             if (child.isClosed()) {
@@ -1119,6 +1179,9 @@ public class MainFrame extends JFrame implements PassphraseUIProvider {
             }
         }
 
+        // 先読みを終了する.
+        documentPrefetcher.shutdown();
+
         // メインフレームを破棄する.
         dispose();
         logger.log(Level.INFO, "disposed mainframe");
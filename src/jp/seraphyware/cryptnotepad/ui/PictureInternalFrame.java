@@ -9,9 +9,9 @@ import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -30,6 +30,8 @@ import javax.swing.ScrollPaneConstants;
 import jp.seraphyware.cryptnotepad.model.ApplicationData;
 import jp.seraphyware.cryptnotepad.model.DocumentController;
 import jp.seraphyware.cryptnotepad.util.ErrorMessageHelper;
+import jp.seraphyware.cryptnotepad.util.TraceEvent;
+import jp.seraphyware.cryptnotepad.util.TraceEventType;
 import jp.seraphyware.cryptnotepad.util.XMLResourceBundle;
 
 public class PictureInternalFrame extends DocumentInternalFrame {
@@ -152,22 +154,34 @@ public class PictureInternalFrame extends DocumentInternalFrame {
             String contentType = data.getContentType();
             if (contentType.startsWith("image/")) {
                 // イメージの場合
+                TraceEvent trace = TraceEventType.IMAGE_DECODE.begin();
+                trace.setFile(getFile());
+                trace.setContentType(contentType);
                 try {
-                    byte[] buf = data.getData();
-                    if (buf != null && buf.length > 0) {
+                    // ヒープ外のバッファの場合も複製せずに読み込む.
+                    long length = data.getLength();
+                    if (length > 0) {
+                        trace.setSize(length);
                         ImageIO.setUseCache(false); // 一時ディレクトリに書き込まないように
-                        ByteArrayInputStream is = new ByteArrayInputStream(buf);
+                        InputStream is = data.openStream();
                         try {
                             img = ImageIO.read(is);
                         } finally {
                             is.close();
                         }
                     }
+                    if (img != null) {
+                        trace.setDetail(img.getWidth() + "x" + img.getHeight());
+                    }
 
                 } catch (Exception ex) {
                     logger.log(Level.INFO, "picture load failed.", ex);
                     message = "load failed.";
                     img = null;
+                    trace.setDetail("failed: " + ex);
+
+                } finally {
+                    trace.commit();
                 }
 
             } else {
@@ -246,8 +260,13 @@ public class PictureInternalFrame extends DocumentInternalFrame {
             File file = showExportDialog();
             ApplicationData data = getData();
             if (file != null && data != null) {
-                byte[] buf = data.getData();
-                documentController.savePlainBinary(file, buf);
+                InputStream is = data.openStream();
+                try {
+                    documentController.savePlainBinary(file, is);
+
+                } finally {
+                    is.close();
+                }
             }
 
         } catch (Exception ex) {
@@ -0,0 +1,355 @@
+package jp.seraphyware.cryptnotepad.ui;
+
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+import jp.seraphyware.cryptnotepad.crypt.CryptUtils;
+import jp.seraphyware.cryptnotepad.util.ErrorMessageHelper;
+
+/**
+ * ファイルとディレクトリをバックグラウンドで完全に削除するジョブ.<br>
+ * ディレクトリが指定された場合は配下のファイルをすべて消去し、空になったディレクトリも削除する.<br>
+ * 複数のファイルを一定数のスレッドで同時に消去し、全体の進捗をプログレスモニタに表示する.<br>
+ * プログレスモニタでキャンセルされた場合は、消去中のファイルの完了を待って中断する.<br>
+ * 
+ * @author seraphy
+ */
+public class SecureEraseWorker extends SwingWorker<Void, Void> {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger
+            .getLogger(SecureEraseWorker.class.getName());
+
+    /**
+     * 同時に消去するファイル数の上限
+     */
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * 親コンポーネント
+     */
+    private final Component parent;
+
+    /**
+     * 削除対象のファイルまたはディレクトリ
+     */
+    private final List<File> targets;
+
+    /**
+     * 空になっても削除しないディレクトリ、nullの場合はなし.
+     */
+    private final File preserveDir;
+
+    /**
+     * プログレスモニタ
+     */
+    private final ProgressMonitor progressMonitor;
+
+    /**
+     * プログレスモニタの更新とキャンセルの監視用タイマー
+     */
+    private final Timer progressTimer;
+
+    /**
+     * キャンセルされたか?<br>
+     * SwingWorker#cancelは処理の終了を待たずにdoneが呼び出されるため、
+     * 独自のフラグで中断を指示し、消去中のファイルの完了を待ってから終了する.<br>
+     */
+    private volatile boolean canceled;
+
+    /**
+     * 進捗の表示形式(消去済みファイル数, 全ファイル数)
+     */
+    private final String noteFormat;
+
+    /**
+     * 完了後にEDTで呼び出される処理、nullの場合はなし.
+     */
+    private Runnable completionHandler;
+
+    /**
+     * 消去対象のファイルの総数
+     */
+    private volatile int totalFiles;
+
+    /**
+     * 消去済みのファイル数
+     */
+    private final AtomicInteger erasedFiles = new AtomicInteger();
+
+    /**
+     * 消去対象のファイルの総バイト数
+     */
+    private volatile long totalBytes;
+
+    /**
+     * 消去済みのバイト数
+     */
+    private final AtomicLong erasedBytes = new AtomicLong();
+
+    /**
+     * 消去に失敗したときの例外
+     */
+    private final List<Throwable> errors = Collections
+            .synchronizedList(new ArrayList<Throwable>());
+
+    /**
+     * コンストラクタ
+     * 
+     * @param parent
+     *            親コンポーネント
+     * @param targets
+     *            削除対象のファイルまたはディレクトリ
+     * @param preserveDir
+     *            空になっても削除しないディレクトリ、nullの場合はなし
+     * @param title
+     *            プログレスモニタのタイトル
+     * @param noteFormat
+     *            進捗の表示形式(消去済みファイル数, 全ファイル数)
+     */
+    public SecureEraseWorker(Component parent, List<File> targets,
+            File preserveDir, String title, String noteFormat) {
+        if (targets == null || title == null || noteFormat == null) {
+            throw new IllegalArgumentException();
+        }
+        this.parent = parent;
+        this.targets = new ArrayList<File>(targets);
+        this.preserveDir = (preserveDir != null) ? preserveDir
+                .getAbsoluteFile() : null;
+        this.noteFormat = noteFormat;
+
+        progressMonitor = new ProgressMonitor(parent, title, "", 0, 100);
+        progressMonitor.setMillisToDecideToPopup(200);
+        progressMonitor.setMillisToPopup(500);
+
+        progressTimer = new Timer(250, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                updateProgress();
+            }
+        });
+        progressTimer.start();
+    }
+
+    public void setCompletionHandler(Runnable completionHandler) {
+        this.completionHandler = completionHandler;
+    }
+
+    /**
+     * プログレスモニタを更新し、キャンセルされていればジョブの中断を指示する.<br>
+     * EDTから呼び出される.<br>
+     */
+    protected void updateProgress() {
+        if (progressMonitor.isCanceled()) {
+            canceled = true;
+            return;
+        }
+        progressMonitor.setProgress(getProgress());
+        progressMonitor.setNote(String.format(noteFormat, erasedFiles.get(),
+                totalFiles));
+    }
+
+    /**
+     * シンボリックリンクであるか判定する.<br>
+     * 正規化したパスが、親ディレクトリを正規化したパスと名前の連結と異なればリンクとみなす.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @return シンボリックリンクであればtrue
+     */
+    private static boolean isSymbolicLink(File file) {
+        try {
+            File parentDir = file.getAbsoluteFile().getParentFile();
+            if (parentDir == null) {
+                return false;
+            }
+            File canonical = new File(parentDir.getCanonicalFile(),
+                    file.getName());
+            return !canonical.getCanonicalFile().equals(
+                    canonical.getAbsoluteFile());
+
+        } catch (IOException ex) {
+            // 判定できない場合は安全側に倒してリンクとみなす.
+            logger.log(Level.INFO, "can't resolve the path. " + file, ex);
+            return true;
+        }
+    }
+
+    /**
+     * 削除対象を列挙する.<br>
+     * ディレクトリの場合は配下のファイルを再帰的に列挙する.<br>
+     * シンボリックリンクのディレクトリはたどらず、リンクそのものを削除する.<br>
+     * 
+     * @param file
+     *            ファイルまたはディレクトリ
+     * @param files
+     *            消去するファイルの格納先
+     * @param dirs
+     *            消去せずに削除するディレクトリとシンボリックリンクの格納先(親ディレクトリが先になる)
+     */
+    private void collect(File file, List<File> files, List<File> dirs) {
+        if (canceled) {
+            return;
+        }
+        if (file.isDirectory() && !isSymbolicLink(file)) {
+            dirs.add(file);
+            File[] children = file.listFiles();
+            if (children == null) {
+                IOException ex = new IOException("can't list the directory. "
+                        + file);
+                logger.log(Level.WARNING, ex.getMessage());
+                errors.add(ex);
+                return;
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                collect(child, files, dirs);
+            }
+
+        } else if (file.exists() && isSymbolicLink(file)) {
+            // シンボリックリンクはリンク先を消去せず、リンクだけを削除する.
+            dirs.add(file);
+
+        } else if (file.exists()) {
+            files.add(file);
+        }
+    }
+
+    @Override
+    protected Void doInBackground() throws Exception {
+        List<File> files = new ArrayList<File>();
+        List<File> dirs = new ArrayList<File>();
+        for (File target : targets) {
+            collect(target, files, dirs);
+        }
+
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        totalFiles = files.size();
+        totalBytes = bytes;
+        logger.log(Level.INFO, "secure erase: files=" + totalFiles
+                + ", bytes=" + totalBytes + ", dirs=" + dirs.size());
+
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime()
+                .availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final File file : files) {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        eraseFile(file);
+                    }
+                });
+            }
+
+        } finally {
+            // 消去中のファイルは中断させずに完了を待つ.
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                logger.log(Level.FINE, "waiting for the erase tasks.");
+            }
+        }
+
+        // 空になったディレクトリを深い順に削除する.
+        if (!canceled) {
+            for (int idx = dirs.size() - 1; idx >= 0; idx--) {
+                File dir = dirs.get(idx);
+                if (dir.getAbsoluteFile().equals(preserveDir)) {
+                    continue;
+                }
+                if (!dir.delete()) {
+                    logger.log(Level.INFO, "can't delete. " + dir);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 1つのファイルを消去する.<br>
+     * ワーカースレッドから呼び出される.<br>
+     * 
+     * @param file
+     *            ファイル
+     */
+    private void eraseFile(File file) {
+        if (canceled) {
+            return;
+        }
+        long size = file.length();
+        try {
+            CryptUtils.erase(file);
+
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "secure erase failed. " + file, ex);
+            errors.add(ex);
+        }
+
+        int files = erasedFiles.incrementAndGet();
+        long bytes = erasedBytes.addAndGet(size);
+
+        // ファイル数とバイト数の進み具合の平均を進捗とする.
+        int progress;
+        long total = totalBytes;
+        if (total > 0) {
+            progress = (int) ((bytes * 50 / total) + (files * 50L / Math.max(
+                    1, totalFiles)));
+        } else {
+            progress = (int) (files * 100L / Math.max(1, totalFiles));
+        }
+        setProgress(Math.min(100, progress));
+    }
+
+    @Override
+    protected void done() {
+        progressTimer.stop();
+        progressMonitor.close();
+        try {
+            // 列挙処理などで発生した例外を取得する.
+            get();
+
+        } catch (ExecutionException ex) {
+            errors.add(ex.getCause());
+
+        } catch (InterruptedException ex) {
+            errors.add(ex);
+        }
+
+        try {
+            // ファイル一覧の更新など.
+            if (completionHandler != null) {
+                completionHandler.run();
+            }
+
+        } finally {
+            if (!errors.isEmpty()) {
+                // 最初のエラーのみ表示する. (すべてのエラーはログに記録済み)
+                ErrorMessageHelper.showErrorDialog(parent, errors.get(0));
+            }
+        }
+    }
+}
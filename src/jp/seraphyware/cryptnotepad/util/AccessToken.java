@@ -0,0 +1,100 @@
+package jp.seraphyware.cryptnotepad.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ループバックで待ち受けるサービスのアクセストークン.<br>
+ * トークンの生成と、ポート番号とトークンを本人のみが読めるファイルに書き込む処理を共通化する.<br>
+ * 
+ * @author seraphy
+ */
+public final class AccessToken {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(AccessToken.class
+            .getName());
+
+    /**
+     * トークンのバイト数
+     */
+    private static final int TOKEN_SIZE = 16;
+
+    /**
+     * プライベートコンストラクタ
+     */
+    private AccessToken() {
+        super();
+    }
+
+    /**
+     * ランダムなトークンを生成する.
+     * 
+     * @return 16進数の文字列
+     */
+    public static String generate() {
+        byte[] rnd = new byte[TOKEN_SIZE];
+        new SecureRandom().nextBytes(rnd);
+        StringBuilder buf = new StringBuilder();
+        for (byte b : rnd) {
+            buf.append(String.format("%02x", b & 0xff));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * 「ポート番号 トークン」の1行をファイルに書き込む.<br>
+     * 一時ファイルを新規に空のファイルとして作成し、アクセス権を本人のみに制限してから書き込み、
+     * ファイルを置き換える.<br>
+     * 
+     * @param file
+     *            ファイル
+     * @param port
+     *            ポート番号
+     * @param token
+     *            トークン
+     * @throws IOException
+     *             失敗
+     */
+    public static void writeTokenFile(File file, int port, String token)
+            throws IOException {
+        if (file == null || token == null) {
+            throw new IllegalArgumentException();
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        if (tmpFile.exists() && !tmpFile.delete()) {
+            throw new IOException("can't delete. " + tmpFile);
+        }
+        if (!tmpFile.createNewFile()) {
+            throw new IOException("can't create. " + tmpFile);
+        }
+        if (!tmpFile.setReadable(false, false)
+                || !tmpFile.setWritable(false, false)) {
+            // アクセス権を制限できない環境(Windows)では、ユーザーデータディレクトリのアクセス権に委ねる.
+            logger.log(Level.FINE, "can't restrict the permission. " + tmpFile);
+        }
+        tmpFile.setReadable(true, true);
+        tmpFile.setWritable(true, true);
+
+        OutputStream os = new FileOutputStream(tmpFile);
+        try {
+            os.write((port + " " + token + "\n").getBytes("UTF-8"));
+
+        } finally {
+            os.close();
+        }
+        if (file.exists() && !file.delete()) {
+            logger.log(Level.WARNING, "can't delete. " + file);
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("can't rename. " + tmpFile);
+        }
+    }
+}
@@ -6,6 +6,11 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
@@ -15,6 +20,13 @@ import java.util.logging.LogRecord;
  * このアプリケーションの活動を記録するログハンドラ.<br>
  * アプリケーション用のディレクトリのlogsフォルダ下に開始日時のファイル名をもつログファイルを作成し、ログを記録する.<br>
  * ただし、終了時、警告以上のログが一度も書き込まれなかった場合はログファィルは自動的に削除される.<br>
+ * <br>
+ * ログの呼び出し元を待たせないように、ログレコードは固定長のキューに入れ、
+ * バックグラウンドのスレッドでまとめて書式化・書き込みする.<br>
+ * ファイルへのフラッシュは、警告以上のログを書き込んだときは直ちに行い、
+ * それ以外は一定時間ごとにまとめて行う.<br>
+ * キューがあふれた場合はログを破棄せず、書き込みが追いつくまで呼び出し元を待たせる.<br>
+ * キューの長さはログ設定ファイルのlogQueueSizeで指定できる.<br>
  * 
  * @author seraphy
  */
@@ -22,6 +34,21 @@ public class ApplicationLogHandler extends Handler {
 
     private static final String LOGS_DIR = "logs";
 
+    /**
+     * キューの長さの既定値
+     */
+    private static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    /**
+     * 警告未満のログをフラッシュする間隔(mSec)
+     */
+    private static final long FLUSH_INTERVAL = 1000;
+
+    /**
+     * キューが空のときにフラッシュするまでの待ち時間(mSec)
+     */
+    private static final long IDLE_FLUSH_DELAY = 200;
+
     /**
      * ロックオブジェクト
      */
@@ -40,7 +67,43 @@ public class ApplicationLogHandler extends Handler {
     /**
      * WARN以上のログがない場合でもログを自動消去しないか?
      */
-    private boolean notRemove;
+    private volatile boolean notRemove;
+
+    /**
+     * 書き込み待ちのログレコード
+     */
+    private final ArrayBlockingQueue<LogRecord> queue;
+
+    /**
+     * 書き込みスレッド、ログファイルが作成できなかった場合はnull
+     */
+    private final Thread writerThread;
+
+    /**
+     * 閉じられたか?
+     */
+    private volatile boolean closed;
+
+    /**
+     * ログの日時の書式(ロック中のみ使用する)
+     */
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat(
+            "yyyy-MM-dd HH:mm:ss.SSS");
+
+    /**
+     * ログの日時(ロック中のみ使用する)
+     */
+    private final Date recordDate = new Date();
+
+    /**
+     * フラッシュしていないログがあるか?(ロック中のみ使用する)
+     */
+    private boolean unflushed;
+
+    /**
+     * 最後にフラッシュした時刻(mSec、ロック中のみ使用する)
+     */
+    private long lastFlush;
 
     /**
      * コンストラクタ
@@ -65,15 +128,38 @@ public class ApplicationLogHandler extends Handler {
             notRemove = true;
         }
 
+        // キューの長さ
+        int queueSize = DEFAULT_QUEUE_SIZE;
+        String strQueueSize = logManager.getProperty("logQueueSize");
+        if (strQueueSize != null && strQueueSize.trim().length() > 0) {
+            try {
+                queueSize = Math.max(1, Integer.parseInt(strQueueSize.trim()));
+
+            } catch (NumberFormatException ex) {
+                ex.printStackTrace(System.err);
+            }
+        }
+        queue = new ArrayBlockingQueue<LogRecord>(queueSize);
+
         // 古いログファイルを消去する.
         // logExpireDaysプロパティには日数を指定する.未指定か負の値の場合は処理しない.
+        // (ログファイルが多い場合に起動を待たせないように、バックグラウンドで行う.)
         String strLogExpireDays = logManager.getProperty("logExpireDays");
         if (strLogExpireDays != null && strLogExpireDays.trim().length() > 0) {
             int logExpireDays = Integer.parseInt(strLogExpireDays);
             if (logExpireDays >= 0) {
-                long expiredDate = System.currentTimeMillis()
-                        - (24 * 60 * 60 * 1000 * logExpireDays);
-                purgeLogFiles(logsDir, ".log", expiredDate);
+                final File purgeDir = logsDir;
+                final long expiredDate = System.currentTimeMillis()
+                        - (24L * 60 * 60 * 1000 * logExpireDays);
+                Thread purgeThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        purgeLogFiles(purgeDir, ".log", expiredDate);
+                    }
+                }, "ApplicationLogHandler-purge");
+                purgeThread.setDaemon(true);
+                purgeThread.setPriority(Thread.MIN_PRIORITY);
+                purgeThread.start();
             }
         }
 
@@ -90,6 +176,21 @@ public class ApplicationLogHandler extends Handler {
             tmp = null;
         }
         this.pw = tmp;
+
+        // 書き込みスレッドの開始
+        if (tmp != null) {
+            writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "ApplicationLogHandler");
+            writerThread.setDaemon(true);
+            writerThread.start();
+
+        } else {
+            writerThread = null;
+        }
     }
 
     /**
@@ -137,8 +238,20 @@ public class ApplicationLogHandler extends Handler {
 
     @Override
     public void close() throws SecurityException {
+        closed = true;
+        if (writerThread != null) {
+            writerThread.interrupt();
+            try {
+                writerThread.join(1000);
+
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
         synchronized (lock) {
             if (pw != null) {
+                // 書き込みスレッドが書ききれなかったものを書き込む.
+                writeQueued();
                 pw.close();
                 pw = null;
             }
@@ -152,57 +265,150 @@ public class ApplicationLogHandler extends Handler {
         }
     }
 
+    /**
+     * キューにあるログを書き込んでからフラッシュする.
+     */
     @Override
     public void flush() {
         synchronized (lock) {
             if (pw != null) {
+                writeQueued();
                 pw.flush();
+                unflushed = false;
+                lastFlush = System.currentTimeMillis();
             }
         }
     }
 
+    /**
+     * ログレコードをキューに入れる.<br>
+     * 書式化と書き込みはバックグラウンドのスレッドで行う.<br>
+     */
     @Override
     public void publish(LogRecord record) {
-        if (record == null) {
+        if (record == null || closed || writerThread == null) {
             return;
         }
 
-        // メッセージの記録
-        synchronized (lock) {
-            if (pw == null) {
-                return;
-            }
+        if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+            // 警告以上であれば終了時にファイルを消さない
+            notRemove = true;
+        }
 
-            Level lv = record.getLevel();
-            String name = record.getLoggerName();
-            pw.println("#" + getCurrentTime() + " " + name + " "
-                    + lv.getLocalizedName() + " " + record.getMessage());
+        // キューに空きがあれば待たずに入れる.
+        if (queue.offer(record)) {
+            return;
+        }
 
-            // 例外があれば、例外の記録
-            Throwable tw = record.getThrown();
-            if (tw != null) {
-                tw.printStackTrace(pw); // 例外のコールスタックをロガーに出力
+        // キューがあふれている場合は空くまで待つ.
+        // 割り込み状態のスレッドのログも失わないように、割り込み状態を解除して待ち、最後に戻す.
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (;;) {
+                try {
+                    if (queue.offer(record, 100, TimeUnit.MILLISECONDS)
+                            || closed) {
+                        break;
+                    }
+
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
             }
 
-            // フラッシュする.(随時、ファイルの中身を見ることができるように.)
-            pw.flush();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-            // 警告以上であれば終了時にファイルを消さない
-            if (lv.intValue() >= Level.WARNING.intValue()) {
-                notRemove = true;
+    /**
+     * 書き込みスレッドの処理.<br>
+     * キューからログを取り出して書き込み、警告以上を書き込んだ場合は直ちに、
+     * それ以外は一定時間ごとか、キューが空になったときにフラッシュする.<br>
+     */
+    private void writeLoop() {
+        try {
+            while (!closed) {
+                LogRecord first = queue.poll(IDLE_FLUSH_DELAY,
+                        TimeUnit.MILLISECONDS);
+                synchronized (lock) {
+                    if (pw == null) {
+                        break;
+                    }
+                    boolean warning = false;
+                    if (first != null) {
+                        warning = write(first);
+                        warning |= writeQueued();
+                    }
+                    long now = System.currentTimeMillis();
+                    boolean due = warning || first == null
+                            || now - lastFlush >= FLUSH_INTERVAL;
+                    if (unflushed && due) {
+                        pw.flush();
+                        unflushed = false;
+                        lastFlush = now;
+                    }
+                }
             }
+
+        } catch (InterruptedException ex) {
+            // 閉じられた.
         }
     }
 
     /**
-     * 現在時刻の文字列
+     * キューにあるログをすべて書き込む.<br>
+     * ロック中に呼び出すこと.<br>
      * 
-     * @return 現在時刻の文字列
+     * @return 警告以上のログがあればtrue
      */
-    public String getCurrentTime() {
-        Timestamp tm = new Timestamp(System.currentTimeMillis());
-        SimpleDateFormat dt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        return dt.format(tm);
+    private boolean writeQueued() {
+        List<LogRecord> records = new ArrayList<LogRecord>();
+        queue.drainTo(records);
+        boolean warning = false;
+        for (LogRecord record : records) {
+            warning |= write(record);
+        }
+        return warning;
+    }
+
+    /**
+     * 1つのログを書き込む.<br>
+     * ロック中に呼び出すこと.<br>
+     * 
+     * @param record
+     *            ログレコード
+     * @return 警告以上のログであればtrue
+     */
+    private boolean write(LogRecord record) {
+        Level lv = record.getLevel();
+        String name = record.getLoggerName();
+        pw.println("#" + formatTime(record.getMillis()) + " " + name + " "
+                + lv.getLocalizedName() + " " + record.getMessage());
+
+        // 例外があれば、例外の記録
+        Throwable tw = record.getThrown();
+        if (tw != null) {
+            tw.printStackTrace(pw); // 例外のコールスタックをロガーに出力
+        }
+        unflushed = true;
+
+        return lv.intValue() >= Level.WARNING.intValue();
+    }
+
+    /**
+     * ログの日時を書式化する.<br>
+     * ロック中に呼び出すこと.<br>
+     * 
+     * @param millis
+     *            日時
+     * @return 書式化した日時
+     */
+    private String formatTime(long millis) {
+        recordDate.setTime(millis);
+        return timeFormat.format(recordDate);
     }
 
     /**
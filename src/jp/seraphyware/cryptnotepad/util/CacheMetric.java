@@ -0,0 +1,99 @@
+package jp.seraphyware.cryptnotepad.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * キャッシュのヒット、確認後のヒット、ミスの回数を計測する.<br>
+ * 
+ * @author seraphy
+ */
+public class CacheMetric implements CacheMetricMXBean {
+
+    /**
+     * 計測名
+     */
+    private final String name;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong revalidations = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * コンストラクタ
+     * 
+     * @param name
+     *            計測名
+     */
+    public CacheMetric(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException();
+        }
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * キャッシュから返したことを記録する.
+     */
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * キャッシュの有効性を確認したうえで、キャッシュから返したことを記録する.
+     */
+    public void revalidate() {
+        revalidations.incrementAndGet();
+    }
+
+    /**
+     * キャッシュになく、計算しなおしたことを記録する.
+     */
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hit = hits.get() + revalidations.get();
+        long total = hit + misses.get();
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hit / total;
+    }
+
+    @Override
+    public void reset() {
+        hits.set(0);
+        revalidations.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: hits=%d, revalidations=%d, misses=%d,"
+                + " hitRatio=%.3f", name, getHits(), getRevalidations(),
+                getMisses(), getHitRatio());
+    }
+}
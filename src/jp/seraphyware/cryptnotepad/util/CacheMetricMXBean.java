@@ -0,0 +1,43 @@
+package jp.seraphyware.cryptnotepad.util;
+
+/**
+ * キャッシュのヒット率を公開するMXBean.<br>
+ * 
+ * @author seraphy
+ */
+public interface CacheMetricMXBean {
+
+    /**
+     * キャッシュから返した回数
+     * 
+     * @return 回数
+     */
+    long getHits();
+
+    /**
+     * キャッシュの有効性を確認したうえで、キャッシュから返した回数
+     * 
+     * @return 回数
+     */
+    long getRevalidations();
+
+    /**
+     * キャッシュになく、計算しなおした回数
+     * 
+     * @return 回数
+     */
+    long getMisses();
+
+    /**
+     * ヒット率(確認後のヒットを含む).<br>
+     * まだ呼び出されていなければ0とする.<br>
+     * 
+     * @return ヒット率(0～1)
+     */
+    double getHitRatio();
+
+    /**
+     * 計測値をリセットする.
+     */
+    void reset();
+}
@@ -0,0 +1,312 @@
+package jp.seraphyware.cryptnotepad.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Swingのイベントディスパッチスレッド(EDT)の停止を監視する.<br>
+ * 監視スレッドから定期的にEDTに空のタスクを投入し、しきい値を超えても実行されなければ
+ * EDTが停止しているとみなして、EDTのスタックトレースを警告としてログに記録する.<br>
+ * 停止が解消したら停止時間をログに記録し、停止箇所ごとに集計する.<br>
+ * 停止箇所はスタックトレースのうち、このアプリケーションのパッケージの最初のフレームとする.<br>
+ * {@link #stop()}で監視を終了し、停止時間の合計の多い順に集計をログに記録する.<br>
+ * 
+ * @author seraphy
+ */
+public class EDTWatchdog implements Runnable {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(EDTWatchdog.class
+            .getName());
+
+    /**
+     * 停止箇所とみなすパッケージ
+     */
+    private static final String APP_PACKAGE = "jp.seraphyware.";
+
+    /**
+     * 集計をログに記録する件数
+     */
+    private static final int TOP_OFFENDERS = 10;
+
+    /**
+     * 停止箇所ごとの集計
+     */
+    private static class Offender {
+
+        /**
+         * 停止箇所
+         */
+        private final String location;
+
+        /**
+         * 停止回数
+         */
+        private int count;
+
+        /**
+         * 停止時間の合計(mSec)
+         */
+        private long totalMillis;
+
+        /**
+         * 停止時間の最大(mSec)
+         */
+        private long maxMillis;
+
+        public Offender(String location) {
+            this.location = location;
+        }
+
+        public void add(long millis) {
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%6dms total, %3d times, max %6dms: %s",
+                    totalMillis, count, maxMillis, location);
+        }
+    }
+
+    /**
+     * 停止とみなす時間(mSec)
+     */
+    private final long threshold;
+
+    /**
+     * 監視スレッド
+     */
+    private Thread watchThread;
+
+    /**
+     * EDT、まだ確認できていなければnull
+     */
+    private volatile Thread edtThread;
+
+    /**
+     * 投入中のタスクの投入時刻(nSec)、投入中のタスクがなければ0
+     */
+    private volatile long pendingSince;
+
+    /**
+     * 停止箇所ごとの集計
+     */
+    private final HashMap<String, Offender> offenders = new HashMap<String, Offender>();
+
+    /**
+     * コンストラクタ
+     * 
+     * @param threshold
+     *            停止とみなす時間(mSec)
+     */
+    public EDTWatchdog(long threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.threshold = threshold;
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * 監視を開始する.
+     */
+    public synchronized void start() {
+        if (watchThread != null) {
+            return;
+        }
+        watchThread = new Thread(this, "EDTWatchdog");
+        watchThread.setDaemon(true);
+        watchThread.setPriority(Thread.MAX_PRIORITY);
+        watchThread.start();
+        logger.log(Level.INFO, "EDT watchdog started. threshold="
+                + threshold + "ms");
+    }
+
+    /**
+     * 監視を終了し、停止箇所の集計をログに記録する.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = watchThread;
+            watchThread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(1000);
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        logSummary();
+    }
+
+    /**
+     * 監視スレッドの処理
+     */
+    @Override
+    public void run() {
+        // しきい値の1/4の間隔で確認する.
+        long interval = Math.max(10, threshold / 4);
+
+        // 現在の停止の開始時刻と停止箇所、停止していなければnull
+        long stallStart = 0;
+        String stallLocation = null;
+
+        final Runnable heartbeat = new Runnable() {
+            @Override
+            public void run() {
+                edtThread = Thread.currentThread();
+                pendingSince = 0;
+            }
+        };
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long since = pendingSince;
+                if (since == 0) {
+                    if (stallLocation != null) {
+                        // 停止が解消した.
+                        long millis = (System.nanoTime() - stallStart) / 1000000;
+                        logger.log(Level.INFO, "EDT resumed after " + millis
+                                + "ms. " + stallLocation);
+                        addOffender(stallLocation, millis);
+                        stallLocation = null;
+                    }
+                    pendingSince = System.nanoTime();
+                    SwingUtilities.invokeLater(heartbeat);
+
+                } else if (stallLocation == null) {
+                    long millis = (System.nanoTime() - since) / 1000000;
+                    Thread edt = edtThread;
+                    if (millis >= threshold && edt != null) {
+                        // 停止を検出したらEDTのスタックトレースを記録する.
+                        StackTraceElement[] stackTrace = edt.getStackTrace();
+                        stallStart = since;
+                        stallLocation = getLocation(stackTrace);
+                        logger.log(Level.WARNING, "EDT blocked for " + millis
+                                + "ms. " + stallLocation + "\n"
+                                + formatStackTrace(edt, stackTrace));
+                    }
+                }
+                Thread.sleep(interval);
+            }
+
+        } catch (InterruptedException ex) {
+            // 終了する.
+            logger.log(Level.FINE, "EDT watchdog stopped.");
+        }
+    }
+
+    /**
+     * スタックトレースから停止箇所を求める.<br>
+     * このアプリケーションのパッケージの最初のフレームとし、該当がなければ
+     * JDK以外の最初のフレーム、それもなければ先頭のフレームとする.<br>
+     * 
+     * @param stackTrace
+     *            スタックトレース
+     * @return 停止箇所
+     */
+    private static String getLocation(StackTraceElement[] stackTrace) {
+        for (StackTraceElement elm : stackTrace) {
+            if (elm.getClassName().startsWith(APP_PACKAGE)) {
+                return elm.toString();
+            }
+        }
+        for (StackTraceElement elm : stackTrace) {
+            String className = elm.getClassName();
+            if (!className.startsWith("java.")
+                    && !className.startsWith("javax.")
+                    && !className.startsWith("sun.")
+                    && !className.startsWith("jdk.")) {
+                return elm.toString();
+            }
+        }
+        if (stackTrace.length > 0) {
+            return stackTrace[0].toString();
+        }
+        return "(unknown)";
+    }
+
+    /**
+     * スタックトレースを文字列にする.
+     * 
+     * @param thread
+     *            スレッド
+     * @param stackTrace
+     *            スタックトレース
+     * @return 文字列
+     */
+    private static String formatStackTrace(Thread thread,
+            StackTraceElement[] stackTrace) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        pw.println("\"" + thread.getName() + "\" " + thread.getState());
+        for (StackTraceElement elm : stackTrace) {
+            pw.println("\tat " + elm);
+        }
+        pw.flush();
+        return sw.toString();
+    }
+
+    private synchronized void addOffender(String location, long millis) {
+        Offender offender = offenders.get(location);
+        if (offender == null) {
+            offender = new Offender(location);
+            offenders.put(location, offender);
+        }
+        offender.add(millis);
+    }
+
+    /**
+     * 停止時間の合計の多い順に停止箇所をログに記録する.
+     */
+    private synchronized void logSummary() {
+        if (offenders.isEmpty()) {
+            logger.log(Level.INFO, "EDT watchdog: no stall.");
+            return;
+        }
+        List<Offender> items = new ArrayList<Offender>(offenders.values());
+        Collections.sort(items, new Comparator<Offender>() {
+            @Override
+            public int compare(Offender o1, Offender o2) {
+                if (o1.totalMillis != o2.totalMillis) {
+                    return o1.totalMillis > o2.totalMillis ? -1 : 1;
+                }
+                return o2.count - o1.count;
+            }
+        });
+
+        StringBuilder buf = new StringBuilder();
+        buf.append("EDT watchdog: top offenders (threshold=")
+                .append(threshold).append("ms)");
+        int cnt = 0;
+        for (Offender offender : items) {
+            if (cnt++ >= TOP_OFFENDERS) {
+                break;
+            }
+            buf.append("\n").append(offender);
+        }
+        logger.log(Level.INFO, buf.toString());
+    }
+}
@@ -0,0 +1,238 @@
+package jp.seraphyware.cryptnotepad.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 処理時間と処理バイト数を計測する.<br>
+ * 記録はアトミック変数の加算のみで行い、集計は参照時に行う.<br>
+ * 処理時間はマイクロ秒単位の2の累乗の区間ごとのヒストグラムとして保持する.<br>
+ * 
+ * <pre>
+ * long st = metric.start();
+ * try {
+ *     ...
+ * } finally {
+ *     metric.stop(st, bytes);
+ * }
+ * </pre>
+ * 
+ * @author seraphy
+ */
+public class LatencyMetric implements LatencyMetricMXBean {
+
+    /**
+     * ヒストグラムの区間数.<br>
+     * 最後の区間は2^38us(約3日)以上のすべてを含む.<br>
+     */
+    private static final int BUCKETS = 40;
+
+    /**
+     * 計測名
+     */
+    private final String name;
+
+    /**
+     * 計測回数
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * 処理時間の合計(nSec)
+     */
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    /**
+     * 処理時間の最大(nSec)
+     */
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * 処理バイト数の合計
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * 処理時間のヒストグラム.<br>
+     * インデックスnの区間は、2^(n-1)us以上2^n us未満の件数.(0は1us未満)<br>
+     */
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    /**
+     * コンストラクタ
+     * 
+     * @param name
+     *            計測名
+     */
+    public LatencyMetric(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException();
+        }
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 計測を開始する.
+     * 
+     * @return 開始時刻(nSec)
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * 計測を終了し、開始時刻からの経過時間を記録する.
+     * 
+     * @param startTime
+     *            {@link #start()}の戻り値
+     * @param processedBytes
+     *            処理したバイト数
+     */
+    public void stop(long startTime, long processedBytes) {
+        record(System.nanoTime() - startTime, processedBytes);
+    }
+
+    /**
+     * 処理時間を記録する.
+     * 
+     * @param nanos
+     *            処理時間(nSec)
+     * @param processedBytes
+     *            処理したバイト数
+     */
+    public void record(long nanos, long processedBytes) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        if (processedBytes > 0) {
+            bytes.addAndGet(processedBytes);
+        }
+
+        for (;;) {
+            long max = maxNanos.get();
+            if (nanos <= max || maxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return totalNanos.get() / 1e6;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long cnt = count.get();
+        if (cnt == 0) {
+            return 0;
+        }
+        return totalNanos.get() / 1e6 / cnt;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return getPercentileMillis(0.50);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return getPercentileMillis(0.99);
+    }
+
+    /**
+     * ヒストグラムからパーセンタイルの概算を求める.<br>
+     * 該当する区間の上限値を返す.<br>
+     * 
+     * @param ratio
+     *            割合(0～1)
+     * @return パーセンタイルの概算(mSec)
+     */
+    public double getPercentileMillis(double ratio) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int idx = 0; idx < BUCKETS; idx++) {
+            snapshot[idx] = histogram.get(idx);
+            total += snapshot[idx];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * ratio);
+        long acc = 0;
+        for (int idx = 0; idx < BUCKETS; idx++) {
+            acc += snapshot[idx];
+            if (acc >= threshold) {
+                return (1L << idx) / 1000d;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public String[] getHistogram() {
+        List<String> lines = new ArrayList<String>();
+        for (int idx = 0; idx < BUCKETS; idx++) {
+            long cnt = histogram.get(idx);
+            if (cnt > 0) {
+                lines.add("<" + (1L << idx) + "us=" + cnt);
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public double getThroughputMBps() {
+        long nanos = totalNanos.get();
+        if (nanos == 0) {
+            return 0;
+        }
+        return (bytes.get() / (1024d * 1024d)) / (nanos / 1e9);
+    }
+
+    @Override
+    public void reset() {
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+        bytes.set(0);
+        for (int idx = 0; idx < BUCKETS; idx++) {
+            histogram.set(idx, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: count=%d, mean=%.3fms, p50<=%.3fms,"
+                + " p99<=%.3fms, max=%.3fms, bytes=%d, %.2fMB/s", name,
+                getCount(), getMeanMillis(), getP50Millis(), getP99Millis(),
+                getMaxMillis(), getBytes(), getThroughputMBps());
+    }
+}
@@ -0,0 +1,79 @@
+package jp.seraphyware.cryptnotepad.util;
+
+/**
+ * 処理時間と処理バイト数の計測値を公開するMXBean.<br>
+ * 
+ * @author seraphy
+ */
+public interface LatencyMetricMXBean {
+
+    /**
+     * 計測回数
+     * 
+     * @return 回数
+     */
+    long getCount();
+
+    /**
+     * 処理時間の合計(mSec)
+     * 
+     * @return 合計時間
+     */
+    double getTotalMillis();
+
+    /**
+     * 処理時間の平均(mSec)
+     * 
+     * @return 平均時間
+     */
+    double getMeanMillis();
+
+    /**
+     * 処理時間の最大(mSec)
+     * 
+     * @return 最大時間
+     */
+    double getMaxMillis();
+
+    /**
+     * 処理時間の中央値の概算(mSec).<br>
+     * 2の累乗の区間によるヒストグラムから求めるため、区間の上限値となる.<br>
+     * 
+     * @return 中央値の概算
+     */
+    double getP50Millis();
+
+    /**
+     * 処理時間の99パーセンタイルの概算(mSec)
+     * 
+     * @return 99パーセンタイルの概算
+     */
+    double getP99Millis();
+
+    /**
+     * 処理時間の分布.<br>
+     * 2の累乗のマイクロ秒ごとの区間の件数を「上限us=件数」の形式で返す.<br>
+     * 
+     * @return 分布
+     */
+    String[] getHistogram();
+
+    /**
+     * 処理したバイト数の合計
+     * 
+     * @return バイト数
+     */
+    long getBytes();
+
+    /**
+     * 処理時間あたりのスループット(MB/s)
+     * 
+     * @return スループット
+     */
+    double getThroughputMBps();
+
+    /**
+     * 計測値をリセットする.
+     */
+    void reset();
+}
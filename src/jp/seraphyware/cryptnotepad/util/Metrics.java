@@ -0,0 +1,232 @@
+package jp.seraphyware.cryptnotepad.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 性能計測値のレジストリ.<br>
+ * 計測値は名前ごとに1つだけ作成され、{@link #registerMBeans()}の呼び出し以降は、プラットフォームMBeanサーバに
+ * 「jp.seraphyware.cryptnotepad:type=Metrics,name=名前」として登録される.<br>
+ * (MBeanサーバの初期化は重いため、起動時には登録せず、画面の表示後にバックグラウンドで登録する.)<br>
+ * JConsoleなどのJMXクライアントから参照・リセットできる.<br>
+ * 計測値の記録はアトミック変数の加算のみであり、参照されない限り集計は行われない.<br>
+ * 
+ * @author seraphy
+ */
+public final class Metrics {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(Metrics.class
+            .getName());
+
+    /**
+     * MBeanのドメイン名
+     */
+    public static final String DOMAIN = "jp.seraphyware.cryptnotepad";
+
+    /**
+     * 鍵導出(PBKDF2)
+     */
+    public static final String CREATE_KEY = "crypt.createKey";
+
+    /**
+     * 暗号化・復号化のストリーム転送
+     */
+    public static final String TRANSFER = "crypt.transfer";
+
+    /**
+     * ファイルハッシュの計算
+     */
+    public static final String FILE_HASH = "crypt.fileHash";
+
+    /**
+     * ファイルハッシュのキャッシュ
+     */
+    public static final String FILE_HASH_CACHE = "crypt.fileHashCache";
+
+    /**
+     * 導出済みの対称暗号化キーのキャッシュ
+     */
+    public static final String SECRET_KEY_CACHE = "crypt.secretKeyCache";
+
+    /**
+     * 最近復号化したドキュメントのキャッシュ
+     */
+    public static final String DOCUMENT_CACHE = "crypt.documentCache";
+
+    /**
+     * ファイルツリーの更新
+     */
+    public static final String FILE_TREE_REFRESH = "ui.fileTreeRefresh";
+
+    /**
+     * XMLリソースバンドルの解析結果のキャッシュ
+     */
+    public static final String RESOURCE_BUNDLE_CACHE = "ui.resourceBundleCache";
+
+    /**
+     * ドキュメントの内容のダイジェストの計算
+     */
+    public static final String CONTENT_DIGEST = "model.contentDigest";
+
+    /**
+     * サービスモードの要求の処理
+     */
+    public static final String SERVICE_REQUEST = "service.request";
+
+    /**
+     * 処理時間の計測値
+     */
+    private static final ConcurrentMap<String, LatencyMetric> latencies = new ConcurrentHashMap<String, LatencyMetric>();
+
+    /**
+     * キャッシュの計測値
+     */
+    private static final ConcurrentMap<String, CacheMetric> caches = new ConcurrentHashMap<String, CacheMetric>();
+
+    /**
+     * MBeanの登録のロック
+     */
+    private static final Object registerLock = new Object();
+
+    /**
+     * MBeanサーバへの登録が有効か?
+     */
+    private static boolean mbeanEnabled;
+
+    private Metrics() {
+        super();
+    }
+
+    /**
+     * 名前を指定して処理時間の計測値を取得する.<br>
+     * なければ作成する.<br>
+     * 
+     * @param name
+     *            名前
+     * @return 計測値
+     */
+    public static LatencyMetric latency(String name) {
+        LatencyMetric metric = latencies.get(name);
+        if (metric == null) {
+            LatencyMetric newMetric = new LatencyMetric(name);
+            metric = latencies.putIfAbsent(name, newMetric);
+            if (metric == null) {
+                metric = newMetric;
+                registerIfEnabled(name, metric);
+            }
+        }
+        return metric;
+    }
+
+    /**
+     * 名前を指定してキャッシュの計測値を取得する.<br>
+     * なければ作成する.<br>
+     * 
+     * @param name
+     *            名前
+     * @return 計測値
+     */
+    public static CacheMetric cache(String name) {
+        CacheMetric metric = caches.get(name);
+        if (metric == null) {
+            CacheMetric newMetric = new CacheMetric(name);
+            metric = caches.putIfAbsent(name, newMetric);
+            if (metric == null) {
+                metric = newMetric;
+                registerIfEnabled(name, metric);
+            }
+        }
+        return metric;
+    }
+
+    /**
+     * 作成済みのすべての計測値をMBeanサーバに登録し、以降に作成される計測値も登録するようにする.<br>
+     */
+    public static void registerMBeans() {
+        synchronized (registerLock) {
+            if (mbeanEnabled) {
+                return;
+            }
+            mbeanEnabled = true;
+            for (LatencyMetric metric : latencies.values()) {
+                register(metric.getName(), metric);
+            }
+            for (CacheMetric metric : caches.values()) {
+                register(metric.getName(), metric);
+            }
+        }
+    }
+
+    /**
+     * MBeanサーバへの登録が有効であれば登録する.
+     * 
+     * @param name
+     *            名前
+     * @param mbean
+     *            MXBean
+     */
+    private static void registerIfEnabled(String name, Object mbean) {
+        synchronized (registerLock) {
+            if (mbeanEnabled) {
+                register(name, mbean);
+            }
+        }
+    }
+
+    /**
+     * MBeanサーバに登録する.<br>
+     * 登録できなくても計測自体は継続できるため、ログに記録するのみとする.<br>
+     * 
+     * @param name
+     *            名前
+     * @param mbean
+     *            MXBean
+     */
+    private static void register(String name, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=Metrics,name="
+                    + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(mbean, objectName);
+            }
+
+        } catch (Exception ex) {
+            logger.log(Level.INFO, "can't register the metric. " + name, ex);
+        }
+    }
+
+    /**
+     * すべての計測値を名前順の文字列で返す.<br>
+     * まだ1度も記録されていないものは含めない.<br>
+     * 
+     * @return 計測値の一覧
+     */
+    public static List<String> dump() {
+        TreeMap<String, String> lines = new TreeMap<String, String>();
+        for (LatencyMetric metric : latencies.values()) {
+            if (metric.getCount() > 0) {
+                lines.put(metric.getName(), metric.toString());
+            }
+        }
+        for (CacheMetric metric : caches.values()) {
+            if (metric.getHits() + metric.getRevalidations()
+                    + metric.getMisses() > 0) {
+                lines.put(metric.getName(), metric.toString());
+            }
+        }
+        return new ArrayList<String>(lines.values());
+    }
+}
@@ -0,0 +1,494 @@
+package jp.seraphyware.cryptnotepad.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * アプリケーションを1つだけ起動するための仕組み.<br>
+ * ユーザーデータディレクトリのロックファイルを最初にロックしたプロセスを主インスタンスとし、
+ * 主インスタンスはループバックアドレスで待ち受けて、ポート番号と認証用のトークンをポートファイルに書き込む.<br>
+ * 2番目以降に起動したプロセスはポートファイルを読み取って主インスタンスに接続し、
+ * 開くファイルを転送して終了する.<br>
+ * 主インスタンスは受け取ったファイルをEDTで{@link RequestHandler}に渡す.<br>
+ * これにより、主インスタンスの導出済みの鍵やキーファイルのハッシュのキャッシュが再利用される.<br>
+ * <br>
+ * プロトコルはUTF-8の行単位で、「CNP1 トークン」「open 絶対パス」(0行以上)「end」を送り、
+ * 主インスタンスは受理すれば「ok」を返す.<br>
+ * 
+ * @author seraphy
+ */
+public class SingleInstance {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(SingleInstance.class
+            .getName());
+
+    /**
+     * プロトコルの識別子
+     */
+    private static final String PROTOCOL = "CNP1";
+
+    /**
+     * ロックファイル名
+     */
+    private static final String LOCK_FILE = "instance.lock";
+
+    /**
+     * ポートファイル名
+     */
+    private static final String PORT_FILE = "instance.port";
+
+    /**
+     * 接続と応答のタイムアウト(mSec)
+     */
+    private static final int TIMEOUT = 2000;
+
+    /**
+     * 主インスタンスの待ち受けの開始を待つ時間(mSec)
+     */
+    private static final long STARTUP_WAIT = 10 * 1000;
+
+    /**
+     * 受け取ったファイルを処理するハンドラ
+     */
+    public interface RequestHandler {
+
+        /**
+         * ファイルを開く要求を処理する.<br>
+         * EDTから呼び出される.<br>
+         * 
+         * @param files
+         *            ファイル(0個の場合はウィンドウを前面にするだけ)
+         */
+        void onOpenRequest(List<File> files);
+    }
+
+    /**
+     * ロックファイルとポートファイルの格納先
+     */
+    private final File dir;
+
+    /**
+     * ロックファイルのハンドル、主インスタンスでなければnull
+     */
+    private RandomAccessFile lockHandle;
+
+    /**
+     * ロック、主インスタンスでなければnull
+     */
+    private FileLock lock;
+
+    /**
+     * 待ち受けソケット、待ち受けていなければnull
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * 認証用のトークン
+     */
+    private String token;
+
+    /**
+     * 受け取ったファイルを処理するハンドラ
+     */
+    private RequestHandler requestHandler;
+
+    /**
+     * ハンドラが設定されるまでに受け取ったファイル
+     */
+    private final List<File> pendingFiles = new ArrayList<File>();
+
+    /**
+     * コンストラクタ
+     * 
+     * @param dir
+     *            ロックファイルとポートファイルの格納先
+     */
+    public SingleInstance(File dir) {
+        if (dir == null) {
+            throw new IllegalArgumentException();
+        }
+        this.dir = dir;
+    }
+
+    /**
+     * ロックファイルをロックして主インスタンスになることを試みる.
+     * 
+     * @return 主インスタンスになればtrue、すでに他のプロセスが主インスタンスであればfalse
+     */
+    public synchronized boolean tryAcquire() {
+        if (lock != null) {
+            return true;
+        }
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                logger.log(Level.WARNING, "can't create the directory. " + dir);
+            }
+            RandomAccessFile fh = new RandomAccessFile(new File(dir,
+                    LOCK_FILE), "rw");
+            FileLock fl = fh.getChannel().tryLock();
+            if (fl == null) {
+                fh.close();
+                return false;
+            }
+            lockHandle = fh;
+            lock = fl;
+            return true;
+
+        } catch (IOException ex) {
+            // ロックできない環境では、常に単独で起動する.
+            logger.log(Level.INFO, "can't lock the instance file.", ex);
+            return true;
+        }
+    }
+
+    /**
+     * 主インスタンスにファイルを転送する.<br>
+     * 主インスタンスが起動中でポートファイルがまだない場合は、しばらく待つ.<br>
+     * 
+     * @param files
+     *            ファイル
+     * @return 主インスタンスが受理した場合はtrue
+     */
+    public boolean forward(List<File> files) {
+        long limit = System.currentTimeMillis() + STARTUP_WAIT;
+        for (;;) {
+            try {
+                if (send(files)) {
+                    return true;
+                }
+
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "can't forward to the instance. " + ex);
+            }
+            if (System.currentTimeMillis() > limit || !isLocked()) {
+                return false;
+            }
+            try {
+                Thread.sleep(100);
+
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 他のプロセスがロックファイルをロックしているか?
+     * 
+     * @return ロックされていればtrue
+     */
+    private boolean isLocked() {
+        try {
+            RandomAccessFile fh = new RandomAccessFile(new File(dir,
+                    LOCK_FILE), "rw");
+            try {
+                FileLock fl = fh.getChannel().tryLock();
+                if (fl != null) {
+                    fl.release();
+                    return false;
+                }
+                return true;
+
+            } finally {
+                fh.close();
+            }
+
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * ポートファイルを読み取って主インスタンスにファイルを送信する.
+     * 
+     * @param files
+     *            ファイル
+     * @return 受理された場合はtrue、ポートファイルがない場合はfalse
+     * @throws IOException
+     *             接続または送信に失敗した場合
+     */
+    private boolean send(List<File> files) throws IOException {
+        String[] portAndToken = readPortFile();
+        if (portAndToken == null) {
+            return false;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(portAndToken[0]);
+
+        } catch (NumberFormatException ex) {
+            throw new IOException("invalid port file. " + ex);
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress
+                    .getByName("127.0.0.1"), port), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+
+            Writer wr = new OutputStreamWriter(socket.getOutputStream(),
+                    "UTF-8");
+            wr.write(PROTOCOL + " " + portAndToken[1] + "\n");
+            for (File file : files) {
+                wr.write("open " + file.getAbsolutePath() + "\n");
+            }
+            wr.write("end\n");
+            wr.flush();
+
+            BufferedReader rd = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "UTF-8"));
+            return "ok".equals(rd.readLine());
+
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * ポートファイルを読み取る.
+     * 
+     * @return ポート番号とトークン、ポートファイルがなければnull
+     * @throws IOException
+     *             読み取りに失敗した場合
+     */
+    private String[] readPortFile() throws IOException {
+        File portFile = new File(dir, PORT_FILE);
+        if (!portFile.exists()) {
+            return null;
+        }
+        BufferedReader rd = new BufferedReader(new InputStreamReader(
+                new FileInputStream(portFile), "UTF-8"));
+        try {
+            String line = rd.readLine();
+            if (line == null) {
+                return null;
+            }
+            String[] tokens = line.trim().split(" ");
+            if (tokens.length != 2) {
+                return null;
+            }
+            return tokens;
+
+        } finally {
+            rd.close();
+        }
+    }
+
+    /**
+     * 主インスタンスとして待ち受けを開始し、ポートファイルを作成する.
+     * 
+     * @throws IOException
+     *             待ち受けに失敗した場合
+     */
+    public synchronized void startServer() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+
+        token = AccessToken.generate();
+
+        serverSocket = new ServerSocket(0, 10,
+                InetAddress.getByName("127.0.0.1"));
+
+        // ポート番号とトークンを本人のみが読めるファイルに書き込む.
+        AccessToken.writeTokenFile(new File(dir, PORT_FILE),
+                serverSocket.getLocalPort(), token);
+
+        final ServerSocket ss = serverSocket;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(ss);
+            }
+        }, "SingleInstance");
+        thread.setDaemon(true);
+        thread.start();
+
+        logger.log(Level.INFO, "single instance server started. port="
+                + ss.getLocalPort());
+    }
+
+    /**
+     * 接続を受け付けて、要求を処理する.
+     * 
+     * @param ss
+     *            待ち受けソケット
+     */
+    private void acceptLoop(ServerSocket ss) {
+        while (!ss.isClosed()) {
+            try {
+                Socket socket = ss.accept();
+                try {
+                    socket.setSoTimeout(TIMEOUT);
+                    handle(socket);
+
+                } finally {
+                    socket.close();
+                }
+
+            } catch (IOException ex) {
+                if (!ss.isClosed()) {
+                    logger.log(Level.WARNING, "single instance request failed.",
+                            ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * 1つの要求を処理する.
+     * 
+     * @param socket
+     *            接続
+     * @throws IOException
+     *             失敗
+     */
+    private void handle(Socket socket) throws IOException {
+        BufferedReader rd = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "UTF-8"));
+        String header = rd.readLine();
+        if (header == null || !isValidHeader(header)) {
+            logger.log(Level.WARNING, "invalid single instance request.");
+            return;
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (;;) {
+            String line = rd.readLine();
+            if (line == null) {
+                // 途中で切断された場合は処理しない.
+                return;
+            }
+            if (line.equals("end")) {
+                break;
+            }
+            if (line.startsWith("open ")) {
+                files.add(new File(line.substring(5)));
+            }
+        }
+
+        Writer wr = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+        wr.write("ok\n");
+        wr.flush();
+
+        logger.log(Level.INFO, "open request from another instance. " + files);
+        dispatch(files);
+    }
+
+    /**
+     * ヘッダのプロトコルとトークンを検証する.
+     * 
+     * @param header
+     *            ヘッダ
+     * @return 正しければtrue
+     */
+    private boolean isValidHeader(String header) {
+        String expected = PROTOCOL + " " + token;
+        if (header.length() != expected.length()) {
+            return false;
+        }
+        // 時間差で推測されないように、すべての文字を比較する.
+        int diff = 0;
+        for (int idx = 0; idx < expected.length(); idx++) {
+            diff |= header.charAt(idx) ^ expected.charAt(idx);
+        }
+        return diff == 0;
+    }
+
+    /**
+     * 受け取ったファイルをEDTでハンドラに渡す.<br>
+     * ハンドラが未設定であれば、設定されるまで保留する.<br>
+     * 
+     * @param files
+     *            ファイル
+     */
+    private void dispatch(final List<File> files) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                RequestHandler handler;
+                synchronized (SingleInstance.this) {
+                    handler = requestHandler;
+                    if (handler == null) {
+                        pendingFiles.addAll(files);
+                        return;
+                    }
+                }
+                handler.onOpenRequest(files);
+            }
+        });
+    }
+
+    /**
+     * 受け取ったファイルを処理するハンドラを設定する.<br>
+     * 保留しているファイルがあれば、EDTでハンドラに渡す.<br>
+     * 
+     * @param requestHandler
+     *            ハンドラ
+     */
+    public void setRequestHandler(RequestHandler requestHandler) {
+        List<File> files;
+        synchronized (this) {
+            this.requestHandler = requestHandler;
+            if (pendingFiles.isEmpty()) {
+                return;
+            }
+            files = new ArrayList<File>(pendingFiles);
+            pendingFiles.clear();
+        }
+        dispatch(Collections.unmodifiableList(files));
+    }
+
+    /**
+     * 待ち受けを終了し、ポートファイルを削除してロックを解放する.
+     */
+    public synchronized void close() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "close failed.", ex);
+            }
+            serverSocket = null;
+
+            File portFile = new File(dir, PORT_FILE);
+            if (portFile.exists() && !portFile.delete()) {
+                logger.log(Level.WARNING, "can't delete. " + portFile);
+            }
+        }
+        if (lock != null) {
+            try {
+                lock.release();
+                lockHandle.close();
+
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "close failed.", ex);
+            }
+            lock = null;
+            lockHandle = null;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package jp.seraphyware.cryptnotepad.util;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 起動処理の各段階の所要時間を記録する.<br>
+ * 画面の表示までに順に行う段階は{@link #mark(String)}で区切り、
+ * {@link #logSummary(String)}でまとめてログに記録する.<br>
+ * バックグラウンドで行う処理は{@link #record(String, long)}で完了ごとにログに記録する.<br>
+ * 時刻はこのクラスの初期化時点(起動直後)からの経過時間とする.<br>
+ * 
+ * @author seraphy
+ */
+public final class StartupTimeline {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger
+            .getLogger(StartupTimeline.class.getName());
+
+    /**
+     * 起点の時刻(nSec)
+     */
+    private static final long origin = System.nanoTime();
+
+    /**
+     * 前回の区切りの時刻(nSec)
+     */
+    private static long lastMark = origin;
+
+    /**
+     * 記録した段階
+     */
+    private static final StringBuilder phases = new StringBuilder();
+
+    private StartupTimeline() {
+        super();
+    }
+
+    /**
+     * 起点の時刻を確定させる.<br>
+     * 起動処理の最初に呼び出す.<br>
+     */
+    public static void start() {
+        // クラスの初期化により起点が確定する.
+    }
+
+    /**
+     * 前回の区切りからここまでを1つの段階として記録する.
+     * 
+     * @param phase
+     *            段階の名前
+     */
+    public static synchronized void mark(String phase) {
+        long now = System.nanoTime();
+        phases.append(String.format("%n  %-16s %6dms (at %6dms)", phase,
+                (now - lastMark) / 1000000, (now - origin) / 1000000));
+        lastMark = now;
+    }
+
+    /**
+     * ここまでに記録した段階をログに記録する.
+     * 
+     * @param title
+     *            見出し
+     */
+    public static synchronized void logSummary(String title) {
+        logger.log(Level.INFO, "startup timeline: " + title + " at "
+                + (System.nanoTime() - origin) / 1000000 + "ms" + phases);
+        phases.setLength(0);
+    }
+
+    /**
+     * バックグラウンドの処理の完了を記録する.
+     * 
+     * @param task
+     *            処理の名前
+     * @param startTime
+     *            処理の開始時刻(nSec)
+     */
+    public static void record(String task, long startTime) {
+        long now = System.nanoTime();
+        logger.log(Level.INFO, String.format(
+                "startup timeline: background %s %dms (at %dms)", task,
+                (now - startTime) / 1000000, (now - origin) / 1000000));
+    }
+}
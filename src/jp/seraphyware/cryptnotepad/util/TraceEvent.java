@@ -0,0 +1,139 @@
+package jp.seraphyware.cryptnotepad.util;
+
+import java.io.File;
+import java.util.logging.Level;
+
+/**
+ * 1回のドキュメント操作のトレースイベント.<br>
+ * {@link TraceEventType#begin()}で開始し、処理の終わりに{@link #commit()}を呼び出す.<br>
+ * 処理時間は開始から終了までとなる.<br>
+ * 
+ * <pre>
+ * TraceEvent evt = TraceEventType.DECRYPT.begin();
+ * try {
+ *     evt.setFile(file);
+ *     ...
+ * } finally {
+ *     evt.commit();
+ * }
+ * </pre>
+ * 
+ * @author seraphy
+ */
+public final class TraceEvent {
+
+    /**
+     * イベントの種類
+     */
+    private final TraceEventType type;
+
+    /**
+     * JFRのイベント、JFRが利用できないか記録されない場合はnull
+     */
+    private final Object jfrEvent;
+
+    /**
+     * 開始時刻(nSec)
+     */
+    private final long startTime;
+
+    /**
+     * 対象のファイルのパス
+     */
+    private String path;
+
+    /**
+     * 対象のサイズ、不明であれば-1
+     */
+    private long size = -1;
+
+    /**
+     * コンテントタイプ
+     */
+    private String contentType;
+
+    /**
+     * 詳細
+     */
+    private String detail;
+
+    TraceEvent(TraceEventType type, Object jfrEvent) {
+        this.type = type;
+        this.jfrEvent = jfrEvent;
+        this.startTime = System.nanoTime();
+    }
+
+    public TraceEventType getType() {
+        return type;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * 対象のファイルを設定する.<br>
+     * パスとして絶対パスを設定する.<br>
+     * 
+     * @param file
+     *            ファイル、nullの場合はパスなし
+     */
+    public void setFile(File file) {
+        this.path = (file != null) ? file.getAbsolutePath() : null;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    public void setDetail(String detail) {
+        this.detail = detail;
+    }
+
+    /**
+     * イベントを終了して出力する.
+     */
+    public void commit() {
+        if (jfrEvent != null) {
+            TraceEventType.jfr.commit(jfrEvent, new Object[] { path, size,
+                    contentType, detail });
+        }
+        if (TraceEventType.traceLogger.isLoggable(Level.FINE)) {
+            long elapsed = System.nanoTime() - startTime;
+            TraceEventType.traceLogger.log(Level.FINE, toString()
+                    + ", duration=" + (elapsed / 1000) + "us");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append(type.getName());
+        buf.append("(path=").append(path);
+        buf.append(", size=").append(size);
+        buf.append(", contentType=").append(contentType);
+        buf.append(", detail=").append(detail);
+        buf.append(")");
+        return buf.toString();
+    }
+}
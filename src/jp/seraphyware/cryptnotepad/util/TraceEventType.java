@@ -0,0 +1,314 @@
+package jp.seraphyware.cryptnotepad.util;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ドキュメント操作のトレースイベントの種類.<br>
+ * 実行中のJVMがJDK Flight Recorderのイベントファクトリ(jdk.jfr.EventFactory)を
+ * 備えていれば、種類ごとに「jp.seraphyware.cryptnotepad.名前」のイベントを定義し、
+ * 記録中であればフライトレコーダーに出力する.<br>
+ * このアプリケーションはJava6でも動作するため、JFRのAPIはリフレクションで呼び出す.<br>
+ * JFRが利用できない場合でも、ロガー「jp.seraphyware.cryptnotepad.trace」の
+ * レベルをFINEにすればイベントをログに出力する.<br>
+ * 
+ * @author seraphy
+ */
+public final class TraceEventType {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger.getLogger(TraceEventType.class
+            .getName());
+
+    /**
+     * イベントの出力先のロガー
+     */
+    static final Logger traceLogger = Logger
+            .getLogger("jp.seraphyware.cryptnotepad.trace");
+
+    /**
+     * イベント名の接頭語
+     */
+    private static final String PREFIX = "jp.seraphyware.cryptnotepad.";
+
+    /**
+     * JFRのイベントファクトリのアクセサ、JFRが利用できなければnull
+     */
+    static final JfrBridge jfr = JfrBridge.create();
+
+    /**
+     * 鍵導出(PBKDF2)
+     */
+    public static final TraceEventType KEY_DERIVATION = new TraceEventType(
+            "KeyDerivation", "Key Derivation");
+
+    /**
+     * キーファイルのハッシュの取得.(詳細はhit, revalidate, miss)
+     */
+    public static final TraceEventType KEY_FILE_HASH = new TraceEventType(
+            "KeyFileHash", "Key File Hash Lookup");
+
+    /**
+     * ファイルの復号化
+     */
+    public static final TraceEventType DECRYPT = new TraceEventType("Decrypt",
+            "Decrypt");
+
+    /**
+     * ファイルの暗号化
+     */
+    public static final TraceEventType ENCRYPT = new TraceEventType("Encrypt",
+            "Encrypt");
+
+    /**
+     * 復号化したドキュメントのヘッダの解析
+     */
+    public static final TraceEventType HEADER_PARSE = new TraceEventType(
+            "HeaderParse", "Header Parse");
+
+    /**
+     * 画像のデコード
+     */
+    public static final TraceEventType IMAGE_DECODE = new TraceEventType(
+            "ImageDecode", "Image Decode");
+
+    /**
+     * ファイルツリーの更新
+     */
+    public static final TraceEventType TREE_REFRESH = new TraceEventType(
+            "TreeRefresh", "File Tree Refresh");
+
+    /**
+     * 名前
+     */
+    private final String name;
+
+    /**
+     * JFRのイベントファクトリ、JFRが利用できなければnull
+     */
+    private final Object eventFactory;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param name
+     *            名前
+     * @param label
+     *            JFRでの表示名
+     */
+    private TraceEventType(String name, String label) {
+        this.name = name;
+        this.eventFactory = (jfr != null) ? jfr.createFactory(PREFIX + name,
+                label) : null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * イベントを開始する.<br>
+     * 処理が終わったら{@link TraceEvent#commit()}を呼び出すこと.<br>
+     * 
+     * @return イベント
+     */
+    public TraceEvent begin() {
+        Object jfrEvent = null;
+        if (eventFactory != null) {
+            jfrEvent = jfr.begin(eventFactory);
+        }
+        return new TraceEvent(this, jfrEvent);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * JDK Flight RecorderのAPIをリフレクションで呼び出す.<br>
+     * 呼び出しに失敗した場合はログに記録し、以降はJFRへの出力を行わない.<br>
+     */
+    static final class JfrBridge {
+
+        /**
+         * イベントのフィールド名.<br>
+         * {@link TraceEvent}のフィールドと順序をあわせること.<br>
+         */
+        static final String[] FIELD_NAMES = { "path", "size", "contentType",
+                "detail" };
+
+        /**
+         * イベントのフィールドの型
+         */
+        static final Class<?>[] FIELD_TYPES = { String.class, long.class,
+                String.class, String.class };
+
+        private final Constructor<?> annotationElementCtor;
+
+        private final Constructor<?> valueDescriptorCtor;
+
+        private final Method factoryCreate;
+
+        private final Method factoryNewEvent;
+
+        private final Method eventBegin;
+
+        private final Method eventEnd;
+
+        private final Method eventShouldCommit;
+
+        private final Method eventCommit;
+
+        private final Method eventSet;
+
+        @SuppressWarnings("rawtypes")
+        private final Class[] annotationTypes = new Class[3];
+
+        /**
+         * 呼び出しに失敗したか?
+         */
+        private volatile boolean failed;
+
+        private JfrBridge() throws Exception {
+            ClassLoader loader = ClassLoader.getSystemClassLoader();
+            Class<?> annotationElementClass = Class.forName(
+                    "jdk.jfr.AnnotationElement", false, loader);
+            Class<?> valueDescriptorClass = Class.forName(
+                    "jdk.jfr.ValueDescriptor", false, loader);
+            Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory",
+                    false, loader);
+            Class<?> eventClass = Class.forName("jdk.jfr.Event", false, loader);
+
+            annotationTypes[0] = Class.forName("jdk.jfr.Name", false, loader);
+            annotationTypes[1] = Class.forName("jdk.jfr.Label", false, loader);
+            annotationTypes[2] = Class.forName("jdk.jfr.Category", false,
+                    loader);
+
+            annotationElementCtor = annotationElementClass.getConstructor(
+                    Class.class, Object.class);
+            valueDescriptorCtor = valueDescriptorClass.getConstructor(
+                    Class.class, String.class);
+            factoryCreate = eventFactoryClass.getMethod("create", List.class,
+                    List.class);
+            factoryNewEvent = eventFactoryClass.getMethod("newEvent");
+            eventBegin = eventClass.getMethod("begin");
+            eventEnd = eventClass.getMethod("end");
+            eventShouldCommit = eventClass.getMethod("shouldCommit");
+            eventCommit = eventClass.getMethod("commit");
+            eventSet = eventClass.getMethod("set", int.class, Object.class);
+        }
+
+        /**
+         * JFRが利用できれば作成する.
+         * 
+         * @return JFRのアクセサ、利用できなければnull
+         */
+        static JfrBridge create() {
+            try {
+                return new JfrBridge();
+
+            } catch (Exception ex) {
+                logger.log(Level.FINE, "JFR is not available. " + ex);
+                return null;
+            }
+        }
+
+        /**
+         * イベントファクトリを作成する.
+         * 
+         * @param name
+         *            イベント名
+         * @param label
+         *            表示名
+         * @return イベントファクトリ、作成できなければnull
+         */
+        @SuppressWarnings("unchecked")
+        Object createFactory(String name, String label) {
+            try {
+                List<Object> annotations = new ArrayList<Object>();
+                annotations.add(annotationElementCtor.newInstance(
+                        (Class<? extends Annotation>) annotationTypes[0], name));
+                annotations.add(annotationElementCtor.newInstance(
+                        (Class<? extends Annotation>) annotationTypes[1], label));
+                annotations.add(annotationElementCtor.newInstance(
+                        (Class<? extends Annotation>) annotationTypes[2],
+                        new String[] { "CryptNotepad" }));
+
+                List<Object> fields = new ArrayList<Object>();
+                for (int idx = 0; idx < FIELD_NAMES.length; idx++) {
+                    fields.add(valueDescriptorCtor.newInstance(
+                            FIELD_TYPES[idx], FIELD_NAMES[idx]));
+                }
+                return factoryCreate.invoke(null, annotations, fields);
+
+            } catch (Exception ex) {
+                logger.log(Level.INFO, "can't create the JFR event. " + name,
+                        ex);
+                return null;
+            }
+        }
+
+        /**
+         * イベントを作成して開始する.
+         * 
+         * @param eventFactory
+         *            イベントファクトリ
+         * @return イベント、失敗した場合はnull
+         */
+        Object begin(Object eventFactory) {
+            if (failed) {
+                return null;
+            }
+            try {
+                Object event = factoryNewEvent.invoke(eventFactory);
+                eventBegin.invoke(event);
+                return event;
+
+            } catch (Exception ex) {
+                disable(ex);
+                return null;
+            }
+        }
+
+        /**
+         * イベントを終了し、記録対象であればフィールドを設定して出力する.
+         * 
+         * @param event
+         *            イベント
+         * @param values
+         *            フィールドの値
+         */
+        void commit(Object event, Object[] values) {
+            if (failed) {
+                return;
+            }
+            try {
+                eventEnd.invoke(event);
+                if ((Boolean) eventShouldCommit.invoke(event)) {
+                    for (int idx = 0; idx < values.length; idx++) {
+                        eventSet.invoke(event, idx, values[idx]);
+                    }
+                    eventCommit.invoke(event);
+                }
+
+            } catch (Exception ex) {
+                disable(ex);
+            }
+        }
+
+        private void disable(Exception ex) {
+            if (!failed) {
+                failed = true;
+                logger.log(Level.WARNING, "JFR events are disabled.", ex);
+            }
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package jp.seraphyware.cryptnotepad.util;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
@@ -12,7 +12,8 @@ import java.util.Properties;
 import java.util.ResourceBundle;
 
 /**
- * XMLリソースバンドル
+ * XMLリソースバンドル.<br>
+ * {@link #CONTROL}で読み込んだ場合、XMLの解析結果はキャッシュされ、次回以降はキャッシュから読み込む.<br>
  * 
  * @author seraphy
  */
@@ -48,9 +49,10 @@ public class XMLResourceBundle extends ResourceBundle {
                 String bundleName = toBundleName(baseName, locale);
                 String resourceName = toResourceName(bundleName, format);
 
-                InputStream is = loader.getResourceAsStream(resourceName);
-                if (is != null) {
-                    return new XMLResourceBundle(new BufferedInputStream(is));
+                URL url = loader.getResource(resourceName);
+                if (url != null) {
+                    return new XMLResourceBundle(XMLResourceBundleCache.load(
+                            resourceName, url));
                 }
             }
 
@@ -84,6 +86,19 @@ public class XMLResourceBundle extends ResourceBundle {
         props.loadFromXML(is);
     }
 
+    /**
+     * 読み込み済みのプロパティを指定して構築するコンストラクタ
+     * 
+     * @param props
+     *            プロパティ
+     */
+    protected XMLResourceBundle(Properties props) {
+        if (props == null) {
+            throw new IllegalArgumentException();
+        }
+        this.props = props;
+    }
+
     @Override
     protected Object handleGetObject(String key) {
         if (key == null) {
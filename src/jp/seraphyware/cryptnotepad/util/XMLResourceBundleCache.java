@@ -0,0 +1,246 @@
+package jp.seraphyware.cryptnotepad.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * XMLリソースバンドルの解析結果のキャッシュ.<br>
+ * XMLの解析はXMLパーサの初期化を伴い起動時間に影響するため、
+ * 解析したプロパティをユーザーデータディレクトリにバイナリ形式で保存しておき、
+ * 次回からはそれを読み込む.<br>
+ * キャッシュにはリソースのURLと最終更新日時(jarに含まれる場合はjarの最終更新日時)を記録し、
+ * いずれかが異なればキャッシュは無効とする.<br>
+ * 
+ * @author seraphy
+ */
+final class XMLResourceBundleCache {
+
+    /**
+     * ロガー.<br>
+     */
+    private static final Logger logger = Logger
+            .getLogger(XMLResourceBundleCache.class.getName());
+
+    /**
+     * キャッシュファイルの形式の識別子
+     */
+    private static final String MAGIC = "CNPRBC01";
+
+    /**
+     * キャッシュのディレクトリ名
+     */
+    private static final String CACHE_DIR = "resourcecache";
+
+    /**
+     * キャッシュファイルの拡張子
+     */
+    private static final String EXT = ".cache";
+
+    private XMLResourceBundleCache() {
+        super();
+    }
+
+    /**
+     * リソースのXMLプロパティを取得する.<br>
+     * 有効なキャッシュがあればキャッシュから読み込み、
+     * なければXMLを解析してキャッシュに保存する.<br>
+     * 
+     * @param resourceName
+     *            リソース名
+     * @param url
+     *            リソースのURL
+     * @return プロパティ
+     * @throws IOException
+     *             XMLの読み込みに失敗した場合
+     */
+    public static Properties load(String resourceName, URL url)
+            throws IOException {
+        if (resourceName == null || url == null) {
+            throw new IllegalArgumentException();
+        }
+        CacheMetric metric = Metrics.cache(Metrics.RESOURCE_BUNDLE_CACHE);
+
+        long lastModified = getLastModified(url);
+        File cacheFile = (lastModified != 0) ? getCacheFile(resourceName)
+                : null;
+        if (cacheFile != null) {
+            Properties props = readCache(cacheFile, url, lastModified);
+            if (props != null) {
+                metric.hit();
+                return props;
+            }
+        }
+        metric.miss();
+
+        Properties props = new Properties();
+        // The specified stream is closed after this method returns. (on jdk1.6)
+        props.loadFromXML(new BufferedInputStream(url.openStream()));
+
+        if (cacheFile != null) {
+            writeCache(cacheFile, url, lastModified, props);
+        }
+        return props;
+    }
+
+    /**
+     * リソースの最終更新日時を取得する.<br>
+     * ファイルであればファイルの日時、jarに含まれる場合はjarファイルの日時とする.<br>
+     * 
+     * @param url
+     *            リソースのURL
+     * @return 最終更新日時、不明であれば0
+     */
+    private static long getLastModified(URL url) {
+        try {
+            URL fileUrl = url;
+            if ("jar".equals(url.getProtocol())) {
+                URLConnection conn = url.openConnection();
+                fileUrl = ((JarURLConnection) conn).getJarFileURL();
+            }
+            if ("file".equals(fileUrl.getProtocol())) {
+                return new File(fileUrl.toURI()).lastModified();
+            }
+
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "can't get lastModified. " + url, ex);
+
+        } catch (URISyntaxException ex) {
+            logger.log(Level.FINE, "can't get lastModified. " + url, ex);
+
+        } catch (RuntimeException ex) {
+            logger.log(Level.FINE, "can't get lastModified. " + url, ex);
+        }
+        return 0;
+    }
+
+    /**
+     * キャッシュファイルを取得する.
+     * 
+     * @param resourceName
+     *            リソース名
+     * @return キャッシュファイル、ユーザーデータディレクトリが使えなければnull
+     */
+    private static File getCacheFile(String resourceName) {
+        try {
+            File dir = new File(ConfigurationDirUtilities.getUserDataDir(),
+                    CACHE_DIR);
+            return new File(dir, resourceName.replace('/', '.') + EXT);
+
+        } catch (RuntimeException ex) {
+            logger.log(Level.FINE, "resource cache is not available.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * キャッシュを読み込む.
+     * 
+     * @param cacheFile
+     *            キャッシュファイル
+     * @param url
+     *            リソースのURL
+     * @param lastModified
+     *            リソースの最終更新日時
+     * @return プロパティ、キャッシュがないか無効であればnull
+     */
+    private static Properties readCache(File cacheFile, URL url,
+            long lastModified) {
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(cacheFile)));
+            try {
+                if (!MAGIC.equals(dis.readUTF())
+                        || !url.toExternalForm().equals(dis.readUTF())
+                        || dis.readLong() != lastModified) {
+                    return null;
+                }
+                Properties props = new Properties();
+                int count = dis.readInt();
+                for (int idx = 0; idx < count; idx++) {
+                    String key = dis.readUTF();
+                    String value = dis.readUTF();
+                    props.setProperty(key, value);
+                }
+                return props;
+
+            } finally {
+                dis.close();
+            }
+
+        } catch (IOException ex) {
+            // 壊れたキャッシュは作り直す.
+            logger.log(Level.FINE, "invalid resource cache. " + cacheFile, ex);
+            return null;
+        }
+    }
+
+    /**
+     * キャッシュを保存する.<br>
+     * 一時ファイルに書き込んでから置き換える.<br>
+     * 保存に失敗してもログに記録するだけとする.<br>
+     * 
+     * @param cacheFile
+     *            キャッシュファイル
+     * @param url
+     *            リソースのURL
+     * @param lastModified
+     *            リソースの最終更新日時
+     * @param props
+     *            プロパティ
+     */
+    private static void writeCache(File cacheFile, URL url, long lastModified,
+            Properties props) {
+        File dir = cacheFile.getParentFile();
+        File tmpFile = new File(dir, cacheFile.getName() + ".tmp");
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("can't create the directory. " + dir);
+            }
+            DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                dos.writeUTF(MAGIC);
+                dos.writeUTF(url.toExternalForm());
+                dos.writeLong(lastModified);
+                dos.writeInt(props.size());
+                Enumeration<?> enm = props.propertyNames();
+                while (enm.hasMoreElements()) {
+                    String key = (String) enm.nextElement();
+                    dos.writeUTF(key);
+                    dos.writeUTF(props.getProperty(key));
+                }
+
+            } finally {
+                dos.close();
+            }
+            if (cacheFile.exists() && !cacheFile.delete()) {
+                throw new IOException("can't delete. " + cacheFile);
+            }
+            if (!tmpFile.renameTo(cacheFile)) {
+                throw new IOException("can't rename. " + tmpFile);
+            }
+
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "can't write the resource cache. "
+                    + cacheFile, ex);
+            tmpFile.delete();
+        }
+    }
+}